@@ -0,0 +1,239 @@
+package ma.emsi.tp1lakehal.charge;
+
+import ma.emsi.tp1lakehal.Llm.ExtracteurReponseGemini;
+import ma.emsi.tp1lakehal.Llm.HistoriqueConversation;
+import ma.emsi.tp1lakehal.Llm.ReponseGemini;
+import ma.emsi.tp1lakehal.Llm.RolesSysteme;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Générateur de charge : N conversations simulées en parallèle (une par thread virtuel) envoient leurs questions
+ * à l'API Gemini, ou au ServeurGeminiSimule, pendant une durée donnée.
+ *
+ * Chaque conversation construit ses requêtes comme l'application (HistoriqueConversation : rôle système,
+ * historique qui grandit à chaque tour) et lit les réponses avec ExtracteurReponseGemini ; seul l'envoi HTTP
+ * passe par le client du JDK plutôt que par LlmClient, qui a besoin du conteneur CDI.
+ * Après --tours questions ou une erreur, la conversation recommence.
+ *
+ * Options : --url (défaut http://localhost:8089/v1beta), --modele (défaut gemini-2.5-flash), --cle (défaut simule),
+ * --conversations (défaut 50), --tours (défaut 10), --duree (s, défaut 60), --echauffement (s non comptées,
+ * défaut 5), --reflexion (ms entre deux questions, défaut 0), --role (code de RolesSysteme, défaut ASSISTANT),
+ * --flux (streamGenerateContent au lieu de generateContent ; mesure aussi le délai du premier événement).
+ *
+ * Affiche le débit, les status reçus et les latences p50, p99 et p99.9.
+ * Lancement : mvn -Pjmh test-compile exec:exec -Dperf.classe=ma.emsi.tp1lakehal.charge.ChargeConversations -Dperf.args="--conversations 100"
+ */
+public final class ChargeConversations {
+
+    private final URI uri;
+    private final int nbConversations;
+    private final int nbTours;
+    private final long reflexionMs;
+    private final String role;
+    private final boolean flux;
+    private final HttpClient client;
+
+    private final Map<String, LongAdder> statuts = new ConcurrentHashMap<>();
+    private final LongAdder octetsRecus = new LongAdder();
+
+    private volatile long debutMesure;
+    private volatile long finMesure;
+
+    private ChargeConversations(Options options) {
+        String modele = options.texte("modele", "gemini-2.5-flash");
+        this.flux = options.booleen("flux");
+        this.uri = URI.create(options.texte("url", "http://localhost:8089/v1beta") + "/models/" + modele
+                + (flux ? ":streamGenerateContent?alt=sse&key=" : ":generateContent?key=") + options.texte("cle", "simule"));
+        this.nbConversations = options.entier("conversations", 50);
+        this.nbTours = options.entier("tours", 10);
+        this.reflexionMs = options.entier("reflexion", 0);
+        this.role = RolesSysteme.texte(options.texte("role", "ASSISTANT"));
+        this.client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    /**
+     * Latences mesurées par une conversation (pas de partage entre threads pendant la mesure).
+     */
+    private static final class Mesures {
+        private long[] latences = new long[256];
+        private long[] premiersEvenements = new long[256];
+        private int nb;
+        private int nbPremiers;
+
+        void ajouter(long latenceNanos, long premierEvenementNanos) {
+            if (nb == latences.length) latences = Arrays.copyOf(latences, nb * 2);
+            latences[nb++] = latenceNanos;
+            if (premierEvenementNanos >= 0) {
+                if (nbPremiers == premiersEvenements.length) premiersEvenements = Arrays.copyOf(premiersEvenements, nbPremiers * 2);
+                premiersEvenements[nbPremiers++] = premierEvenementNanos;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = new Options(args);
+        ChargeConversations charge = new ChargeConversations(options);
+        long echauffement = TimeUnit.SECONDS.toNanos(options.entier("echauffement", 5));
+        long duree = TimeUnit.SECONDS.toNanos(options.entier("duree", 60));
+
+        long maintenant = System.nanoTime();
+        charge.debutMesure = maintenant + echauffement;
+        charge.finMesure = charge.debutMesure + duree;
+        System.out.println(charge.nbConversations + " conversations vers " + charge.uri.getHost() + ":" + charge.uri.getPort()
+                + " pendant " + TimeUnit.NANOSECONDS.toSeconds(echauffement + duree) + " s (dont "
+                + TimeUnit.NANOSECONDS.toSeconds(echauffement) + " s d'échauffement)...");
+
+        List<Mesures> toutes = new ArrayList<>();
+        try (ExecutorService conversations = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < charge.nbConversations; i++) {
+                Mesures mesures = new Mesures();
+                toutes.add(mesures);
+                int numero = i;
+                conversations.submit(() -> charge.converser(numero, mesures));
+            }
+        }
+        System.out.println(charge.bilan(toutes, duree));
+    }
+
+    private void converser(int numero, Mesures mesures) {
+        HistoriqueConversation historique = null;
+        int tour = 0;
+        while (System.nanoTime() < finMesure) {
+            if (historique == null || tour >= nbTours) {
+                historique = new HistoriqueConversation();
+                historique.setInstructionSysteme(role);
+                tour = 0;
+            }
+            historique.ajouterQuestion("Conversation " + numero + ", question " + (++tour)
+                    + " : quels sont trois endroits à visiter à Marrakech et pourquoi ?");
+            long debut = System.nanoTime();
+            long[] premierEvenement = {-1};
+            String statut;
+            List<String> textes = null;
+            try {
+                HttpResponse<InputStream> reponse = client.send(HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(historique.corps().versOctets()))
+                        .build(), HttpResponse.BodyHandlers.ofInputStream());
+                statut = String.valueOf(reponse.statusCode());
+                try (InputStream corps = reponse.body()) {
+                    if (reponse.statusCode() != 200) {
+                        octetsRecus.add(corps.readAllBytes().length);
+                    } else if (flux) {
+                        textes = lireFlux(corps, debut, premierEvenement);
+                    } else {
+                        byte[] octets = corps.readAllBytes();
+                        octetsRecus.add(octets.length);
+                        textes = ExtracteurReponseGemini.extraire(new ByteArrayInputStream(octets)).textes();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                statut = e.getClass().getSimpleName();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long fin = System.nanoTime();
+            if (debut >= debutMesure && fin <= finMesure) {
+                mesures.ajouter(fin - debut, premierEvenement[0]);
+                statuts.computeIfAbsent(statut, s -> new LongAdder()).increment();
+            }
+
+            if (textes == null || textes.isEmpty()) {
+                historique = null;
+            } else {
+                historique.ajouterReponse(textes);
+            }
+            if (reflexionMs > 0) {
+                try {
+                    Thread.sleep(reflexionMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lit les événements "data: {...}" du flux et rassemble les textes ; note le délai du premier événement.
+     */
+    private List<String> lireFlux(InputStream corps, long debut, long[] premierEvenement) throws IOException {
+        List<String> textes = new ArrayList<>();
+        BufferedReader lecteur = new BufferedReader(new InputStreamReader(corps, StandardCharsets.UTF_8));
+        String ligne;
+        while ((ligne = lecteur.readLine()) != null) {
+            octetsRecus.add(ligne.length() + 1);
+            if (!ligne.startsWith("data:")) continue;
+            if (premierEvenement[0] < 0) premierEvenement[0] = System.nanoTime() - debut;
+            ReponseGemini morceau = ExtracteurReponseGemini.extraire(new StringReader(ligne.substring(5)));
+            textes.addAll(morceau.textes());
+        }
+        return List.of(String.join("", textes));
+    }
+
+    private String bilan(List<Mesures> toutes, long dureeNanos) {
+        int total = toutes.stream().mapToInt(m -> m.nb).sum();
+        long[] latences = new long[total];
+        long[] premiers = new long[toutes.stream().mapToInt(m -> m.nbPremiers).sum()];
+        int i = 0, j = 0;
+        for (Mesures mesures : toutes) {
+            System.arraycopy(mesures.latences, 0, latences, i, mesures.nb);
+            System.arraycopy(mesures.premiersEvenements, 0, premiers, j, mesures.nbPremiers);
+            i += mesures.nb;
+            j += mesures.nbPremiers;
+        }
+        Arrays.sort(latences);
+        Arrays.sort(premiers);
+
+        StringBuilder bilan = new StringBuilder();
+        double secondes = dureeNanos / 1e9;
+        bilan.append(String.format("Requêtes mesurées : %d en %.0f s, soit %.1f requêtes/s (%.1f Ko/s reçus)%n",
+                total, secondes, total / secondes, octetsRecus.sum() / 1024.0 / secondes));
+        bilan.append("Status : ").append(new TreeMap<>(statuts)).append('\n');
+        bilan.append("Latence (ms)             : ").append(percentiles(latences)).append('\n');
+        if (premiers.length > 0) {
+            bilan.append("Premier événement (ms)   : ").append(percentiles(premiers)).append('\n');
+        }
+        return bilan.toString();
+    }
+
+    private static String percentiles(long[] tries) {
+        if (tries.length == 0) return "aucune mesure";
+        return String.format("p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                percentile(tries, 50), percentile(tries, 99), percentile(tries, 99.9), tries[tries.length - 1] / 1e6);
+    }
+
+    /**
+     * Percentile exact (méthode du rang le plus proche) sur des latences triées en nanosecondes, en ms.
+     */
+    private static double percentile(long[] tries, double percentile) {
+        int rang = (int) Math.ceil(percentile / 100 * tries.length);
+        return tries[Math.max(0, Math.min(tries.length, rang) - 1)] / 1e6;
+    }
+}
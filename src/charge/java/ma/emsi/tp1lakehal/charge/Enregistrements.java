@@ -0,0 +1,120 @@
+package ma.emsi.tp1lakehal.charge;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Échanges réels avec Gemini enregistrés au format JSONL, une ligne par échange :
+ * {"type":"generateContent","question":"...","status":200,"latenceMs":812,"reponse":"..."}.
+ *
+ * "reponse" est le corps reçu tel quel (JSON pour generateContent, texte Server-Sent Events pour
+ * streamGenerateContent). Au rejeu, l'échange est retrouvé par le type et le texte de la dernière
+ * question ; si aucun échange ne correspond, les échanges du même type sont rejoués à tour de rôle.
+ */
+final class Enregistrements {
+
+    /**
+     * Un échange enregistré.
+     */
+    record Echange(String type, String question, int status, long latenceMs, String reponse) {
+
+        JsonObject versJson() {
+            return Json.createObjectBuilder()
+                    .add("type", type)
+                    .add("question", question)
+                    .add("status", status)
+                    .add("latenceMs", latenceMs)
+                    .add("reponse", reponse)
+                    .build();
+        }
+
+        static Echange lire(JsonObject json) {
+            return new Echange(json.getString("type"), json.getString("question", ""), json.getInt("status"),
+                    json.getJsonNumber("latenceMs").longValue(), json.getString("reponse"));
+        }
+    }
+
+    private final Map<String, Echange> parQuestion = new HashMap<>();
+    private final Map<String, List<Echange>> parType = new HashMap<>();
+    private final AtomicInteger suivant = new AtomicInteger();
+
+    /**
+     * Charge un fichier d'échanges pour le rejeu.
+     */
+    static Enregistrements charger(Path fichier) throws IOException {
+        Enregistrements enregistrements = new Enregistrements();
+        for (String ligne : Files.readAllLines(fichier, StandardCharsets.UTF_8)) {
+            if (ligne.isBlank()) continue;
+            try (JsonReader lecteur = Json.createReader(new StringReader(ligne))) {
+                Echange echange = Echange.lire(lecteur.readObject());
+                enregistrements.parQuestion.putIfAbsent(echange.type() + '\n' + echange.question(), echange);
+                enregistrements.parType.computeIfAbsent(echange.type(), t -> new ArrayList<>()).add(echange);
+            }
+        }
+        return enregistrements;
+    }
+
+    int taille() {
+        return parType.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * @return l'échange enregistré pour cette question, sinon le suivant du même type, ou null s'il n'y en a aucun.
+     */
+    Echange trouver(String type, String question) {
+        Echange exact = parQuestion.get(type + '\n' + question);
+        if (exact != null) return exact;
+        List<Echange> candidats = parType.get(type);
+        if (candidats == null) return null;
+        return candidats.get(Math.floorMod(suivant.getAndIncrement(), candidats.size()));
+    }
+
+    /**
+     * Ajoute un échange à la fin du fichier (une écriture par ligne, synchronisée entre les threads du serveur).
+     */
+    static synchronized void ajouter(Path fichier, Echange echange) throws IOException {
+        try (BufferedWriter sortie = Files.newBufferedWriter(fichier, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            sortie.write(echange.versJson().toString());
+            sortie.newLine();
+        }
+    }
+
+    /**
+     * @return le texte de la dernière question (dernier contenu "user") d'un corps de requête, ou "" s'il est illisible.
+     */
+    static String derniereQuestion(byte[] requete) {
+        try (JsonReader lecteur = Json.createReader(new StringReader(new String(requete, StandardCharsets.UTF_8)))) {
+            JsonArray contents = lecteur.readObject().getJsonArray("contents");
+            if (contents == null) return "";
+            for (int i = contents.size() - 1; i >= 0; i--) {
+                JsonObject contenu = contents.getJsonObject(i);
+                if (!"user".equals(contenu.getString("role", "user"))) continue;
+                StringBuilder texte = new StringBuilder();
+                for (JsonValue part : contenu.getJsonArray("parts")) {
+                    texte.append(part.asJsonObject().getString("text", ""));
+                }
+                return texte.toString();
+            }
+            return "";
+        } catch (RuntimeException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ma.emsi.tp1lakehal.charge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options de la ligne de commande, sous la forme --nom valeur (--nom seul vaut "true").
+ */
+final class Options {
+
+    private final Map<String, String> valeurs = new HashMap<>();
+
+    Options(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Option inattendue : " + args[i] + " (format : --nom valeur)");
+            }
+            String nom = args[i].substring(2);
+            boolean avecValeur = i + 1 < args.length && !args[i + 1].startsWith("--");
+            valeurs.put(nom, avecValeur ? args[++i] : "true");
+        }
+    }
+
+    String texte(String nom, String defaut) {
+        return valeurs.getOrDefault(nom, defaut);
+    }
+
+    int entier(String nom, int defaut) {
+        String valeur = valeurs.get(nom);
+        return valeur == null ? defaut : Integer.parseInt(valeur.trim());
+    }
+
+    double decimal(String nom, double defaut) {
+        String valeur = valeurs.get(nom);
+        return valeur == null ? defaut : Double.parseDouble(valeur.trim());
+    }
+
+    boolean booleen(String nom) {
+        return Boolean.parseBoolean(valeurs.get(nom));
+    }
+}
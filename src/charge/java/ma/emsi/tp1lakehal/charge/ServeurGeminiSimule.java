@@ -0,0 +1,342 @@
+package ma.emsi.tp1lakehal.charge;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serveur local qui imite l'API Gemini (serveur HTTP du JDK, un thread virtuel par requête), pour les tests
+ * de charge et les essais sans clé ni quota. L'application s'y branche avec
+ * -Dgemini.url-base=http://localhost:8089/v1beta (la clé GEMINI peut être quelconque).
+ *
+ * Trois modes :
+ * <ul>
+ *     <li>simulé (défaut) : generateContent, streamGenerateContent (alt=sse) et cachedContents répondent
+ *     avec un texte synthétique, après une latence tirée d'une loi log-normale, avec des erreurs 429/500/503
+ *     à des taux donnés ;</li>
+ *     <li>enregistrement (--cible URL --enregistrer fichier.jsonl) : mandataire vers la vraie API ; chaque échange
+ *     est enregistré (voir Enregistrements). Les réponses en flux sont relayées en une fois ;</li>
+ *     <li>rejeu (--rejouer fichier.jsonl) : les échanges enregistrés sont rejoués avec leur status, leur corps
+ *     et leur latence d'origine (multipliée par --echelle-latence).</li>
+ * </ul>
+ *
+ * Options du mode simulé : --latence-mediane (ms, défaut 800), --latence-sigma (dispersion de la loi log-normale,
+ * défaut 0.5), --queue-taux (part des requêtes très lentes, défaut 0.01) et --queue-facteur (défaut 8),
+ * --taux-429, --taux-500, --taux-503 (défaut 0), --mots (taille moyenne des réponses, défaut 200),
+ * --morceaux (événements d'une réponse en flux, défaut 10). Option commune : --port (défaut 8089).
+ * Les corps de requêtes en gzip sont acceptés, et les réponses (hors flux) sont compressées si le client le demande.
+ *
+ * Lancement : mvn -Pjmh test-compile exec:exec -Dperf.classe=ma.emsi.tp1lakehal.charge.ServeurGeminiSimule -Dperf.args="--port 8089"
+ */
+public final class ServeurGeminiSimule {
+
+    private static final String[] MOTS = ("le la les un une des et à de du pour avec sans dans sur sous entre "
+            + "voyage ville médina marché thé repas prix musée plage montagne train route hôtel soir matin "
+            + "traduction phrase anglais français réponse question exemple idée conseil histoire culture").split(" ");
+
+    private final double latenceMediane;
+    private final double latenceSigma;
+    private final double queueTaux;
+    private final double queueFacteur;
+    private final double taux429;
+    private final double taux500;
+    private final double taux503;
+    private final int mots;
+    private final int morceaux;
+
+    private final String cible;
+    private final Path enregistrer;
+    private final Enregistrements rejeu;
+    private final double echelleLatence;
+    private final HttpClient clientCible;
+
+    private final LongAdder requetes = new LongAdder();
+    private final LongAdder erreurs = new LongAdder();
+    private final LongAdder rejouees = new LongAdder();
+
+    private ServeurGeminiSimule(Options options) throws IOException {
+        this.latenceMediane = options.decimal("latence-mediane", 800);
+        this.latenceSigma = options.decimal("latence-sigma", 0.5);
+        this.queueTaux = options.decimal("queue-taux", 0.01);
+        this.queueFacteur = options.decimal("queue-facteur", 8);
+        this.taux429 = options.decimal("taux-429", 0);
+        this.taux500 = options.decimal("taux-500", 0);
+        this.taux503 = options.decimal("taux-503", 0);
+        this.mots = options.entier("mots", 200);
+        this.morceaux = Math.max(1, options.entier("morceaux", 10));
+
+        this.cible = options.texte("cible", null);
+        String fichierEnregistrement = options.texte("enregistrer", null);
+        this.enregistrer = fichierEnregistrement == null ? null : Path.of(fichierEnregistrement);
+        String fichierRejeu = options.texte("rejouer", null);
+        this.rejeu = fichierRejeu == null ? null : Enregistrements.charger(Path.of(fichierRejeu));
+        this.echelleLatence = options.decimal("echelle-latence", 1);
+        this.clientCible = cible == null ? null : HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        if (enregistrer != null && cible == null) {
+            throw new IllegalArgumentException("--enregistrer demande --cible (URL de base de la vraie API).");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        ServeurGeminiSimule simulateur = new ServeurGeminiSimule(options);
+        int port = options.entier("port", 8089);
+
+        // Sans TCP_NODELAY, l'algorithme de Nagle retarde les petites réponses d'environ 40 ms et fausse les latences.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer serveur = HttpServer.create(new InetSocketAddress(port), 1024);
+        serveur.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        serveur.createContext("/", simulateur::traiter);
+        serveur.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            serveur.stop(0);
+            System.out.println(simulateur.bilan());
+        }));
+        System.out.println("Gemini simulé sur http://localhost:" + port + "/v1beta (" + simulateur.mode() + ")");
+    }
+
+    private String mode() {
+        if (cible != null) return "enregistrement vers " + cible + (enregistrer == null ? "" : " dans " + enregistrer);
+        if (rejeu != null) return "rejeu de " + rejeu.taille() + " échanges";
+        return "simulé, latence médiane " + (long) latenceMediane + " ms";
+    }
+
+    private String bilan() {
+        return "Requêtes : " + requetes.sum() + ", erreurs simulées : " + erreurs.sum() + ", rejouées : " + rejouees.sum();
+    }
+
+    private void traiter(HttpExchange echange) throws IOException {
+        try (echange) {
+            requetes.increment();
+            String chemin = echange.getRequestURI().getPath();
+            byte[] requete = lireRequete(echange);
+            String type;
+            if (chemin.endsWith(":generateContent")) {
+                type = "generateContent";
+            } else if (chemin.endsWith(":streamGenerateContent")) {
+                type = "streamGenerateContent";
+            } else if (chemin.endsWith("/cachedContents")) {
+                type = "cachedContents";
+            } else {
+                envoyer(echange, 404, "application/json", erreurJson(404, "Chemin inconnu : " + chemin, "NOT_FOUND"));
+                return;
+            }
+
+            if (cible != null) {
+                relayer(echange, type, requete);
+            } else if (rejeu != null) {
+                rejouer(echange, type, requete);
+            } else {
+                simuler(echange, type, requete);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- Mode simulé ---
+
+    private void simuler(HttpExchange echange, String type, byte[] requete) throws IOException, InterruptedException {
+        ThreadLocalRandom aleatoire = ThreadLocalRandom.current();
+        long latence = (long) (latenceMediane * Math.exp(latenceSigma * aleatoire.nextGaussian()));
+        if (aleatoire.nextDouble() < queueTaux) latence = (long) (latence * queueFacteur);
+
+        double tirage = aleatoire.nextDouble();
+        int status = tirage < taux429 ? 429 : tirage < taux429 + taux500 ? 500 : tirage < taux429 + taux500 + taux503 ? 503 : 200;
+        if (status != 200) {
+            erreurs.increment();
+            Thread.sleep(latence / 4);
+            if (status == 429) echange.getResponseHeaders().add("Retry-After", "1");
+            String statut = status == 429 ? "RESOURCE_EXHAUSTED" : status == 503 ? "UNAVAILABLE" : "INTERNAL";
+            envoyer(echange, status, "application/json", erreurJson(status, "Erreur simulée", statut));
+            return;
+        }
+
+        switch (type) {
+            case "cachedContents" -> {
+                Thread.sleep(latence / 4);
+                String nom = "cachedContents/simule-" + Long.toHexString(aleatoire.nextLong());
+                String expiration = Instant.now().plus(Duration.ofHours(1)).toString();
+                envoyer(echange, 200, "application/json", Json.createObjectBuilder()
+                        .add("name", nom).add("expireTime", expiration).build().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            case "generateContent" -> {
+                Thread.sleep(latence);
+                envoyer(echange, 200, "application/json", reponse(List.of(texte(aleatoire)), true, requete.length));
+            }
+            default -> simulerFlux(echange, latence, texte(aleatoire), requete.length);
+        }
+    }
+
+    /**
+     * Réponse en flux : le premier événement arrive après latence / morceaux, les suivants sont espacés régulièrement.
+     */
+    private void simulerFlux(HttpExchange echange, long latence, String texte, int tailleRequete)
+            throws IOException, InterruptedException {
+        echange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        echange.sendResponseHeaders(200, 0);
+        OutputStream sortie = echange.getResponseBody();
+        int taillePart = Math.max(1, texte.length() / morceaux);
+        for (int i = 0; i < morceaux; i++) {
+            Thread.sleep(latence / morceaux);
+            boolean dernier = i == morceaux - 1;
+            String part = texte.substring(Math.min(texte.length(), i * taillePart),
+                    dernier ? texte.length() : Math.min(texte.length(), (i + 1) * taillePart));
+            sortie.write("data: ".getBytes(StandardCharsets.UTF_8));
+            sortie.write(reponse(List.of(part), dernier, tailleRequete));
+            sortie.write("\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            sortie.flush();
+        }
+    }
+
+    private String texte(ThreadLocalRandom aleatoire) {
+        int nbMots = Math.max(1, mots / 2 + aleatoire.nextInt(mots + 1));
+        StringBuilder texte = new StringBuilder(nbMots * 7);
+        for (int i = 0; i < nbMots; i++) {
+            if (i > 0) texte.append(i % 12 == 0 ? ". " : " ");
+            texte.append(MOTS[aleatoire.nextInt(MOTS.length)]);
+        }
+        return texte.append('.').toString();
+    }
+
+    /**
+     * Corps au format de generateContent (ou d'un événement du flux) ; le dernier porte finishReason et usageMetadata.
+     */
+    private static byte[] reponse(List<String> textes, boolean dernier, int tailleRequete) {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        int tokensReponse = 0;
+        try (JsonGenerator json = Json.createGenerator(octets)) {
+            json.writeStartObject().writeStartArray("candidates").writeStartObject()
+                    .writeStartObject("content").writeStartArray("parts");
+            for (String texte : textes) {
+                json.writeStartObject().write("text", texte).writeEnd();
+                tokensReponse += texte.length() / 4;
+            }
+            json.writeEnd().write("role", "model").writeEnd();
+            if (dernier) json.write("finishReason", "STOP");
+            json.write("index", 0).writeEnd().writeEnd();
+            if (dernier) {
+                json.writeStartObject("usageMetadata")
+                        .write("promptTokenCount", tailleRequete / 4)
+                        .write("candidatesTokenCount", tokensReponse)
+                        .write("totalTokenCount", tailleRequete / 4 + tokensReponse)
+                        .writeEnd();
+            }
+            json.write("modelVersion", "simule").writeEnd();
+        }
+        return octets.toByteArray();
+    }
+
+    private static byte[] erreurJson(int code, String message, String statut) {
+        return Json.createObjectBuilder().add("error", Json.createObjectBuilder()
+                        .add("code", code).add("message", message).add("status", statut))
+                .build().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // --- Enregistrement et rejeu ---
+
+    private void relayer(HttpExchange echange, String type, byte[] requete) throws IOException, InterruptedException {
+        URI uri = URI.create(cible + echange.getRequestURI().getRawPath().replaceFirst("^/v1beta", "")
+                + (echange.getRequestURI().getRawQuery() == null ? "" : "?" + echange.getRequestURI().getRawQuery()));
+        long debut = System.nanoTime();
+        HttpResponse<byte[]> reponse;
+        try {
+            reponse = clientCible.send(HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(requete))
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            envoyer(echange, 502, "application/json", erreurJson(502, "Cible injoignable : " + e.getMessage(), "UNAVAILABLE"));
+            return;
+        }
+        long latence = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut);
+        if (enregistrer != null) {
+            Enregistrements.ajouter(enregistrer, new Enregistrements.Echange(type, Enregistrements.derniereQuestion(requete),
+                    reponse.statusCode(), latence, new String(reponse.body(), StandardCharsets.UTF_8)));
+        }
+        reponse.headers().firstValue("Retry-After").ifPresent(v -> echange.getResponseHeaders().add("Retry-After", v));
+        envoyer(echange, reponse.statusCode(), reponse.headers().firstValue("Content-Type").orElse("application/json"),
+                reponse.body());
+    }
+
+    private void rejouer(HttpExchange echange, String type, byte[] requete) throws IOException, InterruptedException {
+        Enregistrements.Echange enregistre = rejeu.trouver(type, Enregistrements.derniereQuestion(requete));
+        if (enregistre == null) {
+            simuler(echange, type, requete);
+            return;
+        }
+        rejouees.increment();
+        long latence = (long) (enregistre.latenceMs() * echelleLatence);
+        byte[] corps = enregistre.reponse().getBytes(StandardCharsets.UTF_8);
+        if (!"streamGenerateContent".equals(type) || enregistre.status() != 200) {
+            Thread.sleep(latence);
+            envoyer(echange, enregistre.status(), "application/json", corps);
+            return;
+        }
+        // Rejoue les événements du flux enregistré, répartis sur la latence d'origine.
+        List<String> evenements = new ArrayList<>();
+        for (String evenement : enregistre.reponse().split("\r?\n\r?\n")) {
+            if (!evenement.isBlank()) evenements.add(evenement);
+        }
+        echange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        echange.sendResponseHeaders(200, 0);
+        OutputStream sortie = echange.getResponseBody();
+        for (String evenement : evenements) {
+            Thread.sleep(latence / Math.max(1, evenements.size()));
+            sortie.write((evenement + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            sortie.flush();
+        }
+    }
+
+    /**
+     * @return le corps de la requête, décompressé s'il est envoyé en gzip (gemini.compression.requete=true).
+     */
+    private static byte[] lireRequete(HttpExchange echange) throws IOException {
+        InputStream corps = echange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(echange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            corps = new GZIPInputStream(corps);
+        }
+        return corps.readAllBytes();
+    }
+
+    /**
+     * Envoie le corps, compressé en gzip si le client l'accepte et qu'il dépasse 1 Ko (comme la vraie API).
+     */
+    private static void envoyer(HttpExchange echange, int status, String type, byte[] corps) throws IOException {
+        echange.getResponseHeaders().add("Content-Type", type);
+        String encodages = echange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (encodages != null && encodages.contains("gzip") && corps.length >= 1024) {
+            ByteArrayOutputStream compresse = new ByteArrayOutputStream(corps.length / 4);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compresse)) {
+                gzip.write(corps);
+            }
+            corps = compresse.toByteArray();
+            echange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        echange.sendResponseHeaders(status, corps.length);
+        echange.getResponseBody().write(corps);
+    }
+}
@@ -0,0 +1,97 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObjectBuilder;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Textes et réponses réalistes pour les benchmarks (aucun appel réseau).
+ */
+final class DonneesBenchmark {
+
+    static final String ROLE = RolesSysteme.texte("TRADUCTEUR");
+
+    private static final String PHRASE = "Le voyageur s'arrête à Fès, goûte un thé à la menthe \"bien sucré\" "
+            + "et demande le prix moyen d'un repas près de la médina. ";
+
+    private DonneesBenchmark() {
+    }
+
+    /**
+     * @return un texte d'environ nbCaracteres caractères (accents et guillemets compris, pour l'échappement).
+     */
+    static String texte(int nbCaracteres) {
+        StringBuilder texte = new StringBuilder(nbCaracteres + PHRASE.length());
+        while (texte.length() < nbCaracteres) {
+            texte.append(PHRASE);
+        }
+        return texte.substring(0, nbCaracteres);
+    }
+
+    static String question(int numero) {
+        return "Question " + numero + " : " + texte(200)
+                + "\n[Information contextuelle: C'est le Matin (Heure locale : 09:41).]";
+    }
+
+    /**
+     * @return un historique de nbTours tours (questions et réponses alternées, commençant par une question).
+     */
+    static HistoriqueConversation historique(int nbTours) {
+        HistoriqueConversation historique = new HistoriqueConversation();
+        historique.setInstructionSysteme(ROLE);
+        for (int i = 0; i < nbTours; i++) {
+            if (i % 2 == 0) {
+                historique.ajouterQuestion(question(i));
+            } else {
+                historique.ajouterReponse(java.util.List.of(texte(800)));
+            }
+        }
+        return historique;
+    }
+
+    /**
+     * Réponse de generateContent comme celles de l'API : le texte en plusieurs parts, plus les champs
+     * que l'extraction doit sauter (safetyRatings, citationMetadata, groundingMetadata, autres candidats).
+     */
+    static byte[] reponseGemini(int tailleTexte) {
+        JsonArrayBuilder parts = Json.createArrayBuilder();
+        int tailleParPart = Math.max(1, tailleTexte / 4);
+        for (int i = 0; i < 4; i++) {
+            parts.add(Json.createObjectBuilder().add("text", texte(tailleParPart)));
+        }
+        JsonArrayBuilder candidats = Json.createArrayBuilder()
+                .add(candidat(parts, 0))
+                .add(candidat(Json.createArrayBuilder().add(Json.createObjectBuilder().add("text", texte(tailleParPart))), 1));
+        JsonArrayBuilder sources = Json.createArrayBuilder();
+        for (int i = 0; i < 20; i++) {
+            sources.add(Json.createObjectBuilder()
+                    .add("web", Json.createObjectBuilder().add("uri", "https://example.org/page/" + i).add("title", texte(60))));
+        }
+        return Json.createObjectBuilder()
+                .add("candidates", candidats)
+                .add("groundingMetadata", Json.createObjectBuilder().add("groundingChunks", sources))
+                .add("usageMetadata", Json.createObjectBuilder()
+                        .add("promptTokenCount", 1234)
+                        .add("candidatesTokenCount", tailleTexte / 4)
+                        .add("totalTokenCount", 1234 + tailleTexte / 4))
+                .add("modelVersion", "gemini-2.5-flash")
+                .build().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JsonObjectBuilder candidat(JsonArrayBuilder parts, int index) {
+        JsonArrayBuilder notes = Json.createArrayBuilder();
+        for (String categorie : new String[]{"HARM_CATEGORY_HATE_SPEECH", "HARM_CATEGORY_DANGEROUS_CONTENT",
+                "HARM_CATEGORY_HARASSMENT", "HARM_CATEGORY_SEXUALLY_EXPLICIT"}) {
+            notes.add(Json.createObjectBuilder().add("category", categorie).add("probability", "NEGLIGIBLE"));
+        }
+        return Json.createObjectBuilder()
+                .add("content", Json.createObjectBuilder().add("parts", parts).add("role", "model"))
+                .add("finishReason", "STOP")
+                .add("index", index)
+                .add("safetyRatings", notes)
+                .add("citationMetadata", Json.createObjectBuilder().add("citationSources", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("startIndex", 10).add("endIndex", 200).add("uri", "https://example.org"))));
+    }
+}
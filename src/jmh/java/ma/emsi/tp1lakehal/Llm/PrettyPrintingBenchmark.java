@@ -0,0 +1,63 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonWriter;
+import jakarta.json.JsonWriterFactory;
+import jakarta.json.stream.JsonGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatage du JSON de la requête pour le mode debug (JsonUtilPourGemini.prettyPrinting).
+ * "fabriqueAChaqueAppel" reproduit l'ancienne version, qui créait une JsonWriterFactory à chaque appel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrettyPrintingBenchmark {
+
+    @Param({"2", "20", "100"})
+    private int nbTours;
+
+    private JsonObject requete;
+
+    @Setup
+    public void preparer() {
+        requete = DonneesBenchmark.historique(nbTours).versJson();
+    }
+
+    @Benchmark
+    public String prettyPrinting() {
+        return JsonUtilPourGemini.prettyPrinting(requete);
+    }
+
+    @Benchmark
+    public String fabriqueAChaqueAppel() {
+        Map<String, Boolean> config = new HashMap<>();
+        config.put(JsonGenerator.PRETTY_PRINTING, true);
+        JsonWriterFactory writerFactory = Json.createWriterFactory(config);
+        StringWriter stringWriter = new StringWriter();
+        try (JsonWriter jsonWriter = writerFactory.createWriter(stringWriter)) {
+            jsonWriter.write(requete);
+        }
+        return stringWriter.toString();
+    }
+}
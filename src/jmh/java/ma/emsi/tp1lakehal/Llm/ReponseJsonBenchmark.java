@@ -0,0 +1,63 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction de la réponse (extractReponse) sur des réponses réalistes de 2 Ko, 64 Ko et 512 Ko de texte.
+ * "extraireArbreJson" est la référence : lecture de tout le document en JsonObject puis navigation,
+ * comme le faisait le code avant l'extraction au fil de la lecture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReponseJsonBenchmark {
+
+    @Param({"2048", "65536", "524288"})
+    private int tailleTexte;
+
+    private byte[] reponse;
+
+    @Setup
+    public void preparer() {
+        reponse = DonneesBenchmark.reponseGemini(tailleTexte);
+    }
+
+    @Benchmark
+    public ReponseGemini extractReponse() {
+        return ExtracteurReponseGemini.extraire(new ByteArrayInputStream(reponse));
+    }
+
+    @Benchmark
+    public String extraireArbreJson() {
+        try (JsonReader lecteur = Json.createReader(new ByteArrayInputStream(reponse))) {
+            JsonObject racine = lecteur.readObject();
+            JsonArray parts = racine.getJsonArray("candidates").getJsonObject(0)
+                    .getJsonObject("content").getJsonArray("parts");
+            StringBuilder texte = new StringBuilder();
+            for (int i = 0; i < parts.size(); i++) {
+                texte.append(parts.getJsonObject(i).getString("text"));
+            }
+            return texte.toString();
+        }
+    }
+}
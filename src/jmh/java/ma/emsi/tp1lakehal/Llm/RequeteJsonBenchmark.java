@@ -0,0 +1,99 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction du corps des requêtes, comme dans JsonUtilPourGemini :
+ * <ul>
+ *     <li>creerRequeteJson : rôle système + première question, puis écriture du corps ;</li>
+ *     <li>ajouteQuestionDansJsonRequete : une question ajoutée à un historique de 1, 10, 100 ou 500 tours,
+ *     puis écriture du corps complet (ce que fait chaque envoi).</li>
+ * </ul>
+ * L'historique grandit à chaque ajout : il est reconstruit avant chaque invocation (Level.Invocation,
+ * hors mesure). Le corps est écrit dans un flux qui ne garde rien, comme vers le socket HTTP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequeteJsonBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    private int nbTours;
+
+    private HistoriqueConversation historique;
+    private String question;
+    private CacheReponses cache;
+
+    /**
+     * Flux de sortie qui compte les octets sans les garder.
+     */
+    private static final class SortieNulle extends OutputStream {
+        private long taille;
+
+        @Override
+        public void write(int b) {
+            taille++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            taille += len;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void preparerQuestion() {
+        question = DonneesBenchmark.question(nbTours);
+        cache = new CacheReponses();
+    }
+
+    @Setup(Level.Invocation)
+    public void preparerHistorique() {
+        historique = DonneesBenchmark.historique(nbTours);
+    }
+
+    @Benchmark
+    public long creerRequeteJson() throws IOException {
+        HistoriqueConversation nouvelle = new HistoriqueConversation();
+        nouvelle.setInstructionSysteme(DonneesBenchmark.ROLE);
+        nouvelle.ajouterQuestion(question);
+        SortieNulle sortie = new SortieNulle();
+        nouvelle.corps().write(sortie);
+        return sortie.taille;
+    }
+
+    @Benchmark
+    public long ajouteQuestionDansJsonRequete() throws IOException {
+        historique.ajouterQuestion(question);
+        SortieNulle sortie = new SortieNulle();
+        historique.corps().write(sortie);
+        return sortie.taille;
+    }
+
+    /**
+     * Clé du cache des réponses, calculée avant chaque envoi sur toute la fenêtre.
+     */
+    @Benchmark
+    public void cleCache(Blackhole trou) {
+        trou.consume(cache.cle("gemini-2.5-flash", historique));
+    }
+}
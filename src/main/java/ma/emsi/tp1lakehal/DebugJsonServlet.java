@@ -0,0 +1,49 @@
+package ma.emsi.tp1lakehal;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import ma.emsi.tp1lakehal.Llm.JournalDebug;
+
+import java.io.IOException;
+
+/**
+ * Fournit le JSON formaté d'un échange aux panneaux de debug de index.xhtml, quand ils sont ouverts :
+ * GET /debug-json?conversation=...&amp;echange=3&amp;type=requete (ou type=reponse).
+ * Le JSON vient du journal de debug de la session (voir JournalDebug) ; 404 s'il n'y est plus.
+ */
+@WebServlet(name = "debugJsonServlet", value = "/debug-json")
+public class DebugJsonServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String conversation = request.getParameter("conversation");
+        String type = request.getParameter("type");
+        int echange;
+        try {
+            echange = Integer.parseInt(request.getParameter("echange"));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Paramètre echange invalide.");
+            return;
+        }
+        if (conversation == null || !("requete".equals(type) || "reponse".equals(type))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Paramètres attendus : conversation, echange, type=requete|reponse.");
+            return;
+        }
+
+        HttpSession session = request.getSession(false);
+        JournalDebug journal = session == null ? null : (JournalDebug) session.getAttribute(JournalDebug.ATTRIBUT_SESSION);
+        String texte = journal == null ? null : journal.formate(conversation, echange, "requete".equals(type));
+        if (texte == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Échange introuvable (nouveau chat ou échange trop ancien).");
+            return;
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        // Le JSON d'un échange ne change plus : le navigateur peut le garder pour la session.
+        response.setHeader("Cache-Control", "private, max-age=3600");
+        response.getWriter().write(texte);
+    }
+}
@@ -0,0 +1,12 @@
+package ma.emsi.tp1lakehal.Exception;
+
+/**
+ * Requête refusée sans être envoyée au LLM parce que le service est saturé (trop de requêtes en attente,
+ * ou attente trop longue) : l'utilisateur peut réessayer un peu plus tard.
+ */
+public class ServiceSatureException extends RequeteException {
+
+    public ServiceSatureException(String message) {
+        super(message);
+    }
+}
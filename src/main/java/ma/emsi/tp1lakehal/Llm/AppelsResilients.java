@@ -0,0 +1,404 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import ma.emsi.tp1lakehal.Exception.RequeteException;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Appels à l'API Gemini avec reprise et disjoncteur.
+ *
+ * <ul>
+ *     <li>Reprise : une erreur réseau (dont les timeouts de LlmClient), 429, 500, 502, 503 ou 504 est retentée
+ *     avec un délai exponentiel aléatoire ("full jitter" : entre 0 et base * 2^n, plafonné), ou le délai
+ *     demandé par l'en-tête Retry-After. Si Retry-After demande d'attendre trop longtemps, l'erreur est rendue tout de suite.</li>
+ *     <li>Bascule : quand plusieurs modèles sont configurés, la reprise part tout de suite vers un autre modèle
+ *     disponible (voir RoutageModeles), au lieu d'attendre le même modèle.</li>
+ *     <li>Couverture : chaque essai peut être doublé s'il tarde (voir CouvertureRequetes, désactivé par défaut) ;
+ *     le doublon prend sa propre place dans l'ordonnanceur, s'il y en a une de libre.</li>
+ *     <li>Ordonnancement : chaque essai attend sa place parmi les appels simultanés (voir OrdonnanceurAppels) ;
+ *     l'attente avant une reprise ne prend pas de place.</li>
+ *     <li>Disjoncteur : pendant un incident sur un modèle, les appels à ce modèle échouent immédiatement
+ *     (voir Disjoncteur, un par modèle dans RoutageModeles) au lieu d'occuper des threads et de faire attendre
+ *     les utilisateurs. La limite de débit (429) d'un modèle ne ferme pas l'accès aux autres modèles.</li>
+ * </ul>
+ *
+ * Tous les appels à l'API passent par ici, y compris les résumés de contexte, la création des contenus en cache
+ * et le préchauffage (voir appeler) : ils sont repris, mesurés et comptés par l'ordonnanceur comme les autres.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.reprise.max (reprises après le premier essai, défaut 3),
+ * gemini.reprise.delai-base (ms, défaut 500), gemini.reprise.delai-max (ms, défaut 8000)
+ * et gemini.reprise.retry-after-max (ms, défaut 30000).
+ */
+@ApplicationScoped
+public class AppelsResilients {
+
+    @Inject
+    private LlmClient geminiClient;
+
+    @Inject
+    private CouvertureRequetes couverture;
+
+    @Inject
+    private RoutageModeles routage;
+
+    @Inject
+    private OrdonnanceurAppels ordonnanceur;
+
+    private final int maxReprises = ConfigurationLlm.entier("gemini.reprise.max", 3);
+    private final long delaiBaseMs = ConfigurationLlm.entierLong("gemini.reprise.delai-base", 500);
+    private final long delaiMaxMs = ConfigurationLlm.entierLong("gemini.reprise.delai-max", 8000);
+    private final long retryAfterMaxMs = ConfigurationLlm.entierLong("gemini.reprise.retry-after-max", 30000);
+
+    private final LongAdder tentatives = new LongAdder();
+    private final LongAdder reprises = new LongAdder();
+    private final LongAdder echecsDefinitifs = new LongAdder();
+    private final LongAdder rejets = new LongAdder();
+
+    /**
+     * Un appel à envoyer, essai après essai.
+     * @param http lance un essai vers le modèle donné ; annuler son étape doit annuler l'appel HTTP.
+     * @param bascule vrai si l'appel peut être repris sur un autre modèle.
+     * @param generation vrai pour generateContent : l'essai peut être couvert (CouvertureRequetes) et sa durée
+     * mesure la charge du modèle ; faux pour les appels courts aux autres points d'accès.
+     */
+    private record Envoi(Function<String, CompletionStage<Response>> http, boolean bascule, boolean generation,
+                         OrdonnanceurAppels.Demandeur demandeur) {
+    }
+
+    /**
+     * Envoie une requête generateContent, avec reprises si nécessaire.
+     * Le corps est écrit tel quel dans la connexion à chaque essai, sans copie.
+     * @param modele modèle choisi par RoutageModeles.
+     * @param bascule vrai si la requête peut être reprise sur un autre modèle (faux si elle référence
+     * un contenu en cache, propre au modèle principal).
+     * @param demandeur file de l'ordonnanceur dans laquelle les essais attendent leur place.
+     * @return étape qui se termine avec la dernière réponse obtenue (éventuellement une erreur qui ne justifie pas
+     * de reprise, ou la dernière erreur transitoire), ou en erreur si l'API est injoignable, le disjoncteur du modèle
+     * ouvert ou le service saturé (ServiceSatureException).
+     * La réponse indique le modèle qui l'a donnée. L'annuler arrête les reprises et l'appel en cours.
+     */
+    public CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(TamponRequeteJson.Corps corps, String modele,
+                                                                      boolean bascule,
+                                                                      OrdonnanceurAppels.Demandeur demandeur) {
+        Entity<TamponRequeteJson.Corps> entite = Entity.entity(corps, MediaType.APPLICATION_JSON_TYPE);
+        return envoyer(new Envoi(m -> geminiClient.envoyerRequeteAsync(m, entite), bascule, true, demandeur), modele);
+    }
+
+    /**
+     * Appel à un autre point d'accès de l'API (cachedContents, description d'un modèle), avec les mêmes reprises,
+     * le même disjoncteur et la même place dans l'ordonnanceur que generateContent, mais sans bascule ni couverture.
+     * @param modele modèle concerné par l'appel.
+     * @param http lance un essai ; annuler son étape doit annuler l'appel HTTP.
+     * @return comme envoyer ; la réponse est à fermer par l'appelant.
+     */
+    public CompletableFuture<MutualisationRequetes.ReponseApi> appeler(String modele, Supplier<CompletionStage<Response>> http,
+                                                                      OrdonnanceurAppels.Demandeur demandeur) {
+        return envoyer(new Envoi(m -> http.get(), false, false, demandeur), modele);
+    }
+
+    private CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(Envoi envoi, String modele) {
+        CompletableFuture<MutualisationRequetes.ReponseApi> resultat = new CompletableFuture<>();
+        tenter(envoi, modele, 0, resultat);
+        return resultat;
+    }
+
+    private void tenter(Envoi envoi, String modele, int reprise, CompletableFuture<MutualisationRequetes.ReponseApi> resultat) {
+        if (resultat.isDone()) return;
+        long attente = routage.getAttenteDisjoncteurMs(modele);
+        if (attente > 0) {
+            rejets.increment();
+            resultat.completeExceptionally(indisponible(attente));
+            return;
+        }
+        CompletableFuture<OrdonnanceurAppels.Jeton> place = ordonnanceur.obtenir(envoi.demandeur());
+        resultat.whenComplete((reponse, erreur) -> {
+            if (resultat.isCancelled()) place.cancel(true);
+        });
+        place.whenComplete((jeton, refus) -> {
+            if (refus != null) {
+                if (!place.isCancelled()) {
+                    resultat.completeExceptionally(refus instanceof CompletionException && refus.getCause() != null
+                            ? refus.getCause() : refus);
+                }
+                return;
+            }
+            if (resultat.isDone()) {
+                jeton.liberer(-1, -1);
+                return;
+            }
+            essayer(envoi, modele, reprise, resultat, jeton);
+        });
+    }
+
+    /**
+     * Un essai, une fois la place obtenue ; la place est rendue dès la réponse reçue.
+     */
+    private void essayer(Envoi envoi, String modele, int reprise, CompletableFuture<MutualisationRequetes.ReponseApi> resultat,
+                         OrdonnanceurAppels.Jeton jeton) {
+        tentatives.increment();
+        long debut = System.nanoTime();
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoi.generation()
+                ? couverture.envoyer(() -> appelAvecPlace(envoi, modele, jeton), () -> doublon(envoi, modele))
+                : appelAvecPlace(envoi, modele, jeton);
+        resultat.whenComplete((reponse, erreur) -> {
+            if (resultat.isCancelled()) appel.cancel(true);
+        });
+
+        appel.whenComplete((reponse, erreur) -> {
+            Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null ? erreur.getCause() : erreur;
+            long latenceMs = envoi.generation() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut) : -1;
+            if (resultat.isDone()) {
+                if (reponse != null) reponse.close();
+                return;
+            }
+            if (cause == null || cause instanceof ProcessingException) {
+                routage.enregistrer(modele, cause == null ? reponse.status() : 0, latenceMs,
+                        cause == null ? reponse.retryAfter() : null);
+            }
+            if (cause == null && !estTransitoire(reponse.status())) {
+                resultat.complete(reponse);
+                return;
+            }
+            if (cause != null && !(cause instanceof ProcessingException)) {
+                echecsDefinitifs.increment();
+                resultat.completeExceptionally(cause);
+                return;
+            }
+
+            // Un autre modèle disponible reprend la requête sans attendre
+            String suivant = envoi.bascule() ? routage.remplacant(modele) : modele;
+            long delai = suivant.equals(modele) ? delaiAvantReprise(reprise, cause == null ? reponse.retryAfter() : null) : 0;
+            if (reprise >= maxReprises || delai < 0) {
+                echecsDefinitifs.increment();
+                if (cause != null) {
+                    resultat.completeExceptionally(new RequeteException("Appel à l'API Gemini impossible : " + cause.getMessage(), cause));
+                } else {
+                    resultat.complete(reponse);
+                }
+                return;
+            }
+            if (reponse != null) reponse.close();
+            reprises.increment();
+            CompletableFuture.delayedExecutor(delai, TimeUnit.MILLISECONDS, geminiClient.getExecuteur())
+                    .execute(() -> tenter(envoi, suivant, reprise + 1, resultat));
+        });
+    }
+
+    /**
+     * Un appel HTTP qui garde sa place jusqu'à sa réponse : chaque appel envoyé (essai ou doublon de couverture)
+     * a la sienne, et son status et sa durée ajustent la limite de l'ordonnanceur.
+     */
+    private CompletableFuture<MutualisationRequetes.ReponseApi> appelAvecPlace(Envoi envoi, String modele,
+                                                                              OrdonnanceurAppels.Jeton jeton) {
+        long debut = System.nanoTime();
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = appelHttp(envoi.http(), modele);
+        appel.whenComplete((reponse, erreur) -> {
+            Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null ? erreur.getCause() : erreur;
+            jeton.liberer(cause == null ? reponse.status() : cause instanceof ProcessingException ? 0 : -1,
+                    envoi.generation() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut) : -1);
+        });
+        return appel;
+    }
+
+    /**
+     * Doublon de couverture : il ne part que si l'ordonnanceur a une place libre tout de suite.
+     * @return l'appel, ou null s'il n'y a pas de place.
+     */
+    private CompletableFuture<MutualisationRequetes.ReponseApi> doublon(Envoi envoi, String modele) {
+        OrdonnanceurAppels.Jeton jeton = ordonnanceur.obtenirSansAttendre();
+        if (jeton == null) return null;
+        tentatives.increment();
+        return appelAvecPlace(envoi, modele, jeton);
+    }
+
+    /**
+     * Un appel HTTP ; le corps de la réponse n'est pas encore lu (voir ReponseApi).
+     * Annuler l'étape annule l'appel, ou ferme la réponse arrivée trop tard.
+     */
+    private CompletableFuture<MutualisationRequetes.ReponseApi> appelHttp(Function<String, CompletionStage<Response>> envoi,
+                                                                         String modele) {
+        CompletableFuture<Response> http = envoi.apply(modele).toCompletableFuture();
+        CompletableFuture<MutualisationRequetes.ReponseApi> reponse = new CompletableFuture<>();
+        http.whenComplete((r, erreur) -> {
+            if (erreur != null) {
+                reponse.completeExceptionally(erreur);
+                return;
+            }
+            MutualisationRequetes.ReponseApi ouverte;
+            try {
+                ouverte = MutualisationRequetes.ReponseApi.ouvrir(r, modele);
+            } catch (RuntimeException e) {
+                r.close();
+                reponse.completeExceptionally(e);
+                return;
+            }
+            if (!reponse.complete(ouverte)) ouverte.close();
+        });
+        reponse.whenComplete((r, erreur) -> {
+            if (reponse.isCancelled()) http.cancel(true);
+        });
+        return reponse;
+    }
+
+    /**
+     * Réponse en flux et modèle qui la donne. La fermer ferme la réponse et rend sa place à l'ordonnanceur.
+     * @param reponse réponse dont le corps n'a pas encore été lu.
+     */
+    public record ReponseFlux(Response reponse, String modele, OrdonnanceurAppels.Jeton jeton) implements AutoCloseable {
+        @Override
+        public void close() {
+            int status = reponse.getStatus();
+            try {
+                reponse.close();
+            } finally {
+                // La durée du flux dépend de la longueur de la réponse : pas de mesure de latence
+                jeton.liberer(status, -1);
+            }
+        }
+    }
+
+    /**
+     * Variante bloquante pour l'endpoint en flux : seul l'établissement de la réponse (jusqu'au status)
+     * est retenté ; une fois les premiers morceaux reçus, une coupure n'est pas rejouée.
+     * @param modele modèle choisi par RoutageModeles.
+     * @param bascule vrai si la requête peut être reprise sur un autre modèle.
+     * @param demandeur file de l'ordonnanceur ; la place est gardée jusqu'à la fermeture de la réponse.
+     * @return la réponse, à fermer par l'appelant.
+     * @throws RequeteException si le disjoncteur est ouvert, si l'API reste injoignable, si le service est saturé
+     * (ServiceSatureException) ou si l'attente est interrompue.
+     */
+    public ReponseFlux envoyerFlux(TamponRequeteJson.Corps corps, String modele, boolean bascule,
+                                   OrdonnanceurAppels.Demandeur demandeur) throws RequeteException {
+        for (int reprise = 0; ; reprise++) {
+            long attente = routage.getAttenteDisjoncteurMs(modele);
+            if (attente > 0) {
+                rejets.increment();
+                throw indisponible(attente);
+            }
+            OrdonnanceurAppels.Jeton jeton = ordonnanceur.attendre(demandeur);
+            tentatives.increment();
+            long delai;
+            String suivant;
+            try {
+                Response response = geminiClient.envoyerRequeteFlux(modele, Entity.entity(corps, MediaType.APPLICATION_JSON_TYPE));
+                // Le temps jusqu'au status ne dit rien de la durée de génération : pas de mesure de latence
+                routage.enregistrer(modele, response.getStatus(), -1, response.getHeaderString("Retry-After"));
+                if (!estTransitoire(response.getStatus())) {
+                    return new ReponseFlux(response, modele, jeton);
+                }
+                suivant = bascule ? routage.remplacant(modele) : modele;
+                delai = suivant.equals(modele) ? delaiAvantReprise(reprise, response.getHeaderString("Retry-After")) : 0;
+                if (reprise >= maxReprises || delai < 0) {
+                    echecsDefinitifs.increment();
+                    return new ReponseFlux(response, modele, jeton);
+                }
+                new ReponseFlux(response, modele, jeton).close();
+            } catch (ProcessingException e) {
+                jeton.liberer(0, -1);
+                routage.enregistrer(modele, 0, -1, null);
+                if (reprise >= maxReprises) {
+                    echecsDefinitifs.increment();
+                    throw new RequeteException("Appel à l'API Gemini impossible : " + e.getMessage(), e);
+                }
+                suivant = bascule ? routage.remplacant(modele) : modele;
+                delai = suivant.equals(modele) ? delaiAvantReprise(reprise, null) : 0;
+            } catch (RuntimeException e) {
+                jeton.liberer(-1, -1);
+                throw e;
+            }
+            modele = suivant;
+            reprises.increment();
+            try {
+                Thread.sleep(delai);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RequeteException("Requête à Gemini interrompue.", e);
+            }
+        }
+    }
+
+    /**
+     * Statuts qui indiquent un problème passager du serveur (ou une limite de débit), et pas de la requête.
+     */
+    static boolean estTransitoire(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return le délai avant la reprise numéro reprise + 1 (ms), ou -1 si Retry-After demande d'attendre trop longtemps.
+     */
+    private long delaiAvantReprise(int reprise, String retryAfter) {
+        long demande = lireRetryAfter(retryAfter);
+        if (demande >= 0) return demande <= retryAfterMaxMs ? demande : -1;
+        long plafond = Math.min(delaiMaxMs, delaiBaseMs << Math.min(reprise, 20));
+        return ThreadLocalRandom.current().nextLong(plafond + 1);
+    }
+
+    /**
+     * Retry-After contient un nombre de secondes ou une date HTTP.
+     * @return le délai demandé (ms), ou -1 si l'en-tête est absent ou illisible.
+     */
+    static long lireRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) return -1;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+            } catch (DateTimeParseException ignore) {
+                return -1;
+            }
+        }
+    }
+
+    private static RequeteException indisponible(long attenteMs) {
+        return new RequeteException("L'API Gemini est momentanément indisponible ; nouvel essai possible dans "
+                + (attenteMs + 999) / 1000 + " s.");
+    }
+
+    // --- Statistiques ---
+
+    /**
+     * @return le nombre d'appels envoyés à l'API, reprises et doublons de couverture compris.
+     */
+    public long getNbTentatives() {
+        return tentatives.sum();
+    }
+
+    public long getNbReprises() {
+        return reprises.sum();
+    }
+
+    /**
+     * @return le nombre de requêtes en échec après toutes les reprises possibles.
+     */
+    public long getNbEchecsDefinitifs() {
+        return echecsDefinitifs.sum();
+    }
+
+    /**
+     * @return le nombre de requêtes refusées immédiatement parce que le disjoncteur de leur modèle était ouvert.
+     */
+    public long getNbRejets() {
+        return rejets.sum();
+    }
+}
@@ -0,0 +1,234 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Cache des réponses de Gemini pour les requêtes identiques (même modèle, même rôle système, même historique
+ * envoyé, même question), placé devant l'appel à l'API dans JsonUtilPourGemini.
+ *
+ * La clé est un hash SHA-256 du modèle et du texte normalisé de la requête : seules les différences d'espaces
+ * sont ignorées (la casse est gardée : "SQL" et "sql", ou un code, n'appellent pas forcément la même réponse),
+ * et l'heure du contexte temporel ajouté par Bb ("[Information contextuelle: C'est le Matin (Heure locale : 09:41).]")
+ * est retirée pour ne garder que le moment de la journée (Matin, Après-midi, Soir).
+ *
+ * Éviction LRU sur le nombre d'entrées et le volume total des réponses, plus une durée de vie (TTL).
+ * Les réponses peuvent être stockées hors du tas Java (ByteBuffer direct) pour ne pas peser sur le GC.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.cache.actif (défaut true), gemini.cache.max-entrees (1000),
+ * gemini.cache.max-octets (32 Mo), gemini.cache.ttl (secondes, 3600), gemini.cache.hors-tas (false).
+ */
+@ApplicationScoped
+public class CacheReponses {
+
+    /** Heure précise du contexte temporel : elle change à chaque minute et ne doit pas faire partie de la clé. */
+    private static final Pattern HEURE_CONTEXTE = Pattern.compile("\\(Heure locale : \\d{1,2}:\\d{2}\\)");
+    private static final Pattern ESPACES = Pattern.compile("\\s+");
+
+    /**
+     * Clé du cache : hash SHA-256 du modèle et de la requête normalisée.
+     */
+    public static final class Cle {
+        private final byte[] hash;
+        private final int hashCode;
+
+        private Cle(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Cle autre && Arrays.equals(hash, autre.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Réponse en cache : les textes sont encodés en UTF-8, dans le tas ou hors du tas.
+     */
+    private static final class Entree {
+        private final ByteBuffer octets;
+        private final long expiration;
+
+        Entree(List<String> textes, boolean horsTas, long expiration) {
+            int taille = 4;
+            List<byte[]> encodes = new ArrayList<>(textes.size());
+            for (String texte : textes) {
+                byte[] encode = texte.getBytes(StandardCharsets.UTF_8);
+                encodes.add(encode);
+                taille += 4 + encode.length;
+            }
+            ByteBuffer tampon = horsTas ? ByteBuffer.allocateDirect(taille) : ByteBuffer.allocate(taille);
+            tampon.putInt(encodes.size());
+            for (byte[] encode : encodes) {
+                tampon.putInt(encode.length).put(encode);
+            }
+            this.octets = tampon.flip();
+            this.expiration = expiration;
+        }
+
+        List<String> textes() {
+            ByteBuffer lecture = octets.duplicate();
+            int nb = lecture.getInt();
+            List<String> textes = new ArrayList<>(nb);
+            for (int i = 0; i < nb; i++) {
+                byte[] encode = new byte[lecture.getInt()];
+                lecture.get(encode);
+                textes.add(new String(encode, StandardCharsets.UTF_8));
+            }
+            return textes;
+        }
+
+        int taille() {
+            return octets.capacity();
+        }
+    }
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.cache.actif", true);
+    private final int maxEntrees = ConfigurationLlm.entier("gemini.cache.max-entrees", 1000);
+    private final long maxOctets = ConfigurationLlm.entierLong("gemini.cache.max-octets", 32L * 1024 * 1024);
+    private final long ttlNanos = ConfigurationLlm.entierLong("gemini.cache.ttl", 3600) * 1_000_000_000L;
+    private final boolean horsTas = ConfigurationLlm.booleen("gemini.cache.hors-tas", false);
+
+    /** Entrées dans l'ordre d'accès (la plus anciennement utilisée en premier). Protégé par le verrou de la map. */
+    private final LinkedHashMap<Cle, Entree> entrees = new LinkedHashMap<>(16, 0.75f, true);
+    private long octetsUtilises;
+
+    private final LongAdder succes = new LongAdder();
+    private final LongAdder echecs = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public boolean isActif() {
+        return actif;
+    }
+
+    /**
+     * Calcule la clé de la prochaine requête de cet historique (la question doit déjà y être ajoutée).
+     * @param modele modèle auquel la requête est envoyée : deux modèles ne donnent pas la même réponse.
+     */
+    public Cle cle(String modele, HistoriqueConversation historique) {
+        MessageDigest digest = sha256();
+        digest.update(modele.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        ajouter(digest, historique.getInstructionSysteme());
+        ajouter(digest, historique.getResume());
+        for (HistoriqueConversation.Tour tour : historique.getToursFenetre()) {
+            ajouter(digest, tour.role());
+            ajouter(digest, tour.texte());
+        }
+        return new Cle(digest.digest());
+    }
+
+    /**
+     * @return les textes de la réponse en cache, ou null si absente ou expirée.
+     */
+    public List<String> chercher(Cle cle) {
+        Entree entree;
+        synchronized (entrees) {
+            entree = entrees.get(cle);
+            if (entree != null && entree.expiration - System.nanoTime() < 0) {
+                retirer(cle);
+                entree = null;
+            }
+        }
+        if (entree == null) {
+            echecs.increment();
+            return null;
+        }
+        succes.increment();
+        return entree.textes();
+    }
+
+    /**
+     * Mémorise une réponse, en évinçant au besoin les entrées les moins récemment utilisées.
+     */
+    public void memoriser(Cle cle, List<String> textes) {
+        Entree entree = new Entree(textes, horsTas, System.nanoTime() + ttlNanos);
+        if (entree.taille() > maxOctets) return;
+        synchronized (entrees) {
+            retirer(cle);
+            entrees.put(cle, entree);
+            octetsUtilises += entree.taille();
+            Iterator<Map.Entry<Cle, Entree>> plusAnciennes = entrees.entrySet().iterator();
+            while ((entrees.size() > maxEntrees || octetsUtilises > maxOctets) && plusAnciennes.hasNext()) {
+                octetsUtilises -= plusAnciennes.next().getValue().taille();
+                plusAnciennes.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void retirer(Cle cle) {
+        Entree ancienne = entrees.remove(cle);
+        if (ancienne != null) octetsUtilises -= ancienne.taille();
+    }
+
+    // --- Statistiques ---
+
+    public long getNbSucces() {
+        return succes.sum();
+    }
+
+    public long getNbEchecs() {
+        return echecs.sum();
+    }
+
+    public long getNbEvictions() {
+        return evictions.sum();
+    }
+
+    public int getNbEntrees() {
+        synchronized (entrees) {
+            return entrees.size();
+        }
+    }
+
+    public long getOctetsUtilises() {
+        synchronized (entrees) {
+            return octetsUtilises;
+        }
+    }
+
+    // --- Normalisation ---
+
+    /**
+     * Normalise un texte pour la clé : sans l'heure du contexte temporel ni différences d'espaces.
+     */
+    static String normaliser(String texte) {
+        String sansHeure = HEURE_CONTEXTE.matcher(texte).replaceAll("");
+        return ESPACES.matcher(sansHeure).replaceAll(" ").trim();
+    }
+
+    private static void ajouter(MessageDigest digest, String texte) {
+        if (texte != null) {
+            digest.update(normaliser(texte).getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0); // séparateur : "ab"+"c" et "a"+"bc" donnent des clés différentes
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 est toujours disponible dans le JDK
+        }
+    }
+}
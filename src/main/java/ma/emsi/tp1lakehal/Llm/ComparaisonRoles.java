@@ -0,0 +1,236 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Comparaison des réponses de plusieurs rôles à une même question : la question est envoyée en parallèle
+ * à chaque rôle, dans une conversation d'un seul tour (la conversation de la page n'est pas modifiée).
+ * La comparaison dure donc le temps de la branche la plus lente, et non la somme des branches.
+ *
+ * <ul>
+ *     <li>Chaque réponse est transmise dès son arrivée (surBranche), sans attendre les autres.</li>
+ *     <li>Les branches partagent une échéance : gemini.comparaison.delai ms (défaut 60000) après le lancement,
+ *     celles qui n'ont pas répondu sont annulées.</li>
+ *     <li>Une branche peut être annulée seule ; l'annulation est propagée à l'appel en cours
+ *     (voir JsonUtilPourGemini.envoyerRequeteAsync), sans toucher aux autres branches.</li>
+ *     <li>L'échec d'une branche n'arrête pas les autres.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class ComparaisonRoles {
+
+    /**
+     * État d'une branche de la comparaison.
+     */
+    public enum EtatBranche {
+        EN_COURS("En cours..."),
+        TERMINEE("Terminée"),
+        ERREUR("Erreur"),
+        ANNULEE("Annulée"),
+        DELAI_DEPASSE("Délai dépassé");
+
+        private final String libelle;
+
+        EtatBranche(String libelle) {
+            this.libelle = libelle;
+        }
+
+        public String libelle() {
+            return libelle;
+        }
+    }
+
+    /**
+     * La question envoyée à un rôle, et sa réponse quand elle est arrivée.
+     */
+    public static final class Branche {
+        private final String codeRole;
+        private volatile EtatBranche etat = EtatBranche.EN_COURS;
+        private volatile String texte;
+        private volatile long dureeMs = -1;
+        private volatile boolean delaiDepasse;
+        private CompletableFuture<LlmInteraction> appel;
+
+        private Branche(String codeRole) {
+            this.codeRole = codeRole;
+        }
+
+        public String getCodeRole() {
+            return codeRole;
+        }
+
+        public String getNomRole() {
+            String nom = RolesSysteme.nom(codeRole);
+            return nom != null ? nom : codeRole;
+        }
+
+        public EtatBranche getEtat() {
+            return etat;
+        }
+
+        public boolean isEnCours() {
+            return etat == EtatBranche.EN_COURS;
+        }
+
+        /**
+         * @return la réponse du rôle, ou le message d'erreur ; null tant que la branche est en cours.
+         */
+        public String getTexte() {
+            return texte;
+        }
+
+        /**
+         * @return la durée de la branche (ms), ou -1 tant qu'elle est en cours.
+         */
+        public long getDureeMs() {
+            return dureeMs;
+        }
+
+        /**
+         * Annule la branche si elle est encore en cours.
+         */
+        public void annuler() {
+            appel.cancel(true);
+        }
+    }
+
+    /**
+     * Une comparaison lancée : ses branches, dans l'ordre des rôles demandés.
+     */
+    public static final class Comparaison {
+        private final List<Branche> branches;
+        private final long debut = System.nanoTime();
+        private final CompletableFuture<Void> fin = new CompletableFuture<>();
+        private volatile long dureeMs = -1;
+
+        private Comparaison(List<Branche> branches) {
+            this.branches = branches;
+        }
+
+        public List<Branche> getBranches() {
+            return branches;
+        }
+
+        /**
+         * @return la branche du rôle, ou null si ce rôle ne fait pas partie de la comparaison.
+         */
+        public Branche branche(String codeRole) {
+            for (Branche branche : branches) {
+                if (branche.codeRole.equals(codeRole)) return branche;
+            }
+            return null;
+        }
+
+        public boolean isTerminee() {
+            return fin.isDone();
+        }
+
+        /**
+         * @return la durée totale (ms) de la comparaison, ou -1 tant qu'une branche est en cours.
+         */
+        public long getDureeMs() {
+            return dureeMs;
+        }
+
+        /**
+         * @return étape qui se termine quand toutes les branches sont terminées (réponse, erreur ou annulation).
+         */
+        public CompletableFuture<Void> fin() {
+            return fin;
+        }
+
+        /**
+         * Annule toutes les branches encore en cours.
+         */
+        public void annuler() {
+            branches.forEach(Branche::annuler);
+        }
+
+        /**
+         * Échéance commune : annule les branches qui n'ont pas encore répondu.
+         */
+        private void expirer() {
+            for (Branche branche : branches) {
+                if (branche.isEnCours()) {
+                    branche.delaiDepasse = true;
+                    branche.annuler();
+                }
+            }
+        }
+    }
+
+    @Inject
+    private Instance<JsonUtilPourGemini> jsonUtils;
+
+    @Inject
+    private LlmClient geminiClient;
+
+    private final long delaiMs = ConfigurationLlm.entierLong("gemini.comparaison.delai", 60000);
+
+    /**
+     * Envoie la question à chaque rôle, en parallèle, sans attendre les réponses.
+     * @param codesRoles codes de RolesSysteme des rôles à comparer (sans doublon).
+     * @param cleUtilisateur file de l'ordonnanceur des requêtes (session de l'utilisateur).
+     * @param surBranche appelé, dans un autre thread, à la fin de chaque branche.
+     * @return la comparaison lancée.
+     */
+    public Comparaison lancer(String question, List<String> codesRoles, String cleUtilisateur, Consumer<Branche> surBranche) {
+        List<Branche> branches = new ArrayList<>(codesRoles.size());
+        for (String codeRole : codesRoles) {
+            branches.add(new Branche(codeRole));
+        }
+        Comparaison comparaison = new Comparaison(List.copyOf(branches));
+        AtomicInteger restantes = new AtomicInteger(branches.size());
+
+        for (Branche branche : branches) {
+            JsonUtilPourGemini jsonUtil = jsonUtils.get();
+            jsonUtil.setSystemRole(RolesSysteme.texte(branche.codeRole));
+            jsonUtil.setCodeRole(branche.codeRole);
+            jsonUtil.setCaptureReponseJson(false);
+            jsonUtil.setCleUtilisateur(cleUtilisateur);
+            branche.appel = jsonUtil.envoyerRequeteAsync(question).toCompletableFuture();
+            branche.appel.whenComplete((interaction, erreur) -> {
+                try {
+                    terminer(comparaison, branche, interaction, erreur);
+                    surBranche.accept(branche);
+                } finally {
+                    jsonUtils.destroy(jsonUtil);
+                    if (restantes.decrementAndGet() == 0) {
+                        comparaison.dureeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - comparaison.debut);
+                        comparaison.fin.complete(null);
+                    }
+                }
+            });
+        }
+
+        CompletableFuture.runAsync(() -> {
+            if (!comparaison.isTerminee()) comparaison.expirer();
+        }, CompletableFuture.delayedExecutor(delaiMs, TimeUnit.MILLISECONDS, geminiClient.getExecuteur()));
+        return comparaison;
+    }
+
+    private static void terminer(Comparaison comparaison, Branche branche, LlmInteraction interaction, Throwable erreur) {
+        branche.dureeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - comparaison.debut);
+        if (branche.appel.isCancelled()) {
+            branche.etat = branche.delaiDepasse ? EtatBranche.DELAI_DEPASSE : EtatBranche.ANNULEE;
+        } else if (erreur != null) {
+            Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null ? erreur.getCause() : erreur;
+            branche.texte = cause.getMessage();
+            branche.etat = EtatBranche.ERREUR;
+        } else {
+            branche.texte = interaction.reponseExtraite();
+            branche.etat = EtatBranche.TERMINEE;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Requêtes de couverture ("hedged requests") pour réduire la latence de queue de generateContent.
+ *
+ * Si la réponse n'est pas arrivée au bout d'un seuil tiré des latences observées (le percentile
+ * gemini.couverture.percentile, p95 par défaut), la même requête est envoyée une deuxième fois ;
+ * la première réponse arrivée est gardée, l'autre appel est annulé et sa réponse éventuelle fermée.
+ * Comme une seule réponse est rendue à JsonUtilPourGemini, le tour du modèle n'est ajouté qu'une fois à l'historique.
+ *
+ * Un budget limite les doublons à gemini.couverture.budget pour cent des requêtes (défaut 5) :
+ * quand l'API est lente pour tout le monde, la couverture ne double pas la charge. Chaque doublon prend aussi
+ * sa propre place dans OrdonnanceurAppels, seulement si une place est libre : il ne fait jamais attendre
+ * les autres appels, et sa réponse compte dans la limite adaptative.
+ *
+ * Désactivé par défaut (gemini.couverture.actif=true pour l'activer). Pas de couverture tant que
+ * gemini.couverture.min-mesures latences (défaut 20) n'ont pas été observées.
+ */
+@ApplicationScoped
+public class CouvertureRequetes {
+
+    /** Le budget accumulé ne dépasse pas ce nombre de couvertures (en millièmes), pour éviter une rafale. */
+    private static final long BUDGET_MAX_MILLIEMES = 10_000;
+    /** Seuil minimal (ms) : en dessous, un doublon ne ferait gagner presque rien. */
+    private static final long SEUIL_MIN_MS = 50;
+
+    @Inject
+    private LlmClient geminiClient;
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.couverture.actif", false);
+    private final double percentile = Double.parseDouble(ConfigurationLlm.texte("gemini.couverture.percentile", "95"));
+    private final long budgetParRequeteMilliemes = Math.round(
+            Double.parseDouble(ConfigurationLlm.texte("gemini.couverture.budget", "5")) * 10);
+    private final int minMesures = ConfigurationLlm.entier("gemini.couverture.min-mesures", 20);
+
+    private final DistributionLatences latences = new DistributionLatences();
+    private final AtomicLong budgetMilliemes = new AtomicLong();
+
+    private final LongAdder requetes = new LongAdder();
+    private final LongAdder couvertures = new LongAdder();
+    private final LongAdder couverturesGagnantes = new LongAdder();
+
+    /**
+     * Lance l'appel et, si besoin, un doublon après le seuil de latence.
+     * @param appel lance l'appel d'origine ; annuler son étape doit annuler l'appel HTTP.
+     * @param doublon lance la même requête une deuxième fois, ou rend null s'il n'y a pas de place pour elle
+     * (le budget pris est alors rendu).
+     * @return la première réponse non transitoire (ou la dernière réponse si toutes sont transitoires) ;
+     * l'annuler annule tous les appels.
+     */
+    public CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(
+            Supplier<CompletableFuture<MutualisationRequetes.ReponseApi>> appel,
+            Supplier<CompletableFuture<MutualisationRequetes.ReponseApi>> doublon) {
+        requetes.increment();
+        long debut = System.nanoTime();
+        long seuil = seuilMs();
+        crediterBudget();
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> resultat = new CompletableFuture<>();
+        List<CompletableFuture<MutualisationRequetes.ReponseApi>> appels = new CopyOnWriteArrayList<>();
+        AtomicInteger enCours = new AtomicInteger(1);
+        resultat.whenComplete((reponse, erreur) -> appels.forEach(a -> a.cancel(true)));
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> premier = appel.get();
+        appels.add(premier);
+        premier.whenComplete((reponse, erreur) -> surFin(resultat, enCours, reponse, erreur, debut, false));
+
+        if (seuil >= 0) {
+            CompletableFuture.delayedExecutor(seuil, TimeUnit.MILLISECONDS, geminiClient.getExecuteur()).execute(() -> {
+                if (resultat.isDone() || !prendreBudget()) return;
+                CompletableFuture<MutualisationRequetes.ReponseApi> second = doublon.get();
+                if (second == null) {
+                    budgetMilliemes.addAndGet(1000);
+                    return;
+                }
+                enCours.incrementAndGet();
+                couvertures.increment();
+                appels.add(second);
+                if (resultat.isDone()) second.cancel(true);
+                second.whenComplete((reponse, erreur) -> surFin(resultat, enCours, reponse, erreur, debut, true));
+            });
+        }
+        return resultat;
+    }
+
+    /**
+     * Une réponse définitive gagne tout de suite ; une erreur ou une réponse transitoire n'est rendue
+     * que si aucun autre appel n'est en cours.
+     */
+    private void surFin(CompletableFuture<MutualisationRequetes.ReponseApi> resultat, AtomicInteger enCours,
+                        MutualisationRequetes.ReponseApi reponse, Throwable erreur, long debut, boolean doublon) {
+        boolean dernier = enCours.decrementAndGet() == 0;
+        if (erreur == null && !AppelsResilients.estTransitoire(reponse.status())) {
+            if (resultat.complete(reponse)) {
+                latences.enregistrer(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut));
+                if (doublon) couverturesGagnantes.increment();
+            } else {
+                reponse.close();
+            }
+        } else if (dernier) {
+            if (erreur != null) {
+                resultat.completeExceptionally(erreur);
+            } else if (!resultat.complete(reponse)) {
+                reponse.close();
+            }
+        } else if (reponse != null) {
+            reponse.close();
+        }
+    }
+
+    /**
+     * @return le délai (ms) avant l'envoi d'un doublon, ou -1 s'il n'y a pas de couverture.
+     */
+    private long seuilMs() {
+        if (!actif || latences.getNbMesures() < minMesures) return -1;
+        long seuil = latences.percentile(percentile);
+        return seuil < 0 ? -1 : Math.max(SEUIL_MIN_MS, seuil);
+    }
+
+    private void crediterBudget() {
+        if (!actif) return;
+        budgetMilliemes.accumulateAndGet(budgetParRequeteMilliemes,
+                (budget, credit) -> Math.min(BUDGET_MAX_MILLIEMES, budget + credit));
+    }
+
+    private boolean prendreBudget() {
+        long budget;
+        do {
+            budget = budgetMilliemes.get();
+            if (budget < 1000) return false;
+        } while (!budgetMilliemes.compareAndSet(budget, budget - 1000));
+        return true;
+    }
+
+    // --- Statistiques ---
+
+    public boolean isActif() {
+        return actif;
+    }
+
+    /**
+     * @return le seuil actuel (ms) avant l'envoi d'un doublon, ou -1 si la couverture est inactive.
+     */
+    public long getSeuilMs() {
+        return seuilMs();
+    }
+
+    public long getNbRequetes() {
+        return requetes.sum();
+    }
+
+    /**
+     * @return le nombre de doublons envoyés.
+     */
+    public long getNbCouvertures() {
+        return couvertures.sum();
+    }
+
+    /**
+     * @return le nombre de doublons qui ont répondu avant l'appel d'origine.
+     */
+    public long getNbCouverturesGagnantes() {
+        return couverturesGagnantes.sum();
+    }
+}
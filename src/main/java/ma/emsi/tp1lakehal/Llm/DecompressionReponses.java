@@ -0,0 +1,37 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.ws.rs.client.ClientRequestContext;
+import jakarta.ws.rs.client.ClientRequestFilter;
+import jakarta.ws.rs.client.ClientResponseContext;
+import jakarta.ws.rs.client.ClientResponseFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Filtre du client REST (LlmClient) : demande des réponses compressées (Accept-Encoding: gzip) et décompresse
+ * le corps des réponses gzip avant qu'il soit lu, quel que soit le connecteur HTTP du serveur d'applications.
+ *
+ * Les réponses en flux (text/event-stream) ne sont pas demandées compressées : le compresseur du serveur
+ * peut retenir les petits événements, ce qui retarderait l'affichage des premiers morceaux.
+ */
+class DecompressionReponses implements ClientRequestFilter, ClientResponseFilter {
+
+    @Override
+    public void filter(ClientRequestContext requete) {
+        if (requete.getHeaders().containsKey(HttpHeaders.ACCEPT_ENCODING)) return;
+        if (requete.getAcceptableMediaTypes().contains(MediaType.SERVER_SENT_EVENTS_TYPE)) return;
+        requete.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    }
+
+    @Override
+    public void filter(ClientRequestContext requete, ClientResponseContext reponse) throws IOException {
+        String encodage = reponse.getHeaderString(HttpHeaders.CONTENT_ENCODING);
+        if (encodage == null || !"gzip".equalsIgnoreCase(encodage.trim()) || !reponse.hasEntity()) return;
+        reponse.setEntityStream(new GZIPInputStream(reponse.getEntityStream(), 8192));
+        reponse.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+        reponse.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+    }
+}
@@ -0,0 +1,104 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disjoncteur (circuit breaker) devant un modèle de l'API Gemini (voir RoutageModeles).
+ *
+ * <ul>
+ *     <li>FERME : les appels passent ; après "seuil" échecs consécutifs (erreur réseau ou 5xx),
+ *     le disjoncteur s'ouvre.</li>
+ *     <li>OUVERT : les appels échouent immédiatement, sans attendre un serveur dégradé, pendant "duree".</li>
+ *     <li>DEMI_OUVERT : un seul appel d'essai passe ; s'il réussit le disjoncteur se ferme, sinon il se rouvre.</li>
+ * </ul>
+ */
+public class Disjoncteur {
+
+    private static final Logger LOGGER = Logger.getLogger(Disjoncteur.class.getName());
+
+    public enum Etat {
+        FERME, OUVERT, DEMI_OUVERT
+    }
+
+    private final int seuil;
+    private final long dureeMs;
+
+    private Etat etat = Etat.FERME;
+    private int echecsConsecutifs;
+    private long ouvertJusqua;
+    private long debutEssai;
+    private long nbOuvertures;
+
+    public Disjoncteur(int seuil, long dureeMs) {
+        this.seuil = seuil;
+        this.dureeMs = dureeMs;
+    }
+
+    /**
+     * @return vrai si un appel peut être envoyé maintenant.
+     */
+    public synchronized boolean autoriser() {
+        long maintenant = System.currentTimeMillis();
+        return switch (etat) {
+            case FERME -> true;
+            case OUVERT -> {
+                if (maintenant < ouvertJusqua) yield false;
+                changerEtat(Etat.DEMI_OUVERT);
+                debutEssai = maintenant;
+                yield true;
+            }
+            case DEMI_OUVERT -> {
+                // Un seul essai à la fois ; un essai abandonné (annulé) est remplacé au bout de "duree"
+                if (maintenant - debutEssai < dureeMs) yield false;
+                debutEssai = maintenant;
+                yield true;
+            }
+        };
+    }
+
+    /**
+     * L'API a répondu normalement (y compris une erreur due à la requête elle-même, comme 400).
+     */
+    public synchronized void succes() {
+        echecsConsecutifs = 0;
+        if (etat != Etat.FERME) changerEtat(Etat.FERME);
+    }
+
+    /**
+     * L'API est injoignable, trop lente ou dégradée (5xx). Un 429 n'est pas un échec : voir RoutageModeles.
+     */
+    public synchronized void echec() {
+        echecsConsecutifs++;
+        if (etat == Etat.DEMI_OUVERT || (etat == Etat.FERME && echecsConsecutifs >= seuil)) {
+            ouvertJusqua = System.currentTimeMillis() + dureeMs;
+            nbOuvertures++;
+            changerEtat(Etat.OUVERT);
+        }
+    }
+
+    public synchronized Etat getEtat() {
+        return etat;
+    }
+
+    /**
+     * @return le nombre de millisecondes avant le prochain essai (0 si le disjoncteur n'est pas ouvert).
+     */
+    public synchronized long getAttenteMs() {
+        return etat == Etat.OUVERT ? Math.max(0, ouvertJusqua - System.currentTimeMillis()) : 0;
+    }
+
+    public synchronized int getEchecsConsecutifs() {
+        return echecsConsecutifs;
+    }
+
+    public synchronized long getNbOuvertures() {
+        return nbOuvertures;
+    }
+
+    private void changerEtat(Etat nouvelEtat) {
+        LOGGER.log(nouvelEtat == Etat.OUVERT ? Level.WARNING : Level.INFO,
+                "Disjoncteur Gemini : {0} -> {1} ({2} échecs consécutifs)", new Object[]{etat, nouvelEtat, echecsConsecutifs});
+        etat = nouvelEtat;
+    }
+}
@@ -0,0 +1,67 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution approximative des latences observées, pour estimer un percentile (p95, p99...) sans garder
+ * chaque mesure : les latences sont comptées dans des intervalles de taille croissante (+25 % à chaque fois,
+ * de 1 ms à environ 2 minutes), ce qui donne une précision relative d'environ 25 %.
+ *
+ * Pour suivre l'évolution de l'API, tous les compteurs sont divisés par deux toutes les DEMI_VIE mesures :
+ * les mesures récentes pèsent plus que les anciennes.
+ */
+public class DistributionLatences {
+
+    private static final double FACTEUR = 1.25;
+    private static final int NB_INTERVALLES = 54; // 1.25^53 ms ≈ 136 s
+    private static final int DEMI_VIE = 1000;
+
+    private final AtomicLongArray comptes = new AtomicLongArray(NB_INTERVALLES);
+    private final AtomicLong nbMesures = new AtomicLong();
+
+    /**
+     * Ajoute une latence mesurée.
+     */
+    public void enregistrer(long latenceMs) {
+        int intervalle = latenceMs <= 1 ? 0
+                : (int) Math.min(NB_INTERVALLES - 1, Math.ceil(Math.log(latenceMs) / Math.log(FACTEUR)));
+        comptes.incrementAndGet(intervalle);
+        if (nbMesures.incrementAndGet() % DEMI_VIE == 0) {
+            for (int i = 0; i < NB_INTERVALLES; i++) {
+                long compte;
+                do {
+                    compte = comptes.get(i);
+                } while (!comptes.compareAndSet(i, compte, compte / 2));
+            }
+        }
+    }
+
+    /**
+     * @return le nombre total de latences enregistrées (sans tenir compte de l'atténuation).
+     */
+    public long getNbMesures() {
+        return nbMesures.get();
+    }
+
+    /**
+     * @param percentile entre 0 et 100 (ex: 95).
+     * @return la borne haute (ms) de l'intervalle qui contient ce percentile, ou -1 si aucune mesure n'est disponible.
+     */
+    public long percentile(double percentile) {
+        long[] instantane = new long[NB_INTERVALLES];
+        long total = 0;
+        for (int i = 0; i < NB_INTERVALLES; i++) {
+            instantane[i] = comptes.get(i);
+            total += instantane[i];
+        }
+        if (total == 0) return -1;
+        long rang = (long) Math.ceil(total * percentile / 100);
+        long cumul = 0;
+        for (int i = 0; i < NB_INTERVALLES; i++) {
+            cumul += instantane[i];
+            if (cumul >= rang) return (long) Math.ceil(Math.pow(FACTEUR, i));
+        }
+        return (long) Math.ceil(Math.pow(FACTEUR, NB_INTERVALLES - 1));
+    }
+}
@@ -0,0 +1,23 @@
+package ma.emsi.tp1lakehal.Llm;
+
+/**
+ * Estimation locale (sans appel à l'API countTokens) du nombre de tokens d'un texte.
+ * Pour les modèles Gemini, un token correspond en moyenne à 4 caractères ; l'estimation
+ * arrondit au-dessus et ajoute un petit coût fixe par message (rôle, structure).
+ */
+public final class EstimateurTokens {
+
+    private static final int CARACTERES_PAR_TOKEN = 4;
+    private static final int COUT_FIXE_PAR_MESSAGE = 4;
+
+    private EstimateurTokens() {
+    }
+
+    /**
+     * @return le nombre de tokens estimé pour un message contenant ce texte.
+     */
+    public static int estimer(String texte) {
+        if (texte == null) return 0;
+        return COUT_FIXE_PAR_MESSAGE + (texte.length() + CARACTERES_PAR_TOKEN - 1) / CARACTERES_PAR_TOKEN;
+    }
+}
@@ -0,0 +1,181 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extraction d'une réponse de Gemini au fil de la lecture (JsonParser), sans construire l'arbre JSON
+ * ni lire le corps dans une String.
+ *
+ * Seuls candidates[0].content.parts[*].text, candidates[0].finishReason, promptFeedback.blockReason
+ * et usageMetadata sont lus ; tout le reste (autres candidats, safetyRatings, groundingMetadata, ...)
+ * est sauté par le parseur.
+ */
+public final class ExtracteurReponseGemini {
+
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(Map.of());
+
+    private ExtracteurReponseGemini() {
+    }
+
+    /**
+     * Lit une réponse de generateContent directement depuis le flux de la réponse HTTP.
+     * @throws JsonException si le document n'est pas un objet JSON valide.
+     */
+    public static ReponseGemini extraire(InputStream flux) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(flux, StandardCharsets.UTF_8)) {
+            return extraire(parser);
+        }
+    }
+
+    /**
+     * Lit une réponse (ou un événement d'une réponse en flux, qui a la même structure).
+     * @throws JsonException si le document n'est pas un objet JSON valide.
+     */
+    public static ReponseGemini extraire(Reader lecteur) {
+        try (JsonParser parser = PARSER_FACTORY.createParser(lecteur)) {
+            return extraire(parser);
+        }
+    }
+
+    /**
+     * Lit au plus maxOctets octets du flux, par exemple le corps d'une réponse d'erreur,
+     * pour l'inclure dans un message sans risquer de charger un corps démesuré.
+     */
+    public static String lireDebut(InputStream flux, int maxOctets) {
+        if (flux == null) return "";
+        try (flux) {
+            byte[] debut = flux.readNBytes(maxOctets);
+            String texte = new String(debut, StandardCharsets.UTF_8);
+            return flux.read() == -1 ? texte : texte + "\n[... réponse tronquée à " + maxOctets + " octets]";
+        } catch (IOException e) {
+            return "[corps de la réponse illisible : " + e.getMessage() + "]";
+        }
+    }
+
+    private static ReponseGemini extraire(JsonParser parser) {
+        List<String> textes = new ArrayList<>();
+        String[] finishReason = new String[1];
+        String blockReason = null;
+        int promptTokens = 0, candidatesTokens = 0, totalTokens = 0;
+
+        attendre(parser, JsonParser.Event.START_OBJECT);
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            switch (parser.getString()) {
+                case "candidates" -> lireCandidats(parser, textes, finishReason);
+                case "promptFeedback" -> {
+                    attendre(parser, JsonParser.Event.START_OBJECT);
+                    while (parser.next() == JsonParser.Event.KEY_NAME) {
+                        if ("blockReason".equals(parser.getString())) {
+                            blockReason = lireTexte(parser);
+                        } else {
+                            sauter(parser);
+                        }
+                    }
+                }
+                case "usageMetadata" -> {
+                    attendre(parser, JsonParser.Event.START_OBJECT);
+                    while (parser.next() == JsonParser.Event.KEY_NAME) {
+                        switch (parser.getString()) {
+                            case "promptTokenCount" -> promptTokens = lireEntier(parser);
+                            case "candidatesTokenCount" -> candidatesTokens = lireEntier(parser);
+                            case "totalTokenCount" -> totalTokens = lireEntier(parser);
+                            default -> sauter(parser);
+                        }
+                    }
+                }
+                default -> sauter(parser);
+            }
+        }
+        return new ReponseGemini(textes, finishReason[0], blockReason, promptTokens, candidatesTokens, totalTokens);
+    }
+
+    /**
+     * Lit le premier candidat (content.parts[*].text et finishReason) et saute les suivants.
+     */
+    private static void lireCandidats(JsonParser parser, List<String> textes, String[] finishReason) {
+        attendre(parser, JsonParser.Event.START_ARRAY);
+        boolean premier = true;
+        JsonParser.Event evenement;
+        while ((evenement = parser.next()) != JsonParser.Event.END_ARRAY) {
+            if (!premier || evenement != JsonParser.Event.START_OBJECT) {
+                sauterValeurCommencee(parser, evenement);
+                continue;
+            }
+            premier = false;
+            while (parser.next() == JsonParser.Event.KEY_NAME) {
+                switch (parser.getString()) {
+                    case "content" -> lireContent(parser, textes);
+                    case "finishReason" -> finishReason[0] = lireTexte(parser);
+                    default -> sauter(parser);
+                }
+            }
+        }
+    }
+
+    private static void lireContent(JsonParser parser, List<String> textes) {
+        attendre(parser, JsonParser.Event.START_OBJECT);
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            if (!"parts".equals(parser.getString())) {
+                sauter(parser);
+                continue;
+            }
+            attendre(parser, JsonParser.Event.START_ARRAY);
+            JsonParser.Event evenement;
+            while ((evenement = parser.next()) == JsonParser.Event.START_OBJECT) {
+                while (parser.next() == JsonParser.Event.KEY_NAME) {
+                    if ("text".equals(parser.getString())) {
+                        textes.add(lireTexte(parser));
+                    } else {
+                        sauter(parser);
+                    }
+                }
+            }
+            if (evenement != JsonParser.Event.END_ARRAY) {
+                throw new JsonException("Élément inattendu dans content.parts : " + evenement);
+            }
+        }
+    }
+
+    private static void attendre(JsonParser parser, JsonParser.Event attendu) {
+        JsonParser.Event evenement = parser.next();
+        if (evenement != attendu) {
+            throw new JsonException("Structure JSON inattendue : " + attendu + " attendu, " + evenement + " trouvé.");
+        }
+    }
+
+    private static String lireTexte(JsonParser parser) {
+        attendre(parser, JsonParser.Event.VALUE_STRING);
+        return parser.getString();
+    }
+
+    private static int lireEntier(JsonParser parser) {
+        attendre(parser, JsonParser.Event.VALUE_NUMBER);
+        return parser.getInt();
+    }
+
+    /**
+     * Saute la valeur qui suit un nom de clé.
+     */
+    private static void sauter(JsonParser parser) {
+        sauterValeurCommencee(parser, parser.next());
+    }
+
+    private static void sauterValeurCommencee(JsonParser parser, JsonParser.Event evenement) {
+        if (evenement == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (evenement == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+}
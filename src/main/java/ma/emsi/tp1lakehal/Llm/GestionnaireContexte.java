@@ -0,0 +1,159 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.Exception.RequeteException;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Gère la taille du contexte envoyé à Gemini pour que les longues conversations restent dans un budget de tokens.
+ *
+ * <ul>
+ *     <li>Fenêtre glissante : avant l'envoi, si la requête dépasse le budget, les tours les plus anciens
+ *     sortent de la fenêtre (tronquerSiNecessaire).</li>
+ *     <li>Résumé en arrière-plan : après une réponse, si la fenêtre dépasse une partie du budget, les tours
+ *     anciens sont résumés par le modèle de façon asynchrone (planifierResume) ; le résumé remplace ces tours
+ *     avant la requête suivante, qui est donc déjà petite quand l'utilisateur l'envoie.</li>
+ * </ul>
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.contexte.budget (tokens, défaut 16000), qui peut être précisé
+ * par rôle avec gemini.contexte.budget.CODE_ROLE (ex: gemini.contexte.budget.TRADUCTEUR=4000),
+ * gemini.contexte.seuil-resume (pourcentage du budget qui déclenche un résumé, défaut 75)
+ * et gemini.contexte.tours-recents (tours jamais résumés, défaut 6, au moins 1).
+ */
+@ApplicationScoped
+public class GestionnaireContexte {
+
+    private static final String INSTRUCTION_RESUME = """
+            You summarize the beginning of a conversation between a user and an assistant.
+            Keep the facts, names, decisions, user preferences and open questions; drop greetings and repetitions.
+            Write the summary in the language of the conversation, in less than 200 words, without any introduction.
+            """;
+
+    /**
+     * Résumé obtenu pour les tours d'index inférieur à fin.
+     */
+    public static final class Resume {
+        private final int fin;
+        private final String texte;
+
+        Resume(int fin, String texte) {
+            this.fin = fin;
+            this.texte = texte;
+        }
+
+        public int fin() {
+            return fin;
+        }
+
+        public String texte() {
+            return texte;
+        }
+    }
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    @Inject
+    private RoutageModeles routage;
+
+    /**
+     * @return le budget de tokens du contexte pour un rôle (code ASSISTANT, TRADUCTEUR, ...).
+     */
+    public int budget(String codeRole) {
+        int budgetGlobal = ConfigurationLlm.entier("gemini.contexte.budget", 16000);
+        return codeRole == null ? budgetGlobal : ConfigurationLlm.entier("gemini.contexte.budget." + codeRole, budgetGlobal);
+    }
+
+    /**
+     * Fenêtre glissante : fait sortir les tours les plus anciens de la fenêtre tant que l'historique
+     * et la prochaine question dépassent le budget. La fenêtre commence toujours par une question.
+     * @param tokensQuestion tokens estimés de la question qui va être ajoutée.
+     */
+    public void tronquerSiNecessaire(HistoriqueConversation historique, String codeRole, int tokensQuestion) {
+        int budget = budget(codeRole);
+        int tokens = historique.getTokensEnvoyes() + tokensQuestion;
+        if (tokens <= budget) return;
+
+        List<HistoriqueConversation.Tour> tours = historique.getTours();
+        int debut = historique.getDebutFenetre();
+        int nouveauDebut = debut;
+        while (nouveauDebut < tours.size() && tokens > budget) {
+            tokens -= tours.get(nouveauDebut).tokens();
+            nouveauDebut++;
+            // On ne coupe pas entre une question et sa réponse
+            while (nouveauDebut < tours.size() && !tours.get(nouveauDebut).estUtilisateur()) {
+                tokens -= tours.get(nouveauDebut).tokens();
+                nouveauDebut++;
+            }
+        }
+        historique.deplacerFenetre(nouveauDebut, null);
+    }
+
+    /**
+     * Lance le résumé des tours anciens si la fenêtre dépasse le seuil du budget.
+     * Les tours à résumer sont copiés avant le lancement : l'historique peut continuer à changer pendant le résumé.
+     * @param demandeur file de l'ordonnanceur de la conversation, où attend l'appel du résumé.
+     * @return le résumé à venir, ou null si aucun résumé n'est nécessaire.
+     */
+    public CompletableFuture<Resume> planifierResume(HistoriqueConversation historique, String codeRole,
+                                                     OrdonnanceurAppels.Demandeur demandeur) {
+        int seuil = budget(codeRole) * ConfigurationLlm.entier("gemini.contexte.seuil-resume", 75) / 100;
+        if (historique.getTokensEnvoyes() < seuil) return null;
+
+        List<HistoriqueConversation.Tour> tours = historique.getTours();
+        // Au moins un tour récent : la dernière réponse n'est jamais résumée, et fin reste un index valide
+        int fin = tours.size() - Math.max(1, ConfigurationLlm.entier("gemini.contexte.tours-recents", 6));
+        while (fin > 0 && !tours.get(fin).estUtilisateur()) {
+            fin--;
+        }
+        int debut = historique.getDebutFenetre();
+        if (fin <= debut) return null;
+
+        String resumePrecedent = historique.getResume();
+        List<HistoriqueConversation.Tour> aResumer = List.copyOf(tours.subList(debut, fin));
+        int finResume = fin;
+        return resumer(resumePrecedent, aResumer, demandeur).thenApply(texte -> new Resume(finResume, texte));
+    }
+
+    /**
+     * Demande au modèle (requête séparée, hors conversation) un résumé des tours donnés.
+     * L'appel passe par AppelsResilients : il est repris, basculé et mesuré comme les requêtes de la conversation.
+     */
+    private CompletableFuture<String> resumer(String resumePrecedent, List<HistoriqueConversation.Tour> tours,
+                                              OrdonnanceurAppels.Demandeur demandeur) {
+        StringBuilder transcription = new StringBuilder();
+        if (resumePrecedent != null) {
+            transcription.append("Summary of the earlier part:\n").append(resumePrecedent).append("\n\n");
+        }
+        for (HistoriqueConversation.Tour tour : tours) {
+            transcription.append(tour.estUtilisateur() ? "User: " : "Assistant: ")
+                    .append(tour.texte())
+                    .append("\n\n");
+        }
+
+        HistoriqueConversation demande = new HistoriqueConversation();
+        demande.setInstructionSysteme(INSTRUCTION_RESUME);
+        demande.ajouterQuestion(transcription.toString());
+
+        TamponRequeteJson.Corps corps = demande.corps();
+        return appelsResilients.envoyer(corps, routage.choisir(null, null, corps.taille()), true, demandeur)
+                .thenApply(reponseApi -> {
+                    try (MutualisationRequetes.ReponseApi response = reponseApi) {
+                        if (response.status() != 200) {
+                            throw new CompletionException(new RequeteException(
+                                    "Résumé de l'historique refusé : " + response.status() + " : " + response.raison()));
+                        }
+                        ReponseGemini reponse = ExtracteurReponseGemini.extraire(response.flux());
+                        if (reponse.estVide()) {
+                            throw new CompletionException(new RequeteException("Résumé de l'historique vide."));
+                        }
+                        return reponse.texte();
+                    }
+                });
+    }
+}
@@ -0,0 +1,81 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme à intervalles fixes, au format des histogrammes Prometheus (compteurs cumulés "le").
+ * Chaque intervalle est un LongAdder : l'enregistrement d'une valeur ne prend aucun verrou
+ * et reste peu coûteux même si beaucoup de threads enregistrent en même temps.
+ */
+public class Histogramme {
+
+    /** Bornes en série 1-2,5-5 (comme les intervalles logarithmiques d'un histogramme HDR, en plus grossier). */
+    public static double[] serie125(double min, double max) {
+        double[] bornes = new double[64];
+        int n = 0;
+        for (int exposant = (int) Math.floor(Math.log10(min)); Math.pow(10, exposant) <= max; exposant++) {
+            for (double facteur : new double[]{1, 2.5, 5}) {
+                double borne = facteur * Math.pow(10, exposant);
+                if (borne >= min && borne <= max) bornes[n++] = borne;
+            }
+        }
+        return Arrays.copyOf(bornes, n);
+    }
+
+    /** Bornes en puissances de 2, de min à max. */
+    public static double[] puissancesDe2(double min, double max) {
+        double[] bornes = new double[64];
+        int n = 0;
+        for (double borne = min; borne <= max; borne *= 2) {
+            bornes[n++] = borne;
+        }
+        return Arrays.copyOf(bornes, n);
+    }
+
+    private final double[] bornes;
+    /** comptes[i] : valeurs dans ]bornes[i-1], bornes[i]] ; le dernier compte les valeurs au-delà de la dernière borne. */
+    private final LongAdder[] comptes;
+    private final DoubleAdder somme = new DoubleAdder();
+
+    public Histogramme(double[] bornes) {
+        this.bornes = bornes.clone();
+        this.comptes = new LongAdder[bornes.length + 1];
+        for (int i = 0; i < comptes.length; i++) {
+            comptes[i] = new LongAdder();
+        }
+    }
+
+    public void observer(double valeur) {
+        int i = Arrays.binarySearch(bornes, valeur);
+        comptes[i >= 0 ? i : -i - 1].increment();
+        somme.add(valeur);
+    }
+
+    /**
+     * Écrit les lignes _bucket, _sum et _count de l'histogramme.
+     * @param labels labels Prometheus déjà formatés (ex: role="ASSISTANT"), ou chaîne vide.
+     */
+    public void ecrire(StringBuilder sortie, String nom, String labels) {
+        String separateur = labels.isEmpty() ? "" : ",";
+        long cumul = 0;
+        for (int i = 0; i < bornes.length; i++) {
+            cumul += comptes[i].sum();
+            sortie.append(nom).append("_bucket{").append(labels).append(separateur)
+                    .append("le=\"").append(formater(bornes[i])).append("\"} ").append(cumul).append('\n');
+        }
+        cumul += comptes[bornes.length].sum();
+        sortie.append(nom).append("_bucket{").append(labels).append(separateur)
+                .append("le=\"+Inf\"} ").append(cumul).append('\n');
+        String accolades = labels.isEmpty() ? "" : "{" + labels + "}";
+        sortie.append(nom).append("_sum").append(accolades).append(' ').append(formater(somme.sum())).append('\n');
+        sortie.append(nom).append("_count").append(accolades).append(' ').append(cumul).append('\n');
+    }
+
+    static String formater(double valeur) {
+        return valeur == Math.rint(valeur) && Math.abs(valeur) < 1e15
+                ? Long.toString((long) valeur)
+                : Double.toString(valeur);
+    }
+}
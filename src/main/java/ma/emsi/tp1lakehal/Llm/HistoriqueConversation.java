@@ -0,0 +1,367 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Historique d'une conversation avec Gemini, sous forme de journal de tours que l'on ne fait que compléter.
+ *
+ * Chaque tour (rôle + textes des "parts") est gardé une seule fois, accompagné de son encodage JSON
+ * (dans un TamponRequeteJson) qui sert directement de corps aux requêtes suivantes.
+ * Le JSON complet (JsonObject) n'est construit qu'à la demande, pour l'affichage en mode debug.
+ *
+ * Tous les tours restent disponibles pour l'affichage, mais seuls ceux de la "fenêtre" (les plus récents)
+ * sont envoyés au modèle : les tours plus anciens peuvent être remplacés par un résumé (voir GestionnaireContexte).
+ *
+ * Sérialisation (passivation ou réplication de la session) : seuls les textes sont écrits, dans un encodage
+ * binaire compact (voir writeExternal) ; le tampon encodé et les estimations de tokens sont reconstruits à la lecture.
+ */
+public class HistoriqueConversation implements Externalizable {
+
+    public static final String ROLE_UTILISATEUR = "user";
+    public static final String ROLE_MODELE = "model";
+
+    /**
+     * Préfixe du tour synthétique qui remplace les tours sortis de la fenêtre. Ce tour est suivi d'une réponse
+     * synthétique du modèle (ACCUSE_RESUME) : la fenêtre commence par une question, et les rôles alternent donc
+     * toujours, sans deux tours "user" consécutifs.
+     */
+    private static final String PREFIXE_RESUME = "[Résumé du début de la conversation]\n";
+    private static final String ACCUSE_RESUME = "Compris, je tiens compte de ce résumé pour la suite.";
+
+    /** Version de l'encodage de writeExternal. */
+    private static final byte VERSION_ENCODAGE = 1;
+    /** Place estimée d'un tour en mémoire, en plus de ses textes (objets Tour, List, String). */
+    private static final int OCTETS_PAR_TOUR = 96;
+
+    /**
+     * Un tour de la conversation : une question de l'utilisateur ou une réponse du modèle.
+     */
+    public static final class Tour {
+        private final String role;
+        private final List<String> textes;
+        private final int tokens;
+
+        Tour(String role, List<String> textes) {
+            this.role = role;
+            this.textes = List.copyOf(textes);
+            this.tokens = EstimateurTokens.estimer(texte());
+        }
+
+        /**
+         * @return "user" ou "model".
+         */
+        public String role() {
+            return role;
+        }
+
+        /**
+         * @return les textes des "parts" du tour.
+         */
+        public List<String> textes() {
+            return textes;
+        }
+
+        /**
+         * @return tous les textes du tour, mis bout à bout.
+         */
+        public String texte() {
+            return textes.size() == 1 ? textes.get(0) : String.join("", textes);
+        }
+
+        /**
+         * @return le nombre de tokens estimé du tour.
+         */
+        public int tokens() {
+            return tokens;
+        }
+
+        public boolean estUtilisateur() {
+            return ROLE_UTILISATEUR.equals(role);
+        }
+    }
+
+    /** Texte du rôle système, ou null. */
+    private String instructionSysteme;
+    /** En-tête encodé des requêtes : instruction système en ligne ou référence à un contenu en cache (voir RegistreRoles). */
+    private byte[] entete;
+    private final List<Tour> tours = new ArrayList<>();
+    private transient TamponRequeteJson tampon = new TamponRequeteJson();
+
+    /** Index du premier tour envoyé au modèle ; les tours précédents sont résumés (ou oubliés). */
+    private int debutFenetre;
+    /** Résumé des tours sortis de la fenêtre, ou null. */
+    private String resume;
+    /** Tokens estimés de ce qui est envoyé au modèle (instruction système, résumé et fenêtre). */
+    private int tokensEnvoyes;
+    /** Place estimée des tours en mémoire (octets), hors tampon encodé. */
+    private long octetsTours;
+
+    /**
+     * Fixe le rôle système ; sans effet une fois la conversation commencée (le rôle ne change plus).
+     */
+    public void setInstructionSysteme(String instructionSysteme) {
+        if (!tours.isEmpty()) return;
+        if (instructionSysteme != null && instructionSysteme.isBlank()) instructionSysteme = null;
+        this.instructionSysteme = instructionSysteme;
+        utiliserEntete(TamponRequeteJson.encoderInstructionSysteme(instructionSysteme));
+        this.tokensEnvoyes = EstimateurTokens.estimer(instructionSysteme);
+    }
+
+    public String getInstructionSysteme() {
+        return instructionSysteme;
+    }
+
+    /**
+     * Choisit la forme sous laquelle le rôle système est envoyé à partir de la prochaine requête
+     * (fragment déjà encodé, éventuellement partagé entre conversations).
+     */
+    public void utiliserEntete(byte[] fragment) {
+        this.entete = fragment;
+        this.tampon.setEntete(fragment);
+    }
+
+    /**
+     * Ajoute une question de l'utilisateur à la fin de l'historique.
+     */
+    public void ajouterQuestion(String question) {
+        ajouter(new Tour(ROLE_UTILISATEUR, List.of(question)));
+    }
+
+    /**
+     * Ajoute la réponse du modèle (textes de ses "parts") à la fin de l'historique.
+     */
+    public void ajouterReponse(List<String> textes) {
+        ajouter(new Tour(ROLE_MODELE, textes));
+    }
+
+    /**
+     * Retire la question restée sans réponse parce que la requête n'a pas été envoyée (service saturé) :
+     * l'utilisateur peut la renvoyer sans qu'elle figure deux fois dans l'historique.
+     * Le corps encodé est reconstruit (cas rare).
+     * @return vrai si le dernier tour était bien cette question, et a été retiré.
+     */
+    public boolean retirerQuestion(String question) {
+        if (tours.isEmpty()) return false;
+        Tour dernier = tours.get(tours.size() - 1);
+        if (!dernier.estUtilisateur() || !dernier.textes().equals(List.of(question))) return false;
+        tours.remove(tours.size() - 1);
+        octetsTours -= OCTETS_PAR_TOUR + 2L * question.length();
+        // La réduction du contexte a pu faire commencer la fenêtre à cette question
+        this.debutFenetre = Math.min(debutFenetre, tours.size());
+        deplacerFenetre(debutFenetre, null);
+        return true;
+    }
+
+    private void ajouter(Tour tour) {
+        garder(tour);
+        tampon.ajouterContenu(tour.role(), tour.textes());
+        tokensEnvoyes += tour.tokens();
+    }
+
+    private void garder(Tour tour) {
+        tours.add(tour);
+        octetsTours += OCTETS_PAR_TOUR;
+        for (String texte : tour.textes()) {
+            octetsTours += 2L * texte.length();
+        }
+    }
+
+    /**
+     * Fait sortir de la fenêtre les tours d'index inférieur à nouveauDebut et les remplace par un résumé.
+     * Le corps encodé est reconstruit une seule fois, à partir du résumé et des tours restants.
+     * @param nouveauDebut index du premier tour à garder (doit être supérieur ou égal au début actuel).
+     * @param nouveauResume résumé de tous les tours avant nouveauDebut, ou null pour simplement les oublier.
+     */
+    public void deplacerFenetre(int nouveauDebut, String nouveauResume) {
+        if (nouveauDebut < debutFenetre || nouveauDebut > tours.size()) {
+            throw new IllegalArgumentException("Début de fenêtre invalide : " + nouveauDebut);
+        }
+        this.debutFenetre = nouveauDebut;
+        if (nouveauResume != null) this.resume = nouveauResume;
+
+        TamponRequeteJson nouveauTampon = new TamponRequeteJson();
+        nouveauTampon.setEntete(entete);
+        int tokens = EstimateurTokens.estimer(instructionSysteme);
+        if (resume != null) {
+            nouveauTampon.ajouterContenu(ROLE_UTILISATEUR, List.of(PREFIXE_RESUME + resume));
+            nouveauTampon.ajouterContenu(ROLE_MODELE, List.of(ACCUSE_RESUME));
+            tokens += EstimateurTokens.estimer(PREFIXE_RESUME + resume) + EstimateurTokens.estimer(ACCUSE_RESUME);
+        }
+        for (Tour tour : getToursFenetre()) {
+            nouveauTampon.ajouterContenu(tour.role(), tour.textes());
+            tokens += tour.tokens();
+        }
+        this.tampon = nouveauTampon;
+        this.tokensEnvoyes = tokens;
+    }
+
+    /**
+     * @return tous les tours dans l'ordre de la conversation, y compris ceux résumés (liste non modifiable).
+     */
+    public List<Tour> getTours() {
+        return Collections.unmodifiableList(tours);
+    }
+
+    /**
+     * @return les tours effectivement envoyés au modèle (liste non modifiable).
+     */
+    public List<Tour> getToursFenetre() {
+        return Collections.unmodifiableList(tours.subList(debutFenetre, tours.size()));
+    }
+
+    public int getDebutFenetre() {
+        return debutFenetre;
+    }
+
+    public String getResume() {
+        return resume;
+    }
+
+    /**
+     * @return vrai si des tours anciens ne sont plus envoyés tels quels au modèle.
+     */
+    public boolean estCompacte() {
+        return debutFenetre > 0;
+    }
+
+    /**
+     * @return le nombre de tokens estimé du corps de la prochaine requête.
+     */
+    public int getTokensEnvoyes() {
+        return tokensEnvoyes;
+    }
+
+    public int nbTours() {
+        return tours.size();
+    }
+
+    public boolean estVide() {
+        return tours.isEmpty();
+    }
+
+    /**
+     * @return la place estimée de la conversation en mémoire (octets) : textes des tours et du résumé
+     * (2 octets par caractère) et tampon encodé (voir MagasinConversations).
+     */
+    public long tailleMemoire() {
+        return octetsTours + (resume == null ? 0 : 2L * resume.length()) + tampon.capacite();
+    }
+
+    /**
+     * @return le corps de la prochaine requête (résumé et fenêtre), déjà encodé.
+     */
+    public TamponRequeteJson.Corps corps() {
+        return tampon.corps();
+    }
+
+    /**
+     * Construit le JSON de la requête correspondant à l'historique envoyé (pour l'affichage seulement).
+     */
+    public JsonObject versJson() {
+        JsonObjectBuilder racine = Json.createObjectBuilder();
+        if (instructionSysteme != null) {
+            racine.add("systemInstruction", Json.createObjectBuilder().add("parts", parts(List.of(instructionSysteme))));
+        }
+        JsonArrayBuilder contents = Json.createArrayBuilder();
+        if (resume != null) {
+            contents.add(Json.createObjectBuilder()
+                    .add("role", ROLE_UTILISATEUR)
+                    .add("parts", parts(List.of(PREFIXE_RESUME + resume))));
+            contents.add(Json.createObjectBuilder()
+                    .add("role", ROLE_MODELE)
+                    .add("parts", parts(List.of(ACCUSE_RESUME))));
+        }
+        for (Tour tour : getToursFenetre()) {
+            contents.add(Json.createObjectBuilder()
+                    .add("role", tour.role())
+                    .add("parts", parts(tour.textes())));
+        }
+        return racine.add("contents", contents).build();
+    }
+
+    // --- Sérialisation compacte ---
+
+    /**
+     * Écrit : version, instruction système, nombre de tours, puis pour chaque tour son rôle (un octet)
+     * et ses textes, et enfin le début de la fenêtre et le résumé. Les textes sont en UTF-8 précédés
+     * de leur longueur (-1 pour null), sans la limite de 64 Ko de writeUTF.
+     * L'en-tête encodé n'est pas écrit : le rôle est renvoyé en ligne jusqu'au prochain choix de RegistreRoles.
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION_ENCODAGE);
+        ecrireTexte(out, instructionSysteme);
+        out.writeInt(tours.size());
+        for (Tour tour : tours) {
+            out.writeBoolean(tour.estUtilisateur());
+            out.writeInt(tour.textes().size());
+            for (String texte : tour.textes()) {
+                ecrireTexte(out, texte);
+            }
+        }
+        out.writeInt(debutFenetre);
+        ecrireTexte(out, resume);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION_ENCODAGE) {
+            throw new InvalidObjectException("Version d'encodage de l'historique inconnue : " + version);
+        }
+        setInstructionSysteme(lireTexte(in));
+        int nbTours = in.readInt();
+        for (int i = 0; i < nbTours; i++) {
+            String role = in.readBoolean() ? ROLE_UTILISATEUR : ROLE_MODELE;
+            int nbTextes = in.readInt();
+            List<String> textes = new ArrayList<>(nbTextes);
+            for (int j = 0; j < nbTextes; j++) {
+                textes.add(lireTexte(in));
+            }
+            garder(new Tour(role, textes));
+        }
+        int debut = in.readInt();
+        String resumeLu = lireTexte(in);
+        // Reconstruit le tampon encodé (et les tokens envoyés) une seule fois, pour toute la fenêtre
+        deplacerFenetre(debut, resumeLu);
+    }
+
+    private static void ecrireTexte(ObjectOutput out, String texte) throws IOException {
+        if (texte == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] octets = texte.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(octets.length);
+        out.write(octets);
+    }
+
+    private static String lireTexte(ObjectInput in) throws IOException {
+        int longueur = in.readInt();
+        if (longueur < 0) return null;
+        byte[] octets = new byte[longueur];
+        in.readFully(octets);
+        return new String(octets, StandardCharsets.UTF_8);
+    }
+
+    private static JsonArrayBuilder parts(List<String> textes) {
+        JsonArrayBuilder parts = Json.createArrayBuilder();
+        for (String texte : textes) {
+            parts.add(Json.createObjectBuilder().add("text", texte));
+        }
+        return parts;
+    }
+}
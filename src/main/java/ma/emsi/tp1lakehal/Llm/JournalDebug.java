@@ -0,0 +1,166 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonReader;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON des derniers échanges de chaque conversation d'une session, pour les panneaux de debug.
+ *
+ * Rien n'est formaté à l'enregistrement : le corps de la requête est gardé en octets compacts, la réponse
+ * telle que reçue. Le JSON formaté n'est calculé que lorsqu'un panneau est ouvert (DebugJsonServlet),
+ * puis gardé pour les ouvertures suivantes.
+ *
+ * Gardé dans la session HTTP (attribut ATTRIBUT_SESSION) plutôt que dans le backing bean, pour que le servlet
+ * y accède et que ces textes ne soient pas renvoyés à chaque rendu de la page.
+ * Limité aux gemini.debug.tours-max derniers tours (défaut 20) des MAX_CONVERSATIONS dernières conversations.
+ */
+public class JournalDebug implements Serializable {
+
+    public static final String ATTRIBUT_SESSION = JournalDebug.class.getName();
+
+    private static final int MAX_CONVERSATIONS = 5;
+    private static final int MAX_TOURS = ConfigurationLlm.entier("gemini.debug.tours-max", 20);
+
+    /**
+     * Un échange : requête envoyée et réponse reçue (ou message d'erreur).
+     */
+    private static final class Echange implements Serializable {
+        private final int numero;
+        private final byte[] requete;
+        private final String reponse;
+        private transient String requeteFormatee;
+        private transient String reponseFormatee;
+
+        private Echange(int numero, byte[] requete, String reponse) {
+            this.numero = numero;
+            this.requete = requete;
+            this.reponse = reponse;
+        }
+    }
+
+    /**
+     * Ce que la page affiche d'un échange avant qu'il soit ouvert (getters pour l'EL).
+     */
+    public static final class ResumeEchange implements Serializable {
+        private final int numero;
+        private final int tailleRequete;
+        private final int tailleReponse;
+
+        private ResumeEchange(Echange echange) {
+            this.numero = echange.numero;
+            this.tailleRequete = echange.requete == null ? 0 : echange.requete.length;
+            this.tailleReponse = echange.reponse == null ? 0 : echange.reponse.length();
+        }
+
+        public int getNumero() {
+            return numero;
+        }
+
+        public int getTailleRequete() {
+            return tailleRequete;
+        }
+
+        public int getTailleReponse() {
+            return tailleReponse;
+        }
+    }
+
+    /**
+     * Échanges gardés d'une conversation.
+     */
+    private static final class Conversation implements Serializable {
+        private final Deque<Echange> echanges = new ArrayDeque<>();
+        private int dernierNumero;
+    }
+
+    /** Conversations par identifiant, de la moins récemment utilisée à la plus récente. */
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Conversation> plusAncienne) {
+            return size() > MAX_CONVERSATIONS;
+        }
+    };
+
+    /**
+     * Enregistre un échange de la conversation.
+     * @param interaction l'échange, ou null si l'envoi a échoué (seule l'erreur est alors gardée).
+     * @param erreur message d'erreur à afficher à la place de la réponse, ou null.
+     */
+    public synchronized void enregistrer(String idConversation, LlmInteraction interaction, String erreur) {
+        TamponRequeteJson.Corps corps = interaction == null ? null : interaction.corpsRequete();
+        String reponse = erreur != null ? "Erreur : " + erreur : interaction.reponseJson();
+        Conversation conversation = conversations.computeIfAbsent(idConversation, id -> new Conversation());
+        conversation.echanges.addLast(new Echange(++conversation.dernierNumero, corps == null ? null : corps.versOctets(), reponse));
+        while (conversation.echanges.size() > MAX_TOURS) {
+            conversation.echanges.removeFirst();
+        }
+    }
+
+    /**
+     * Oublie les échanges d'une conversation (nouveau chat).
+     */
+    public synchronized void oublier(String idConversation) {
+        conversations.remove(idConversation);
+    }
+
+    /**
+     * @return les échanges gardés pour la conversation, du plus récent au plus ancien.
+     */
+    public synchronized List<ResumeEchange> resumes(String idConversation) {
+        Conversation conversation = conversations.get(idConversation);
+        List<ResumeEchange> resumes = new ArrayList<>();
+        if (conversation == null) return resumes;
+        conversation.echanges.descendingIterator().forEachRemaining(echange -> resumes.add(new ResumeEchange(echange)));
+        return resumes;
+    }
+
+    /**
+     * @param requete vrai pour le JSON de la requête, faux pour celui de la réponse.
+     * @return le JSON formaté (calculé au premier appel), ou null si l'échange n'est plus gardé.
+     */
+    public String formate(String idConversation, int numero, boolean requete) {
+        Echange echange;
+        synchronized (this) {
+            Conversation conversation = conversations.get(idConversation);
+            if (conversation == null) return null;
+            echange = conversation.echanges.stream().filter(e -> e.numero == numero).findFirst().orElse(null);
+        }
+        if (echange == null) return null;
+        // Le formatage se fait hors du verrou ; deux ouvertures simultanées le feraient au pire deux fois.
+        if (requete) {
+            if (echange.requeteFormatee == null) {
+                echange.requeteFormatee = echange.requete == null ? "" : formater(new String(echange.requete, StandardCharsets.UTF_8));
+            }
+            return echange.requeteFormatee;
+        }
+        if (echange.reponseFormatee == null) {
+            echange.reponseFormatee = echange.reponse == null ? "" : formater(echange.reponse);
+        }
+        return echange.reponseFormatee;
+    }
+
+    /**
+     * Formate un texte JSON ; un texte qui n'est pas un objet JSON complet (réponse tronquée,
+     * message d'erreur) est rendu tel quel.
+     */
+    private static String formater(String texte) {
+        if (!texte.startsWith("{")) return texte;
+        try (JsonReader lecteur = Json.createReader(new StringReader(texte))) {
+            return JsonUtilPourGemini.prettyPrinting(lecteur.readObject());
+        } catch (JsonException e) {
+            return texte;
+        }
+    }
+}
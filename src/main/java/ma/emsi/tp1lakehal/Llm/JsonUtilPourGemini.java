@@ -1,19 +1,37 @@
 package ma.emsi.tp1lakehal.Llm;
 
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.Dependent;
 import jakarta.inject.Inject;
 import jakarta.json.*;
 import jakarta.json.stream.JsonGenerator;
-import jakarta.ws.rs.client.Entity;
-import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.core.Response;
 import ma.emsi.tp1lakehal.Exception.RequeteException;
-
+import ma.emsi.tp1lakehal.Exception.ServiceSatureException;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Gère la construction, la modification et l'extraction du JSON pour
@@ -22,27 +40,192 @@ import java.util.Map;
 @Dependent
 public class JsonUtilPourGemini implements Serializable {
 
+    /** Taille maximale (octets) du corps d'une réponse d'erreur repris dans le message d'erreur. */
+    private static final int TAILLE_MAX_ERREUR = 8 * 1024;
+    /** Taille maximale (octets) du JSON brut de réponse conservé pour le mode debug. */
+    private static final int TAILLE_MAX_REPONSE_DEBUG = 256 * 1024;
+
+    private static final JsonWriterFactory PRETTY_WRITER_FACTORY =
+            Json.createWriterFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+
     private String systemRole;
+    /** Code du rôle (ASSISTANT, TRADUCTEUR, ...), qui peut avoir son propre budget de contexte. */
+    private String codeRole;
+
+    /**
+     * Identifiant de la conversation dans MagasinConversations, qui garde son historique (rôle système + tours,
+     * et corps encodé des requêtes). C'est l'unique copie de la conversation : l'affichage en est dérivé.
+     * Le bean ne garde pas l'historique lui-même, pour que le magasin puisse évincer les conversations délaissées.
+     */
+    private String idConversation = UUID.randomUUID().toString();
+
+    /** Historique relu lors de la désérialisation du bean, remis dans le magasin au premier accès. */
+    private transient HistoriqueConversation historiqueRestaure;
+
+    /** Conserver une copie du JSON brut des réponses (pour le mode debug) ? */
+    private boolean captureReponseJson;
+
+    /** Résumé des tours anciens en cours de calcul, et résumé prêt à être appliqué avant la prochaine requête. */
+    private transient CompletableFuture<?> resumeEnCours;
+    private transient volatile ResumePret resumePret;
+
+    /** Résumé obtenu, avec l'historique résumé : il ne s'applique qu'à cet historique. */
+    private record ResumePret(HistoriqueConversation historique, GestionnaireContexte.Resume resume) {
+    }
+
+    /** Dernier échange asynchrone de la conversation : le suivant ne démarre qu'après lui. */
+    private transient CompletableFuture<?> dernierEchange;
+
+    /** La requête préparée référence-t-elle le rôle système en cache chez Gemini (au lieu de l'envoyer en ligne) ? */
+    private transient boolean roleEnCache;
 
-    // Pointeur pour ajouter un nouvel élément (Content Object) à la fin du tableau "contents"
-    private final JsonPointer pointer = Json.createPointer(("/contents/-"));
+    /** Modèle auquel la conversation est attachée : celui qui a donné la dernière réponse (null au départ). */
+    private String modele;
 
-    /** Requête JSON en cours de conversation (historique inclus). */
-    private JsonObject requeteJson;
-    /** Texte de la dernière requête JSON envoyée, formatée pour l'affichage. */
-    private String texteRequeteJson;
+    /** Modèle choisi pour la requête préparée (voir RoutageModeles). */
+    private transient String modeleRequete;
+
+    /** File de l'ordonnanceur des appels : session de l'utilisateur, ou conversation à défaut. */
+    private String cleUtilisateur;
+    /** Appels faits en arrière-plan (traitement par lots) : ils attendent leur tour sans être refusés. */
+    private boolean arrierePlan;
 
     @Inject
     private LlmClient geminiClient;
 
+    @Inject
+    private GestionnaireContexte gestionnaireContexte;
+
+    @Inject
+    private CacheReponses cacheReponses;
+
+    @Inject
+    private RegistreRoles registreRoles;
+
+    @Inject
+    private MutualisationRequetes mutualisation;
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    @Inject
+    private RoutageModeles routage;
+
+    @Inject
+    private OrdonnanceurAppels ordonnanceur;
+
+    @Inject
+    private MetriquesLlm metriques;
+
+    @Inject
+    private MagasinConversations magasin;
+
     // --- Mutateurs ---
 
     public void setSystemRole(String systemRole) {
         this.systemRole = systemRole;
     }
 
-    public String getTexteRequeteJson() {
-        return texteRequeteJson;
+    public void setCodeRole(String codeRole) {
+        this.codeRole = codeRole;
+    }
+
+    /**
+     * Les appels d'un même utilisateur (session) partagent une file de l'ordonnanceur (voir OrdonnanceurAppels) ;
+     * sans clé, chaque conversation a sa file.
+     */
+    public void setCleUtilisateur(String cleUtilisateur) {
+        this.cleUtilisateur = cleUtilisateur;
+    }
+
+    /**
+     * Appels faits en arrière-plan, qui ne sont pas refusés quand le service est saturé mais attendent leur tour.
+     */
+    public void setArrierePlan(boolean arrierePlan) {
+        this.arrierePlan = arrierePlan;
+    }
+
+    /**
+     * Active ou non la copie du JSON brut des réponses (LlmInteraction.reponseJson() vaut null sinon).
+     * Désactivée par défaut : seul le mode debug de la page en a besoin.
+     */
+    public void setCaptureReponseJson(boolean captureReponseJson) {
+        this.captureReponseJson = captureReponseJson;
+    }
+
+    /**
+     * @return l'historique de la conversation (à ne lire que depuis le thread qui envoie les requêtes).
+     */
+    public HistoriqueConversation getHistorique() {
+        return historique();
+    }
+
+    /**
+     * @return l'identifiant de la conversation en cours ; il change à chaque nouveau chat ou reprise.
+     */
+    public String getIdConversation() {
+        return idConversation;
+    }
+
+    /**
+     * Oublie la conversation en cours (pour un nouveau chat).
+     */
+    public void nouvelleConversation() {
+        magasin.retirer(idConversation);
+        this.idConversation = UUID.randomUUID().toString();
+        this.historiqueRestaure = null;
+        this.modele = null;
+        oublierResume();
+    }
+
+    /**
+     * Remplace la conversation en cours par une conversation reprise (relue en base, par exemple).
+     * @param historique rôle système et tours déjà échangés ; la requête suivante les enverra au modèle.
+     */
+    public void reprendreConversation(String codeRole, HistoriqueConversation historique) {
+        nouvelleConversation();
+        this.codeRole = codeRole;
+        this.systemRole = historique.getInstructionSysteme();
+        magasin.ajouterSiAbsent(idConversation, historique);
+    }
+
+    /**
+     * @return l'historique de la conversation, pris dans le magasin ; une conversation évincée
+     * (ou pas encore commencée) repart d'un historique vide.
+     */
+    private HistoriqueConversation historique() {
+        HistoriqueConversation historique = magasin.obtenir(idConversation);
+        if (historique != null) return historique;
+        // Un résumé de la conversation évincée ne concerne pas celle qui repart de zéro
+        oublierResume();
+        HistoriqueConversation nouveau = historiqueRestaure != null ? historiqueRestaure : new HistoriqueConversation();
+        historiqueRestaure = null;
+        return magasin.ajouterSiAbsent(idConversation, nouveau);
+    }
+
+    /**
+     * Libère la conversation du magasin quand le bean est détruit (fin de la vue ou d'un traitement par lots).
+     * L'identifiant change aussi : une réponse en flux qui se termine après coup ne remet pas la conversation
+     * dans le magasin (voir envoyerRequeteFlux).
+     */
+    @PreDestroy
+    void liberer() {
+        nouvelleConversation();
+    }
+
+    /**
+     * L'historique n'est pas un champ du bean : il est écrit à sa suite, dans son encodage compact
+     * (HistoriqueConversation.writeExternal), pour la passivation ou la réplication de la session.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        HistoriqueConversation historique = magasin == null ? null : magasin.obtenir(idConversation);
+        out.writeObject(historique != null ? historique : historiqueRestaure);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.historiqueRestaure = (HistoriqueConversation) in.readObject();
     }
 
     // --- Logique Principale d'Envoi ---
@@ -52,54 +235,458 @@ public class JsonUtilPourGemini implements Serializable {
      * traite la réponse.
      * @param question question posée par l'utilisateur.
      * @return un objet LlmInteraction contenant les textes de requête/réponse et la réponse extraite.
-     * @throws RequeteException si la requête est rejetée par l'API (status != 200).
+     * @throws RequeteException si la requête est rejetée par l'API (status != 200), ou ServiceSatureException
+     * si le service est saturé (la question n'est alors pas gardée dans l'historique).
      * @throws IllegalArgumentException si la question est nulle ou vide.
      */
     public LlmInteraction envoyerRequete(String question) throws RequeteException {
-        // 1. Vérification de l'input
+        // 1. Refus immédiat si le service est saturé, avant de toucher à l'historique
+        ordonnanceur.verifierAdmission(demandeur());
+
+        // 2. Vérification de l'input et construction du corps de la requête
+        TamponRequeteJson.Corps requestBody = preparerRequete(question);
+
+        // 3. Une requête identique a peut-être déjà reçu une réponse
+        CacheReponses.Cle cle = cleCache();
+        LlmInteraction enCache = depuisCache(cle, requestBody);
+        if (enCache != null) return enCache;
+
+        // 4. Envoi de la requête (ou attente d'un appel identique déjà en cours) ;
+        // si le rôle en cache est refusé, renvoi avec le rôle en ligne
+        MutualisationRequetes.ReponseApi response;
+        try {
+            response = attendreReponse(appeler(requestBody));
+            if (cacheDuRoleRefuse(response)) {
+                requestBody = repliRoleEnLigne();
+                response = attendreReponse(appeler(requestBody));
+            }
+        } catch (ServiceSatureException e) {
+            historique().retirerQuestion(question);
+            throw e;
+        }
+        return traiterReponse(response, requestBody, cle);
+    }
+
+    /**
+     * Version non bloquante de envoyerRequete : le thread appelant (par exemple un thread du conteneur)
+     * n'attend pas l'aller-retour réseau.
+     * Les échanges d'une même conversation sont exécutés dans l'ordre d'appel : une question n'est ajoutée
+     * à l'historique qu'après la réponse à la question précédente, même si celle-ci a échoué.
+     * @param question question posée par l'utilisateur.
+     * Annuler l'étape retournée retire cet appelant de l'appel en cours (voir MutualisationRequetes).
+     * @return étape qui se termine avec l'interaction, ou en erreur avec une RequeteException
+     * (ou IllegalArgumentException si la question est vide).
+     */
+    public synchronized CompletionStage<LlmInteraction> envoyerRequeteAsync(String question) {
+        try {
+            ordonnanceur.verifierAdmission(demandeur());
+        } catch (ServiceSatureException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<?> precedent = dernierEchange == null
+                ? CompletableFuture.completedFuture(null)
+                : dernierEchange.exceptionally(e -> null);
+
+        AtomicReference<CompletableFuture<?>> appelEnCours = new AtomicReference<>();
+        CompletableFuture<LlmInteraction> echange = precedent.thenComposeAsync(ignore -> {
+            TamponRequeteJson.Corps requestBody = preparerRequete(question);
+            CacheReponses.Cle cle = cleCache();
+            LlmInteraction enCache = depuisCache(cle, requestBody);
+            if (enCache != null) return CompletableFuture.completedFuture(enCache);
+
+            CompletableFuture<MutualisationRequetes.ReponseApi> appel = appeler(requestBody);
+            appelEnCours.set(appel);
+            return appel.thenCompose(response -> {
+                if (!cacheDuRoleRefuse(response)) {
+                    return CompletableFuture.completedFuture(traiterReponseAsync(response, requestBody, cle));
+                }
+                TamponRequeteJson.Corps corpsEnLigne = repliRoleEnLigne();
+                CompletableFuture<MutualisationRequetes.ReponseApi> appelEnLigne = appeler(corpsEnLigne);
+                appelEnCours.set(appelEnLigne);
+                return appelEnLigne.thenApply(reponseEnLigne -> traiterReponseAsync(reponseEnLigne, corpsEnLigne, cle));
+            }).whenComplete((interaction, erreur) -> {
+                // Place refusée par l'ordonnanceur : la requête n'est pas partie
+                Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null ? erreur.getCause() : erreur;
+                if (cause instanceof ServiceSatureException) historique().retirerQuestion(question);
+            });
+        }, geminiClient.getExecuteur());
+
+        // L'annulation de l'échange est propagée à l'appel (partagé ou non) en cours
+        echange.whenComplete((interaction, erreur) -> {
+            CompletableFuture<?> appel = appelEnCours.get();
+            if (echange.isCancelled() && appel != null) appel.cancel(true);
+        });
+
+        this.dernierEchange = echange;
+        return echange;
+    }
+
+    /**
+     * Envoie le corps à l'API (par la mutualisation) et mesure l'appel pour /metrics.
+     */
+    private CompletableFuture<MutualisationRequetes.ReponseApi> appeler(TamponRequeteJson.Corps requestBody) {
+        long debut = System.nanoTime();
+        String role = codeRole;
+        int nbTours = historique().nbTours();
+        // Une requête qui référence le rôle en cache ne peut aller qu'au modèle principal, qui a créé ce cache
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel =
+                mutualisation.envoyer(requestBody, modeleRequete, !roleEnCache, demandeur());
+        appel.whenComplete((response, erreur) -> {
+            long duree = System.nanoTime() - debut;
+            if (response != null) {
+                // Le corps de la réponse peut être lu en flux : sa taille n'est connue qu'une fois la réponse fermée
+                response.aLaFermeture(() -> metriques.enregistrerAppel(role, duree, requestBody.taille(),
+                        response.status(), response.taille(), nbTours));
+            } else if (!appel.isCancelled()) {
+                metriques.enregistrerEchec(role, duree);
+            }
+        });
+        return appel;
+    }
+
+    private OrdonnanceurAppels.Demandeur demandeur() {
+        return new OrdonnanceurAppels.Demandeur(cleUtilisateur != null ? cleUtilisateur : idConversation, arrierePlan);
+    }
+
+    /**
+     * Attend la réponse d'un appel (partagé ou non) depuis le thread de la requête.
+     * Si ce thread est interrompu, il renonce à l'appel sans gêner les autres appelants.
+     */
+    private static MutualisationRequetes.ReponseApi attendreReponse(CompletableFuture<MutualisationRequetes.ReponseApi> appel)
+            throws RequeteException {
+        try {
+            return appel.get();
+        } catch (InterruptedException e) {
+            appel.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RequeteException("Requête à Gemini interrompue.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RequeteException erreur) throw erreur;
+            throw new RequeteException("Appel à l'API Gemini impossible : " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Lit la réponse de l'API et met à jour l'historique en cas de succès, puis la ferme.
+     * Le corps est analysé en flux par JsonParser ; il n'est chargé et converti en texte (dans la limite de
+     * TAILLE_MAX_REPONSE_DEBUG) que si la capture du JSON de réponse est activée.
+     * @param requestBody corps JSON envoyé, repris dans le message d'erreur.
+     * @param cle clé de la requête dans le cache des réponses, ou null si le cache n'est pas utilisé.
+     */
+    private LlmInteraction traiterReponse(MutualisationRequetes.ReponseApi response, TamponRequeteJson.Corps requestBody,
+                                          CacheReponses.Cle cle) throws RequeteException {
+        try (response) {
+            if (response.status() != 200) {
+                // Échec : L'API a retourné une erreur ; seul le début de son corps est repris
+                throw erreurApi(response.status(), response.raison(), requestBody, response.debut(TAILLE_MAX_ERREUR));
+            }
+            if (captureReponseJson) response.charger();
+
+            // Succès : Extrait la réponse et met à jour l'historique ; la conversation reste sur le modèle qui a répondu
+            ReponseGemini reponse = extractReponse(response);
+            this.modele = response.modele();
+            memoriserEnCache(cle, reponse);
+            String texteReponseJson = captureReponseJson ? response.debut(TAILLE_MAX_REPONSE_DEBUG) : null;
+            return new LlmInteraction(requestBody, texteReponseJson, reponse.texte(), reponse);
+        }
+    }
+
+    /**
+     * traiterReponse pour une étape asynchrone : la RequeteException est enveloppée dans une CompletionException.
+     */
+    private LlmInteraction traiterReponseAsync(MutualisationRequetes.ReponseApi response, TamponRequeteJson.Corps requestBody,
+                                               CacheReponses.Cle cle) {
+        try {
+            return traiterReponse(response, requestBody, cle);
+        } catch (RequeteException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Construit l'exception pour une réponse d'erreur de l'API (status != 200).
+     * La requête n'est pas relue ni reformatée : seul son début est repris dans le message.
+     */
+    private static RequeteException erreurApi(int status, String raison, TamponRequeteJson.Corps requestBody,
+                                              String debutReponse) {
+        String texteRequete = requestBody.toString();
+        if (texteRequete.length() > TAILLE_MAX_ERREUR) {
+            texteRequete = texteRequete.substring(0, TAILLE_MAX_ERREUR) + "\n[... requête de " + requestBody.taille() + " octets tronquée]";
+        }
+        return new RequeteException(
+                status + " : " + raison,
+                "Erreur API. Requête JSON envoyée:\n" + texteRequete + "\nRéponse JSON de l'API:\n" + debutReponse
+        );
+    }
+
+    /**
+     * Variante en flux de envoyerRequete : utilise l'endpoint streamGenerateContent (Server-Sent Events)
+     * et transmet chaque morceau de texte dès qu'il arrive, sans attendre la fin de la génération.
+     * La réponse complète du modèle est ajoutée à l'historique une fois le flux terminé.
+     * @param question question posée par l'utilisateur.
+     * @param surFragment reçoit chaque morceau de texte de la réponse, dans l'ordre d'arrivée.
+     * @return l'interaction complète (le JSON de réponse contient les événements reçus, un par ligne).
+     * @throws RequeteException si la requête est rejetée par l'API, si le flux est interrompu (interruption du thread
+     * comprise) ou si la conversation a été remplacée pendant la réponse (nouveau chat) : la réponse n'est alors
+     * pas ajoutée à la nouvelle conversation.
+     */
+    public LlmInteraction envoyerRequeteFlux(String question, Consumer<String> surFragment) throws RequeteException {
+        ordonnanceur.verifierAdmission(demandeur());
+        String id = idConversation;
+        TamponRequeteJson.Corps requestBody = preparerRequete(question);
+        CacheReponses.Cle cle = cleCache();
+        LlmInteraction enCache = depuisCache(cle, requestBody);
+        if (enCache != null) {
+            // La réponse est déjà complète : elle est transmise en un seul morceau
+            surFragment.accept(enCache.reponseExtraite());
+            return enCache;
+        }
+        long debut = System.nanoTime();
+        int nbTours = historique().nbTours();
+        AppelsResilients.ReponseFlux reponseApi;
+        try {
+            reponseApi = appelsResilients.envoyerFlux(requestBody, modeleRequete, !roleEnCache, demandeur());
+            if (cacheDuRoleRefuse(reponseApi)) {
+                requestBody = repliRoleEnLigne();
+                reponseApi = appelsResilients.envoyerFlux(requestBody, modeleRequete, !roleEnCache, demandeur());
+            }
+        } catch (RequeteException e) {
+            metriques.enregistrerEchec(codeRole, System.nanoTime() - debut);
+            if (e instanceof ServiceSatureException) historique().retirerQuestion(question);
+            throw e;
+        }
+        TamponRequeteJson.Corps corpsEnvoye = requestBody;
+        try (AppelsResilients.ReponseFlux reponseFlux = reponseApi) {
+            Response response = reponseFlux.reponse();
+            if (response.getStatus() != 200) {
+                metriques.enregistrerAppel(codeRole, System.nanoTime() - debut, corpsEnvoye.taille(), response.getStatus(), 0, nbTours);
+                throw erreurApi(response.getStatus(), response.getStatusInfo().getReasonPhrase(), corpsEnvoye,
+                        ExtracteurReponseGemini.lireDebut(response.readEntity(InputStream.class), TAILLE_MAX_ERREUR));
+            }
+
+            StringBuilder texteComplet = new StringBuilder();
+            StringBuilder evenements = new StringBuilder();
+            ReponseGemini dernierEvenement = null;
+            FluxCompte flux = new FluxCompte(response.readEntity(InputStream.class));
+            try (flux;
+                 BufferedReader lecteur = new BufferedReader(new InputStreamReader(flux, StandardCharsets.UTF_8))) {
+                String ligne;
+                while ((ligne = lecteur.readLine()) != null) {
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Thread du flux interrompu");
+                    // Seules les lignes "data: {...}" portent un morceau de réponse ; les autres séparent les événements.
+                    if (!ligne.startsWith("data:")) continue;
+                    String donnees = ligne.substring(5).trim();
+                    if (donnees.isEmpty()) continue;
+                    if (captureReponseJson && evenements.length() < TAILLE_MAX_REPONSE_DEBUG) {
+                        evenements.append(donnees).append('\n');
+                    }
+                    dernierEvenement = extraireEvenement(donnees);
+                    String fragment = dernierEvenement.texte();
+                    if (!fragment.isEmpty()) {
+                        texteComplet.append(fragment);
+                        surFragment.accept(fragment);
+                    }
+                }
+            } catch (IOException e) {
+                metriques.enregistrerEchec(codeRole, System.nanoTime() - debut);
+                throw new RequeteException("Flux de réponse de Gemini interrompu.", e);
+            }
+            metriques.enregistrerAppel(codeRole, System.nanoTime() - debut, corpsEnvoye.taille(), 200, flux.octetsLus, nbTours);
+
+            if (texteComplet.isEmpty()) {
+                throw new RequeteException("La réponse de l'API est vide. Contenu bloqué ou aucune réponse générée.",
+                        evenements.isEmpty() ? raisonsFin(dernierEvenement) : evenements.toString());
+            }
+
+            if (!id.equals(idConversation)) {
+                throw new RequeteException("Conversation remplacée pendant la réponse : la réponse est ignorée.");
+            }
+            // Ajoute la réponse complète du modèle à l'historique, comme pour une réponse non découpée
+            ajouterReponse(List.of(texteComplet.toString()));
+            this.modele = reponseApi.modele();
+            planifierResume();
+
+            // Le dernier événement porte finishReason et usageMetadata pour toute la réponse
+            ReponseGemini reponse = new ReponseGemini(List.of(texteComplet.toString()),
+                    dernierEvenement.finishReason(), dernierEvenement.blockReason(), dernierEvenement.promptTokenCount(),
+                    dernierEvenement.candidatesTokenCount(), dernierEvenement.totalTokenCount());
+            metriques.enregistrerTokens(codeRole, reponse);
+            memoriserEnCache(cle, reponse);
+            return new LlmInteraction(corpsEnvoye,
+                    captureReponseJson ? evenements.toString() : null, texteComplet.toString(), reponse);
+        }
+    }
+
+    /**
+     * Vérifie la question et l'ajoute à la requête JSON (création de la requête au premier message).
+     * @return le corps JSON à envoyer.
+     */
+    private TamponRequeteJson.Corps preparerRequete(String question) {
         if (question == null || question.trim().isEmpty()) {
             throw new IllegalArgumentException("La question de l'utilisateur ne peut pas être nulle ou vide.");
         }
 
-        String requestBody;
-        if (this.requeteJson == null) {
+        TamponRequeteJson.Corps requestBody;
+        if (historique().estVide()) {
             // Initialisation : Crée la requête avec le rôle système et la première question.
             requestBody = creerRequeteJson(this.systemRole, question);
         } else {
-            // Continuation : Ajoute la question à l'historique existant.
+            // Continuation : réduit si besoin le contexte, puis ajoute la question à l'historique existant.
+            reduireContexte(question);
             requestBody = ajouteQuestionDansJsonRequete(question);
         }
+        return choisirModele(requestBody);
+    }
 
-        // Met à jour la version formatée de la requête (pour l'affichage)
-        this.texteRequeteJson = prettyPrinting(requeteJson);
+    /**
+     * Choisit le modèle de la requête préparée (celui de la conversation s'il est disponible, voir RoutageModeles).
+     * Le rôle en cache n'est valable que pour le modèle principal : pour un autre modèle, il est remis en ligne.
+     * @return le corps à envoyer au modèle choisi.
+     */
+    private TamponRequeteJson.Corps choisirModele(TamponRequeteJson.Corps requestBody) {
+        this.modeleRequete = routage.choisir(modele, codeRole, requestBody.taille());
+        if (!roleEnCache || modeleRequete.equals(geminiClient.getModele())) return requestBody;
+        HistoriqueConversation historique = historique();
+        historique.utiliserEntete(registreRoles.enteteEnLigne(historique.getInstructionSysteme()));
+        this.roleEnCache = false;
+        return historique.corps();
+    }
 
-        // Entité JAX-RS à envoyer (le corps JSON)
-        Entity<String> entity = Entity.entity(requestBody, MediaType.APPLICATION_JSON_TYPE);
+    // --- Rôle système en cache chez Gemini ---
 
-        // 2. Envoi de la requête
-        try (Response response = geminiClient.envoyerRequete(entity)) {
+    /**
+     * Choisit la forme du rôle système pour la prochaine requête : référence au contenu en cache si le registre
+     * en a une valide, instruction en ligne sinon.
+     */
+    private void choisirEnteteRole() {
+        HistoriqueConversation historique = historique();
+        byte[] entete = registreRoles.entete(historique.getInstructionSysteme());
+        this.roleEnCache = registreRoles.estReferenceCache(historique.getInstructionSysteme(), entete);
+        historique.utiliserEntete(entete);
+    }
 
-            String texteReponseJson = response.readEntity(String.class);
+    /**
+     * Le contenu en cache référencé par la requête a pu expirer ou être supprimé côté Gemini :
+     * l'API répond alors 400, 403 ou 404. La réponse est fermée si c'est le cas.
+     */
+    private boolean cacheDuRoleRefuse(int status) {
+        return roleEnCache && (status == 400 || status == 403 || status == 404);
+    }
+
+    private boolean cacheDuRoleRefuse(MutualisationRequetes.ReponseApi response) {
+        if (!cacheDuRoleRefuse(response.status())) return false;
+        response.close();
+        return true;
+    }
+
+    /**
+     * Variante pour une réponse en flux, qui est fermée si elle doit être renvoyée.
+     */
+    private boolean cacheDuRoleRefuse(AppelsResilients.ReponseFlux response) {
+        if (!cacheDuRoleRefuse(response.reponse().getStatus())) return false;
+        response.close();
+        return true;
+    }
+
+    /**
+     * Oublie le cache refusé et repasse la conversation au rôle en ligne.
+     * @return le corps de la même requête, avec l'instruction système en ligne.
+     */
+    private TamponRequeteJson.Corps repliRoleEnLigne() {
+        HistoriqueConversation historique = historique();
+        registreRoles.invalider(historique.getInstructionSysteme());
+        historique.utiliserEntete(registreRoles.enteteEnLigne(historique.getInstructionSysteme()));
+        this.roleEnCache = false;
+        return historique.corps();
+    }
 
-            if (response.getStatus() == 200) {
-                // Succès : Extrait la réponse et met à jour l'historique
-                String reponseExtraite = extractReponse(texteReponseJson);
-                return new LlmInteraction(this.texteRequeteJson, texteReponseJson, reponseExtraite);
-            } else {
-                // Échec : L'API a retourné une erreur
-                JsonObject objet = Json.createReader(new StringReader(requestBody)).readObject();
-                throw new RequeteException(
-                        response.getStatus() + " : " + response.getStatusInfo(),
-                        "Erreur API. Requête JSON envoyée:\n" + prettyPrinting(objet) + "\nRéponse JSON de l'API:\n" + texteReponseJson
-                );
+    // --- Cache des réponses ---
+
+    /**
+     * @return la clé de la requête qui vient d'être préparée, ou null si le cache est désactivé.
+     */
+    private CacheReponses.Cle cleCache() {
+        return cacheReponses.isActif() ? cacheReponses.cle(modeleRequete, historique()) : null;
+    }
+
+    /**
+     * Si le cache contient la réponse à cette requête, l'ajoute à l'historique comme une réponse du modèle.
+     * @return l'interaction servie par le cache, ou null s'il faut appeler l'API.
+     */
+    private LlmInteraction depuisCache(CacheReponses.Cle cle, TamponRequeteJson.Corps requestBody) {
+        if (cle == null) return null;
+        List<String> textes = cacheReponses.chercher(cle);
+        if (textes == null) return null;
+
+        ajouterReponse(textes);
+        planifierResume();
+        ReponseGemini reponse = new ReponseGemini(textes, "STOP", null, 0, 0, 0);
+        return new LlmInteraction(requestBody,
+                captureReponseJson ? "(réponse servie par le cache, sans appel à l'API)" : null, reponse.texte(), reponse);
+    }
+
+    /**
+     * Seules les réponses complètes (finishReason STOP) du modèle de la clé sont mises en cache
+     * (pas celles d'un modèle de repli).
+     */
+    private void memoriserEnCache(CacheReponses.Cle cle, ReponseGemini reponse) {
+        if (cle != null && modeleRequete.equals(modele)
+                && (reponse.finishReason() == null || "STOP".equals(reponse.finishReason()))) {
+            cacheReponses.memoriser(cle, reponse.textes());
+        }
+    }
+
+    // --- Taille du contexte ---
+
+    /**
+     * Avant d'ajouter une question : remplace les tours anciens par le résumé calculé en arrière-plan
+     * s'il est prêt, puis tronque la fenêtre si la requête dépasserait encore le budget de tokens.
+     */
+    private void reduireContexte(String question) {
+        HistoriqueConversation historique = historique();
+        ResumePret pret = this.resumePret;
+        if (pret != null) {
+            this.resumePret = null;
+            GestionnaireContexte.Resume resume = pret.resume();
+            // Si la fenêtre a été tronquée entre-temps, le résumé remplace quand même l'ancien résumé.
+            // Un résumé d'une conversation évincée (autre historique, ou plus de tours qu'il n'y en a) est ignoré.
+            if (pret.historique() == historique && resume.fin() <= historique.nbTours()) {
+                historique.deplacerFenetre(Math.max(resume.fin(), historique.getDebutFenetre()), resume.texte());
             }
         }
+        gestionnaireContexte.tronquerSiNecessaire(historique, codeRole, EstimateurTokens.estimer(question));
+    }
+
+    /**
+     * Après une réponse : lance si nécessaire le résumé des tours anciens, sans attendre son résultat.
+     */
+    private void planifierResume() {
+        if (resumeEnCours != null && !resumeEnCours.isDone()) return;
+        HistoriqueConversation concerne = historique();
+        CompletableFuture<GestionnaireContexte.Resume> demande = gestionnaireContexte.planifierResume(concerne, codeRole, demandeur());
+        if (demande == null) return;
+        String id = idConversation;
+        // En cas d'échec du résumé, la fenêtre glissante suffit à rester dans le budget : l'erreur est ignorée.
+        // Annuler la demande (oublierResume) empêche le résumé d'être gardé.
+        resumeEnCours = demande;
+        demande.thenAccept(resume -> {
+            if (id.equals(idConversation)) this.resumePret = new ResumePret(concerne, resume);
+        }).exceptionally(e -> null);
+    }
+
+    /**
+     * Oublie le résumé prêt ou en cours de calcul (nouveau chat, conversation évincée du magasin).
+     */
+    private void oublierResume() {
+        this.resumePret = null;
+        if (resumeEnCours != null) resumeEnCours.cancel(true);
+        this.resumeEnCours = null;
     }
 
     // --- Construction JSON ---
 
     /**
-     * Crée la structure JSON initiale pour la première requête (inclut l'instruction système).
+     * Démarre l'historique pour la première requête (inclut l'instruction système).
      * Structure correcte pour Gemini API:
      * {
      * "systemInstruction": {
@@ -108,110 +695,118 @@ public class JsonUtilPourGemini implements Serializable {
      * "contents": [...]
      * }
      */
-    private String creerRequeteJson(String systemRole, String question) {
-        JsonObjectBuilder rootBuilder = Json.createObjectBuilder();
+    private TamponRequeteJson.Corps creerRequeteJson(String systemRole, String question) {
+        // L'instruction système n'est ajoutée que si elle existe (structure CORRECTE pour Gemini)
+        HistoriqueConversation historique = historique();
+        historique.setInstructionSysteme(systemRole);
+        choisirEnteteRole();
+        // Premier message dans "contents", avec le rôle "user"
+        historique.ajouterQuestion(question);
+        return historique.corps();
+    }
 
-        // Ajout de l'instruction système si elle existe (structure CORRECTE pour Gemini)
-        if (systemRole != null && !systemRole.trim().isEmpty()) {
-            JsonObject systemInstructionPart = Json.createObjectBuilder()
-                    .add("text", systemRole)
-                    .build();
+    /**
+     * Ajoute le nouveau message de l'utilisateur à la conversation existante.
+     * Seul ce message est encodé ; il est ajouté à la suite de l'historique déjà encodé.
+     */
+    private TamponRequeteJson.Corps ajouteQuestionDansJsonRequete(String nouvelleQuestion) {
+        // Le cache du rôle a pu être créé ou renouvelé depuis la requête précédente
+        choisirEnteteRole();
+        HistoriqueConversation historique = historique();
+        historique.ajouterQuestion(nouvelleQuestion);
+        return historique.corps();
+    }
 
-            JsonObject systemInstruction = Json.createObjectBuilder()
-                    .add("parts", Json.createArrayBuilder()
-                            .add(systemInstructionPart)
-                            .build())
-                    .build();
+    // --- Extraction et Formatage ---
 
-            rootBuilder.add("systemInstruction", systemInstruction);
+    /**
+     * Extrait la réponse du modèle (tous les textes de candidates[0].content.parts, finishReason
+     * et usageMetadata) et ajoute la réponse (role: model) à l'historique.
+     */
+    private ReponseGemini extractReponse(MutualisationRequetes.ReponseApi response) throws RequeteException {
+        ReponseGemini reponse;
+        try {
+            reponse = ExtracteurReponseGemini.extraire(response.flux());
+        } catch (JsonException e) {
+            throw new RequeteException("Erreur lors de l'extraction de la réponse JSON de Gemini.",
+                    captureReponseJson ? response.debut(TAILLE_MAX_REPONSE_DEBUG) : e.getMessage());
+        } catch (ProcessingException e) {
+            // Le corps est lu en flux depuis la connexion, qui peut être coupée pendant la lecture
+            throw new RequeteException("Lecture de la réponse de Gemini impossible : " + e.getMessage(), e);
         }
 
-        // Crée le 'Part Object' pour la question utilisateur
-        JsonObject userPart = Json.createObjectBuilder()
-                .add("text", question)
-                .build();
-
-        // Crée le 'Content Object' (rôle + parts)
-        JsonObject userContent = Json.createObjectBuilder()
-                .add("role", "user") // CORRECTION : Rétablir le rôle "user" pour le premier message dans "contents"
-                .add("parts", Json.createArrayBuilder()
-                        .add(userPart)
-                        .build())
-                .build();
-
-        // Ajoute le tableau 'contents' contenant le premier message utilisateur
-        JsonObject rootJson = rootBuilder.add("contents", Json.createArrayBuilder()
-                        .add(userContent)
-                        .build())
-                .build();
+        // Vérifie l'existence d'un texte dans la réponse
+        if (reponse.estVide()) {
+            throw new RequeteException("La réponse de l'API est vide. Contenu bloqué ou aucune réponse générée.",
+                    captureReponseJson ? response.debut(TAILLE_MAX_REPONSE_DEBUG) : raisonsFin(reponse));
+        }
 
-        this.requeteJson = rootJson;
-        return rootJson.toString();
+        metriques.enregistrerTokens(codeRole, reponse);
+        // Ajoute les textes de la réponse du modèle à l'historique (donc à la prochaine requête)
+        ajouterReponse(reponse.textes());
+        planifierResume();
+        return reponse;
     }
 
     /**
-     * Ajoute le nouveau message de l'utilisateur à la conversation JSON existante.
+     * Ajoute la réponse du modèle à l'historique. Si la conversation a été évincée du magasin pendant l'échange,
+     * sa question n'y est plus : la réponse n'est pas ajoutée, l'historique ne commence pas par un tour du modèle.
      */
-    private String ajouteQuestionDansJsonRequete(String nouvelleQuestion) {
-        // 1. Crée le 'Part Object' : {"text": "nouvelleQuestion"}
-        JsonObject newPartObject = Json.createObjectBuilder()
-                .add("text", nouvelleQuestion)
-                .build();
-
-        // 2. Crée le 'Content Object' : {"role": "user", "parts": [Part Object]}
-        JsonObject newContentObject = Json.createObjectBuilder()
-                .add("role", "user")
-                .add("parts", Json.createArrayBuilder()
-                        .add(newPartObject)
-                        .build())
-                .build();
-
-        // 3. Ajoute ce nouveau Content Object à la fin du tableau 'contents'
-        this.requeteJson = this.pointer.add(this.requeteJson, newContentObject);
-
-        return this.requeteJson.toString();
+    private void ajouterReponse(List<String> textes) {
+        HistoriqueConversation historique = historique();
+        if (!historique.estVide()) historique.ajouterReponse(textes);
     }
 
-    // --- Extraction et Formatage ---
-
     /**
-     * Extrait la réponse du modèle et ajoute la réponse (role: model) à l'historique.
+     * Analyse un événement de la réponse en flux (même structure qu'une réponse complète).
+     * Un événement sans texte (par exemple le dernier, qui ne porte que finishReason) a des textes vides.
      */
-    private String extractReponse(String json) throws RequeteException {
-        try (JsonReader jsonReader = Json.createReader(new StringReader(json))) {
-            JsonObject jsonObject = jsonReader.readObject();
+    private ReponseGemini extraireEvenement(String donnees) throws RequeteException {
+        try {
+            return ExtracteurReponseGemini.extraire(new StringReader(donnees));
+        } catch (JsonException e) {
+            throw new RequeteException("Erreur lors de l'extraction d'un morceau de la réponse en flux de Gemini.", donnees);
+        }
+    }
 
-            // Vérifie l'existence des candidats
-            if (!jsonObject.containsKey("candidates") || jsonObject.getJsonArray("candidates").isEmpty()) {
-                throw new RequeteException("La réponse de l'API est vide. Contenu bloqué ou aucune réponse générée.", json);
-            }
+    /**
+     * Flux de la réponse qui compte les octets lus, avant leur décodage en texte.
+     */
+    private static final class FluxCompte extends FilterInputStream {
+        private long octetsLus;
 
-            // Récupère l'objet 'content' de la réponse du modèle
-            JsonObject modelContent = jsonObject
-                    .getJsonArray("candidates")
-                    .getJsonObject(0)
-                    .getJsonObject("content");
+        FluxCompte(InputStream flux) {
+            super(flux);
+        }
 
-            // Ajoute l'objet JSON de la réponse du modèle au JSON de la prochaine requête
-            this.requeteJson = this.pointer.add(this.requeteJson, modelContent);
+        @Override
+        public int read() throws IOException {
+            int octet = super.read();
+            if (octet >= 0) octetsLus++;
+            return octet;
+        }
 
-            // Extrait seulement le texte de la réponse
-            return modelContent.getJsonArray("parts").getJsonObject(0).getString("text");
-        } catch (JsonException | IndexOutOfBoundsException e) {
-            throw new RequeteException("Erreur lors de l'extraction de la réponse JSON de Gemini.", json);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) octetsLus += n;
+            return n;
         }
     }
 
+    private static String raisonsFin(ReponseGemini reponse) {
+        if (reponse == null) return "Aucun événement reçu.";
+        return "finishReason=" + reponse.finishReason() + ", blockReason=" + reponse.blockReason();
+    }
+
     /**
      * Retourne le texte formaté du document JSON pour un affichage plus agréable (pretty printing).
+     * La fabrique de JsonWriter (coûteuse à créer) est partagée par tous les appels.
      */
-    private String prettyPrinting(JsonObject jsonObject) {
+    static String prettyPrinting(JsonObject jsonObject) {
         if (jsonObject == null) return "{}";
-        Map<String, Boolean> config = new HashMap<>();
-        config.put(JsonGenerator.PRETTY_PRINTING, true);
-        JsonWriterFactory writerFactory = Json.createWriterFactory(config);
         StringWriter stringWriter = new StringWriter();
-        try (JsonWriter jsonWriter = writerFactory.createWriter(stringWriter)) {
+        try (JsonWriter jsonWriter = PRETTY_WRITER_FACTORY.createWriter(stringWriter)) {
             jsonWriter.write(jsonObject);
         }
         return stringWriter.toString();
@@ -1,35 +1,93 @@
 package ma.emsi.tp1lakehal.Llm;
 
-import jakarta.enterprise.context.Dependent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.client.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.Variant;
+import ma.emsi.tp1lakehal.commun.CompressionGzip;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
 
-import java.io.Serializable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Gère l'interface avec l'API de Gemini (Modèle gemini-pro:generateContent).
  * Utilise la variable d'environnement 'GEMINI' pour l'authentification.
  *
- * De portée dependent pour réinitialiser la conversation à chaque utilisation.
+ * De portée application : un seul client REST (et donc un seul pool de connexions keep-alive
+ * vers generativelanguage.googleapis.com) est partagé par toutes les conversations.
+ * Le client ne contient aucun état de conversation ; l'historique reste dans JsonUtilPourGemini.
+ *
+ * Paramètres (propriétés système ou variables d'environnement, voir ConfigurationLlm) :
+ * <ul>
+ *     <li>gemini.url-base : URL de base de l'API (défaut https://generativelanguage.googleapis.com/v1beta) ;</li>
+ *     <li>gemini.modele : modèle principal (défaut gemini-2.5-flash). D'autres modèles peuvent être appelés
+ *     (voir RoutageModeles) : chacun a ses propres endpoints, créés au premier appel ;</li>
+ *     <li>gemini.timeout.connexion et gemini.timeout.lecture : délais maximum (ms) d'établissement de la connexion
+ *     (défaut 5000) et d'attente de données sur la connexion (défaut 60000), pour ne pas rester bloqué sur un socket
+ *     qui ne répond plus ;</li>
+ *     <li>gemini.pool.max : nombre maximum de connexions gardées ouvertes par hôte (défaut 20) ;</li>
+ *     <li>gemini.pool.inactivite : durée en secondes après laquelle une connexion inutilisée est fermée (défaut 60).
+ *     Ces deux paramètres sont passés au client REST : seul le connecteur JDK de Jersey
+ *     (org.glassfish.jersey.jdk.connector.JdkConnectorProvider) a un pool propre au client qui les applique.
+ *     Les connecteurs bâtis sur le JDK (HttpURLConnection par défaut, java.net.http pour HTTP/2) partagent un pool
+ *     pour toute la JVM, lu une seule fois au premier usage : il se règle dans les options JVM du serveur,
+ *     par exemple -Dhttp.maxConnections=20 -Dhttp.keepAlive.time.server=60 (HTTP/1.1) ou
+ *     -Djdk.httpclient.connectionPoolSize=20 -Djdk.httpclient.keepalive.timeout=60 (java.net.http) ;</li>
+ *     <li>gemini.http.connecteur : classe du ConnectorProvider Jersey à utiliser, par exemple
+ *     org.glassfish.jersey.jnh.connector.JavaNetHttpConnectorProvider pour HTTP/2 (multiplexage)
+ *     lorsque le serveur d'applications le fournit. Par défaut, le connecteur du runtime (HTTP/1.1 keep-alive).</li>
+ *     <li>gemini.compression.reponse : demander des réponses compressées en gzip (défaut true, voir DecompressionReponses) ;</li>
+ *     <li>gemini.compression.requete : compresser en gzip (Content-Encoding) les corps de requêtes d'au moins
+ *     gemini.compression.seuil octets (défaut 4096). Désactivé par défaut : à activer une fois vérifié que le point
+ *     d'accès utilisé accepte les requêtes compressées (il répond 400 sinon).</li>
+ * </ul>
  */
-@Dependent
-public class LlmClient implements Serializable {
+@ApplicationScoped
+public class LlmClient {
     // Nom de la variable d'environnement CONFIRMÉ : "GEMINii"
     private static final String API_KEY_ENV_VAR = "GEMINI";
 
-    // URL de l'API Gemini pour la génération de contenu (le modèle 'gemini-pro')
-    private static final String GEMINI_PRO_URL =
-            "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash:generateContent";
+    // URL de base de l'API Gemini et modèle utilisés par défaut pour la génération de contenu
+    private static final String GEMINI_URL_BASE = "https://generativelanguage.googleapis.com/v1beta";
+    private static final String GEMINI_MODELE = "gemini-2.5-flash";
+
+    // Propriété Jersey (2.40+ / 3.1+) pour choisir le connecteur HTTP par son nom de classe
+    private static final String PROPRIETE_CONNECTEUR_JERSEY = "jersey.config.client.connector.provider";
+    // Propriétés du pool de connexions du connecteur JDK de Jersey (JdkConnectorProperties), ignorées par les autres
+    private static final String PROPRIETE_POOL_MAX_JERSEY = "jersey.config.client.JdkConnectorProvider.maxConnectionsPerDestination";
+    private static final String PROPRIETE_POOL_INACTIVITE_JERSEY = "jersey.config.client.JdkConnectorProvider.connectionIdleTimeout";
 
     // Clé pour l'API du LLM
-    private final String key;
-    // Client REST JAX-RS
+    private String key;
+    // Client REST JAX-RS, partagé par toute l'application
     private Client clientRest;
-    // Représente le endpoint REST configuré (URL + clé)
-    private final WebTarget target;
+    // URL de base de l'API (sans le modèle)
+    private String urlBase;
+    // Endpoints REST par modèle (URL + clé) : generateContent, et streamGenerateContent en flux (alt=sse)
+    private final Map<String, WebTarget> targets = new ConcurrentHashMap<>();
+    private final Map<String, WebTarget> targetsFlux = new ConcurrentHashMap<>();
+    // Endpoint REST des contenus mis en cache (cachedContents)
+    private WebTarget targetCache;
+    // Modèle principal (ex: gemini-2.5-flash)
+    private String modele;
+    // Compression des corps de requêtes (l'historique complet est renvoyé à chaque tour)
+    private final boolean compresserRequetes = ConfigurationLlm.booleen("gemini.compression.requete", false);
+    private final int seuilCompression = ConfigurationLlm.entier("gemini.compression.seuil", 4096);
+    // Threads virtuels pour les appels asynchrones : attendre le réseau ne coûte presque rien
+    private ExecutorService executeur;
 
-    public LlmClient() {
+    @PostConstruct
+    void init() {
         // 1. Récupère la clé secrète en utilisant le nom de variable confirmé : "GEMINI"
         this.key = System.getenv(API_KEY_ENV_VAR);
 
@@ -37,30 +95,166 @@ public class LlmClient implements Serializable {
             throw new IllegalStateException("La variable d'environnement '" + API_KEY_ENV_VAR + "' (clé API) n'est pas définie ou est vide.");
         }
 
-        // 2. Client REST pour envoyer des requêtes
-        this.clientRest = ClientBuilder.newClient();
+        // 2. Client REST unique pour envoyer les requêtes ; les appels rx() s'exécutent sur des threads virtuels.
+        // Le pool de connexions keep-alive est réglé sur ce client (connecteur JDK de Jersey), sans toucher à la JVM.
+        this.executeur = Executors.newVirtualThreadPerTaskExecutor();
+        ClientBuilder builder = ClientBuilder.newBuilder()
+                .executorService(executeur)
+                .connectTimeout(ConfigurationLlm.entierLong("gemini.timeout.connexion", 5000), TimeUnit.MILLISECONDS)
+                .readTimeout(ConfigurationLlm.entierLong("gemini.timeout.lecture", 60000), TimeUnit.MILLISECONDS)
+                .property(PROPRIETE_POOL_MAX_JERSEY, ConfigurationLlm.entier("gemini.pool.max", 20))
+                .property(PROPRIETE_POOL_INACTIVITE_JERSEY,
+                        (int) TimeUnit.SECONDS.toMillis(ConfigurationLlm.entier("gemini.pool.inactivite", 60)));
+        String connecteur = ConfigurationLlm.texte("gemini.http.connecteur", null);
+        if (connecteur != null) {
+            builder.property(PROPRIETE_CONNECTEUR_JERSEY, connecteur);
+        }
+        if (ConfigurationLlm.booleen("gemini.compression.reponse", true)) {
+            builder.register(new DecompressionReponses());
+        }
+        this.clientRest = builder.build();
 
-        // 3. Endpoint REST : ajoute la clé API comme paramètre de requête.
-        this.target = clientRest.target(GEMINI_PRO_URL)
+        // 3. Endpoints REST : ajoute la clé API comme paramètre de requête.
+        this.urlBase = ConfigurationLlm.texte("gemini.url-base", GEMINI_URL_BASE);
+        this.modele = ConfigurationLlm.texte("gemini.modele", GEMINI_MODELE);
+        this.targetCache = clientRest.target(urlBase + "/cachedContents")
                 .queryParam("key", this.key);
     }
 
+    /**
+     * @return l'endpoint generateContent du modèle (créé au premier appel, puis réutilisé).
+     */
+    private WebTarget target(String nomModele) {
+        return targets.computeIfAbsent(nomModele, m -> clientRest.target(urlBase + "/models/" + m + ":generateContent")
+                .queryParam("key", this.key));
+    }
+
+    private WebTarget targetFlux(String nomModele) {
+        return targetsFlux.computeIfAbsent(nomModele, m -> clientRest.target(urlBase + "/models/" + m + ":streamGenerateContent")
+                .queryParam("alt", "sse")
+                .queryParam("key", this.key));
+    }
+
     /**
      * Envoie une requête POST à l'API de Gemini pour générer du contenu.
      * @param requestEntity le corps de la requête (en JSON).
      * @return réponse REST de l'API (corps en JSON).
      */
     public Response envoyerRequete(Entity requestEntity) {
-        Invocation.Builder request = target.request(MediaType.APPLICATION_JSON_TYPE);
-        return request.post(requestEntity);
+        Invocation.Builder request = target(modele).request(MediaType.APPLICATION_JSON_TYPE);
+        return request.post(compresser(requestEntity));
     }
 
     /**
-     * Ferme le client REST pour libérer les ressources.
+     * Version non bloquante de envoyerRequete (invocateur rx() de JAX-RS).
+     * Le thread appelant est libéré immédiatement ; la réponse est fournie sur un thread virtuel.
+     * @param requestEntity le corps de la requête (en JSON).
+     * @return étape qui se termine avec la réponse REST de l'API (à fermer par l'appelant).
      */
+    public CompletionStage<Response> envoyerRequeteAsync(Entity requestEntity) {
+        return envoyerRequeteAsync(modele, requestEntity);
+    }
+
+    /**
+     * envoyerRequeteAsync vers un modèle donné (choisi par RoutageModeles).
+     * @param nomModele nom du modèle (ex: gemini-2.5-flash-lite).
+     */
+    public CompletionStage<Response> envoyerRequeteAsync(String nomModele, Entity requestEntity) {
+        return target(nomModele).request(MediaType.APPLICATION_JSON_TYPE).rx().post(compresser(requestEntity));
+    }
+
+    /**
+     * Crée un contenu en cache chez Gemini (POST cachedContents), par exemple une instruction système longue.
+     * @param requestEntity le corps JSON (model, systemInstruction, ttl).
+     * @return étape qui se termine avec la réponse REST (à fermer par l'appelant).
+     */
+    public CompletionStage<Response> creerContenuEnCache(Entity requestEntity) {
+        return targetCache.request(MediaType.APPLICATION_JSON_TYPE).rx().post(requestEntity);
+    }
+
+    /**
+     * Demande la description d'un modèle (GET models/{modele}), un appel qui ne consomme pas de tokens :
+     * utilisé au démarrage pour ouvrir les connexions vers l'API à l'avance (voir Prechauffage).
+     * @return étape qui se termine avec la réponse REST (à fermer par l'appelant).
+     */
+    public CompletionStage<Response> decrireModele(String nomModele) {
+        return clientRest.target(urlBase + "/models/" + nomModele)
+                .queryParam("key", this.key)
+                .request(MediaType.APPLICATION_JSON_TYPE).rx().get();
+    }
+
+    /**
+     * @return le nom du modèle principal (ex: gemini-2.5-flash).
+     */
+    public String getModele() {
+        return modele;
+    }
+
+    /**
+     * @return l'exécuteur (threads virtuels) utilisé pour les traitements asynchrones liés au LLM.
+     */
+    public ExecutorService getExecuteur() {
+        return executeur;
+    }
+
+    /**
+     * Envoie une requête POST à l'endpoint streamGenerateContent de Gemini.
+     * Le corps de la réponse est un flux Server-Sent Events : l'appelant doit le lire
+     * au fur et à mesure avec readEntity(InputStream.class) puis fermer la réponse.
+     * @param requestEntity le corps de la requête (en JSON), identique à celui de envoyerRequete.
+     * @return réponse REST de l'API dont le corps n'a pas encore été lu.
+     */
+    public Response envoyerRequeteFlux(Entity requestEntity) {
+        return envoyerRequeteFlux(modele, requestEntity);
+    }
+
+    /**
+     * envoyerRequeteFlux vers un modèle donné (choisi par RoutageModeles).
+     * @param nomModele nom du modèle (ex: gemini-2.5-flash-lite).
+     */
+    public Response envoyerRequeteFlux(String nomModele, Entity requestEntity) {
+        Invocation.Builder request = targetFlux(nomModele).request(MediaType.SERVER_SENT_EVENTS_TYPE);
+        return request.post(compresser(requestEntity));
+    }
+
+    /**
+     * Si la compression des requêtes est activée et le corps assez gros, remplace l'entité par son corps compressé
+     * en gzip au moment de l'écriture (sans copie intermédiaire), avec Content-Encoding: gzip.
+     */
+    private Entity<?> compresser(Entity<?> entite) {
+        if (!compresserRequetes) return entite;
+        Object corps = entite.getEntity();
+        int taille;
+        if (corps instanceof byte[] octets) {
+            taille = octets.length;
+        } else if (corps instanceof TamponRequeteJson.Corps corpsJson) {
+            taille = corpsJson.taille();
+        } else {
+            return entite;
+        }
+        if (taille < seuilCompression) return entite;
+        StreamingOutput compresse = sortie -> {
+            CompressionGzip.Sortie gzip = new CompressionGzip.Sortie(sortie);
+            if (corps instanceof byte[] octets) {
+                gzip.write(octets);
+            } else {
+                ((TamponRequeteJson.Corps) corps).write(gzip);
+            }
+            gzip.finish();
+        };
+        return Entity.entity(compresse, new Variant(entite.getMediaType(), (Locale) null, "gzip"));
+    }
+
+    /**
+     * Ferme le client REST pour libérer les ressources (appelé par CDI à l'arrêt de l'application).
+     */
+    @PreDestroy
     public void closeClient() {
         if (this.clientRest != null) {
             this.clientRest.close();
         }
+        if (this.executeur != null) {
+            this.executeur.shutdown();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,13 +1,17 @@
 package ma.emsi.tp1lakehal.Llm;
 
+import java.util.function.Supplier;
+
 /**
  * Représente une interaction complète avec l'API LLM (Large Language Model).
  * Contient la requête JSON envoyée, la réponse JSON brute reçue et le texte simple extrait de la réponse.
  */
 public class LlmInteraction {
-    private final String requestJson;
+    private final Supplier<String> requestJson;
     private final String responseJson;
     private final String extractedText;
+    private final ReponseGemini reponseGemini;
+    private final TamponRequeteJson.Corps corpsRequete;
 
     /**
      * Constructeur requis par JsonUtilPourGemini.envoyerRequete().
@@ -17,9 +21,46 @@ public class LlmInteraction {
      * @param extractedText Le texte de la réponse, extrait du JSON.
      */
     public LlmInteraction(String requestJson, String responseJson, String extractedText) {
+        this(() -> requestJson, responseJson, extractedText);
+    }
+
+    /**
+     * Variante où le JSON formaté de la requête n'est calculé que s'il est demandé (mode debug).
+     *
+     * @param requestJson Fournit le corps JSON formaté de la requête envoyée.
+     * @param responseJson Le corps JSON brut de la réponse reçue de l'API.
+     * @param extractedText Le texte de la réponse, extrait du JSON.
+     */
+    public LlmInteraction(Supplier<String> requestJson, String responseJson, String extractedText) {
+        this(requestJson, responseJson, extractedText, null);
+    }
+
+    /**
+     * @param requestJson Fournit le corps JSON formaté de la requête envoyée.
+     * @param responseJson Le corps JSON brut de la réponse reçue de l'API (null s'il n'a pas été conservé).
+     * @param extractedText Le texte de la réponse, extrait du JSON.
+     * @param reponseGemini Les informations extraites de la réponse (finishReason, tokens...).
+     */
+    public LlmInteraction(Supplier<String> requestJson, String responseJson, String extractedText, ReponseGemini reponseGemini) {
         this.requestJson = requestJson;
         this.responseJson = responseJson;
         this.extractedText = extractedText;
+        this.reponseGemini = reponseGemini;
+        this.corpsRequete = null;
+    }
+
+    /**
+     * @param corpsRequete Le corps encodé de la requête envoyée ; il n'est formaté que si questionJson() est appelée.
+     * @param responseJson Le corps JSON brut de la réponse reçue de l'API (null s'il n'a pas été conservé).
+     * @param extractedText Le texte de la réponse, extrait du JSON.
+     * @param reponseGemini Les informations extraites de la réponse (finishReason, tokens...).
+     */
+    public LlmInteraction(TamponRequeteJson.Corps corpsRequete, String responseJson, String extractedText, ReponseGemini reponseGemini) {
+        this.requestJson = () -> JsonUtilPourGemini.prettyPrinting(corpsRequete.versJson());
+        this.responseJson = responseJson;
+        this.extractedText = extractedText;
+        this.reponseGemini = reponseGemini;
+        this.corpsRequete = corpsRequete;
     }
 
     /**
@@ -33,7 +74,7 @@ public class LlmInteraction {
      * @return Le corps JSON formaté de la requête envoyée.
      */
     public String questionJson() {
-        return requestJson;
+        return requestJson.get();
     }
 
     /**
@@ -42,4 +83,18 @@ public class LlmInteraction {
     public String reponseJson() {
         return responseJson;
     }
+
+    /**
+     * @return Le corps encodé de la requête envoyée (compact, non formaté), ou null s'il n'est pas connu.
+     */
+    public TamponRequeteJson.Corps corpsRequete() {
+        return corpsRequete;
+    }
+
+    /**
+     * @return Les informations extraites de la réponse (finishReason, usageMetadata), ou null.
+     */
+    public ReponseGemini reponseGemini() {
+        return reponseGemini;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Historiques des conversations en cours, gardés en mémoire côté serveur : les beans (JsonUtilPourGemini,
+ * et donc le backing bean de la page) ne gardent que l'identifiant de leur conversation.
+ *
+ * Le magasin est borné en taille estimée (HistoriqueConversation.tailleMemoire, gemini.conversations.octets-max,
+ * défaut 256 Mo) et en nombre (gemini.conversations.max, défaut 10000). Au-delà, les conversations les moins
+ * récemment utilisées sont évincées ; la conversation évincée recommence à vide à sa question suivante.
+ *
+ * La taille d'une conversation est remesurée à chaque accès : une conversation qui grandit est comptée
+ * à sa taille réelle dès l'accès suivant.
+ */
+@ApplicationScoped
+public class MagasinConversations {
+
+    private static final Logger LOGGER = Logger.getLogger(MagasinConversations.class.getName());
+
+    /**
+     * Une conversation du magasin et sa taille lors de la dernière mesure.
+     */
+    private static final class Entree {
+        private final HistoriqueConversation historique;
+        private long taille;
+
+        private Entree(HistoriqueConversation historique) {
+            this.historique = historique;
+        }
+    }
+
+    private final long octetsMax = ConfigurationLlm.entierLong("gemini.conversations.octets-max", 256L * 1024 * 1024);
+    private final int nbMax = ConfigurationLlm.entier("gemini.conversations.max", 10000);
+
+    /** Conversations de la moins récemment utilisée à la plus récente (ordre d'accès). */
+    private final LinkedHashMap<String, Entree> entrees = new LinkedHashMap<>(64, 0.75f, true);
+    private long octets;
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @return l'historique de la conversation, ou null s'il n'est pas (ou plus) dans le magasin.
+     */
+    public synchronized HistoriqueConversation obtenir(String id) {
+        Entree entree = entrees.get(id);
+        if (entree == null) return null;
+        mesurer(entree);
+        evincer(id);
+        return entree.historique;
+    }
+
+    /**
+     * Ajoute l'historique d'une conversation, sauf si le magasin en a déjà un pour cet identifiant.
+     * @return l'historique gardé par le magasin pour cet identifiant.
+     */
+    public synchronized HistoriqueConversation ajouterSiAbsent(String id, HistoriqueConversation historique) {
+        Entree entree = entrees.computeIfAbsent(id, cle -> new Entree(historique));
+        mesurer(entree);
+        evincer(id);
+        return entree.historique;
+    }
+
+    /**
+     * Oublie une conversation (nouveau chat, fin de la vue ou du traitement).
+     */
+    public synchronized void retirer(String id) {
+        Entree entree = entrees.remove(id);
+        if (entree != null) octets -= entree.taille;
+    }
+
+    private void mesurer(Entree entree) {
+        long taille = entree.historique.tailleMemoire();
+        octets += taille - entree.taille;
+        entree.taille = taille;
+    }
+
+    /**
+     * Évince les conversations les moins récemment utilisées jusqu'à revenir dans les limites,
+     * sans toucher à la conversation en cours d'utilisation.
+     */
+    private void evincer(String garder) {
+        Iterator<Map.Entry<String, Entree>> iterateur = entrees.entrySet().iterator();
+        while ((octets > octetsMax || entrees.size() > nbMax) && iterateur.hasNext()) {
+            Map.Entry<String, Entree> plusAncienne = iterateur.next();
+            if (plusAncienne.getKey().equals(garder)) continue;
+            iterateur.remove();
+            octets -= plusAncienne.getValue().taille;
+            evictions.increment();
+            LOGGER.log(Level.FINE, "Conversation {0} évincée ({1} octets)",
+                    new Object[]{plusAncienne.getKey(), plusAncienne.getValue().taille});
+        }
+    }
+
+    // --- Statistiques ---
+
+    public synchronized int getNbConversations() {
+        return entrees.size();
+    }
+
+    /**
+     * @return la taille estimée de toutes les conversations, lors de leur dernière mesure (octets).
+     */
+    public synchronized long getOctets() {
+        return octets;
+    }
+
+    public long getNbEvictions() {
+        return evictions.sum();
+    }
+}
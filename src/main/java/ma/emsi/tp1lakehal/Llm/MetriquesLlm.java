@@ -0,0 +1,261 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.persistance.ArchiveConversations;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Mesures des échanges avec Gemini, par code de rôle (ASSISTANT, TRADUCTEUR, ...), exposées au format
+ * texte de Prometheus par MetriquesServlet (/metrics).
+ *
+ * <ul>
+ *     <li>gemini_latence_secondes : durée des appels, reprises comprises (histogramme) ;</li>
+ *     <li>gemini_requete_octets et gemini_reponse_octets : taille des corps (histogrammes) ;</li>
+ *     <li>gemini_historique_tours : nombre de tours de la conversation au moment de l'appel (histogramme) ;</li>
+ *     <li>gemini_reponses_total : réponses par status HTTP ("erreur" si aucune réponse n'a été reçue) ;</li>
+ *     <li>gemini_tokens_total : tokens comptés par Gemini (usageMetadata), par type (prompt, candidates, total).</li>
+ * </ul>
+ * S'y ajoutent les compteurs du cache des réponses, de la mutualisation, des reprises, du disjoncteur,
+ * du routage entre modèles (par modèle), de l'ordonnanceur des appels, de la couverture, du magasin des conversations et de leur enregistrement en base.
+ * Pour mesurer le démarrage à froid : durée de chaque étape du préchauffage, et délai de la première réponse
+ * réussie depuis le démarrage de la JVM, avec la durée de cet appel.
+ *
+ * Les compteurs sont des LongAdder : l'enregistrement ne prend pas de verrou.
+ */
+@ApplicationScoped
+public class MetriquesLlm {
+
+    private static final Logger LOGGER = Logger.getLogger(MetriquesLlm.class.getName());
+
+    private static final String ROLE_INCONNU = "AUCUN";
+
+    /**
+     * Mesures d'un rôle.
+     */
+    private static final class MesuresRole {
+        private final Histogramme latence = new Histogramme(Histogramme.serie125(0.005, 120));
+        private final Histogramme octetsRequete = new Histogramme(Histogramme.puissancesDe2(256, 4 * 1024 * 1024));
+        private final Histogramme octetsReponse = new Histogramme(Histogramme.puissancesDe2(256, 4 * 1024 * 1024));
+        private final Histogramme tours = new Histogramme(Histogramme.puissancesDe2(1, 1024));
+        private final Map<String, LongAdder> statuts = new ConcurrentHashMap<>();
+        private final LongAdder tokensPrompt = new LongAdder();
+        private final LongAdder tokensCandidats = new LongAdder();
+        private final LongAdder tokensTotal = new LongAdder();
+    }
+
+    @Inject
+    private CacheReponses cacheReponses;
+
+    @Inject
+    private MutualisationRequetes mutualisation;
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    @Inject
+    private CouvertureRequetes couverture;
+
+    @Inject
+    private RoutageModeles routage;
+
+    @Inject
+    private OrdonnanceurAppels ordonnanceur;
+
+    @Inject
+    private MagasinConversations magasin;
+
+    @Inject
+    private ArchiveConversations archive;
+
+    @Inject
+    private Prechauffage prechauffage;
+
+    private final Map<String, MesuresRole> roles = new ConcurrentHashMap<>();
+
+    /** Première réponse réussie : délai depuis le démarrage de la JVM et durée de l'appel (ms), -1 avant. */
+    private final AtomicBoolean premiereReponseRecue = new AtomicBoolean();
+    private volatile long premiereReponseDepuisDemarrageMs = -1;
+    private volatile long premiereReponseDureeMs = -1;
+
+    /**
+     * Enregistre un appel terminé par une réponse de l'API.
+     * @param dureeNanos durée depuis l'envoi (reprises comprises).
+     */
+    public void enregistrerAppel(String codeRole, long dureeNanos, int octetsRequete, int status, long octetsReponse,
+                                 int nbTours) {
+        MesuresRole mesures = mesures(codeRole);
+        mesures.latence.observer(dureeNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        mesures.octetsRequete.observer(octetsRequete);
+        mesures.octetsReponse.observer(octetsReponse);
+        mesures.tours.observer(nbTours);
+        mesures.statuts.computeIfAbsent(String.valueOf(status), s -> new LongAdder()).increment();
+        if (status == 200 && !premiereReponseRecue.get() && premiereReponseRecue.compareAndSet(false, true)) {
+            premiereReponseDureeMs = TimeUnit.NANOSECONDS.toMillis(dureeNanos);
+            premiereReponseDepuisDemarrageMs = ManagementFactory.getRuntimeMXBean().getUptime();
+            LOGGER.log(Level.INFO, "Première réponse de Gemini {0} ms après le démarrage de la JVM (appel de {1} ms)",
+                    new Object[]{premiereReponseDepuisDemarrageMs, premiereReponseDureeMs});
+        }
+    }
+
+    /**
+     * Enregistre un appel qui n'a pas obtenu de réponse (API injoignable, disjoncteur ouvert, interruption).
+     */
+    public void enregistrerEchec(String codeRole, long dureeNanos) {
+        MesuresRole mesures = mesures(codeRole);
+        mesures.latence.observer(dureeNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        mesures.statuts.computeIfAbsent("erreur", s -> new LongAdder()).increment();
+    }
+
+    /**
+     * Ajoute les tokens comptés par Gemini pour une réponse.
+     */
+    public void enregistrerTokens(String codeRole, ReponseGemini reponse) {
+        MesuresRole mesures = mesures(codeRole);
+        mesures.tokensPrompt.add(reponse.promptTokenCount());
+        mesures.tokensCandidats.add(reponse.candidatesTokenCount());
+        mesures.tokensTotal.add(reponse.totalTokenCount());
+    }
+
+    private MesuresRole mesures(String codeRole) {
+        return roles.computeIfAbsent(codeRole == null ? ROLE_INCONNU : codeRole, code -> new MesuresRole());
+    }
+
+    // --- Format texte de Prometheus ---
+
+    /**
+     * @return toutes les mesures au format d'exposition texte de Prometheus (version 0.0.4).
+     */
+    public String versPrometheus() {
+        StringBuilder sortie = new StringBuilder(8192);
+        Map<String, MesuresRole> parRole = new TreeMap<>(roles);
+
+        entete(sortie, "gemini_latence_secondes", "histogram", "Durée des appels à Gemini, reprises comprises.");
+        parRole.forEach((role, m) -> m.latence.ecrire(sortie, "gemini_latence_secondes", label("role", role)));
+        entete(sortie, "gemini_requete_octets", "histogram", "Taille du corps des requêtes envoyées.");
+        parRole.forEach((role, m) -> m.octetsRequete.ecrire(sortie, "gemini_requete_octets", label("role", role)));
+        entete(sortie, "gemini_reponse_octets", "histogram", "Taille du corps des réponses reçues.");
+        parRole.forEach((role, m) -> m.octetsReponse.ecrire(sortie, "gemini_reponse_octets", label("role", role)));
+        entete(sortie, "gemini_historique_tours", "histogram", "Nombre de tours de la conversation lors de l'appel.");
+        parRole.forEach((role, m) -> m.tours.ecrire(sortie, "gemini_historique_tours", label("role", role)));
+
+        entete(sortie, "gemini_reponses_total", "counter", "Réponses de Gemini par status HTTP.");
+        parRole.forEach((role, m) -> new TreeMap<>(m.statuts).forEach((status, compte) ->
+                ligne(sortie, "gemini_reponses_total", label("role", role) + "," + label("status", status), compte.sum())));
+        entete(sortie, "gemini_tokens_total", "counter", "Tokens comptés par Gemini (usageMetadata).");
+        parRole.forEach((role, m) -> {
+            ligne(sortie, "gemini_tokens_total", label("role", role) + "," + label("type", "prompt"), m.tokensPrompt.sum());
+            ligne(sortie, "gemini_tokens_total", label("role", role) + "," + label("type", "candidates"), m.tokensCandidats.sum());
+            ligne(sortie, "gemini_tokens_total", label("role", role) + "," + label("type", "total"), m.tokensTotal.sum());
+        });
+
+        compteur(sortie, "gemini_cache_succes_total", "Réponses servies par le cache.", cacheReponses.getNbSucces());
+        compteur(sortie, "gemini_cache_echecs_total", "Requêtes absentes du cache.", cacheReponses.getNbEchecs());
+        compteur(sortie, "gemini_cache_evictions_total", "Entrées évincées du cache.", cacheReponses.getNbEvictions());
+        jauge(sortie, "gemini_cache_entrees", "Entrées dans le cache.", cacheReponses.getNbEntrees());
+        jauge(sortie, "gemini_cache_octets", "Taille des réponses en cache.", cacheReponses.getOctetsUtilises());
+
+        compteur(sortie, "gemini_mutualisation_appels_total", "Appels réellement envoyés par la mutualisation.", mutualisation.getNbAppels());
+        compteur(sortie, "gemini_mutualisation_partages_total", "Requêtes servies par un appel identique en cours.", mutualisation.getNbMutualisees());
+
+        compteur(sortie, "gemini_tentatives_total", "Appels HTTP envoyés, reprises comprises.", appelsResilients.getNbTentatives());
+        compteur(sortie, "gemini_reprises_total", "Reprises après une erreur transitoire.", appelsResilients.getNbReprises());
+        compteur(sortie, "gemini_echecs_definitifs_total", "Requêtes en échec après toutes les reprises.", appelsResilients.getNbEchecsDefinitifs());
+        compteur(sortie, "gemini_disjoncteur_rejets_total", "Requêtes refusées par le disjoncteur ouvert de leur modèle.",
+                appelsResilients.getNbRejets());
+
+        List<String> modeles = routage.getModeles();
+        entete(sortie, "gemini_disjoncteur_ouvertures_total", "counter", "Ouvertures du disjoncteur de chaque modèle.");
+        modeles.forEach(m -> ligne(sortie, "gemini_disjoncteur_ouvertures_total", label("modele", m),
+                routage.getNbOuverturesDisjoncteur(m)));
+        entete(sortie, "gemini_disjoncteur_etat", "gauge", "État du disjoncteur de chaque modèle (1 pour l'état actuel).");
+        modeles.forEach(m -> {
+            Disjoncteur.Etat etat = routage.getEtatDisjoncteur(m);
+            for (Disjoncteur.Etat e : Disjoncteur.Etat.values()) {
+                ligne(sortie, "gemini_disjoncteur_etat", label("modele", m) + "," + label("etat", e.name()), e == etat ? 1 : 0);
+            }
+        });
+        entete(sortie, "gemini_modele_requetes_total", "counter", "Requêtes et reprises envoyées à chaque modèle.");
+        modeles.forEach(m -> ligne(sortie, "gemini_modele_requetes_total", label("modele", m), routage.getNbChoix(m)));
+        entete(sortie, "gemini_modele_echecs_total", "counter", "Appels à chaque modèle terminés par une erreur transitoire ou sans réponse.");
+        modeles.forEach(m -> ligne(sortie, "gemini_modele_echecs_total", label("modele", m), routage.getNbEchecs(m)));
+        entete(sortie, "gemini_modele_latence_moyenne_secondes", "gauge", "Latence moyenne récente de chaque modèle.");
+        modeles.forEach(m -> sortie.append("gemini_modele_latence_moyenne_secondes{").append(label("modele", m)).append("} ")
+                .append(Histogramme.formater(routage.getLatenceMoyenneMs(m) / 1000)).append('\n'));
+        entete(sortie, "gemini_modele_disponible", "gauge", "Modèle disponible pour de nouvelles requêtes (1) ou évité (0).");
+        modeles.forEach(m -> ligne(sortie, "gemini_modele_disponible", label("modele", m), routage.isDisponible(m) ? 1 : 0));
+        compteur(sortie, "gemini_modele_bascules_total", "Requêtes envoyées à un autre modèle que celui de leur conversation.",
+                routage.getNbBascules());
+
+        jauge(sortie, "gemini_ordonnanceur_limite", "Limite adaptative d'appels simultanés à Gemini.", ordonnanceur.getLimite());
+        jauge(sortie, "gemini_ordonnanceur_en_cours", "Appels en cours.", ordonnanceur.getNbEnCours());
+        jauge(sortie, "gemini_ordonnanceur_en_attente", "Appels qui attendent une place.", ordonnanceur.getNbEnAttente());
+        compteur(sortie, "gemini_ordonnanceur_admis_total", "Appels qui ont obtenu une place.", ordonnanceur.getNbAdmis());
+        compteur(sortie, "gemini_ordonnanceur_attentes_total", "Appels qui ont dû attendre une place.", ordonnanceur.getNbMisEnAttente());
+        compteur(sortie, "gemini_ordonnanceur_rejets_immediats_total", "Appels refusés car les files étaient pleines.",
+                ordonnanceur.getNbRejetsImmediats());
+        compteur(sortie, "gemini_ordonnanceur_rejets_attente_total", "Appels refusés après une attente trop longue.",
+                ordonnanceur.getNbRejetsAttente());
+        compteur(sortie, "gemini_ordonnanceur_baisses_total", "Baisses de la limite (429, 503, erreurs réseau, latence).",
+                ordonnanceur.getNbBaisses());
+
+        compteur(sortie, "gemini_couverture_doublons_total", "Requêtes de couverture envoyées.", couverture.getNbCouvertures());
+        compteur(sortie, "gemini_couverture_gagnantes_total", "Requêtes de couverture arrivées les premières.", couverture.getNbCouverturesGagnantes());
+        jauge(sortie, "gemini_couverture_seuil_secondes", "Délai avant l'envoi d'une requête de couverture (-1 : inactive).",
+                couverture.getSeuilMs() < 0 ? -1 : couverture.getSeuilMs() / 1000.0);
+
+        jauge(sortie, "gemini_conversations_entrees", "Conversations gardées en mémoire.", magasin.getNbConversations());
+        jauge(sortie, "gemini_conversations_octets", "Taille estimée des conversations en mémoire.", magasin.getOctets());
+        compteur(sortie, "gemini_conversations_evictions_total", "Conversations évincées du magasin.", magasin.getNbEvictions());
+
+        jauge(sortie, "gemini_archive_file", "Ajouts en attente d'écriture en base.", archive.getTailleFile());
+        compteur(sortie, "gemini_archive_tours_total", "Tours de conversation écrits en base.", archive.getNbToursEcrits());
+        compteur(sortie, "gemini_archive_lots_total", "Lots écrits en une transaction.", archive.getNbLotsEcrits());
+        compteur(sortie, "gemini_archive_perdus_total", "Ajouts perdus car la file d'écriture était pleine.", archive.getNbAjoutsPerdus());
+        compteur(sortie, "gemini_archive_echecs_total", "Ajouts qui n'ont pas pu être écrits en base.", archive.getNbAjoutsEnEchec());
+
+        entete(sortie, "gemini_prechauffage_secondes", "gauge", "Durée de chaque étape du préchauffage au démarrage.");
+        prechauffage.getDurees().forEach((etape, ms) -> sortie.append("gemini_prechauffage_secondes{")
+                .append(label("etape", etape)).append("} ").append(Histogramme.formater(ms / 1000.0)).append('\n'));
+        jauge(sortie, "gemini_premiere_reponse_depuis_demarrage_secondes",
+                "Délai entre le démarrage de la JVM et la première réponse réussie de Gemini (-1 : pas encore).",
+                premiereReponseDepuisDemarrageMs < 0 ? -1 : premiereReponseDepuisDemarrageMs / 1000.0);
+        jauge(sortie, "gemini_premiere_reponse_duree_secondes", "Durée de l'appel de la première réponse réussie (-1 : pas encore).",
+                premiereReponseDureeMs < 0 ? -1 : premiereReponseDureeMs / 1000.0);
+        return sortie.toString();
+    }
+
+    private static void entete(StringBuilder sortie, String nom, String type, String aide) {
+        sortie.append("# HELP ").append(nom).append(' ').append(aide).append('\n');
+        sortie.append("# TYPE ").append(nom).append(' ').append(type).append('\n');
+    }
+
+    private static void compteur(StringBuilder sortie, String nom, String aide, long valeur) {
+        entete(sortie, nom, "counter", aide);
+        sortie.append(nom).append(' ').append(valeur).append('\n');
+    }
+
+    private static void jauge(StringBuilder sortie, String nom, String aide, double valeur) {
+        entete(sortie, nom, "gauge", aide);
+        sortie.append(nom).append(' ').append(Histogramme.formater(valeur)).append('\n');
+    }
+
+    private static void ligne(StringBuilder sortie, String nom, String labels, long valeur) {
+        sortie.append(nom).append('{').append(labels).append("} ").append(valeur).append('\n');
+    }
+
+    private static String label(String nom, String valeur) {
+        String echappee = valeur.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return nom + "=\"" + echappee + "\"";
+    }
+}
@@ -0,0 +1,389 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mutualisation ("single-flight") des requêtes identiques envoyées en même temps à Gemini.
+ *
+ * Quand plusieurs utilisateurs envoient au même moment exactement le même corps de requête (même rôle,
+ * même historique, même question) au même modèle, un seul appel part vers l'API ; tous les appelants reçoivent
+ * sa réponse.
+ * Contrairement à CacheReponses, rien n'est gardé une fois l'appel terminé : seules les requêtes
+ * simultanées sont regroupées.
+ *
+ * Chaque appelant reçoit son propre CompletableFuture, qu'il peut annuler sans gêner les autres ;
+ * l'appel partagé n'est annulé que lorsque le dernier appelant qui l'attendait a renoncé.
+ *
+ * Le corps de la requête n'est pas copié : il est haché directement depuis TamponRequeteJson, puis écrit
+ * tel quel dans le flux HTTP. La réponse n'est chargée en mémoire pour être relue par chaque appelant
+ * que si plusieurs appelants l'attendent encore à son arrivée ; sinon son corps est lu en flux.
+ * L'appel partagé passe par AppelsResilients (reprises et disjoncteur).
+ *
+ * Paramètre (voir ConfigurationLlm) : gemini.mutualisation.actif (défaut true).
+ */
+@ApplicationScoped
+public class MutualisationRequetes {
+
+    /**
+     * Réponse de l'API. Le corps d'une réponse 200 reste dans la connexion et est lu en flux par l'unique
+     * appelant ; il n'est chargé en mémoire que s'il doit être relu (réponse partagée, debug).
+     * Le corps d'une réponse d'erreur, petit, est toujours chargé.
+     * La réponse est à fermer par l'appelant (sans effet une fois chargée).
+     */
+    public static final class ReponseApi implements AutoCloseable {
+        private final int status;
+        private final String raison;
+        private final String retryAfter;
+        private final String modele;
+        /** Réponse dont le corps n'a pas encore été lu ; null une fois le corps chargé ou la réponse fermée. */
+        private Response reponse;
+        private byte[] corps;
+        private boolean fluxOuvert;
+        private long octetsLus;
+        private Runnable aLaFermeture;
+
+        ReponseApi(int status, String raison, String retryAfter, byte[] corps, String modele) {
+            this.status = status;
+            this.raison = raison;
+            this.retryAfter = retryAfter;
+            this.corps = corps;
+            this.modele = modele;
+        }
+
+        private ReponseApi(Response reponse, String modele) {
+            this(reponse.getStatus(), reponse.getStatusInfo().getReasonPhrase(),
+                    reponse.getHeaderString("Retry-After"), null, modele);
+            this.reponse = reponse;
+        }
+
+        /**
+         * @param reponseApi réponse dont le corps n'a pas encore été lu.
+         */
+        static ReponseApi ouvrir(Response reponseApi, String modele) {
+            ReponseApi reponse = new ReponseApi(reponseApi, modele);
+            if (reponse.status != 200) reponse.charger();
+            return reponse;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return le texte du status HTTP (ex: Bad Request).
+         */
+        public String raison() {
+            return raison;
+        }
+
+        /**
+         * @return l'en-tête Retry-After de la réponse, ou null.
+         */
+        public String retryAfter() {
+            return retryAfter;
+        }
+
+        /**
+         * @return le modèle qui a donné la réponse (après une éventuelle bascule).
+         */
+        public String modele() {
+            return modele;
+        }
+
+        /**
+         * Lit tout le corps en mémoire et ferme la réponse, pour que le corps puisse être relu.
+         * Sans effet si le corps est déjà chargé ; impossible une fois sa lecture en flux commencée.
+         */
+        public synchronized ReponseApi charger() {
+            if (corps != null) return this;
+            if (fluxOuvert || reponse == null) throw new IllegalStateException("Corps de la réponse déjà lu ou fermé.");
+            try (Response response = reponse) {
+                corps = response.hasEntity() ? response.readEntity(byte[].class) : new byte[0];
+            } finally {
+                reponse = null;
+            }
+            return this;
+        }
+
+        /**
+         * @return la taille du corps de la réponse, en octets (lus jusqu'ici si le corps est lu en flux).
+         */
+        public synchronized long taille() {
+            return corps != null ? corps.length : octetsLus;
+        }
+
+        /**
+         * @return un flux sur le corps de la réponse : un nouveau flux si le corps est chargé,
+         * sinon le flux de la connexion, qui ne peut être lu qu'une fois.
+         */
+        public synchronized InputStream flux() {
+            if (corps != null) return new ByteArrayInputStream(corps);
+            if (fluxOuvert || reponse == null) throw new IllegalStateException("Corps de la réponse déjà lu.");
+            fluxOuvert = true;
+            return new FilterInputStream(reponse.readEntity(InputStream.class)) {
+                @Override
+                public int read() throws IOException {
+                    int octet = super.read();
+                    if (octet >= 0) compter(1);
+                    return octet;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) compter(n);
+                    return n;
+                }
+            };
+        }
+
+        private synchronized void compter(int n) {
+            octetsLus += n;
+        }
+
+        /**
+         * @return au plus maxOctets octets du corps, en texte (pour un message d'erreur ou le mode debug).
+         * Le corps est chargé s'il ne l'était pas ; s'il a déjà été lu en flux, il n'est plus disponible.
+         */
+        public synchronized String debut(int maxOctets) {
+            if (corps == null && (fluxOuvert || reponse == null)) return "[réponse lue en flux, " + octetsLus + " octets]";
+            charger();
+            if (corps.length <= maxOctets) return new String(corps, StandardCharsets.UTF_8);
+            return new String(corps, 0, maxOctets, StandardCharsets.UTF_8)
+                    + "\n[... réponse tronquée à " + maxOctets + " octets]";
+        }
+
+        /**
+         * Exécute l'action à la fermeture de la réponse (par exemple une mesure de la taille lue),
+         * ou tout de suite si le corps est déjà chargé : une réponse chargée peut être partagée.
+         */
+        public void aLaFermeture(Runnable action) {
+            synchronized (this) {
+                if (corps == null) {
+                    aLaFermeture = action;
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * Ferme la connexion si le corps n'a pas été chargé (le reste du corps n'est pas lu).
+         */
+        @Override
+        public void close() {
+            Runnable action;
+            synchronized (this) {
+                if (reponse != null) {
+                    reponse.close();
+                    reponse = null;
+                }
+                action = aLaFermeture;
+                aLaFermeture = null;
+            }
+            if (action != null) action.run();
+        }
+    }
+
+    /**
+     * Clé d'un appel : hash SHA-256 du modèle et du corps exact de la requête.
+     */
+    private static final class Cle {
+        private final byte[] hash;
+        private final int hashCode;
+
+        Cle(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Cle autre && Arrays.equals(hash, autre.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Un appel en cours et le nombre d'appelants qui l'attendent encore. Protégé par son propre verrou.
+     */
+    private static final class Vol {
+        private final CompletableFuture<ReponseApi> partage = new CompletableFuture<>();
+        private CompletableFuture<ReponseApi> appel;
+        private int attentes = 1;
+        private boolean abandonne;
+        /** La réponse est arrivée : plus aucun appelant ne peut rejoindre l'appel. */
+        private boolean termine;
+    }
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.mutualisation.actif", true);
+
+    private final ConcurrentHashMap<Cle, Vol> vols = new ConcurrentHashMap<>();
+
+    private final LongAdder appels = new LongAdder();
+    private final LongAdder mutualisees = new LongAdder();
+
+    /**
+     * Envoie la requête, ou rejoint l'appel identique déjà en cours.
+     * @param modele modèle choisi par RoutageModeles.
+     * @param bascule vrai si la requête peut être reprise sur un autre modèle (voir AppelsResilients).
+     * @param demandeur file de l'ordonnanceur où attend l'appel ; un appel partagé reste dans celle du premier appelant.
+     * @return étape propre à l'appelant ; l'annuler ne fait que retirer cet appelant de l'attente.
+     */
+    public CompletableFuture<ReponseApi> envoyer(TamponRequeteJson.Corps corps, String modele, boolean bascule,
+                                                 OrdonnanceurAppels.Demandeur demandeur) {
+        if (!actif) {
+            appels.increment();
+            return appelsResilients.envoyer(corps, modele, bascule, demandeur);
+        }
+
+        MessageDigest sha256 = sha256();
+        sha256.update(modele.getBytes(StandardCharsets.UTF_8));
+        sha256.update((byte) 0);
+        corps.hacher(sha256);
+        Cle cle = new Cle(sha256.digest());
+        while (true) {
+            Vol nouveau = new Vol();
+            Vol vol = vols.putIfAbsent(cle, nouveau);
+            if (vol == null) {
+                appels.increment();
+                demarrer(cle, nouveau, corps, modele, bascule, demandeur);
+                return attendre(cle, nouveau);
+            }
+            synchronized (vol) {
+                if (!vol.abandonne && !vol.termine) {
+                    vol.attentes++;
+                    mutualisees.increment();
+                    return attendre(cle, vol);
+                }
+            }
+            // Appel abandonné par tous ses appelants, ou déjà terminé, mais pas encore retiré : on en lance un autre
+            vols.remove(cle, vol);
+        }
+    }
+
+    private void demarrer(Cle cle, Vol vol, TamponRequeteJson.Corps corps, String modele, boolean bascule,
+                          OrdonnanceurAppels.Demandeur demandeur) {
+        CompletableFuture<ReponseApi> appel = appelsResilients.envoyer(corps, modele, bascule, demandeur);
+        synchronized (vol) {
+            vol.appel = appel;
+        }
+        appel.whenComplete((reponse, erreur) -> {
+            boolean partagee;
+            boolean abandonne;
+            synchronized (vol) {
+                vol.termine = true;
+                partagee = vol.attentes > 1;
+                abandonne = vol.abandonne;
+            }
+            vols.remove(cle, vol);
+            if (erreur != null) {
+                vol.partage.completeExceptionally(erreur);
+                return;
+            }
+            if (abandonne) {
+                // Le dernier appelant est parti alors que la réponse arrivait (trop tard pour annuler l'appel)
+                reponse.close();
+                return;
+            }
+            try {
+                // Plusieurs appelants relisent le corps : il est chargé une fois pour tous
+                if (partagee) reponse.charger();
+            } catch (RuntimeException e) {
+                reponse.close();
+                vol.partage.completeExceptionally(e);
+                return;
+            }
+            if (!vol.partage.complete(reponse)) {
+                // Appel partagé annulé entre-temps : la réponse n'a plus de destinataire
+                reponse.close();
+            }
+        });
+    }
+
+    /**
+     * @return l'étape de l'appelant, qui reprend le résultat de l'appel partagé.
+     */
+    private CompletableFuture<ReponseApi> attendre(Cle cle, Vol vol) {
+        CompletableFuture<ReponseApi> appelant = new CompletableFuture<>();
+        AtomicBoolean retire = new AtomicBoolean();
+        vol.partage.whenComplete((reponse, erreur) -> {
+            if (erreur != null) {
+                appelant.completeExceptionally(erreur);
+            } else if (!appelant.complete(reponse) && !retire.get()) {
+                // Appelant parti après l'arrivée de la réponse : une réponse lue en flux n'était que pour lui
+                reponse.close();
+            }
+        });
+        appelant.whenComplete((reponse, erreur) -> {
+            if (appelant.isCancelled()) quitter(cle, vol, retire);
+        });
+        return appelant;
+    }
+
+    /**
+     * Un appelant renonce avant l'arrivée de la réponse : il n'est plus compté (la réponse ne lui sera pas
+     * rendue), et l'appel partagé est annulé s'il n'attendait plus que lui.
+     * Après l'arrivée de la réponse, l'appelant reste compté : c'est à lui de la fermer.
+     */
+    private void quitter(Cle cle, Vol vol, AtomicBoolean retire) {
+        CompletableFuture<ReponseApi> appel;
+        synchronized (vol) {
+            if (vol.termine) return;
+            retire.set(true);
+            if (--vol.attentes > 0) return;
+            vol.abandonne = true;
+            appel = vol.appel;
+        }
+        vols.remove(cle, vol);
+        if (appel != null) appel.cancel(true);
+        vol.partage.cancel(true);
+    }
+
+    // --- Statistiques ---
+
+    /**
+     * @return le nombre d'appels réellement envoyés à l'API.
+     */
+    public long getNbAppels() {
+        return appels.sum();
+    }
+
+    /**
+     * @return le nombre de requêtes servies par un appel identique déjà en cours.
+     */
+    public long getNbMutualisees() {
+        return mutualisees.sum();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 est toujours disponible dans le JDK
+        }
+    }
+}
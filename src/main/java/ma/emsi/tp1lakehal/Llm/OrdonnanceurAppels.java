@@ -0,0 +1,339 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.Exception.RequeteException;
+import ma.emsi.tp1lakehal.Exception.ServiceSatureException;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limite le nombre d'appels HTTP simultanés à Gemini et partage équitablement les places entre les utilisateurs.
+ *
+ * <ul>
+ *     <li>Limite adaptative (AIMD) : elle augmente d'environ 1 par "tour" de requêtes réussies quand elle est
+ *     utilisée, et est multipliée par 0,7 (au plus une fois par latence moyenne) après un 429, un 503, une erreur
+ *     réseau, ou quand la latence récente dépasse gemini.ordonnanceur.tolerance-latence (défaut 2) fois la
+ *     latence habituelle. Bornes : gemini.ordonnanceur.limite-min et limite-max (défaut 1 et 64), départ à
+ *     gemini.ordonnanceur.limite-initiale (défaut 10).</li>
+ *     <li>Files équitables : au-delà de la limite, les appels attendent dans une file par utilisateur (session) ;
+ *     les places libérées sont données à tour de rôle à chaque utilisateur qui attend, pour qu'un utilisateur
+ *     qui envoie beaucoup de requêtes ne fasse pas attendre les autres.</li>
+ *     <li>Rejet rapide : un appel est refusé tout de suite (ServiceSatureException) si son utilisateur a déjà
+ *     gemini.ordonnanceur.file-par-cle appels en attente (défaut 4) ou si gemini.ordonnanceur.file-max appels
+ *     attendent en tout (défaut 200), et au bout de gemini.ordonnanceur.attente-max ms d'attente (défaut 10000).
+ *     Les demandeurs "patients" (traitement par lots) ne sont pas refusés : ils limitent eux-mêmes leurs appels.</li>
+ * </ul>
+ *
+ * gemini.ordonnanceur.actif=false supprime la limite.
+ */
+@ApplicationScoped
+public class OrdonnanceurAppels {
+
+    private static final Logger LOGGER = Logger.getLogger(OrdonnanceurAppels.class.getName());
+
+    private static final double FACTEUR_BAISSE = 0.7;
+    /** Poids d'une mesure dans la latence récente, et dans la latence habituelle (qui évolue lentement). */
+    private static final double POIDS_COURT = 0.3;
+    private static final double POIDS_LONG = 0.02;
+    /** Mesures nécessaires avant de comparer la latence récente à la latence habituelle. */
+    private static final int MIN_MESURES = 20;
+
+    /**
+     * Celui pour qui l'appel est fait.
+     * @param cle clé de la file (identifiant de session, par exemple).
+     * @param patient vrai pour un demandeur qui attend son tour sans jamais être refusé (traitement par lots).
+     */
+    public record Demandeur(String cle, boolean patient) {
+    }
+
+    /**
+     * Place obtenue pour un appel ; à libérer une fois la réponse reçue (ou l'appel abandonné).
+     */
+    public final class Jeton {
+        private final AtomicBoolean libere = new AtomicBoolean();
+
+        private Jeton() {
+        }
+
+        /**
+         * Rend la place et indique comment s'est passé l'appel. Sans effet après le premier appel.
+         * @param status status HTTP de la réponse, 0 si le modèle n'a pas répondu (erreur réseau, timeout),
+         * -1 si l'appel a été abandonné (pas d'information sur l'API).
+         * @param latenceMs durée de l'appel, ou -1 si elle ne mesure pas la charge de l'API (réponse en flux).
+         */
+        public void liberer(int status, long latenceMs) {
+            if (libere.compareAndSet(false, true)) rendre(status, latenceMs);
+        }
+    }
+
+    /**
+     * Un appel qui attend une place.
+     */
+    private static final class Attente {
+        private final Demandeur demandeur;
+        private final CompletableFuture<Jeton> place = new CompletableFuture<>();
+
+        private Attente(Demandeur demandeur) {
+            this.demandeur = demandeur;
+        }
+    }
+
+    @Inject
+    private LlmClient geminiClient;
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.ordonnanceur.actif", true);
+    private final int limiteMin = Math.max(1, ConfigurationLlm.entier("gemini.ordonnanceur.limite-min", 1));
+    private final int limiteMax = ConfigurationLlm.entier("gemini.ordonnanceur.limite-max", 64);
+    private final int fileParCle = ConfigurationLlm.entier("gemini.ordonnanceur.file-par-cle", 4);
+    private final int fileMax = ConfigurationLlm.entier("gemini.ordonnanceur.file-max", 200);
+    private final long attenteMaxMs = ConfigurationLlm.entierLong("gemini.ordonnanceur.attente-max", 10000);
+    private final double toleranceLatence =
+            Double.parseDouble(ConfigurationLlm.texte("gemini.ordonnanceur.tolerance-latence", "2"));
+
+    // État protégé par le verrou de l'ordonnanceur
+    private double limite = Math.max(limiteMin, Math.min(limiteMax,
+            ConfigurationLlm.entier("gemini.ordonnanceur.limite-initiale", 10)));
+    private int enCours;
+    private int nbEnAttente;
+    /** Files par clé, et clés qui ont des appels en attente, dans l'ordre où elles seront servies. */
+    private final Map<String, ArrayDeque<Attente>> files = new HashMap<>();
+    private final ArrayDeque<String> tourDeRole = new ArrayDeque<>();
+    private double latenceRecenteMs;
+    private double latenceHabituelleMs;
+    private long nbMesures;
+    private long derniereBaisse;
+
+    private final LongAdder admis = new LongAdder();
+    private final LongAdder misEnAttente = new LongAdder();
+    private final LongAdder rejetsImmediats = new LongAdder();
+    private final LongAdder rejetsAttente = new LongAdder();
+    private final LongAdder baisses = new LongAdder();
+
+    /**
+     * Vérifie, avant de préparer une requête, qu'elle ne sera pas refusée tout de suite.
+     * @throws ServiceSatureException si le demandeur ou l'ensemble des utilisateurs ont trop d'appels en attente.
+     */
+    public void verifierAdmission(Demandeur demandeur) throws ServiceSatureException {
+        if (!actif || demandeur.patient()) return;
+        synchronized (this) {
+            if (!fileDisponible(demandeur)) {
+                rejetsImmediats.increment();
+                throw sature();
+            }
+        }
+    }
+
+    /**
+     * Demande une place pour un appel.
+     * @return étape qui se termine avec le jeton quand la place est accordée, ou en erreur avec une
+     * ServiceSatureException. L'annuler retire l'appel de la file.
+     */
+    public CompletableFuture<Jeton> obtenir(Demandeur demandeur) {
+        if (!actif) return CompletableFuture.completedFuture(new Jeton());
+        Attente attente = new Attente(demandeur);
+        synchronized (this) {
+            if (nbEnAttente == 0 && enCours < (int) limite) {
+                enCours++;
+                admis.increment();
+                return CompletableFuture.completedFuture(new Jeton());
+            }
+            if (!demandeur.patient() && !fileDisponible(demandeur)) {
+                rejetsImmediats.increment();
+                return CompletableFuture.failedFuture(sature());
+            }
+            files.computeIfAbsent(demandeur.cle(), cle -> {
+                tourDeRole.addLast(cle);
+                return new ArrayDeque<>();
+            }).addLast(attente);
+            nbEnAttente++;
+            misEnAttente.increment();
+        }
+        attente.place.whenComplete((jeton, erreur) -> {
+            if (attente.place.isCancelled()) retirer(attente);
+        });
+        if (!demandeur.patient()) {
+            CompletableFuture.delayedExecutor(attenteMaxMs, TimeUnit.MILLISECONDS, geminiClient.getExecuteur()).execute(() -> {
+                if (retirer(attente)) {
+                    rejetsAttente.increment();
+                    attente.place.completeExceptionally(sature());
+                }
+            });
+        }
+        return attente.place;
+    }
+
+    /**
+     * Prend une place seulement si elle est libre tout de suite, sans passer devant les appels qui attendent
+     * (doublons de couverture : ils sont facultatifs).
+     * @return le jeton, ou null s'il n'y a pas de place libre.
+     */
+    public Jeton obtenirSansAttendre() {
+        if (!actif) return new Jeton();
+        synchronized (this) {
+            if (nbEnAttente > 0 || enCours >= (int) limite) return null;
+            enCours++;
+            admis.increment();
+        }
+        return new Jeton();
+    }
+
+    /**
+     * Variante bloquante de obtenir (réponses en flux).
+     * @throws RequeteException si la place est refusée (ServiceSatureException) ou si l'attente est interrompue.
+     */
+    public Jeton attendre(Demandeur demandeur) throws RequeteException {
+        CompletableFuture<Jeton> place = obtenir(demandeur);
+        try {
+            return place.get();
+        } catch (InterruptedException e) {
+            place.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RequeteException("Requête à Gemini interrompue.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RequeteException erreur) throw erreur;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private boolean fileDisponible(Demandeur demandeur) {
+        ArrayDeque<Attente> file = files.get(demandeur.cle());
+        return nbEnAttente < fileMax && (file == null || file.size() < fileParCle);
+    }
+
+    private static ServiceSatureException sature() {
+        return new ServiceSatureException("Le service est très sollicité en ce moment : réessayez dans quelques secondes.");
+    }
+
+    /**
+     * Retire un appel de sa file s'il y est encore.
+     * @return vrai s'il attendait encore (pas encore servi, ni retiré).
+     */
+    private synchronized boolean retirer(Attente attente) {
+        String cle = attente.demandeur.cle();
+        ArrayDeque<Attente> file = files.get(cle);
+        if (file == null || !file.remove(attente)) return false;
+        nbEnAttente--;
+        if (file.isEmpty()) {
+            files.remove(cle);
+            tourDeRole.remove(cle);
+        }
+        return true;
+    }
+
+    /**
+     * Une place est rendue : ajuste la limite, puis donne les places libres aux appels en attente, à tour de rôle.
+     */
+    private void rendre(int status, long latenceMs) {
+        if (!actif) return;
+        List<Attente> servies = new ArrayList<>();
+        synchronized (this) {
+            ajuster(status, latenceMs);
+            enCours--;
+            while (nbEnAttente > 0 && enCours < (int) limite) {
+                String cle = tourDeRole.pollFirst();
+                ArrayDeque<Attente> file = files.get(cle);
+                servies.add(file.pollFirst());
+                nbEnAttente--;
+                if (file.isEmpty()) {
+                    files.remove(cle);
+                } else {
+                    tourDeRole.addLast(cle);
+                }
+                enCours++;
+                admis.increment();
+            }
+        }
+        // En dehors du verrou : compléter l'étape exécute la suite de l'appelant
+        for (Attente attente : servies) {
+            Jeton jeton = new Jeton();
+            if (!attente.place.complete(jeton)) jeton.liberer(-1, -1); // annulé entre-temps
+        }
+    }
+
+    /**
+     * AIMD : baisse multiplicative en cas de surcharge de l'API, hausse additive sinon (si la limite sert).
+     */
+    private void ajuster(int status, long latenceMs) {
+        if (status < 0) return;
+        boolean surcharge = status == 0 || status == 429 || status == 503;
+        if (status == 200 && latenceMs >= 0) {
+            if (nbMesures++ == 0) {
+                latenceRecenteMs = latenceMs;
+                latenceHabituelleMs = latenceMs;
+            } else {
+                latenceRecenteMs += POIDS_COURT * (latenceMs - latenceRecenteMs);
+                latenceHabituelleMs += POIDS_LONG * (latenceMs - latenceHabituelleMs);
+            }
+            surcharge = nbMesures >= MIN_MESURES && latenceRecenteMs > toleranceLatence * latenceHabituelleMs;
+        }
+        long maintenant = System.currentTimeMillis();
+        if (surcharge) {
+            // Les appels partis avant la baisse reviennent avec les mêmes erreurs : une seule baisse par latence moyenne
+            if (maintenant - derniereBaisse < Math.max(1000, (long) latenceRecenteMs)) return;
+            derniereBaisse = maintenant;
+            double avant = limite;
+            limite = Math.max(limiteMin, limite * FACTEUR_BAISSE);
+            baisses.increment();
+            LOGGER.log(Level.INFO, "Limite d''appels simultanés à Gemini : {0} -> {1} (status {2})",
+                    new Object[]{(int) avant, (int) limite, status});
+        } else if (status < 500 && (enCours >= limite / 2 || nbEnAttente > 0)) {
+            limite = Math.min(limiteMax, limite + 1 / limite);
+        }
+    }
+
+    // --- Statistiques ---
+
+    public synchronized int getLimite() {
+        return (int) limite;
+    }
+
+    public synchronized int getNbEnCours() {
+        return enCours;
+    }
+
+    public synchronized int getNbEnAttente() {
+        return nbEnAttente;
+    }
+
+    /**
+     * @return le nombre d'appels qui ont obtenu une place (tout de suite ou après attente).
+     */
+    public long getNbAdmis() {
+        return admis.sum();
+    }
+
+    public long getNbMisEnAttente() {
+        return misEnAttente.sum();
+    }
+
+    /**
+     * @return le nombre d'appels refusés sans attendre (files pleines).
+     */
+    public long getNbRejetsImmediats() {
+        return rejetsImmediats.sum();
+    }
+
+    /**
+     * @return le nombre d'appels refusés après gemini.ordonnanceur.attente-max ms d'attente.
+     */
+    public long getNbRejetsAttente() {
+        return rejetsAttente.sum();
+    }
+
+    public long getNbBaisses() {
+        return baisses.sum();
+    }
+}
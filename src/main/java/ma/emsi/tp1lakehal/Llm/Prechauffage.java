@@ -0,0 +1,160 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonReader;
+import jakarta.ws.rs.core.Response;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Préchauffage au démarrage de l'application, pour que la première conversation d'un nœud qui vient d'être
+ * déployé ne paie pas l'initialisation de tout ce qu'elle traverse. Lancé sur un thread virtuel dès que le
+ * contexte application est prêt, sans retarder le déploiement ; chaque étape est chronométrée :
+ *
+ * <ul>
+ *     <li>json : recherche du fournisseur JSON-P et création des fabriques (Json.createObjectBuilder,
+ *     createWriterFactory, createParserFactory), puis gemini.prechauffage.iterations (défaut 100) constructions
+ *     de requête et lectures de réponse, pour que le JIT compile ces chemins ;</li>
+ *     <li>cdi : création des beans de l'application (et de leurs proxies) en produisant les métriques,
+ *     et d'un JsonUtilPourGemini, créé à chaque nouvelle session ;</li>
+ *     <li>reseau : démarrage du client JAX-RS, résolution DNS et poignée de main TLS avec l'API, en ouvrant
+ *     gemini.prechauffage.connexions connexions (défaut 2) gardées ensuite dans le pool keep-alive. Les requêtes
+ *     envoyées (description du modèle principal) ne consomment pas de tokens ; elles passent par AppelsResilients
+ *     comme les autres appels.</li>
+ * </ul>
+ *
+ * Les durées sont exposées par MetriquesLlm, avec le délai de la première réponse réelle.
+ * gemini.prechauffage.actif=false désactive le préchauffage.
+ */
+@ApplicationScoped
+public class Prechauffage {
+
+    private static final Logger LOGGER = Logger.getLogger(Prechauffage.class.getName());
+
+    /** File de l'ordonnanceur des appels du préchauffage. */
+    private static final OrdonnanceurAppels.Demandeur DEMANDEUR = new OrdonnanceurAppels.Demandeur("prechauffage", false);
+
+    @Inject
+    private LlmClient geminiClient;
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    @Inject
+    private MetriquesLlm metriques;
+
+    @Inject
+    private Instance<JsonUtilPourGemini> jsonUtils;
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.prechauffage.actif", true);
+    private final int iterations = ConfigurationLlm.entier("gemini.prechauffage.iterations", 100);
+    private final int nbConnexions = ConfigurationLlm.entier("gemini.prechauffage.connexions", 2);
+
+    /** Durée (ms) de chaque étape terminée, dans l'ordre. */
+    private final Map<String, Long> durees = new LinkedHashMap<>();
+
+    /**
+     * Appelé par CDI quand le contexte application est prêt (fin du déploiement).
+     */
+    void demarrer(@Observes @Initialized(ApplicationScoped.class) Object evenement) {
+        if (!actif) return;
+        Thread.ofVirtual().name("prechauffage").start(this::prechauffer);
+    }
+
+    private void prechauffer() {
+        long debut = System.nanoTime();
+        etape("json", this::prechaufferJson);
+        etape("cdi", this::prechaufferCdi);
+        etape("reseau", this::prechaufferReseau);
+        LOGGER.log(Level.INFO, "Préchauffage terminé en {0} ms {1}",
+                new Object[]{TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut), getDurees()});
+    }
+
+    /**
+     * Exécute une étape et note sa durée ; un échec est journalisé sans empêcher les étapes suivantes.
+     */
+    private void etape(String nom, Runnable traitement) {
+        long debut = System.nanoTime();
+        try {
+            traitement.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Préchauffage '" + nom + "' interrompu", e);
+        }
+        synchronized (durees) {
+            durees.put(nom, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - debut));
+        }
+    }
+
+    private void prechaufferJson() {
+        byte[] reponse = Json.createObjectBuilder()
+                .add("candidates", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                        .add("content", Json.createObjectBuilder()
+                                .add("parts", Json.createArrayBuilder().add(Json.createObjectBuilder().add("text", "Bonjour !")))
+                                .add("role", HistoriqueConversation.ROLE_MODELE))
+                        .add("finishReason", "STOP")))
+                .add("usageMetadata", Json.createObjectBuilder()
+                        .add("promptTokenCount", 12).add("candidatesTokenCount", 3).add("totalTokenCount", 15))
+                .build().toString().getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < iterations; i++) {
+            HistoriqueConversation historique = new HistoriqueConversation();
+            historique.setInstructionSysteme(RolesSysteme.texte("ASSISTANT"));
+            historique.ajouterQuestion("Question " + i + " : quel temps fait-il à Fès ?");
+            historique.ajouterReponse(ExtracteurReponseGemini.extraire(new ByteArrayInputStream(reponse)).textes());
+            historique.corps().versOctets();
+            JsonUtilPourGemini.prettyPrinting(historique.versJson());
+            ExtracteurReponseGemini.extraire(new StringReader(new String(reponse, StandardCharsets.UTF_8)));
+        }
+        try (JsonReader lecteur = Json.createReader(new StringReader("{}"))) {
+            lecteur.readObject();
+        }
+    }
+
+    private void prechaufferCdi() {
+        metriques.versPrometheus();
+        JsonUtilPourGemini jsonUtil = jsonUtils.get();
+        jsonUtils.destroy(jsonUtil);
+    }
+
+    private void prechaufferReseau() {
+        List<CompletableFuture<Void>> connexions = new ArrayList<>(nbConnexions);
+        for (int i = 0; i < nbConnexions; i++) {
+            String modele = geminiClient.getModele();
+            connexions.add(appelsResilients.appeler(modele, () -> geminiClient.decrireModele(modele), DEMANDEUR)
+                    .thenAccept(reponse -> {
+                        // Lire le corps en entier rend la connexion au pool keep-alive
+                        try (reponse) {
+                            reponse.charger();
+                            if (reponse.status() != Response.Status.OK.getStatusCode()) {
+                                LOGGER.log(Level.WARNING, "Préchauffage : l''API a répondu {0}", reponse.status());
+                            }
+                        }
+                    }));
+        }
+        CompletableFuture.allOf(connexions.toArray(CompletableFuture[]::new)).join();
+    }
+
+    /**
+     * @return la durée (ms) de chaque étape terminée du préchauffage, dans l'ordre (vide s'il n'a pas eu lieu).
+     */
+    public Map<String, Long> getDurees() {
+        synchronized (durees) {
+            return new LinkedHashMap<>(durees);
+        }
+    }
+}
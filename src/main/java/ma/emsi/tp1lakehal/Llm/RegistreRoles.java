@@ -0,0 +1,227 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.MediaType;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registre des instructions système (rôles), partagé par toutes les conversations.
+ *
+ * Chaque rôle n'est encodé qu'une fois. Si son texte est assez long, il est aussi mis en cache chez Gemini
+ * (context caching, endpoint cachedContents) : les requêtes envoient alors seulement la référence
+ * "cachedContent":"cachedContents/..." au lieu de l'instruction complète, ce qui réduit les octets envoyés
+ * et les tokens facturés en entrée.
+ *
+ * La création du cache est asynchrone : tant qu'elle n'a pas abouti (ou si elle échoue), l'instruction est
+ * envoyée en ligne. Le cache est recréé un peu avant son expiration, à la première requête qui le constate.
+ *
+ * Chaque contenu en cache est facturé tant qu'il existe : seuls les rôles prédéfinis (RolesSysteme) sont mis
+ * en cache, il y en a donc au plus un par rôle prédéfini (plus l'ancien pendant son renouvellement), et un
+ * contenu qui n'est plus utilisé disparaît à la fin de son ttl. Les autres instructions (saisies par
+ * l'utilisateur) sont seulement encodées, et seules les gemini.roles.max-personnalises (défaut 200) plus
+ * récemment utilisées sont gardées.
+ *
+ * Paramètres (voir ConfigurationLlm) : gemini.cache-contexte.actif (défaut true), gemini.cache-contexte.ttl
+ * (secondes, défaut 3600) et gemini.cache-contexte.min-tokens (défaut 1024 : l'API refuse de mettre en cache
+ * un contenu plus petit, les rôles courts restent donc toujours en ligne).
+ */
+@ApplicationScoped
+public class RegistreRoles {
+
+    private static final Logger LOGGER = Logger.getLogger(RegistreRoles.class.getName());
+
+    /** Le cache est recréé quand il lui reste moins que cette durée à vivre. */
+    private static final long MARGE_RENOUVELLEMENT_MS = 60_000;
+    /** Après un échec de création, délai avant une nouvelle tentative (le rôle reste en ligne en attendant). */
+    private static final long DELAI_APRES_ECHEC_MS = 10 * 60_000;
+
+    /**
+     * Un rôle : son instruction encodée en ligne et, si elle existe, la référence à sa copie en cache chez Gemini.
+     */
+    private static final class Role {
+        private final String texte;
+        private final byte[] fragmentEnLigne;
+        private final boolean eligible;
+        private final AtomicBoolean creationEnCours = new AtomicBoolean();
+        private volatile byte[] fragmentCache;
+        private volatile long expiration;
+        private volatile long prochainEssai;
+
+        Role(String texte, boolean eligible) {
+            this.texte = texte;
+            this.fragmentEnLigne = TamponRequeteJson.encoderInstructionSysteme(texte);
+            this.eligible = eligible;
+        }
+    }
+
+    /** File de l'ordonnanceur des créations de cache, qui ne sont faites pour aucun utilisateur en particulier. */
+    private static final OrdonnanceurAppels.Demandeur DEMANDEUR = new OrdonnanceurAppels.Demandeur("registre-roles", false);
+
+    @Inject
+    private LlmClient geminiClient;
+
+    @Inject
+    private AppelsResilients appelsResilients;
+
+    private final boolean actif = ConfigurationLlm.booleen("gemini.cache-contexte.actif", true);
+    private final long ttlSecondes = ConfigurationLlm.entierLong("gemini.cache-contexte.ttl", 3600);
+    private final int minTokens = ConfigurationLlm.entier("gemini.cache-contexte.min-tokens", 1024);
+
+    private final int maxPersonnalises = ConfigurationLlm.entier("gemini.roles.max-personnalises", 200);
+
+    /** Rôles prédéfinis, par texte : les seuls qui peuvent être mis en cache chez Gemini. Jamais retirés. */
+    private final Map<String, Role> predefinis = rolesPredefinis();
+
+    /** Instructions personnalisées encodées, de la moins récemment utilisée à la plus récente. */
+    private final LinkedHashMap<String, byte[]> personnalises = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> plusAncienne) {
+            return size() > maxPersonnalises;
+        }
+    };
+
+    /**
+     * @return le fragment à placer avant "contents" pour ce rôle : la référence au cache si elle est valide,
+     * sinon l'instruction en ligne (la création du cache est alors lancée en arrière-plan si besoin).
+     * Null si le rôle est vide.
+     */
+    public byte[] entete(String instructionSysteme) {
+        if (instructionSysteme == null || instructionSysteme.isBlank()) return null;
+        Role role = predefinis.get(instructionSysteme);
+        if (role == null) return personnalise(instructionSysteme);
+        if (!role.eligible) return role.fragmentEnLigne;
+
+        long maintenant = System.currentTimeMillis();
+        byte[] fragmentCache = role.fragmentCache;
+        if (fragmentCache != null && role.expiration - MARGE_RENOUVELLEMENT_MS > maintenant) {
+            return fragmentCache;
+        }
+        if (maintenant >= role.prochainEssai && role.creationEnCours.compareAndSet(false, true)) {
+            creerCache(role);
+        }
+        // Le cache en fin de vie reste utilisable jusqu'à son expiration réelle
+        return fragmentCache != null && role.expiration > maintenant ? fragmentCache : role.fragmentEnLigne;
+    }
+
+    /**
+     * @return l'instruction encodée en ligne (sans passer par le cache), ou null si le rôle est vide.
+     */
+    public byte[] enteteEnLigne(String instructionSysteme) {
+        if (instructionSysteme == null || instructionSysteme.isBlank()) return null;
+        Role role = predefinis.get(instructionSysteme);
+        return role != null ? role.fragmentEnLigne : personnalise(instructionSysteme);
+    }
+
+    /**
+     * @return vrai si ce fragment est une référence à un contenu en cache (et non l'instruction en ligne).
+     */
+    public boolean estReferenceCache(String instructionSysteme, byte[] fragment) {
+        Role role = instructionSysteme != null ? predefinis.get(instructionSysteme) : null;
+        return role != null && fragment != null && fragment != role.fragmentEnLigne;
+    }
+
+    /**
+     * Oublie le cache d'un rôle refusé par l'API (expiré ou supprimé) ; il sera recréé à la prochaine requête.
+     */
+    public void invalider(String instructionSysteme) {
+        Role role = instructionSysteme != null ? predefinis.get(instructionSysteme) : null;
+        if (role != null) {
+            role.fragmentCache = null;
+            role.expiration = 0;
+        }
+    }
+
+    /**
+     * @return le nombre d'instructions personnalisées encodées gardées en mémoire.
+     */
+    public int getNbPersonnalises() {
+        synchronized (personnalises) {
+            return personnalises.size();
+        }
+    }
+
+    private byte[] personnalise(String instructionSysteme) {
+        synchronized (personnalises) {
+            return personnalises.computeIfAbsent(instructionSysteme, TamponRequeteJson::encoderInstructionSysteme);
+        }
+    }
+
+    private Map<String, Role> rolesPredefinis() {
+        Map<String, Role> roles = new HashMap<>();
+        for (String code : RolesSysteme.CODES) {
+            String texte = RolesSysteme.texte(code);
+            roles.put(texte, new Role(texte, actif && EstimateurTokens.estimer(texte) >= minTokens));
+        }
+        return Map.copyOf(roles);
+    }
+
+    /**
+     * Crée (ou recrée) le contenu en cache du rôle, sans bloquer l'appelant.
+     */
+    private void creerCache(Role role) {
+        String corps = Json.createObjectBuilder()
+                .add("model", "models/" + geminiClient.getModele())
+                .add("systemInstruction", Json.createObjectBuilder()
+                        .add("parts", Json.createArrayBuilder().add(Json.createObjectBuilder().add("text", role.texte))))
+                .add("ttl", ttlSecondes + "s")
+                .build()
+                .toString();
+
+        Entity<String> entite = Entity.entity(corps, MediaType.APPLICATION_JSON_TYPE);
+        appelsResilients.appeler(geminiClient.getModele(), () -> geminiClient.creerContenuEnCache(entite), DEMANDEUR)
+                .whenComplete((reponseApi, erreur) -> {
+                    try {
+                        if (erreur != null) throw erreur;
+                        enregistrer(role, reponseApi);
+                    } catch (Throwable e) {
+                        role.prochainEssai = System.currentTimeMillis() + DELAI_APRES_ECHEC_MS;
+                        LOGGER.log(Level.WARNING, "Mise en cache du rôle système impossible, il reste envoyé en ligne : {0}",
+                                e.getMessage());
+                    } finally {
+                        role.creationEnCours.set(false);
+                    }
+                });
+    }
+
+    /**
+     * Lit le nom et l'expiration du contenu créé ({"name":"cachedContents/...","expireTime":"...",...}).
+     */
+    private void enregistrer(Role role, MutualisationRequetes.ReponseApi reponseApi) {
+        try (MutualisationRequetes.ReponseApi response = reponseApi) {
+            if (response.status() != 200) {
+                throw new IllegalStateException(response.status() + " : " + response.debut(1024));
+            }
+            JsonObject contenu;
+            try (JsonReader lecteur = Json.createReader(response.flux())) {
+                contenu = lecteur.readObject();
+            }
+            String nom = contenu.getString("name");
+            long expiration;
+            try {
+                expiration = Instant.parse(contenu.getString("expireTime")).toEpochMilli();
+            } catch (NullPointerException | DateTimeParseException e) {
+                expiration = System.currentTimeMillis() + ttlSecondes * 1000;
+            }
+            // L'expiration est écrite avant la référence : un lecteur qui voit la référence voit aussi l'expiration.
+            role.expiration = expiration;
+            role.fragmentCache = TamponRequeteJson.encoderCachedContent(nom);
+        } catch (JsonException | ClassCastException e) {
+            throw new IllegalStateException("Réponse de cachedContents illisible : " + e.getMessage(), e);
+        }
+    }
+}
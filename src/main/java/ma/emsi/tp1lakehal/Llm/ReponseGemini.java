@@ -0,0 +1,71 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.util.List;
+
+/**
+ * Partie utile d'une réponse de generateContent : les textes de candidates[0].content,
+ * la raison de fin de génération et le nombre de tokens consommés (usageMetadata).
+ * Les autres informations de la réponse (safetyRatings, groundingMetadata, ...) ne sont pas conservées.
+ */
+public class ReponseGemini {
+    private final List<String> textes;
+    private final String finishReason;
+    private final String blockReason;
+    private final int promptTokenCount;
+    private final int candidatesTokenCount;
+    private final int totalTokenCount;
+
+    public ReponseGemini(List<String> textes, String finishReason, String blockReason,
+                         int promptTokenCount, int candidatesTokenCount, int totalTokenCount) {
+        this.textes = List.copyOf(textes);
+        this.finishReason = finishReason;
+        this.blockReason = blockReason;
+        this.promptTokenCount = promptTokenCount;
+        this.candidatesTokenCount = candidatesTokenCount;
+        this.totalTokenCount = totalTokenCount;
+    }
+
+    /**
+     * @return les textes de toutes les "parts" de la réponse, dans l'ordre (vide si aucun candidat).
+     */
+    public List<String> textes() {
+        return textes;
+    }
+
+    /**
+     * @return tous les textes de la réponse mis bout à bout.
+     */
+    public String texte() {
+        return String.join("", textes);
+    }
+
+    public boolean estVide() {
+        return textes.isEmpty();
+    }
+
+    /**
+     * @return candidates[0].finishReason (STOP, MAX_TOKENS, SAFETY...), ou null.
+     */
+    public String finishReason() {
+        return finishReason;
+    }
+
+    /**
+     * @return promptFeedback.blockReason si la question a été bloquée, ou null.
+     */
+    public String blockReason() {
+        return blockReason;
+    }
+
+    public int promptTokenCount() {
+        return promptTokenCount;
+    }
+
+    public int candidatesTokenCount() {
+        return candidatesTokenCount;
+    }
+
+    public int totalTokenCount() {
+        return totalTokenCount;
+    }
+}
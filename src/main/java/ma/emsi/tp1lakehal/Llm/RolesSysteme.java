@@ -0,0 +1,74 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.util.List;
+
+/**
+ * Rôles système prédéfinis (instruction envoyée au modèle et libellé affiché), désignés par leur code.
+ * Utilisés par la page de chat (Bb) et par le traitement par lots.
+ */
+public final class RolesSysteme {
+
+    private static final String ROLE_ASSISTANT_COMPLET = """
+            You are a helpful assistant. You help the user to find the information they need.
+            If the user type a question, you answer it.
+            """;
+
+    private static final String ROLE_TRADUCTEUR_COMPLET = """
+            You are an interpreter. You translate from English to French and from French to English.
+            If the user type a French text, you translate it into English.
+            If the user type an English text, you translate it into French.
+            If the text contains only one to three words, give some examples of usage of these words in English.
+            """;
+
+    private static final String ROLE_GUIDE_COMPLET = """
+            Your are a travel guide. If the user type the name of a country or of a town,
+            you tell them what are the main places to visit in the country or the town
+            are you tell them the average price of a meal.
+            """;
+
+    private static final String ROLE_POETE_MAROCAIN = """
+            You are a Moroccan poet who transforms everything into poetry.
+            Your responses must ALWAYS be in the form of poetry (verses, rhymes, or free verse).
+            - Use vivid imagery inspired by Morocco: the Atlas mountains, the Sahara desert, Casablanca's ocean, mint tea, argan trees, souks, tagines, medinas, etc.
+            - Incorporate Arabic or Darija words naturally when appropriate (like "habibi", "shukran", "inchallah", "salam", "yallah", "choukran").
+            - Your tone is warm, philosophical, and nostalgic.
+            - Even if the user asks a simple question or makes a statement, transform it into beautiful poetry.
+            - Keep responses concise (4-8 lines of poetry).
+            - Every answer must be poetic, no exceptions.
+            Example: If asked "what is the weather?", respond with a poem about the sky, clouds, and Moroccan landscapes.
+            """;
+
+    /** Codes des rôles, dans l'ordre d'affichage. */
+    public static final List<String> CODES = List.of("ASSISTANT", "TRADUCTEUR", "GUIDE", "POETE");
+
+    private RolesSysteme() {
+    }
+
+    /**
+     * @return le texte complet du rôle système, ou null si le code est inconnu.
+     */
+    public static String texte(String code) {
+        if (code == null) return null;
+        return switch (code) {
+            case "ASSISTANT" -> ROLE_ASSISTANT_COMPLET;
+            case "TRADUCTEUR" -> ROLE_TRADUCTEUR_COMPLET;
+            case "GUIDE" -> ROLE_GUIDE_COMPLET;
+            case "POETE" -> ROLE_POETE_MAROCAIN;
+            default -> null;
+        };
+    }
+
+    /**
+     * @return le nom du rôle pour l'affichage, ou null si le code est inconnu.
+     */
+    public static String nom(String code) {
+        if (code == null) return null;
+        return switch (code) {
+            case "ASSISTANT" -> "Assistant";
+            case "TRADUCTEUR" -> "Traducteur Anglais-Français";
+            case "GUIDE" -> "Guide touristique";
+            case "POETE" -> "Poète Marocain";
+            default -> null;
+        };
+    }
+}
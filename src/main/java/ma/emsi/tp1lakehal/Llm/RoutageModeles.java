@@ -0,0 +1,286 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Choix du modèle Gemini de chaque requête, parmi le modèle principal (gemini.modele) et les autres modèles
+ * configurés, pour ne pas dépendre du quota et de la latence d'un seul modèle.
+ *
+ * <ul>
+ *     <li>Une conversation reste attachée au modèle qui lui a répondu (l'appelant le repasse à chaque requête),
+ *     tant que ce modèle est disponible.</li>
+ *     <li>Une nouvelle conversation prend le premier modèle disponible dans l'ordre de préférence ; une requête
+ *     courte (au plus gemini.routage.seuil-leger octets, défaut 2048) d'un rôle de gemini.routage.roles-legers
+ *     (défaut TRADUCTEUR) prend d'abord le modèle gemini.routage.modele-leger s'il est configuré.</li>
+ *     <li>Un modèle n'est pas disponible pendant la pause qui suit un 429 (Retry-After, ou
+ *     gemini.routage.pause-429 ms, défaut 10000), quand son propre disjoncteur est ouvert
+ *     (gemini.disjoncteur.seuil erreurs réseau ou 5xx consécutives, défaut 5, pour gemini.disjoncteur.duree
+ *     secondes, défaut 30 ; un 429 ne compte pas, il met seulement le modèle en pause), ou quand sa latence
+ *     moyenne récente dépasse gemini.routage.latence-max ms (défaut 30000) ; dans ce dernier cas, il est
+ *     réessayé après gemini.routage.reessai-lent ms (défaut 30000) sans mesure.</li>
+ *     <li>Après une erreur transitoire, AppelsResilients reprend la requête sur un autre modèle disponible
+ *     (voir remplacant), sans attendre.</li>
+ * </ul>
+ *
+ * gemini.modeles : autres modèles utilisables, par ordre de préférence, séparés par des virgules
+ * (ex: gemini-2.5-flash-lite,gemini-2.0-flash). Sans autre modèle, toutes les requêtes vont au modèle principal.
+ */
+@ApplicationScoped
+public class RoutageModeles {
+
+    private static final Logger LOGGER = Logger.getLogger(RoutageModeles.class.getName());
+
+    /** Poids d'une nouvelle mesure dans la latence moyenne (moyenne mobile exponentielle). */
+    private static final double POIDS_MESURE = 0.3;
+    /** Mesures nécessaires avant de juger un modèle lent. */
+    private static final int MIN_MESURES = 5;
+
+    /**
+     * État d'un modèle. Protégé par son propre verrou (sauf le disjoncteur, qui a le sien).
+     */
+    private final class EtatModele {
+        private final String nom;
+        private final Disjoncteur disjoncteur = new Disjoncteur(
+                ConfigurationLlm.entier("gemini.disjoncteur.seuil", 5),
+                ConfigurationLlm.entierLong("gemini.disjoncteur.duree", 30) * 1000);
+        private double latenceMoyenneMs;
+        private int nbMesures;
+        private long derniereMesure;
+        private long pauseJusqua;
+        private final LongAdder choix = new LongAdder();
+        private final LongAdder echecs = new LongAdder();
+
+        private EtatModele(String nom) {
+            this.nom = nom;
+        }
+
+        private synchronized boolean lent(long maintenant) {
+            return nbMesures >= MIN_MESURES && latenceMoyenneMs > latenceMaxMs
+                    && maintenant - derniereMesure < reessaiLentMs;
+        }
+
+        private synchronized boolean enPause(long maintenant) {
+            return maintenant < pauseJusqua;
+        }
+
+        /**
+         * @return vrai si le modèle peut recevoir la requête ; un disjoncteur demi-ouvert laisse passer un seul essai.
+         */
+        private boolean disponible(long maintenant) {
+            return !enPause(maintenant) && !lent(maintenant) && disjoncteur.autoriser();
+        }
+
+        private synchronized void mesurer(long latenceMs, long maintenant) {
+            latenceMoyenneMs = nbMesures == 0 ? latenceMs : latenceMoyenneMs + POIDS_MESURE * (latenceMs - latenceMoyenneMs);
+            nbMesures++;
+            derniereMesure = maintenant;
+        }
+
+        private synchronized void pause(long dureeMs, long maintenant) {
+            pauseJusqua = Math.max(pauseJusqua, maintenant + dureeMs);
+        }
+
+        private synchronized double getLatenceMoyenneMs() {
+            return latenceMoyenneMs;
+        }
+    }
+
+    @Inject
+    private LlmClient geminiClient;
+
+    private final String modeleLeger = ConfigurationLlm.texte("gemini.routage.modele-leger", null);
+    private final Set<String> rolesLegers = Arrays.stream(ConfigurationLlm.texte("gemini.routage.roles-legers", "TRADUCTEUR")
+            .split(",")).map(String::trim).filter(r -> !r.isEmpty()).collect(Collectors.toSet());
+    private final int seuilLeger = ConfigurationLlm.entier("gemini.routage.seuil-leger", 2048);
+    private final long latenceMaxMs = ConfigurationLlm.entierLong("gemini.routage.latence-max", 30000);
+    private final long reessaiLentMs = ConfigurationLlm.entierLong("gemini.routage.reessai-lent", 30000);
+    private final long pause429Ms = ConfigurationLlm.entierLong("gemini.routage.pause-429", 10000);
+
+    /** Modèles par ordre de préférence, le principal en premier. Rempli au premier usage (après l'init du client). */
+    private volatile Map<String, EtatModele> modeles;
+
+    private final LongAdder bascules = new LongAdder();
+
+    private Map<String, EtatModele> modeles() {
+        Map<String, EtatModele> liste = modeles;
+        if (liste != null) return liste;
+        synchronized (this) {
+            if (modeles == null) {
+                Map<String, EtatModele> nouvelle = new LinkedHashMap<>();
+                nouvelle.put(geminiClient.getModele(), new EtatModele(geminiClient.getModele()));
+                for (String nom : ConfigurationLlm.texte("gemini.modeles", "").split(",")) {
+                    if (!nom.isBlank()) nouvelle.putIfAbsent(nom.trim(), new EtatModele(nom.trim()));
+                }
+                if (modeleLeger != null) nouvelle.putIfAbsent(modeleLeger, new EtatModele(modeleLeger));
+                modeles = nouvelle;
+            }
+            return modeles;
+        }
+    }
+
+    /**
+     * Choisit le modèle d'une requête.
+     * @param modeleConversation modèle auquel la conversation est attachée, ou null pour une nouvelle conversation.
+     * @param tailleRequete taille du corps de la requête (octets).
+     * @return le modèle de la conversation s'il est disponible, sinon le premier modèle disponible
+     * (le modèle léger d'abord pour une requête courte d'un rôle léger) ; si aucun ne l'est, le modèle préféré.
+     */
+    public String choisir(String modeleConversation, String codeRole, int tailleRequete) {
+        Map<String, EtatModele> liste = modeles();
+        List<EtatModele> candidats = new ArrayList<>(liste.size());
+        EtatModele attache = modeleConversation == null ? null : liste.get(modeleConversation);
+        if (attache != null) {
+            candidats.add(attache);
+        } else if (modeleLeger != null && tailleRequete <= seuilLeger && codeRole != null && rolesLegers.contains(codeRole)) {
+            candidats.add(liste.get(modeleLeger));
+        }
+        for (EtatModele etat : liste.values()) {
+            if (!candidats.contains(etat)) candidats.add(etat);
+        }
+
+        long maintenant = System.currentTimeMillis();
+        for (EtatModele etat : candidats) {
+            if (etat.disponible(maintenant)) {
+                if (attache != null && etat != attache) basculer(attache.nom, etat.nom);
+                etat.choix.increment();
+                return etat.nom;
+            }
+        }
+        candidats.get(0).choix.increment();
+        return candidats.get(0).nom;
+    }
+
+    /**
+     * @return un autre modèle disponible pour reprendre une requête qui vient d'échouer sur ce modèle,
+     * ou ce modèle lui-même s'il n'y en a pas.
+     */
+    public String remplacant(String modele) {
+        Map<String, EtatModele> liste = modeles();
+        if (liste.size() == 1) return modele;
+        long maintenant = System.currentTimeMillis();
+        for (EtatModele etat : liste.values()) {
+            if (!etat.nom.equals(modele) && etat.disponible(maintenant)) {
+                basculer(modele, etat.nom);
+                etat.choix.increment();
+                return etat.nom;
+            }
+        }
+        return modele;
+    }
+
+    private void basculer(String depuis, String vers) {
+        bascules.increment();
+        LOGGER.log(Level.FINE, "Requête basculée de {0} vers {1}", new Object[]{depuis, vers});
+    }
+
+    /**
+     * Enregistre le résultat d'un appel à un modèle.
+     * @param status status HTTP de la réponse, ou 0 si le modèle n'a pas répondu (erreur réseau, timeout).
+     * @param latenceMs durée de l'appel, ou -1 si elle ne mesure pas la génération (réponse en flux).
+     * @param retryAfter en-tête Retry-After d'une réponse 429, ou null.
+     */
+    public void enregistrer(String modele, int status, long latenceMs, String retryAfter) {
+        EtatModele etat = modeles().get(modele);
+        if (etat == null) return;
+        long maintenant = System.currentTimeMillis();
+        if (status == 429) {
+            // Limite de débit propre à ce modèle : une pause, pas une panne
+            etat.echecs.increment();
+        } else if (status == 0 || AppelsResilients.estTransitoire(status)) {
+            etat.echecs.increment();
+            etat.disjoncteur.echec();
+        } else {
+            etat.disjoncteur.succes();
+        }
+        if (status == 429) {
+            long demande = AppelsResilients.lireRetryAfter(retryAfter);
+            etat.pause(demande >= 0 ? demande : pause429Ms, maintenant);
+        } else if (latenceMs >= 0 && (status == 0 || status == 200)) {
+            // Un refus rapide ne dit rien de la vitesse du modèle ; un timeout, si.
+            etat.mesurer(latenceMs, maintenant);
+        }
+    }
+
+    /**
+     * @return le nombre de millisecondes pendant lesquelles le disjoncteur de ce modèle refuse encore les appels
+     * (0 s'il n'est pas ouvert ou si le modèle n'est pas configuré).
+     */
+    public long getAttenteDisjoncteurMs(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? 0 : etat.disjoncteur.getAttenteMs();
+    }
+
+    // --- Statistiques ---
+
+    /**
+     * @return les modèles, dans l'ordre de préférence.
+     */
+    public List<String> getModeles() {
+        return List.copyOf(modeles().keySet());
+    }
+
+    /**
+     * @return le nombre de requêtes (et de reprises) envoyées à ce modèle.
+     */
+    public long getNbChoix(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? 0 : etat.choix.sum();
+    }
+
+    /**
+     * @return le nombre d'appels à ce modèle terminés par une erreur transitoire ou sans réponse.
+     */
+    public long getNbEchecs(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? 0 : etat.echecs.sum();
+    }
+
+    /**
+     * @return la latence moyenne récente (ms) des appels à ce modèle.
+     */
+    public double getLatenceMoyenneMs(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? 0 : etat.getLatenceMoyenneMs();
+    }
+
+    /**
+     * @return vrai si le modèle peut recevoir des requêtes (ni en pause, ni lent, ni disjoncteur ouvert).
+     */
+    public boolean isDisponible(String modele) {
+        EtatModele etat = modeles().get(modele);
+        long maintenant = System.currentTimeMillis();
+        return etat != null && !etat.enPause(maintenant) && !etat.lent(maintenant)
+                && etat.disjoncteur.getEtat() != Disjoncteur.Etat.OUVERT;
+    }
+
+    public Disjoncteur.Etat getEtatDisjoncteur(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? Disjoncteur.Etat.FERME : etat.disjoncteur.getEtat();
+    }
+
+    public long getNbOuverturesDisjoncteur(String modele) {
+        EtatModele etat = modeles().get(modele);
+        return etat == null ? 0 : etat.disjoncteur.getNbOuvertures();
+    }
+
+    /**
+     * @return le nombre de requêtes envoyées à un autre modèle que celui de leur conversation, ou reprises
+     * sur un autre modèle après une erreur.
+     */
+    public long getNbBascules() {
+        return bascules.sum();
+    }
+}
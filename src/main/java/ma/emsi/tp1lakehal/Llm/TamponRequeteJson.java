@@ -0,0 +1,250 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.stream.JsonGenerator;
+import jakarta.json.stream.JsonGeneratorFactory;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache, en octets UTF-8, de la partie déjà sérialisée d'une requête Gemini :
+ * l'en-tête ("systemInstruction" ou référence "cachedContent") et les éléments successifs du tableau "contents".
+ *
+ * Chaque tour n'est sérialisé qu'une seule fois, au moment où il est ajouté ; le corps complet
+ * d'une requête est ensuite écrit directement dans le flux HTTP à partir de ce cache,
+ * sans reconstruire ni recopier une String contenant toute la conversation.
+ *
+ * Le tampon ne fait que grandir (ajout en fin) : un Corps obtenu par corps() reste donc valide
+ * et inchangé même si d'autres tours sont ajoutés ensuite.
+ */
+public class TamponRequeteJson {
+
+    private static final JsonGeneratorFactory GENERATOR_FACTORY = Json.createGeneratorFactory(Map.of());
+
+    private static final byte[] CLE_INSTRUCTION = "\"systemInstruction\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLE_CACHED_CONTENT = "\"cachedContent\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEBUT_CONTENTS = "\"contents\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FIN_REQUETE = "]}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Fragment déjà encodé placé avant "contents" : "systemInstruction":{...} ou "cachedContent":"...".
+     * Null s'il n'y a pas de rôle système. Le tableau peut être partagé entre conversations : il n'est jamais modifié.
+     */
+    private byte[] entete;
+    /** Éléments de "contents" encodés et séparés par des virgules ; seuls les 'taille' premiers octets sont utilisés. */
+    private byte[] contenus = new byte[1024];
+    private int taille;
+    private int nbContenus;
+
+    /**
+     * Encode l'instruction système : "systemInstruction":{"parts":[{"text":"..."}]}.
+     * @return le fragment encodé, ou null si le texte est null.
+     */
+    public static byte[] encoderInstructionSysteme(String texte) {
+        if (texte == null) return null;
+        Sortie sortie = new Sortie(CLE_INSTRUCTION.length + texte.length() + 32);
+        sortie.write(CLE_INSTRUCTION, 0, CLE_INSTRUCTION.length);
+        try (JsonGenerator generateur = GENERATOR_FACTORY.createGenerator(sortie, StandardCharsets.UTF_8)) {
+            generateur.writeStartObject();
+            ecrireParts(generateur, List.of(texte));
+            generateur.writeEnd();
+        }
+        return Arrays.copyOf(sortie.octets, sortie.taille);
+    }
+
+    /**
+     * Encode la référence à un contenu mis en cache chez Gemini : "cachedContent":"cachedContents/...".
+     */
+    public static byte[] encoderCachedContent(String nomCache) {
+        Sortie sortie = new Sortie(CLE_CACHED_CONTENT.length + nomCache.length() + 2);
+        sortie.write(CLE_CACHED_CONTENT, 0, CLE_CACHED_CONTENT.length);
+        try (JsonGenerator generateur = GENERATOR_FACTORY.createGenerator(sortie, StandardCharsets.UTF_8)) {
+            generateur.write(nomCache);
+        }
+        return Arrays.copyOf(sortie.octets, sortie.taille);
+    }
+
+    /**
+     * Remplace l'en-tête par un fragment déjà encodé (voir encoderInstructionSysteme et encoderCachedContent).
+     * Les contenus déjà encodés ne sont pas touchés.
+     */
+    public void setEntete(byte[] fragment) {
+        this.entete = fragment;
+    }
+
+    /**
+     * Ajoute un 'Content Object' ({"role": ..., "parts": [{"text": ...}, ...]}) à la fin du tableau "contents".
+     * L'objet est encodé directement dans le tampon, sans passer par un JsonObject ni une String.
+     */
+    public void ajouterContenu(String role, List<String> textes) {
+        SortieContenus sortie = new SortieContenus();
+        if (nbContenus > 0) {
+            sortie.write(',');
+        }
+        try (JsonGenerator generateur = GENERATOR_FACTORY.createGenerator(sortie, StandardCharsets.UTF_8)) {
+            generateur.writeStartObject();
+            generateur.write("role", role);
+            ecrireParts(generateur, textes);
+            generateur.writeEnd();
+        }
+        nbContenus++;
+    }
+
+    /**
+     * @return le corps de la requête dans son état actuel, prêt à être écrit dans le flux HTTP.
+     */
+    public Corps corps() {
+        return new Corps(entete, contenus, taille);
+    }
+
+    /**
+     * @return la taille du tableau des contenus encodés (octets occupés en mémoire, y compris la réserve).
+     */
+    public int capacite() {
+        return contenus.length;
+    }
+
+    private void reserver(int nbOctets) {
+        if (taille + nbOctets > contenus.length) {
+            contenus = Arrays.copyOf(contenus, Math.max(contenus.length * 2, taille + nbOctets));
+        }
+    }
+
+    private static void ecrireParts(JsonGenerator generateur, List<String> textes) {
+        generateur.writeStartArray("parts");
+        for (String texte : textes) {
+            generateur.writeStartObject().write("text", texte).writeEnd();
+        }
+        generateur.writeEnd();
+    }
+
+    /**
+     * Corps JSON d'une requête, figé au moment de sa création.
+     * Utilisable comme entité JAX-RS : il est écrit directement dans le flux de sortie de la connexion.
+     */
+    public static final class Corps implements StreamingOutput {
+        private final byte[] entete;
+        private final byte[] contenus;
+        private final int tailleContenus;
+
+        private Corps(byte[] entete, byte[] contenus, int tailleContenus) {
+            this.entete = entete;
+            this.contenus = contenus;
+            this.tailleContenus = tailleContenus;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            out.write('{');
+            if (entete != null) {
+                out.write(entete);
+                out.write(',');
+            }
+            out.write(DEBUT_CONTENTS);
+            out.write(contenus, 0, tailleContenus);
+            out.write(FIN_REQUETE);
+        }
+
+        /**
+         * @return la taille du corps en octets.
+         */
+        public int taille() {
+            return 1 + (entete == null ? 0 : entete.length + 1)
+                    + DEBUT_CONTENTS.length + tailleContenus + FIN_REQUETE.length;
+        }
+
+        /**
+         * Ajoute les octets du corps au hash, directement depuis le cache (sans copie).
+         */
+        public void hacher(MessageDigest hash) {
+            hash.update((byte) '{');
+            if (entete != null) {
+                hash.update(entete);
+                hash.update((byte) ',');
+            }
+            hash.update(DEBUT_CONTENTS);
+            hash.update(contenus, 0, tailleContenus);
+            hash.update(FIN_REQUETE);
+        }
+
+        /**
+         * @return une copie du corps en octets (pour le debug ou les messages d'erreur).
+         */
+        public byte[] versOctets() {
+            Sortie sortie = new Sortie(taille());
+            try {
+                write(sortie);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // impossible en mémoire
+            }
+            return sortie.octets;
+        }
+
+        /**
+         * @return le corps relu comme objet JSON (pour le debug ou les messages d'erreur).
+         */
+        public JsonObject versJson() {
+            try (JsonReader reader = Json.createReader(new ByteArrayInputStream(versOctets()))) {
+                return reader.readObject();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new String(versOctets(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Flux de sortie qui écrit à la fin du tableau des contenus.
+     */
+    private class SortieContenus extends OutputStream {
+        @Override
+        public void write(int b) {
+            reserver(1);
+            contenus[taille++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            reserver(len);
+            System.arraycopy(b, off, contenus, taille, len);
+            taille += len;
+        }
+    }
+
+    /**
+     * Flux de sortie en mémoire qui donne accès à son tableau sans copie (contrairement à ByteArrayOutputStream).
+     */
+    private static class Sortie extends OutputStream {
+        byte[] octets;
+        int taille;
+
+        Sortie(int capacite) {
+            this.octets = new byte[capacite];
+        }
+
+        @Override
+        public void write(int b) {
+            if (taille == octets.length) octets = Arrays.copyOf(octets, Math.max(16, taille * 2));
+            octets[taille++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (taille + len > octets.length) octets = Arrays.copyOf(octets, Math.max(taille * 2, taille + len));
+            System.arraycopy(b, off, octets, taille, len);
+            taille += len;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Traitement par lots de questions (par exemple des milliers de traductions avec le rôle TRADUCTEUR),
+ * sans passer par la page de chat.
+ *
+ * Le fichier d'entrée est lu ligne par ligne (JSONL) : {"id": "...", "role": "TRADUCTEUR", "prompt": "..."}.
+ * "role" est un code de RolesSysteme (ASSISTANT par défaut) et "instruction" peut donner directement le texte
+ * du rôle. Chaque question est une conversation d'un seul tour, envoyée par JsonUtilPourGemini (donc avec le
+ * cache des réponses et la mutualisation des requêtes identiques).
+ *
+ * Les résultats sont ajoutés au fichier de sortie (JSONL) au fur et à mesure, dans l'ordre où ils arrivent :
+ * {"ligne": 12, "id": "...", "reponse": "...", "finishReason": "STOP", "tokens": 321} ou {"ligne": 12, ..., "erreur": "..."}.
+ *
+ * Reprise : le fichier "sortie.checkpoint" contient le numéro de la première ligne non terminée ; toutes les
+ * lignes précédentes sont dans la sortie. Au redémarrage, ces lignes et celles déjà écrites au-delà sont sautées.
+ *
+ * La mémoire utilisée ne dépend pas de la taille du fichier : au plus "parallelisme" requêtes sont en cours
+ * et la lecture ne prend pas plus de FENETRE_PAR_REQUETE * parallelisme lignes d'avance sur le checkpoint.
+ */
+@ApplicationScoped
+public class TraitementParLots {
+
+    /** Avance maximale de la lecture sur le checkpoint, en nombre de requêtes parallèles. */
+    private static final int FENETRE_PAR_REQUETE = 4;
+    /** Le checkpoint est réécrit au plus tard toutes les CHECKPOINT_LIGNES lignes terminées. */
+    private static final int CHECKPOINT_LIGNES = 50;
+
+    /**
+     * Un lot en cours ou terminé, avec sa progression.
+     */
+    public static final class Lot {
+        private final String nom;
+        private final Path entree;
+        private final Path sortie;
+        private final Path checkpoint;
+        private final int parallelisme;
+        private final double debit;
+        private final int fenetre;
+
+        private final LongAdder reussies = new LongAdder();
+        private final LongAdder echecs = new LongAdder();
+        private final LongAdder reprises = new LongAdder();
+        private final Semaphore permis;
+        private final CompletableFuture<Void> fin = new CompletableFuture<>();
+        private volatile String erreur;
+
+        /** Protège l'écriture de la sortie, le checkpoint et les lignes terminées au-delà du checkpoint. */
+        private final ReentrantLock verrou = new ReentrantLock();
+        private final Condition fenetreLibre = verrou.newCondition();
+        private BufferedWriter ecrivain;
+        private long filigrane;
+        private long dernierCheckpoint;
+        private final TreeSet<Long> terminees = new TreeSet<>();
+
+        /** Utilisé par le seul thread de lecture. */
+        private long prochainCreneau;
+
+        Lot(Path entree, Path sortie, int parallelisme, double debit) {
+            this.nom = sortie.getFileName().toString();
+            this.entree = entree;
+            this.sortie = sortie;
+            this.checkpoint = sortie.resolveSibling(nom + ".checkpoint");
+            this.parallelisme = parallelisme;
+            this.debit = debit;
+            this.fenetre = FENETRE_PAR_REQUETE * parallelisme;
+            this.permis = new Semaphore(parallelisme);
+        }
+
+        public String nom() {
+            return nom;
+        }
+
+        public Path entree() {
+            return entree;
+        }
+
+        public Path sortie() {
+            return sortie;
+        }
+
+        public int parallelisme() {
+            return parallelisme;
+        }
+
+        public long reussies() {
+            return reussies.sum();
+        }
+
+        public long echecs() {
+            return echecs.sum();
+        }
+
+        /**
+         * @return le nombre de lignes sautées car déjà traitées avant un redémarrage.
+         */
+        public long reprises() {
+            return reprises.sum();
+        }
+
+        public boolean estTermine() {
+            return fin.isDone();
+        }
+
+        /**
+         * @return l'erreur qui a arrêté le lot (fichier illisible, disque plein...), ou null.
+         */
+        public String erreur() {
+            return erreur;
+        }
+
+        /**
+         * @return étape qui se termine quand toutes les lignes ont été traitées.
+         */
+        public CompletableFuture<Void> fin() {
+            return fin;
+        }
+    }
+
+    @Inject
+    private Instance<JsonUtilPourGemini> jsonUtils;
+
+    private final Map<String, Lot> lots = new ConcurrentHashMap<>();
+
+    /**
+     * Lance (ou reprend) le traitement d'un fichier, dans un thread virtuel.
+     * @param parallelisme nombre maximal de requêtes en cours.
+     * @param debit nombre maximal de requêtes lancées par seconde (0 : pas de limite).
+     * @throws IllegalStateException si un lot écrit déjà dans ce fichier de sortie.
+     */
+    public Lot lancer(Path entree, Path sortie, int parallelisme, double debit) {
+        if (parallelisme < 1) throw new IllegalArgumentException("Parallélisme invalide : " + parallelisme);
+        Lot lot = new Lot(entree, sortie, parallelisme, debit);
+        lots.compute(lot.nom, (nom, existant) -> {
+            if (existant != null && !existant.estTermine()) throw new IllegalStateException("Lot déjà en cours : " + nom);
+            return lot;
+        });
+        Thread.ofVirtual().name("gemini-lot-" + lot.nom).start(() -> executer(lot));
+        return lot;
+    }
+
+    /**
+     * @return les lots lancés depuis le démarrage de l'application.
+     */
+    public Collection<Lot> getLots() {
+        return lots.values();
+    }
+
+    // --- Lecture et envoi ---
+
+    private void executer(Lot lot) {
+        try {
+            preparerReprise(lot);
+            try (BufferedReader lecteur = Files.newBufferedReader(lot.entree, StandardCharsets.UTF_8)) {
+                // Lignes déjà traitées avant un redémarrage : avant le checkpoint, ou écrites au-delà
+                long repriseJusqua = lot.filigrane;
+                Set<Long> dejaEcrites = new HashSet<>(lot.terminees);
+                long numero = 0;
+                String ligne;
+                while ((ligne = lecteur.readLine()) != null) {
+                    long n = numero++;
+                    if (n < repriseJusqua || dejaEcrites.remove(n)) {
+                        lot.reprises.increment();
+                        continue;
+                    }
+                    if (ligne.isBlank()) {
+                        terminer(lot, n, null);
+                        continue;
+                    }
+                    attendreFenetre(lot, n);
+                    lot.permis.acquire();
+                    attendreDebit(lot);
+                    envoyer(lot, n, ligne);
+                }
+            }
+            // Attend la fin des requêtes en cours
+            lot.permis.acquire(lot.parallelisme);
+            if (lot.erreur != null) throw new IllegalStateException(lot.erreur);
+            lot.verrou.lock();
+            try {
+                ecrireCheckpoint(lot);
+            } finally {
+                lot.verrou.unlock();
+            }
+            lot.fin.complete(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lot.erreur = "Traitement interrompu.";
+            lot.fin.completeExceptionally(e);
+        } catch (IOException | RuntimeException e) {
+            lot.erreur = e.getMessage();
+            lot.fin.completeExceptionally(e);
+        } finally {
+            fermer(lot);
+        }
+    }
+
+    /**
+     * Envoie une ligne ; la requête se termine dans un autre thread, qui écrit le résultat.
+     */
+    private void envoyer(Lot lot, long n, String ligne) {
+        JsonObject entree;
+        String id = String.valueOf(n);
+        String codeRole;
+        String instruction;
+        String prompt;
+        try (JsonReader reader = Json.createReader(new StringReader(ligne))) {
+            entree = reader.readObject();
+            id = texte(entree.get("id"), id);
+            codeRole = entree.getString("role", "ASSISTANT");
+            instruction = entree.getString("instruction", RolesSysteme.texte(codeRole));
+            prompt = entree.getString("prompt", entree.getString("question", null));
+            if (instruction == null) throw new IllegalArgumentException("Rôle inconnu : " + codeRole);
+            if (prompt == null || prompt.isBlank()) throw new IllegalArgumentException("Champ \"prompt\" absent ou vide.");
+        } catch (JsonException | ClassCastException | IllegalArgumentException e) {
+            lot.echecs.increment();
+            terminer(lot, n, resultat(n, id).add("erreur", "Ligne invalide : " + e.getMessage()));
+            lot.permis.release();
+            return;
+        }
+
+        JsonUtilPourGemini jsonUtil = jsonUtils.get();
+        jsonUtil.setSystemRole(instruction);
+        jsonUtil.setCodeRole(codeRole);
+        jsonUtil.setCaptureReponseJson(false);
+        // Les lignes d'un lot partagent une file de l'ordonnanceur et attendent leur tour sans être refusées
+        jsonUtil.setCleUtilisateur("lot:" + lot.nom());
+        jsonUtil.setArrierePlan(true);
+        String idLigne = id;
+        jsonUtil.envoyerRequeteAsync(prompt).whenComplete((interaction, erreur) -> {
+            try {
+                terminer(lot, n, resultat(lot, n, idLigne, codeRole, interaction, erreur));
+            } finally {
+                jsonUtils.destroy(jsonUtil);
+                lot.permis.release();
+            }
+        });
+    }
+
+    /**
+     * @return le résultat d'une ligne envoyée : la réponse, ou l'erreur de l'appel.
+     */
+    private static JsonObjectBuilder resultat(Lot lot, long n, String id, String codeRole,
+                                              LlmInteraction interaction, Throwable erreur) {
+        JsonObjectBuilder resultat = resultat(n, id).add("role", codeRole);
+        try {
+            if (erreur != null) {
+                Throwable cause = erreur instanceof CompletionException && erreur.getCause() != null
+                        ? erreur.getCause() : erreur;
+                resultat.add("erreur", String.valueOf(cause.getMessage()));
+                lot.echecs.increment();
+                return resultat;
+            }
+            ReponseGemini reponse = interaction.reponseGemini();
+            // Une réponse sans texte (bloquée, par exemple) reste une réponse : finishReason dit pourquoi
+            resultat.add("reponse", Objects.requireNonNullElse(interaction.reponseExtraite(), ""));
+            if (reponse != null) {
+                if (reponse.finishReason() != null) resultat.add("finishReason", reponse.finishReason());
+                resultat.add("tokens", reponse.totalTokenCount());
+            }
+            lot.reussies.increment();
+            return resultat;
+        } catch (RuntimeException e) {
+            lot.echecs.increment();
+            return resultat(n, id).add("role", codeRole).add("erreur", "Réponse illisible : " + e.getMessage());
+        }
+    }
+
+    /**
+     * La lecture ne prend pas plus de "fenetre" lignes d'avance sur le checkpoint : une requête lente
+     * ne peut donc pas faire grossir indéfiniment l'ensemble des lignes terminées au-delà.
+     * @throws IllegalStateException si le lot s'est arrêté sur une erreur (sortie illisible, disque plein...).
+     */
+    private static void attendreFenetre(Lot lot, long n) throws InterruptedException {
+        lot.verrou.lock();
+        try {
+            while (lot.erreur == null && n >= lot.filigrane + lot.fenetre) {
+                lot.fenetreLibre.await();
+            }
+            if (lot.erreur != null) throw new IllegalStateException(lot.erreur);
+        } finally {
+            lot.verrou.unlock();
+        }
+    }
+
+    /**
+     * Espace les lancements de requêtes pour respecter le débit demandé.
+     */
+    private static void attendreDebit(Lot lot) throws InterruptedException {
+        if (lot.debit <= 0) return;
+        long intervalle = (long) (1_000_000_000L / lot.debit);
+        long maintenant = System.nanoTime();
+        long creneau = Math.max(lot.prochainCreneau, maintenant);
+        lot.prochainCreneau = creneau + intervalle;
+        if (creneau > maintenant) TimeUnit.NANOSECONDS.sleep(creneau - maintenant);
+    }
+
+    // --- Écriture des résultats et checkpoint ---
+
+    /**
+     * Écrit le résultat d'une ligne (null pour une ligne vide, sans résultat) puis avance le checkpoint
+     * si toutes les lignes précédentes sont terminées.
+     * Si l'écriture échoue, le lot s'arrête (erreur) : la ligne est quand même marquée terminée pour que la
+     * lecture ne reste pas bloquée, mais le checkpoint n'avance plus, et la reprise la traitera à nouveau.
+     */
+    private void terminer(Lot lot, long n, JsonObjectBuilder resultat) {
+        lot.verrou.lock();
+        try {
+            if (resultat != null && lot.erreur == null) {
+                lot.ecrivain.write(resultat.build().toString());
+                lot.ecrivain.newLine();
+                lot.ecrivain.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            lot.erreur = "Écriture du résultat impossible : " + e.getMessage();
+        } finally {
+            try {
+                lot.terminees.add(n);
+                while (!lot.terminees.isEmpty() && lot.terminees.first() == lot.filigrane) {
+                    lot.terminees.pollFirst();
+                    lot.filigrane++;
+                }
+                if (lot.erreur == null && lot.filigrane - lot.dernierCheckpoint >= CHECKPOINT_LIGNES) {
+                    ecrireCheckpoint(lot);
+                }
+            } catch (IOException e) {
+                lot.erreur = "Écriture du checkpoint impossible : " + e.getMessage();
+            } finally {
+                lot.fenetreLibre.signalAll();
+                lot.verrou.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remplace le checkpoint de façon atomique (fichier temporaire puis renommage).
+     */
+    private static void ecrireCheckpoint(Lot lot) throws IOException {
+        Path temporaire = lot.checkpoint.resolveSibling(lot.checkpoint.getFileName() + ".tmp");
+        Files.writeString(temporaire, Long.toString(lot.filigrane), StandardCharsets.UTF_8);
+        Files.move(temporaire, lot.checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lot.dernierCheckpoint = lot.filigrane;
+    }
+
+    /**
+     * Relit le checkpoint et les lignes déjà écrites au-delà, puis ouvre la sortie en ajout.
+     */
+    private static void preparerReprise(Lot lot) throws IOException {
+        if (Files.exists(lot.checkpoint)) {
+            lot.filigrane = Long.parseLong(Files.readString(lot.checkpoint, StandardCharsets.UTF_8).trim());
+            lot.dernierCheckpoint = lot.filigrane;
+        }
+        if (Files.exists(lot.sortie)) {
+            terminerDerniereLigne(lot.sortie);
+            try (BufferedReader lecteur = Files.newBufferedReader(lot.sortie, StandardCharsets.UTF_8)) {
+                String ligne;
+                while ((ligne = lecteur.readLine()) != null) {
+                    long n = numeroLigne(ligne);
+                    if (n >= lot.filigrane) lot.terminees.add(n);
+                }
+            }
+        }
+        lot.ecrivain = Files.newBufferedWriter(lot.sortie, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Après un arrêt brutal, la dernière ligne de la sortie peut être incomplète : elle est terminée
+     * par un saut de ligne pour que la suite soit écrite sur une nouvelle ligne (elle sera ignorée à la relecture).
+     */
+    private static void terminerDerniereLigne(Path sortie) throws IOException {
+        try (RandomAccessFile fichier = new RandomAccessFile(sortie.toFile(), "rw")) {
+            if (fichier.length() == 0) return;
+            fichier.seek(fichier.length() - 1);
+            if (fichier.read() != '\n') fichier.write('\n');
+        }
+    }
+
+    /**
+     * @return le numéro de ligne d'un résultat déjà écrit, ou -1 si la ligne est illisible.
+     */
+    private static long numeroLigne(String ligne) {
+        try (JsonReader reader = Json.createReader(new StringReader(ligne))) {
+            return reader.readObject().getJsonNumber("ligne").longValue();
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    private static void fermer(Lot lot) {
+        lot.verrou.lock();
+        try {
+            if (lot.ecrivain != null) lot.ecrivain.close();
+        } catch (IOException e) {
+            if (lot.erreur == null) lot.erreur = e.getMessage();
+        } finally {
+            lot.verrou.unlock();
+        }
+    }
+
+    private static JsonObjectBuilder resultat(long n, String id) {
+        return Json.createObjectBuilder().add("ligne", n).add("id", id);
+    }
+
+    private static String texte(JsonValue valeur, String defaut) {
+        if (valeur == null || valeur == JsonValue.NULL) return defaut;
+        return valeur instanceof JsonString chaine ? chaine.getString() : valeur.toString();
+    }
+}
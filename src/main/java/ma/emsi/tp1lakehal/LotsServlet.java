@@ -0,0 +1,129 @@
+package ma.emsi.tp1lakehal;
+
+import jakarta.inject.Inject;
+import jakarta.json.Json;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ma.emsi.tp1lakehal.Llm.TraitementParLots;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Lancement et suivi des traitements par lots (voir TraitementParLots).
+ *
+ * POST /lots?entree=questions.jsonl&sortie=reponses.jsonl[&parallelisme=8][&debit=5] lance (ou reprend) un lot ;
+ * GET /lots donne la progression de tous les lots, en JSON.
+ *
+ * Les fichiers sont pris dans le répertoire gemini.lots.repertoire (défaut : java.io.tmpdir/gemini-lots) ;
+ * seuls des noms de fichiers simples sont acceptés (lettres, chiffres, '.', '_' et '-', sans sous-dossier).
+ *
+ * Les lots sont payants (appels à Gemini) et écrivent des fichiers : l'accès est réservé au rôle "lots"
+ * (security-constraint de web.xml, à associer à des utilisateurs dans le serveur d'applications).
+ */
+@WebServlet(name = "lotsServlet", value = "/lots")
+public class LotsServlet extends HttpServlet {
+
+    /** Rôle des utilisateurs autorisés à lancer et suivre les lots (voir web.xml). */
+    static final String ROLE_LOTS = "lots";
+
+    /** Nom de fichier simple : ni séparateur, ni chemin relatif, ni fichier caché. */
+    private static final Pattern NOM_FICHIER = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,127}");
+
+    @Inject
+    private TraitementParLots traitementParLots;
+
+    private Path repertoire;
+
+    @Override
+    public void init() {
+        repertoire = Path.of(ConfigurationLlm.texte("gemini.lots.repertoire",
+                Path.of(System.getProperty("java.io.tmpdir"), "gemini-lots").toString())).toAbsolutePath().normalize();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JsonArrayBuilder lots = Json.createArrayBuilder();
+        for (TraitementParLots.Lot lot : traitementParLots.getLots()) {
+            lots.add(decrire(lot));
+        }
+        repondre(response, HttpServletResponse.SC_OK, Json.createObjectBuilder().add("lots", lots));
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Déjà exigé par web.xml ; vérifié ici aussi pour ne pas dépendre du seul descripteur de déploiement
+        if (!request.isUserInRole(ROLE_LOTS)) {
+            repondre(response, HttpServletResponse.SC_FORBIDDEN,
+                    Json.createObjectBuilder().add("erreur", "Lancement des lots réservé au rôle " + ROLE_LOTS + "."));
+            return;
+        }
+        try {
+            Path entree = fichier(request.getParameter("entree"));
+            Path sortie = fichier(request.getParameter("sortie"));
+            if (!Files.isReadable(entree)) {
+                throw new IllegalArgumentException("Fichier d'entrée introuvable : " + repertoire.relativize(entree));
+            }
+            int parallelisme = Integer.parseInt(parametre(request, "parallelisme",
+                    ConfigurationLlm.texte("gemini.lots.parallelisme", "8")));
+            double debit = Double.parseDouble(parametre(request, "debit",
+                    ConfigurationLlm.texte("gemini.lots.debit", "0")));
+
+            TraitementParLots.Lot lot = traitementParLots.lancer(entree, sortie, parallelisme, debit);
+            repondre(response, HttpServletResponse.SC_ACCEPTED, decrire(lot));
+        } catch (IllegalArgumentException e) {
+            repondre(response, HttpServletResponse.SC_BAD_REQUEST, Json.createObjectBuilder().add("erreur", e.getMessage()));
+        } catch (IllegalStateException e) {
+            repondre(response, HttpServletResponse.SC_CONFLICT, Json.createObjectBuilder().add("erreur", e.getMessage()));
+        }
+    }
+
+    /**
+     * @return le chemin du fichier dans le répertoire des lots.
+     * @throws IllegalArgumentException si le nom est absent, n'est pas un nom de fichier simple
+     * ou désigne un fichier hors du répertoire.
+     */
+    private Path fichier(String nom) {
+        if (nom == null || nom.isBlank()) throw new IllegalArgumentException("Paramètres entree et sortie obligatoires.");
+        if (!NOM_FICHIER.matcher(nom).matches() || nom.contains("..")) {
+            throw new IllegalArgumentException("Nom de fichier refusé : " + nom);
+        }
+        Path chemin = repertoire.resolve(nom).normalize();
+        if (!chemin.startsWith(repertoire) || chemin.equals(repertoire)) {
+            throw new IllegalArgumentException("Nom de fichier refusé : " + nom);
+        }
+        return chemin;
+    }
+
+    private static String parametre(HttpServletRequest request, String nom, String defaut) {
+        String valeur = request.getParameter(nom);
+        return valeur == null || valeur.isBlank() ? defaut : valeur;
+    }
+
+    private JsonObjectBuilder decrire(TraitementParLots.Lot lot) {
+        JsonObjectBuilder description = Json.createObjectBuilder()
+                .add("nom", lot.nom())
+                .add("entree", repertoire.relativize(lot.entree()).toString())
+                .add("parallelisme", lot.parallelisme())
+                .add("reussies", lot.reussies())
+                .add("echecs", lot.echecs())
+                .add("reprises", lot.reprises())
+                .add("termine", lot.estTermine());
+        if (lot.erreur() != null) description.add("erreur", lot.erreur());
+        return description;
+    }
+
+    private static void repondre(HttpServletResponse response, int status, JsonObjectBuilder json) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.build().toString());
+    }
+}
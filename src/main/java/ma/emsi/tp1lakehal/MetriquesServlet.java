@@ -0,0 +1,27 @@
+package ma.emsi.tp1lakehal;
+
+import jakarta.inject.Inject;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ma.emsi.tp1lakehal.Llm.MetriquesLlm;
+
+import java.io.IOException;
+
+/**
+ * Expose les mesures des échanges avec Gemini au format texte de Prometheus (voir MetriquesLlm).
+ */
+@WebServlet(name = "metriquesServlet", value = "/metrics")
+public class MetriquesServlet extends HttpServlet {
+
+    @Inject
+    private MetriquesLlm metriques;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(metriques.versPrometheus());
+    }
+}
@@ -0,0 +1,174 @@
+package ma.emsi.tp1lakehal.commun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression gzip (RFC 1952) avec des Deflater réutilisés : GZIPOutputStream crée un Deflater, et sa mémoire
+ * native (plus de 256 Ko), à chaque flux ; ici les Deflater sont empruntés à un pool puis rendus après reset.
+ * Utilisée pour les corps de requêtes envoyés à Gemini (LlmClient) et pour les réponses des pages
+ * (jsf.CompressionFilter).
+ *
+ * Paramètres : compression.niveau (1 à 9, défaut 6) et compression.pool (Deflater gardés, défaut 32).
+ */
+public final class CompressionGzip {
+
+    private static final int NIVEAU = ConfigurationLlm.entier("compression.niveau", 6);
+    private static final BlockingQueue<Deflater> POOL =
+            new ArrayBlockingQueue<>(Math.max(1, ConfigurationLlm.entier("compression.pool", 32)));
+
+    /** En-tête gzip : deflate, sans nom de fichier ni date, système inconnu. */
+    private static final byte[] ENTETE = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private CompressionGzip() {
+    }
+
+    private static Deflater emprunter() {
+        Deflater deflater = POOL.poll();
+        return deflater != null ? deflater : new Deflater(NIVEAU, true);
+    }
+
+    private static void rendre(Deflater deflater) {
+        deflater.reset();
+        if (!POOL.offer(deflater)) deflater.end();
+    }
+
+    /**
+     * @return les octets compressés au format gzip.
+     */
+    public static byte[] compresser(byte[] octets, int debut, int longueur) {
+        Tampon tampon = new Tampon(longueur / 4 + 64);
+        try (Sortie sortie = new Sortie(tampon)) {
+            sortie.write(octets, debut, longueur);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // impossible en mémoire
+        }
+        return Arrays.copyOf(tampon.octets, tampon.taille);
+    }
+
+    /**
+     * Flux qui compresse au format gzip ce qui y est écrit. finish() termine le format gzip et rend le Deflater
+     * sans fermer le flux cible ; close() fait finish() puis ferme le flux cible.
+     */
+    public static final class Sortie extends OutputStream {
+        private final OutputStream cible;
+        private final CRC32 crc = new CRC32();
+        private final byte[] tampon = new byte[8192];
+        private Deflater deflater;
+        private long taille;
+
+        public Sortie(OutputStream cible) throws IOException {
+            this.cible = cible;
+            cible.write(ENTETE);
+            this.deflater = emprunter();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (deflater == null) throw new IOException("Flux gzip déjà terminé");
+            if (len == 0) return;
+            crc.update(b, off, len);
+            taille += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflater(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Envoie tout ce qui a été écrit jusqu'ici (SYNC_FLUSH : le destinataire peut le décompresser
+         * sans attendre la suite).
+         */
+        @Override
+        public void flush() throws IOException {
+            if (deflater != null) {
+                int nb;
+                do {
+                    nb = deflater(Deflater.SYNC_FLUSH);
+                } while (nb == tampon.length); // tampon plein : il reste des octets compressés
+            }
+            cible.flush();
+        }
+
+        /**
+         * Termine le format gzip (fin des données compressées, CRC et taille) et rend le Deflater au pool.
+         */
+        public void finish() throws IOException {
+            if (deflater == null) return;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflater(Deflater.NO_FLUSH);
+                }
+            } finally {
+                abandonner();
+            }
+            ecrireEntier((int) crc.getValue());
+            ecrireEntier((int) taille);
+        }
+
+        /**
+         * Rend le Deflater au pool sans terminer le format gzip (requête en erreur, client parti...) ;
+         * sans effet si le flux est déjà terminé.
+         */
+        public void abandonner() {
+            if (deflater == null) return;
+            rendre(deflater);
+            deflater = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                cible.close();
+            }
+        }
+
+        private int deflater(int mode) throws IOException {
+            int nb = deflater.deflate(tampon, 0, tampon.length, mode);
+            if (nb > 0) cible.write(tampon, 0, nb);
+            return nb;
+        }
+
+        /** Entier sur 4 octets, poids faible d'abord (format gzip). */
+        private void ecrireEntier(int valeur) throws IOException {
+            cible.write(new byte[]{(byte) valeur, (byte) (valeur >> 8), (byte) (valeur >> 16), (byte) (valeur >> 24)});
+        }
+    }
+
+    /**
+     * Flux en mémoire qui donne accès à son tableau sans copie.
+     */
+    private static final class Tampon extends OutputStream {
+        private byte[] octets;
+        private int taille;
+
+        private Tampon(int capacite) {
+            this.octets = new byte[capacite];
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (taille + len > octets.length) octets = Arrays.copyOf(octets, Math.max(taille * 2, taille + len));
+            System.arraycopy(b, off, octets, taille, len);
+            taille += len;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ma.emsi.tp1lakehal.commun;
+
+/**
+ * Lecture des paramètres de configuration de l'application (client LLM, filtres web, archive...).
+ * Une clé comme "gemini.pool.max" est cherchée d'abord dans les propriétés système
+ * (-Dgemini.pool.max=20), puis dans les variables d'environnement (GEMINI_POOL_MAX).
+ * Si aucune valeur n'est trouvée, la valeur par défaut est utilisée.
+ */
+public final class ConfigurationLlm {
+
+    private ConfigurationLlm() {
+    }
+
+    /**
+     * @return la valeur texte de la clé, ou la valeur par défaut si elle n'est pas définie.
+     */
+    public static String texte(String cle, String defaut) {
+        String valeur = System.getProperty(cle);
+        if (valeur == null || valeur.isBlank()) {
+            valeur = System.getenv(cle.toUpperCase().replace('.', '_').replace('-', '_'));
+        }
+        return (valeur == null || valeur.isBlank()) ? defaut : valeur.trim();
+    }
+
+    public static int entier(String cle, int defaut) {
+        String valeur = texte(cle, null);
+        if (valeur == null) return defaut;
+        try {
+            return Integer.parseInt(valeur);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Valeur entière invalide pour '" + cle + "' : " + valeur, e);
+        }
+    }
+
+    public static long entierLong(String cle, long defaut) {
+        String valeur = texte(cle, null);
+        if (valeur == null) return defaut;
+        try {
+            return Long.parseLong(valeur);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Valeur entière invalide pour '" + cle + "' : " + valeur, e);
+        }
+    }
+
+    public static boolean booleen(String cle, boolean defaut) {
+        String valeur = texte(cle, null);
+        return valeur == null ? defaut : Boolean.parseBoolean(valeur);
+    }
+}
@@ -1,62 +1,62 @@
 package ma.emsi.tp1lakehal.jsf;
 
+import jakarta.annotation.PreDestroy;
 import jakarta.faces.application.FacesMessage;
 import jakarta.faces.context.FacesContext;
 import jakarta.faces.model.SelectItem;
+import jakarta.faces.push.Push;
+import jakarta.faces.push.PushContext;
 import jakarta.faces.view.ViewScoped;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
+import ma.emsi.tp1lakehal.Exception.ServiceSatureException;
+import ma.emsi.tp1lakehal.Llm.ComparaisonRoles;
+import ma.emsi.tp1lakehal.Llm.HistoriqueConversation;
+import ma.emsi.tp1lakehal.Llm.JournalDebug;
 import ma.emsi.tp1lakehal.Llm.JsonUtilPourGemini;
 import ma.emsi.tp1lakehal.Llm.LlmInteraction;
+import ma.emsi.tp1lakehal.Llm.RolesSysteme;
+import ma.emsi.tp1lakehal.persistance.ArchiveConversations;
+import ma.emsi.tp1lakehal.persistance.ConversationSauvegardee;
+import ma.emsi.tp1lakehal.persistance.ConversationsDeLaSession;
+import ma.emsi.tp1lakehal.persistance.TourSauvegarde;
 
 import java.io.Serializable;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
 
 /**
  * Backing bean pour la page JSF index.xhtml.
  * Portée view pour conserver l'état de la conversation qui dure pendant plusieurs requêtes HTTP.
  * La portée view nécessite l'implémentation de Serializable (le backing bean peut être mis en mémoire secondaire).
+ * L'historique de la conversation n'est pas dans le bean : il est gardé côté serveur par MagasinConversations
+ * (jsonUtil n'en garde que l'identifiant).
+ * Chaque échange est aussi enregistré en base (ArchiveConversations, écriture différée) : la page appelée avec
+ * ?conversation=identifiant reprend une conversation enregistrée dans la même session (ConversationsDeLaSession).
+ * Le mode comparaison envoie la question à plusieurs rôles en parallèle (ComparaisonRoles), hors de la conversation.
  */
 @Named
 @ViewScoped
 public class Bb implements Serializable {
 
     // =================================================================================
-    // CONSTANTES - RÔLES SYSTÈME COMPLETS
+    // CONSTANTES
     // =================================================================================
 
-    private static final String ROLE_ASSISTANT_COMPLET = """
-            You are a helpful assistant. You help the user to find the information they need.
-            If the user type a question, you answer it.
-            """;
-
-    private static final String ROLE_TRADUCTEUR_COMPLET = """
-            You are an interpreter. You translate from English to French and from French to English.
-            If the user type a French text, you translate it into English.
-            If the user type an English text, you translate it into French.
-            If the text contains only one to three words, give some examples of usage of these words in English.
-            """;
-
-    private static final String ROLE_GUIDE_COMPLET = """
-            Your are a travel guide. If the user type the name of a country or of a town,
-            you tell them what are the main places to visit in the country or the town
-            are you tell them the average price of a meal.
-            """;
-
-    private static final String ROLE_POETE_MAROCAIN = """
-            You are a Moroccan poet who transforms everything into poetry.
-            Your responses must ALWAYS be in the form of poetry (verses, rhymes, or free verse).
-            - Use vivid imagery inspired by Morocco: the Atlas mountains, the Sahara desert, Casablanca's ocean, mint tea, argan trees, souks, tagines, medinas, etc.
-            - Incorporate Arabic or Darija words naturally when appropriate (like "habibi", "shukran", "inchallah", "salam", "yallah", "choukran").
-            - Your tone is warm, philosophical, and nostalgic.
-            - Even if the user asks a simple question or makes a statement, transform it into beautiful poetry.
-            - Keep responses concise (4-8 lines of poetry).
-            - Every answer must be poetic, no exceptions.
-            Example: If asked "what is the weather?", respond with a poem about the sky, clouds, and Moroccan landscapes.
-            """;
+    /**
+     * Début du contexte temporel ajouté à chaque question envoyée au LLM.
+     */
+    private static final String MARQUEUR_CONTEXTE = "\n[Information contextuelle: ";
+
+    /**
+     * Attente maximale (ms) des écritures en cours avant de relire une conversation.
+     */
+    private static final long ATTENTE_ECRITURES_MS = 2000;
 
     // =================================================================================
     // INJECTIONS CDI
@@ -71,6 +71,26 @@ public class Bb implements Serializable {
     @Inject
     private JsonUtilPourGemini jsonUtil;
 
+    /**
+     * Canal websocket (f:websocket "reponseFlux" de index.xhtml) qui reçoit les morceaux de la réponse en flux.
+     */
+    @Inject
+    @Push(channel = "reponseFlux")
+    private PushContext canalFlux;
+
+    /**
+     * Canal websocket (f:websocket "comparaison" de index.xhtml) qui reçoit la réponse de chaque rôle comparé.
+     */
+    @Inject
+    @Push(channel = "comparaison")
+    private PushContext canalComparaison;
+
+    @Inject
+    private ArchiveConversations archive;
+
+    @Inject
+    private ComparaisonRoles comparaisonRoles;
+
     // =================================================================================
     // PROPRIÉTÉS
     // =================================================================================
@@ -102,24 +122,115 @@ public class Bb implements Serializable {
     private String reponse;
 
     /**
-     * La conversation depuis le début.
+     * Identifiant de la conversation dans le journal de debug de la session (voir JournalDebug).
+     */
+    private final String idConversation = UUID.randomUUID().toString();
+
+    /**
+     * Mode debug activé/désactivé. Tant qu'il est désactivé, aucun JSON n'est copié ni formaté.
+     */
+    private boolean debug;
+
+    /**
+     * Vrai pendant qu'une réponse en flux est en cours de réception.
+     */
+    private volatile boolean fluxEnCours;
+
+    /**
+     * Thread qui reçoit la réponse en flux (null sans flux en cours) : nouveauChat l'interrompt.
+     */
+    private transient volatile Thread threadFlux;
+
+    /**
+     * Tours affichés au début du flux : pendant le flux, l'historique est modifié par son thread et n'est pas relu.
+     */
+    private transient List<TourAffiche> toursAvantFlux;
+
+    /**
+     * Erreur survenue pendant la réception en flux, affichée à la fin du flux.
+     */
+    private volatile String erreurFlux;
+
+    /**
+     * L'erreur du flux est-elle un refus parce que le service est saturé ?
+     */
+    private volatile boolean fluxRefuse;
+
+    /**
+     * Identifiant de la conversation en base (paramètre conversation de la page), ou null avant le premier échange.
+     */
+    private String idArchive;
+
+    /**
+     * Identifiant reçu dans l'URL (f:viewParam) de la conversation à reprendre.
+     */
+    private String idReprise;
+
+    /**
+     * Numéro dans la conversation du premier tour de l'historique de jsonUtil : l'historique d'une conversation
+     * reprise ne contient que ses derniers tours, les précédents sont en base.
+     */
+    private int numeroDebutHistorique;
+
+    /**
+     * Nombre de tours de l'historique déjà confiés à l'archive.
+     */
+    private int toursHistoriqueArchives;
+
+    /**
+     * La page ne reçoit que les tours qu'elle n'a pas encore : numéro du premier tour affiché (les précédents
+     * sont chargés à la demande) et nombre de tours de l'historique déjà envoyés à la page.
      */
-    private StringBuilder conversation = new StringBuilder();
+    private int premierTourAffiche;
+    private int toursHistoriqueAffiches;
 
     /**
-     * Texte JSON de la requête (pour debug).
+     * Tours à ajouter à la fin ou au début de la conversation affichée par la réponse AJAX en cours
+     * (voir afficherNouveauxTours et afficherToursPrecedents dans index.xhtml).
      */
-    private String texteRequeteJson;
+    private transient List<TourAffiche> nouveauxTours;
+    private transient List<TourAffiche> toursPrecedents;
 
     /**
-     * Texte JSON de la réponse (pour debug).
+     * Codes des rôles cochés pour la comparaison.
      */
-    private String texteReponseJson;
+    private List<String> rolesComparaison = new ArrayList<>(List.of("ASSISTANT", "GUIDE", "POETE"));
 
     /**
-     * Mode debug activé/désactivé.
+     * Dernière comparaison lancée (perdue si la vue est sérialisée : ce n'est qu'un affichage).
      */
-    private boolean debug = true;
+    private transient ComparaisonRoles.Comparaison comparaison;
+
+    // =================================================================================
+    // TOUR AFFICHÉ
+    // =================================================================================
+
+    /**
+     * Un tour de la conversation tel qu'affiché par la page (contexte temporel retiré des questions).
+     */
+    public static final class TourAffiche {
+        private final int numero;
+        private final boolean utilisateur;
+        private final String texte;
+
+        private TourAffiche(int numero, boolean utilisateur, String texte) {
+            this.numero = numero;
+            this.utilisateur = utilisateur;
+            this.texte = utilisateur ? sansContexte(texte) : texte;
+        }
+
+        public int getNumero() {
+            return numero;
+        }
+
+        public boolean isUtilisateur() {
+            return utilisateur;
+        }
+
+        public String getTexte() {
+            return texte;
+        }
+    }
 
     // =================================================================================
     // CONSTRUCTEUR
@@ -149,40 +260,247 @@ public class Bb implements Serializable {
             ajouterMessageErreur("Texte question vide", "Il manque le texte de la question");
             return null;
         }
-
-        // Si la conversation n'a pas encore commencé, ajouter le rôle système au début
-        if (this.conversation.isEmpty()) {
-            String roleComplet = getRoleSystemeComplet();
-            jsonUtil.setSystemRole(roleComplet);
-            this.roleSystemeChangeable = false;
+        // Le thread du flux modifie l'historique jusqu'à la fin de la réponse
+        if (fluxEnCours) {
+            ajouterMessageErreur("Réponse en cours", "Attendez la fin de la réponse précédente avant d'envoyer une autre question.");
+            return null;
         }
 
-        // Enrichissement contextuel : ajout du moment de la journée
-        String questionAvecContexte = question + "\n[Information contextuelle: " + getMomentDeLaJournee() + "]";
+        String questionAvecContexte = preparerQuestion();
 
         // 🔹 Envoi de la requête au LLM Gemini
         try {
             LlmInteraction interaction = jsonUtil.envoyerRequete(questionAvecContexte);
             this.reponse = interaction.reponseExtraite();
-            this.texteRequeteJson = interaction.questionJson();
-            this.texteReponseJson = interaction.reponseJson();
+            if (debug) journalDebug().enregistrer(idConversation, interaction, null);
 
+        } catch (ServiceSatureException e) {
+            // Refus rapide : la question reste dans le champ, l'utilisateur peut la renvoyer
+            ajouterMessageErreur("Service occupé", e.getMessage());
+            return null;
         } catch (Exception e) {
             ajouterMessageErreur(
                     "Problème de connexion avec l'API du LLM",
                     "Problème de connexion avec l'API du LLM : " + e.getMessage()
             );
             this.reponse = "ERREUR : Voir le message ci-dessus.";
-            this.texteRequeteJson = jsonUtil.getTexteRequeteJson();
-            this.texteReponseJson = "Erreur : " + e.getMessage();
+            if (debug) journalDebug().enregistrer(idConversation, null, e.getMessage());
+            return null;
+        } finally {
+            archiver();
+            marquerNouveauxTours();
+        }
+
+        return null;
+    }
+
+    /**
+     * Envoie la question en mode flux : la réponse est poussée morceau par morceau vers la page
+     * par le canal websocket "reponseFlux", puis le message "fin" déclenche le rafraîchissement
+     * de la conversation (voir finFlux).
+     *
+     * @return null pour rester sur la même page.
+     */
+    public String envoyerEnFlux() {
+        if (question == null || question.isBlank()) {
+            ajouterMessageErreur("Texte question vide", "Il manque le texte de la question");
+            return null;
+        }
+        if (fluxEnCours) {
+            ajouterMessageErreur("Réponse en cours", "Attendez la fin de la réponse précédente avant d'envoyer une autre question.");
+            return null;
+        }
+
+        String questionAvecContexte = preparerQuestion();
+        this.toursAvantFlux = getToursInitiaux();
+        this.fluxEnCours = true;
+        this.erreurFlux = null;
+        this.reponse = "";
+        // Le journal est pris dans la session maintenant : le thread du flux n'a pas accès à la requête JSF.
+        JournalDebug journal = debug ? journalDebug() : null;
+        // Conversation du flux : si un nouveau chat la remplace, la réponse n'est plus pour cette page
+        String archiveDuFlux = idArchive;
+        String conversationDuFlux = jsonUtil.getIdConversation();
+
+        // La réception du flux ne doit pas bloquer le thread de la requête JSF.
+        this.threadFlux = Thread.ofVirtual().name("gemini-flux").unstarted(() -> {
+            try {
+                LlmInteraction interaction = jsonUtil.envoyerRequeteFlux(questionAvecContexte,
+                        fragment -> canalFlux.send(Map.of("fragment", fragment)));
+                if (!fluxCourant(archiveDuFlux, conversationDuFlux)) return;
+                this.reponse = interaction.reponseExtraite();
+                if (journal != null) journal.enregistrer(idConversation, interaction, null);
+            } catch (Exception e) {
+                if (!fluxCourant(archiveDuFlux, conversationDuFlux)) return;
+                this.erreurFlux = e.getMessage();
+                this.fluxRefuse = e instanceof ServiceSatureException;
+                this.reponse = "ERREUR : Voir le message ci-dessus.";
+                if (journal != null) journal.enregistrer(idConversation, null, e.getMessage());
+            } finally {
+                // Flux abandonné (nouveau chat) : rien n'est archivé ni signalé à la page
+                if (fluxCourant(archiveDuFlux, conversationDuFlux)) {
+                    archiver();
+                    this.threadFlux = null;
+                    this.fluxEnCours = false;
+                    canalFlux.send("fin");
+                }
+            }
+        });
+        threadFlux.start();
+        return null;
+    }
+
+    /**
+     * @return vrai si le thread courant reçoit toujours le flux de la conversation affichée (pas de nouveau chat depuis).
+     */
+    private boolean fluxCourant(String archiveDuFlux, String conversationDuFlux) {
+        return threadFlux == Thread.currentThread() && Objects.equals(archiveDuFlux, idArchive)
+                && conversationDuFlux.equals(jsonUtil.getIdConversation());
+    }
+
+    /**
+     * Appelée (en AJAX) quand la page reçoit le message "fin" du flux : affiche l'erreur éventuelle.
+     */
+    public void finFlux() {
+        marquerNouveauxTours();
+        if (erreurFlux != null && fluxRefuse) {
+            ajouterMessageErreur("Service occupé", erreurFlux);
+            erreurFlux = null;
+        } else if (erreurFlux != null) {
+            ajouterMessageErreur(
+                    "Problème de connexion avec l'API du LLM",
+                    "Problème de connexion avec l'API du LLM : " + erreurFlux
+            );
+            erreurFlux = null;
+        }
+    }
+
+    /**
+     * Envoie la question à chacun des rôles cochés, en parallèle, sans l'ajouter à la conversation :
+     * la réponse de chaque rôle est poussée vers la page par le canal websocket "comparaison" dès son arrivée,
+     * puis le message "finComparaison" rafraîchit le panneau de comparaison (voir finComparaison).
+     *
+     * @return null pour rester sur la même page.
+     */
+    public String comparer() {
+        if (question == null || question.isBlank()) {
+            ajouterMessageErreur("Texte question vide", "Il manque le texte de la question");
+            return null;
+        }
+        if (rolesComparaison == null || rolesComparaison.size() < 2) {
+            ajouterMessageErreur("Comparaison impossible", "Cochez au moins deux rôles à comparer.");
+            return null;
+        }
+        if (isComparaisonEnCours()) {
+            ajouterMessageErreur("Comparaison en cours", "Attendez la fin de la comparaison précédente, ou annulez-la.");
             return null;
         }
 
-        // 🔹 Met à jour la conversation affichée à l'écran
-        afficherConversation();
+        this.comparaison = comparaisonRoles.lancer(ajouterContexte(question), List.copyOf(rolesComparaison),
+                facesContext.getExternalContext().getSessionId(true),
+                branche -> canalComparaison.send(Map.of(
+                        "role", branche.getCodeRole(),
+                        "etat", branche.getEtat().libelle(),
+                        "texte", branche.getTexte() == null ? "" : branche.getTexte(),
+                        "duree", branche.getDureeMs())));
+        comparaison.fin().whenComplete((ignore, erreur) -> canalComparaison.send("finComparaison"));
         return null;
     }
 
+    /**
+     * Annule la branche d'un rôle de la comparaison en cours ; les autres continuent.
+     */
+    public void annulerBranche(String codeRole) {
+        ComparaisonRoles.Branche branche = comparaison == null ? null : comparaison.branche(codeRole);
+        if (branche != null) branche.annuler();
+    }
+
+    /**
+     * Annule toutes les branches encore en cours.
+     */
+    public void annulerComparaison() {
+        if (comparaison != null) comparaison.annuler();
+    }
+
+    /**
+     * Appelée (en AJAX) quand la page reçoit le message "finComparaison" : le panneau est rendu à nouveau.
+     */
+    public void finComparaison() {
+        // Rien à faire : l'état des branches est déjà dans la comparaison
+    }
+
+    /**
+     * Reprend la conversation enregistrée dont l'identifiant est dans l'URL (f:viewAction, au premier affichage).
+     * Seule la dernière page de tours est relue : elle sert de contexte au LLM et est affichée ;
+     * les tours plus anciens sont chargés à la demande (chargerToursPrecedents).
+     */
+    public void reprendre() {
+        if (idReprise == null || idReprise.isBlank()) return;
+        // Une conversation d'une autre session n'est pas reprise (réponse identique à une conversation inconnue)
+        ConversationSauvegardee conversation = null;
+        if (conversationsDeLaSession().contient(idReprise)) {
+            // Les derniers échanges de cette conversation sont peut-être encore dans la file d'écriture
+            archive.attendreEcritures(ATTENTE_ECRITURES_MS);
+            conversation = archive.trouver(idReprise);
+        }
+        if (conversation == null) {
+            ajouterMessageErreur("Conversation introuvable", "Aucune conversation enregistrée avec l'identifiant " + idReprise);
+            return;
+        }
+
+        int fin = conversation.getNbTours();
+        int debut = Math.max(0, fin - archive.getTaillePage());
+        List<TourSauvegarde> tours = archive.tours(conversation.getId(), debut, fin);
+        // Les tours envoyés au LLM commencent par une question
+        int premier = 0;
+        while (premier < tours.size() && !HistoriqueConversation.ROLE_UTILISATEUR.equals(tours.get(premier).getRole())) {
+            premier++;
+        }
+        HistoriqueConversation historique = new HistoriqueConversation();
+        historique.setInstructionSysteme(conversation.getInstructionSysteme());
+        for (TourSauvegarde tour : tours.subList(premier, tours.size())) {
+            if (HistoriqueConversation.ROLE_UTILISATEUR.equals(tour.getRole())) {
+                historique.ajouterQuestion(tour.getTexte());
+            } else {
+                historique.ajouterReponse(List.of(tour.getTexte()));
+            }
+        }
+        jsonUtil.reprendreConversation(conversation.getCodeRole(), historique);
+
+        this.idArchive = conversation.getId();
+        this.roleSystemeCode = conversation.getCodeRole();
+        this.roleSystemeChangeable = false;
+        this.numeroDebutHistorique = debut + premier;
+        this.toursHistoriqueArchives = historique.nbTours();
+        // La page est construite avec ces tours (getToursInitiaux)
+        this.premierTourAffiche = numeroDebutHistorique;
+        this.toursHistoriqueAffiches = historique.nbTours();
+    }
+
+    /**
+     * Prépare la page de tours qui précède les tours affichés, que la réponse AJAX ajoute au début de la conversation.
+     * Les tours encore dans l'historique en sont repris ; les plus anciens sont relus en base (affichage seulement).
+     */
+    public void chargerToursPrecedents() {
+        // Comme envoyer : l'historique n'est pas lu pendant que le thread du flux le modifie
+        if (premierTourAffiche == 0 || fluxEnCours) return;
+        int debut = Math.max(0, premierTourAffiche - archive.getTaillePage());
+        List<TourAffiche> tours = new ArrayList<>();
+        if (debut < numeroDebutHistorique && idArchive != null) {
+            for (TourSauvegarde tour : archive.tours(idArchive, debut, Math.min(premierTourAffiche, numeroDebutHistorique))) {
+                tours.add(new TourAffiche(tour.getNumero(),
+                        HistoriqueConversation.ROLE_UTILISATEUR.equals(tour.getRole()), tour.getTexte()));
+            }
+        }
+        List<HistoriqueConversation.Tour> historique = jsonUtil.getHistorique().getTours();
+        for (int numero = Math.max(debut, numeroDebutHistorique); numero < premierTourAffiche; numero++) {
+            HistoriqueConversation.Tour tour = historique.get(numero - numeroDebutHistorique);
+            tours.add(new TourAffiche(numero, tour.estUtilisateur(), tour.texte()));
+        }
+        this.toursPrecedents = tours;
+        this.premierTourAffiche = debut;
+    }
+
     /**
      * Pour un nouveau chat.
      * Termine la portée view en retournant "index" (la page index.xhtml sera affichée après le traitement
@@ -194,41 +512,119 @@ public class Bb implements Serializable {
      * @return "index"
      */
     public String nouveauChat() {
+        arreterFlux();
         // Réinitialisation explicite de toutes les propriétés
-        this.conversation = new StringBuilder();
+        jsonUtil.nouvelleConversation();
+        if (debug) journalDebug().oublier(idConversation);
         this.reponse = null;
         this.question = null;
-        this.texteRequeteJson = null;
-        this.texteReponseJson = null;
         this.roleSystemeChangeable = true;
         this.roleSystemeCode = "ASSISTANT";
+        this.idArchive = null;
+        this.numeroDebutHistorique = 0;
+        this.toursHistoriqueArchives = 0;
+        this.premierTourAffiche = 0;
+        this.toursHistoriqueAffiches = 0;
         return "index";
     }
 
+    /**
+     * Abandonne la réponse en flux en cours (nouveau chat, fin de la vue) : son thread est interrompu
+     * et, s'il termine quand même, ne touche plus à la conversation affichée (voir fluxCourant).
+     */
+    @PreDestroy
+    void arreterFlux() {
+        Thread flux = this.threadFlux;
+        this.threadFlux = null;
+        if (flux != null) flux.interrupt();
+        this.fluxEnCours = false;
+    }
+
     /**
      * Bascule le mode debug (activé/désactivé).
      */
     public void toggleDebug() {
-        this.debug = !this.debug;
+        setDebug(!this.debug);
     }
 
     // =================================================================================
     // MÉTHODES UTILITAIRES PRIVÉES
     // =================================================================================
 
+    /**
+     * Au premier message, fixe le rôle système de la conversation, puis ajoute le contexte temporel à la question.
+     *
+     * @return la question enrichie à envoyer au LLM.
+     */
+    private String preparerQuestion() {
+        // Les requêtes de l'utilisateur partagent une file de l'ordonnanceur, quel que soit l'onglet
+        jsonUtil.setCleUtilisateur(facesContext.getExternalContext().getSessionId(true));
+        // L'identifiant d'archive est donné ici, dans la requête JSF : archiver peut être appelée par le thread du flux
+        if (idArchive == null) {
+            this.idArchive = UUID.randomUUID().toString();
+            conversationsDeLaSession().ajouter(idArchive);
+        }
+
+        // Si la conversation n'a pas encore commencé, ajouter le rôle système au début
+        if (jsonUtil.getHistorique().estVide()) {
+            String roleComplet = getRoleSystemeComplet();
+            jsonUtil.setSystemRole(roleComplet);
+            jsonUtil.setCodeRole(roleSystemeCode);
+            this.roleSystemeChangeable = false;
+        }
+
+        return ajouterContexte(question);
+    }
+
+    /**
+     * Enrichissement contextuel : ajout du moment de la journée à la question.
+     */
+    private String ajouterContexte(String texte) {
+        return texte + MARQUEUR_CONTEXTE + getMomentDeLaJournee() + "]";
+    }
+
+    /**
+     * Confie à l'archive les tours ajoutés à l'historique depuis le dernier appel (question, et réponse s'il y en a une).
+     * N'attend pas l'écriture en base.
+     */
+    private void archiver() {
+        HistoriqueConversation historique = jsonUtil.getHistorique();
+        List<HistoriqueConversation.Tour> tours = historique.getTours();
+        if (tours.size() < toursHistoriqueArchives) {
+            // Conversation évincée du magasin : elle a recommencé à vide, à la suite des tours déjà enregistrés
+            // (et déjà affichés)
+            this.numeroDebutHistorique += toursHistoriqueArchives;
+            this.toursHistoriqueArchives = 0;
+            this.toursHistoriqueAffiches = 0;
+        }
+        if (tours.size() == toursHistoriqueArchives) return;
+        archive.archiver(idArchive, roleSystemeCode, historique.getInstructionSysteme(),
+                numeroDebutHistorique + toursHistoriqueArchives, tours.subList(toursHistoriqueArchives, tours.size()));
+        this.toursHistoriqueArchives = tours.size();
+    }
+
+    /**
+     * Prépare les tours de l'historique que la page n'a pas encore, pour que la réponse AJAX n'envoie qu'eux.
+     */
+    private void marquerNouveauxTours() {
+        if (fluxEnCours) return;
+        List<HistoriqueConversation.Tour> tours = jsonUtil.getHistorique().getTours();
+        List<TourAffiche> nouveaux = new ArrayList<>();
+        for (int i = Math.min(toursHistoriqueAffiches, tours.size()); i < tours.size(); i++) {
+            nouveaux.add(new TourAffiche(numeroDebutHistorique + i, tours.get(i).estUtilisateur(), tours.get(i).texte()));
+        }
+        this.nouveauxTours = nouveaux;
+        this.toursHistoriqueAffiches = tours.size();
+    }
+
     /**
      * Retourne le texte complet du rôle système basé sur le code sélectionné.
      *
      * @return Le texte complet du rôle système.
      */
     private String getRoleSystemeComplet() {
-        return switch (roleSystemeCode) {
-            case "ASSISTANT" -> ROLE_ASSISTANT_COMPLET;
-            case "TRADUCTEUR" -> ROLE_TRADUCTEUR_COMPLET;
-            case "GUIDE" -> ROLE_GUIDE_COMPLET;
-            case "POETE" -> ROLE_POETE_MAROCAIN;
-            default -> ROLE_ASSISTANT_COMPLET;
-        };
+        String texte = RolesSysteme.texte(roleSystemeCode);
+        return texte != null ? texte : RolesSysteme.texte("ASSISTANT");
     }
 
     /**
@@ -237,27 +633,16 @@ public class Bb implements Serializable {
      * @return Le nom du rôle pour l'affichage.
      */
     private String getRoleSystemeNom() {
-        return switch (roleSystemeCode) {
-            case "ASSISTANT" -> "Assistant";
-            case "TRADUCTEUR" -> "Traducteur Anglais-Français";
-            case "GUIDE" -> "Guide touristique";
-            case "POETE" -> "Poète Marocain";
-            default -> "Assistant";
-        };
+        String nom = RolesSysteme.nom(roleSystemeCode);
+        return nom != null ? nom : RolesSysteme.nom("ASSISTANT");
     }
 
     /**
-     * Pour afficher la conversation dans le textArea de la page JSF.
-     * N'affiche QUE les échanges User/Assistant (le rôle système n'apparaît pas ici).
+     * Retire d'une question le contexte temporel ajouté par preparerQuestion.
      */
-    private void afficherConversation() {
-        // Ajouter uniquement l'échange question/réponse
-        this.conversation.append("== User:\n")
-                .append(question)
-                .append("\n\n== Assistant:\n")
-                .append(reponse)
-                .append("\n\n")
-                .append("─────────────────────────────────────\n\n");
+    private static String sansContexte(String questionAvecContexte) {
+        int debutContexte = questionAvecContexte.lastIndexOf(MARQUEUR_CONTEXTE);
+        return debutContexte < 0 ? questionAvecContexte : questionAvecContexte.substring(0, debutContexte);
     }
 
     /**
@@ -279,6 +664,19 @@ public class Bb implements Serializable {
         }
     }
 
+    /**
+     * @return le journal de debug de la session (créé au premier échange enregistré).
+     */
+    private JournalDebug journalDebug() {
+        return (JournalDebug) facesContext.getExternalContext().getSessionMap()
+                .computeIfAbsent(JournalDebug.ATTRIBUT_SESSION, cle -> new JournalDebug());
+    }
+
+    private ConversationsDeLaSession conversationsDeLaSession() {
+        return (ConversationsDeLaSession) facesContext.getExternalContext().getSessionMap()
+                .computeIfAbsent(ConversationsDeLaSession.ATTRIBUT_SESSION, cle -> new ConversationsDeLaSession());
+    }
+
     /**
      * Ajoute un message d'erreur au contexte JSF pour l'affichage dans le formulaire.
      *
@@ -327,28 +725,87 @@ public class Bb implements Serializable {
         this.reponse = reponse;
     }
 
-    public String getConversation() {
-        return conversation.toString();
+    /**
+     * Tours affichés quand la page est construite (premier affichage, reprise d'une conversation enregistrée,
+     * dont seule la dernière page de tours est chargée). Le rôle système n'apparaît pas, ni le contexte temporel
+     * ajouté aux questions. Ensuite, les réponses AJAX n'envoient que les nouveaux tours (getNouveauxTours)
+     * ou la page précédente (getToursPrecedents).
+     *
+     * @return les tours déjà envoyés à la page, hors pages précédentes.
+     */
+    public List<TourAffiche> getToursInitiaux() {
+        if (fluxEnCours && toursAvantFlux != null) return toursAvantFlux;
+        List<HistoriqueConversation.Tour> tours = jsonUtil.getHistorique().getTours();
+        int fin = Math.min(toursHistoriqueAffiches, tours.size());
+        List<TourAffiche> affiches = new ArrayList<>();
+        for (int i = Math.max(0, premierTourAffiche - numeroDebutHistorique); i < fin; i++) {
+            affiches.add(new TourAffiche(numeroDebutHistorique + i, tours.get(i).estUtilisateur(), tours.get(i).texte()));
+        }
+        return affiches;
+    }
+
+    /**
+     * @return les tours ajoutés depuis le dernier rendu (question et réponse du dernier échange).
+     */
+    public List<TourAffiche> getNouveauxTours() {
+        return nouveauxTours == null ? List.of() : nouveauxTours;
+    }
+
+    /**
+     * @return la page de tours chargée par chargerToursPrecedents.
+     */
+    public List<TourAffiche> getToursPrecedents() {
+        return toursPrecedents == null ? List.of() : toursPrecedents;
     }
 
-    public void setConversation(String conversation) {
-        this.conversation = new StringBuilder(conversation);
+    /**
+     * @return vrai si des tours plus anciens que ceux affichés peuvent être chargés.
+     */
+    public boolean isToursPrecedentsDisponibles() {
+        return premierTourAffiche > 0;
     }
 
-    public String getTexteRequeteJson() {
-        return texteRequeteJson;
+    /**
+     * @return l'identifiant à passer dans l'URL (?conversation=...) pour reprendre la conversation, ou null.
+     */
+    public String getIdArchive() {
+        return idArchive;
     }
 
-    public void setTexteRequeteJson(String texteRequeteJson) {
-        this.texteRequeteJson = texteRequeteJson;
+    public String getIdReprise() {
+        return idReprise;
     }
 
-    public String getTexteReponseJson() {
-        return texteReponseJson;
+    public void setIdReprise(String idReprise) {
+        this.idReprise = idReprise;
     }
 
-    public void setTexteReponseJson(String texteReponseJson) {
-        this.texteReponseJson = texteReponseJson;
+    /**
+     * @return vrai si les messages les plus anciens ne sont plus envoyés tels quels au LLM (résumés ou oubliés).
+     */
+    public boolean isHistoriqueCompacte() {
+        return jsonUtil.getHistorique().estCompacte();
+    }
+
+    /**
+     * @return le nombre de messages anciens remplacés par un résumé (ou oubliés) dans les requêtes au LLM.
+     */
+    public int getNbMessagesCompactes() {
+        return jsonUtil.getHistorique().getDebutFenetre();
+    }
+
+    public String getIdConversation() {
+        return idConversation;
+    }
+
+    /**
+     * Échanges de la conversation affichés dans les panneaux de debug (taille seulement : le JSON est chargé
+     * par DebugJsonServlet quand un panneau est ouvert).
+     *
+     * @return les échanges, du plus récent au plus ancien ; liste vide si le mode debug est désactivé.
+     */
+    public List<JournalDebug.ResumeEchange> getEchangesDebug() {
+        return debug ? journalDebug().resumes(idConversation) : List.of();
     }
 
     public boolean isDebug() {
@@ -357,6 +814,38 @@ public class Bb implements Serializable {
 
     public void setDebug(boolean debug) {
         this.debug = debug;
+        // Le JSON brut des réponses n'est copié que s'il peut être affiché
+        jsonUtil.setCaptureReponseJson(debug);
+    }
+
+    public boolean isFluxEnCours() {
+        return fluxEnCours;
+    }
+
+    public List<String> getRolesComparaison() {
+        return rolesComparaison;
+    }
+
+    public void setRolesComparaison(List<String> rolesComparaison) {
+        this.rolesComparaison = rolesComparaison;
+    }
+
+    /**
+     * @return les branches de la dernière comparaison, dans l'ordre des rôles ; liste vide s'il n'y en a pas.
+     */
+    public List<ComparaisonRoles.Branche> getBranchesComparaison() {
+        return comparaison == null ? List.of() : comparaison.getBranches();
+    }
+
+    public boolean isComparaisonEnCours() {
+        return comparaison != null && !comparaison.isTerminee();
+    }
+
+    /**
+     * @return la durée totale (ms) de la dernière comparaison terminée, ou -1.
+     */
+    public long getDureeComparaisonMs() {
+        return comparaison == null ? -1 : comparaison.getDureeMs();
     }
 
     /**
@@ -370,10 +859,9 @@ public class Bb implements Serializable {
             // Génère les rôles de l'API prédéfinis
             this.listeRolesSysteme = new ArrayList<>();
             // 1er argument : le CODE du rôle, 2ème argument : le LIBELLÉ du rôle
-            this.listeRolesSysteme.add(new SelectItem("ASSISTANT", "Assistant"));
-            this.listeRolesSysteme.add(new SelectItem("TRADUCTEUR", "Traducteur Anglais-Français"));
-            this.listeRolesSysteme.add(new SelectItem("GUIDE", "Guide touristique"));
-            this.listeRolesSysteme.add(new SelectItem("POETE", "Poète Marocain"));
+            for (String code : RolesSysteme.CODES) {
+                this.listeRolesSysteme.add(new SelectItem(code, RolesSysteme.nom(code)));
+            }
         }
 
         return this.listeRolesSysteme;
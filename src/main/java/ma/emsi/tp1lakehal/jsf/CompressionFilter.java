@@ -0,0 +1,348 @@
+package ma.emsi.tp1lakehal.jsf;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import ma.emsi.tp1lakehal.commun.CompressionGzip;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compresse en gzip les réponses texte (pages JSF, réponses AJAX partielles, ressources, JSON) des navigateurs
+ * qui l'acceptent, quand elles dépassent web.compression.seuil octets (défaut 1024) : la réponse est gardée
+ * en mémoire jusqu'au seuil, puis compressée au fil de l'écriture (Deflater réutilisés, voir CompressionGzip).
+ * Les réponses plus petites partent telles quelles, avec leur taille.
+ *
+ * Les scripts et feuilles de style de webapp/resources sont compressés une seule fois, au démarrage :
+ * quand JSF sert l'une de ces ressources (/jakarta.faces.resource/...), ses en-têtes (cache, ETag) sont gardés
+ * et son corps est remplacé par la version déjà compressée.
+ *
+ * web.compression.active=false désactive le filtre.
+ */
+@WebFilter(filterName = "compressionFilter", urlPatterns = "/*")
+public class CompressionFilter implements Filter {
+
+    private static final Logger LOGGER = Logger.getLogger(CompressionFilter.class.getName());
+
+    private static final String PREFIXE_RESSOURCES_JSF = "/jakarta.faces.resource/";
+    private static final List<String> SUFFIXES_JSF = List.of(".xhtml", ".jsf", ".faces");
+    private static final List<String> TYPES_COMPRESSIBLES = List.of("text/", "application/xml", "application/json",
+            "application/javascript", "application/xhtml+xml");
+
+    private final boolean active = ConfigurationLlm.booleen("web.compression.active", true);
+    private final int seuil = ConfigurationLlm.entier("web.compression.seuil", 1024);
+
+    /** Ressources de webapp/resources déjà compressées, par nom JSF (ex: js/script.js). */
+    private final Map<String, byte[]> precompressees = new ConcurrentHashMap<>();
+
+    @Override
+    public void init(FilterConfig config) {
+        if (active) precompresser(config.getServletContext(), "/resources/");
+    }
+
+    /**
+     * Compresse les .js et .css du dossier (et de ses sous-dossiers). Ceux qui contiennent une expression EL
+     * sont laissés à la compression au vol : JSF peut les évaluer en servant la ressource.
+     */
+    private void precompresser(ServletContext contexte, String dossier) {
+        Set<String> chemins = contexte.getResourcePaths(dossier);
+        if (chemins == null) return;
+        for (String chemin : chemins) {
+            if (chemin.endsWith("/")) {
+                precompresser(contexte, chemin);
+            } else if (chemin.endsWith(".js") || chemin.endsWith(".css")) {
+                try (InputStream flux = contexte.getResourceAsStream(chemin)) {
+                    if (flux == null) continue;
+                    byte[] octets = flux.readAllBytes();
+                    if (new String(octets, StandardCharsets.UTF_8).contains("#{")) continue;
+                    precompressees.put(chemin.substring("/resources/".length()), CompressionGzip.compresser(octets, 0, octets.length));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Ressource " + chemin + " non précompressée", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest requeteHttp = (HttpServletRequest) request;
+        if (!active || !accepteGzip(requeteHttp) || requeteHttp.getHeader("Upgrade") != null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        ReponseCompressee reponse = new ReponseCompressee((HttpServletResponse) response, ressourcePrecompressee(requeteHttp));
+        try {
+            chain.doFilter(request, reponse);
+            reponse.terminer();
+        } finally {
+            // Exception de l'application, sendError après le début de la compression, client parti :
+            // le Deflater emprunté est rendu dans tous les cas
+            reponse.liberer();
+        }
+    }
+
+    /**
+     * @return vrai si l'en-tête Accept-Encoding contient gzip (sans q=0).
+     */
+    private static boolean accepteGzip(HttpServletRequest requete) {
+        String encodages = requete.getHeader("Accept-Encoding");
+        if (encodages == null) return false;
+        for (String encodage : encodages.split(",")) {
+            String[] parties = encodage.trim().split(";");
+            if (!"gzip".equalsIgnoreCase(parties[0].trim())) continue;
+            return parties.length < 2 || !parties[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /**
+     * @return la version compressée de la ressource JSF demandée, ou null si ce n'est pas une ressource précompressée.
+     */
+    private byte[] ressourcePrecompressee(HttpServletRequest requete) {
+        if (precompressees.isEmpty()) return null;
+        String chemin = requete.getRequestURI().substring(requete.getContextPath().length());
+        if (!chemin.startsWith(PREFIXE_RESSOURCES_JSF)) return null;
+        String nom = chemin.substring(PREFIXE_RESSOURCES_JSF.length());
+        for (String suffixe : SUFFIXES_JSF) {
+            if (nom.endsWith(suffixe)) {
+                nom = nom.substring(0, nom.length() - suffixe.length());
+                break;
+            }
+        }
+        String bibliotheque = requete.getParameter("ln");
+        return precompressees.get(bibliotheque == null ? nom : bibliotheque + "/" + nom);
+    }
+
+    private static boolean estCompressible(String typeContenu) {
+        if (typeContenu == null) return false;
+        String type = typeContenu.toLowerCase();
+        return TYPES_COMPRESSIBLES.stream().anyMatch(type::startsWith);
+    }
+
+    /**
+     * Réponse dont le corps est gardé jusqu'au seuil, puis compressé ou envoyé tel quel.
+     */
+    private final class ReponseCompressee extends HttpServletResponseWrapper {
+        private final byte[] precompresse;
+        private final Sortie sortie = new Sortie();
+        private PrintWriter writer;
+        private boolean flux;
+        /** Taille annoncée par l'application ; transmise seulement si le corps n'est pas compressé. */
+        private long tailleAnnoncee = -1;
+        /** Vrai après sendError ou sendRedirect : le corps n'est plus celui de l'application. */
+        private boolean abandonnee;
+
+        private ReponseCompressee(HttpServletResponse reponse, byte[] precompresse) {
+            super(reponse);
+            this.precompresse = precompresse;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (writer != null) throw new IllegalStateException("getWriter() a déjà été appelé");
+            flux = true;
+            return sortie;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (flux) throw new IllegalStateException("getOutputStream() a déjà été appelé");
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(sortie, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int taille) {
+            this.tailleAnnoncee = taille;
+        }
+
+        @Override
+        public void setContentLengthLong(long taille) {
+            this.tailleAnnoncee = taille;
+        }
+
+        @Override
+        public void setHeader(String nom, String valeur) {
+            if ("Content-Length".equalsIgnoreCase(nom)) {
+                tailleAnnoncee = valeur == null ? -1 : Long.parseLong(valeur.trim());
+            } else {
+                super.setHeader(nom, valeur);
+            }
+        }
+
+        @Override
+        public void addHeader(String nom, String valeur) {
+            if ("Content-Length".equalsIgnoreCase(nom)) {
+                setHeader(nom, valeur);
+            } else {
+                super.addHeader(nom, valeur);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            // Tant que la décision n'est pas prise, le corps reste en mémoire
+            if (sortie.cible != null) {
+                sortie.flush();
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            sortie.tampon.reset();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            sortie.tampon.reset();
+            tailleAnnoncee = -1;
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            abandonnee = true;
+            super.sendError(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            abandonnee = true;
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendRedirect(String url) throws IOException {
+            abandonnee = true;
+            super.sendRedirect(url);
+        }
+
+        /**
+         * Après le traitement de la requête : envoie ce qui est encore en mémoire et termine le format gzip.
+         */
+        private void terminer() throws IOException {
+            if (abandonnee) return;
+            if (writer != null) writer.flush();
+            if (sortie.cible == null) {
+                if (sortie.tampon.size() == 0) return;
+                sortie.decider(false);
+            }
+            sortie.terminer();
+        }
+
+        /**
+         * Rend le Deflater du corps compressé s'il n'a pas été terminé par terminer().
+         */
+        private void liberer() {
+            if (sortie.cible instanceof CompressionGzip.Sortie gzip) {
+                gzip.abandonner();
+            }
+        }
+
+        /**
+         * Corps de la réponse : en mémoire (tampon) jusqu'à la décision, puis écrit dans la cible
+         * (réponse, compresseur gzip, ou rien quand la version précompressée a été envoyée).
+         */
+        private final class Sortie extends ServletOutputStream {
+            private final ByteArrayOutputStream tampon = new ByteArrayOutputStream();
+            private OutputStream cible;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (cible == null) {
+                    tampon.write(b, off, len);
+                    if (precompresse != null || tampon.size() >= seuil) decider(true);
+                } else {
+                    cible.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (cible != null) cible.flush();
+            }
+
+            /**
+             * Choisit la forme du corps et y écrit ce qui est en mémoire.
+             * @param gros vrai si le corps atteint le seuil de compression (ou plus : la suite n'est pas encore écrite).
+             */
+            private void decider(boolean gros) throws IOException {
+                HttpServletResponse reponse = (HttpServletResponse) getResponse();
+                boolean compressible = estCompressible(getContentType()) && getHeader("Content-Encoding") == null
+                        && reponse.getStatus() != HttpServletResponse.SC_NO_CONTENT
+                        && reponse.getStatus() != HttpServletResponse.SC_NOT_MODIFIED;
+                if (compressible) reponse.addHeader("Vary", "Accept-Encoding");
+
+                if (compressible && precompresse != null && reponse.getStatus() == HttpServletResponse.SC_OK) {
+                    reponse.setHeader("Content-Encoding", "gzip");
+                    reponse.setContentLength(precompresse.length);
+                    reponse.getOutputStream().write(precompresse);
+                    cible = OutputStream.nullOutputStream();
+                } else if (compressible && gros) {
+                    reponse.setHeader("Content-Encoding", "gzip");
+                    cible = new CompressionGzip.Sortie(reponse.getOutputStream());
+                } else {
+                    if (!gros) {
+                        reponse.setContentLength(tampon.size());
+                    } else if (tailleAnnoncee >= 0) {
+                        reponse.setContentLengthLong(tailleAnnoncee);
+                    }
+                    cible = reponse.getOutputStream();
+                }
+                tampon.writeTo(cible);
+                tampon.reset();
+            }
+
+            private void terminer() throws IOException {
+                if (cible instanceof CompressionGzip.Sortie gzip) {
+                    gzip.finish();
+                }
+                cible.flush();
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener ecouteur) {
+                throw new IllegalStateException("Écriture non bloquante non prise en charge par le filtre de compression");
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package ma.emsi.tp1lakehal.persistance;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.PersistenceUnit;
+import ma.emsi.tp1lakehal.Llm.HistoriqueConversation;
+import ma.emsi.tp1lakehal.commun.ConfigurationLlm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enregistre les conversations en base (unité de persistance "default") pour qu'elles puissent être reprises
+ * plus tard par leur identifiant (dans la même session, voir ConversationsDeLaSession).
+ *
+ * Les écritures sont différées : archiver ne fait que poser les nouveaux tours dans une file bornée
+ * (gemini.persistance.file-max, défaut 10000 ajouts) et ne bloque jamais ; si la file est pleine, l'ajout est perdu
+ * et compté. Un thread géré par le serveur (ManagedThreadFactory par défaut) vide la file par lots : il attend
+ * au plus gemini.persistance.delai-ms (défaut 200) après le premier ajout, ou jusqu'à gemini.persistance.lot-max
+ * tours (défaut 200), puis écrit tout le lot dans une seule transaction. Si le lot échoue, ses ajouts sont réécrits
+ * un par un, pour qu'un ajout en erreur (tour déjà écrit par un autre onglet, par exemple) ne fasse pas perdre les autres.
+ *
+ * La lecture (reprise d'une conversation) se fait page par page, par intervalle de numéros de tours.
+ * gemini.persistance.active=false désactive l'enregistrement (les reprises ne trouvent alors rien de nouveau).
+ */
+@ApplicationScoped
+public class ArchiveConversations {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveConversations.class.getName());
+
+    /**
+     * Tours ajoutés à une conversation par un échange, à écrire.
+     * @param premierNumero numéro du premier tour de la liste dans la conversation.
+     */
+    private record Ajout(String idConversation, String codeRole, String instructionSysteme, int premierNumero,
+                         List<HistoriqueConversation.Tour> tours) {
+    }
+
+    private final boolean active = ConfigurationLlm.booleen("gemini.persistance.active", true);
+    private final int delaiMs = ConfigurationLlm.entier("gemini.persistance.delai-ms", 200);
+    private final int lotMax = ConfigurationLlm.entier("gemini.persistance.lot-max", 200);
+    private final int taillePage = ConfigurationLlm.entier("gemini.persistance.page", 20);
+
+    private final BlockingQueue<Ajout> file =
+            new LinkedBlockingQueue<>(ConfigurationLlm.entier("gemini.persistance.file-max", 10000));
+
+    @PersistenceUnit(unitName = "default")
+    private EntityManagerFactory emf;
+
+    @Resource
+    private ManagedThreadFactory fabriqueThreads;
+
+    private Thread ecrivain;
+    private volatile boolean arrete;
+
+    /** Ajouts acceptés dans la file, et ajouts traités (écrits ou en échec) par l'écrivain. */
+    private final AtomicLong nbAcceptes = new AtomicLong();
+    private long nbTraites;
+
+    private final LongAdder toursEcrits = new LongAdder();
+    private final LongAdder lotsEcrits = new LongAdder();
+    private final LongAdder ajoutsPerdus = new LongAdder();
+    private final LongAdder ajoutsEnEchec = new LongAdder();
+
+    @PostConstruct
+    void demarrer() {
+        if (active) {
+            ecrivain = fabriqueThreads.newThread(this::ecrire);
+            ecrivain.setName("archive-conversations");
+            ecrivain.start();
+        }
+    }
+
+    /**
+     * Écrit ce qui reste dans la file avant l'arrêt de l'application.
+     */
+    @PreDestroy
+    void arreter() {
+        if (ecrivain == null) return;
+        arrete = true;
+        ecrivain.interrupt();
+        try {
+            ecrivain.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pose les nouveaux tours d'une conversation dans la file d'écriture, sans attendre.
+     * @param premierNumero numéro du premier de ces tours dans la conversation (0 pour une nouvelle conversation).
+     * @return faux si l'enregistrement est désactivé ou si la file est pleine (les tours ne seront pas écrits).
+     */
+    public boolean archiver(String idConversation, String codeRole, String instructionSysteme, int premierNumero,
+                            List<HistoriqueConversation.Tour> tours) {
+        if (!active || tours.isEmpty()) return false;
+        if (!file.offer(new Ajout(idConversation, codeRole, instructionSysteme, premierNumero, List.copyOf(tours)))) {
+            ajoutsPerdus.increment();
+            LOGGER.log(Level.WARNING, "File d''écriture des conversations pleine : {0} tours de la conversation {1} perdus",
+                    new Object[]{tours.size(), idConversation});
+            return false;
+        }
+        nbAcceptes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Attend que les ajouts déjà dans la file soient écrits (avant de relire une conversation).
+     * @param delaiMaxMs attente maximale ; au-delà, la lecture verra la base telle qu'elle est.
+     */
+    public void attendreEcritures(long delaiMaxMs) {
+        if (ecrivain == null) return;
+        long cible = nbAcceptes.get();
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delaiMaxMs);
+        synchronized (this) {
+            try {
+                long reste;
+                while (nbTraites < cible && (reste = limite - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, reste);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // --- Lecture ---
+
+    /**
+     * @return la conversation, ou null si elle n'a pas (encore) été écrite.
+     */
+    public ConversationSauvegardee trouver(String idConversation) {
+        if (!active) return null;
+        try (EntityManager em = emf.createEntityManager()) {
+            return em.find(ConversationSauvegardee.class, idConversation);
+        }
+    }
+
+    /**
+     * @return les tours de numéro compris entre debut (inclus) et fin (exclu), dans l'ordre.
+     */
+    public List<TourSauvegarde> tours(String idConversation, int debut, int fin) {
+        if (!active || debut >= fin) return List.of();
+        try (EntityManager em = emf.createEntityManager()) {
+            return em.createQuery("SELECT t FROM TourSauvegarde t WHERE t.idConversation = :id"
+                            + " AND t.numero >= :debut AND t.numero < :fin ORDER BY t.numero", TourSauvegarde.class)
+                    .setParameter("id", idConversation)
+                    .setParameter("debut", debut)
+                    .setParameter("fin", fin)
+                    .getResultList();
+        }
+    }
+
+    /**
+     * @return le nombre de tours lus à la fois lors d'une reprise (gemini.persistance.page, défaut 20).
+     */
+    public int getTaillePage() {
+        return taillePage;
+    }
+
+    // --- Écriture différée ---
+
+    /**
+     * Boucle de l'écrivain : rassemble un lot, l'écrit, recommence. À l'arrêt, vide ce qui reste.
+     */
+    private void ecrire() {
+        List<Ajout> lot = new ArrayList<>();
+        while (!arrete) {
+            try {
+                lot.add(file.take());
+                int nbTours = lot.get(0).tours().size();
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delaiMs);
+                while (nbTours < lotMax) {
+                    Ajout suivant = file.poll(limite - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (suivant == null) break;
+                    lot.add(suivant);
+                    nbTours += suivant.tours().size();
+                }
+            } catch (InterruptedException e) {
+                // Arrêt demandé : le lot en cours et la file sont écrits ci-dessous
+            }
+            ecrireLot(lot);
+            lot.clear();
+        }
+        file.drainTo(lot);
+        ecrireLot(lot);
+    }
+
+    private void ecrireLot(List<Ajout> lot) {
+        if (lot.isEmpty()) return;
+        try {
+            ecrireTransaction(lot);
+            lotsEcrits.increment();
+        } catch (RuntimeException e) {
+            if (lot.size() == 1) {
+                echec(lot.get(0), e);
+            } else {
+                LOGGER.log(Level.WARNING, "Écriture d'un lot de " + lot.size() + " ajouts impossible, reprise ajout par ajout", e);
+                for (Ajout ajout : lot) {
+                    try {
+                        ecrireTransaction(List.of(ajout));
+                    } catch (RuntimeException erreur) {
+                        echec(ajout, erreur);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            nbTraites += lot.size();
+            notifyAll();
+        }
+    }
+
+    private void echec(Ajout ajout, RuntimeException erreur) {
+        ajoutsEnEchec.increment();
+        LOGGER.log(Level.WARNING, "Tours " + ajout.premierNumero() + " à " + (ajout.premierNumero() + ajout.tours().size() - 1)
+                + " de la conversation " + ajout.idConversation() + " non écrits", erreur);
+    }
+
+    /**
+     * Écrit les ajouts dans une transaction : conversations créées au besoin, puis tous les tours,
+     * envoyés ensemble au flush.
+     */
+    private void ecrireTransaction(List<Ajout> ajouts) {
+        try (EntityManager em = emf.createEntityManager()) {
+            EntityTransaction transaction = em.getTransaction();
+            transaction.begin();
+            try {
+                int nbTours = 0;
+                for (Ajout ajout : ajouts) {
+                    ConversationSauvegardee conversation = em.find(ConversationSauvegardee.class, ajout.idConversation());
+                    if (conversation == null) {
+                        conversation = new ConversationSauvegardee(ajout.idConversation(), ajout.codeRole(), ajout.instructionSysteme());
+                        em.persist(conversation);
+                    }
+                    int numero = ajout.premierNumero();
+                    for (HistoriqueConversation.Tour tour : ajout.tours()) {
+                        em.persist(new TourSauvegarde(ajout.idConversation(), numero, tour.role(), tour.texte()));
+                        conversation.ajouterTour(numero++);
+                    }
+                    nbTours += ajout.tours().size();
+                }
+                transaction.commit();
+                toursEcrits.add(nbTours);
+            } finally {
+                if (transaction.isActive()) transaction.rollback();
+            }
+        }
+    }
+
+    // --- Statistiques ---
+
+    public int getTailleFile() {
+        return file.size();
+    }
+
+    public long getNbToursEcrits() {
+        return toursEcrits.sum();
+    }
+
+    public long getNbLotsEcrits() {
+        return lotsEcrits.sum();
+    }
+
+    /**
+     * @return les ajouts perdus car la file était pleine.
+     */
+    public long getNbAjoutsPerdus() {
+        return ajoutsPerdus.sum();
+    }
+
+    /**
+     * @return les ajouts qui n'ont pas pu être écrits en base.
+     */
+    public long getNbAjoutsEnEchec() {
+        return ajoutsEnEchec.sum();
+    }
+}
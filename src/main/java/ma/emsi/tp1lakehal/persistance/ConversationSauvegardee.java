@@ -0,0 +1,83 @@
+package ma.emsi.tp1lakehal.persistance;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+
+import java.time.LocalDateTime;
+
+/**
+ * Une conversation enregistrée en base : son rôle système et le nombre de tours écrits.
+ * Les tours eux-mêmes sont des TourSauvegarde, lus page par page.
+ */
+@Entity
+@Table(name = "CONVERSATION")
+public class ConversationSauvegardee {
+
+    /** Identifiant donné à l'utilisateur pour reprendre la conversation (UUID). */
+    @Id
+    @Column(length = 36)
+    private String id;
+
+    /** Code du rôle (ASSISTANT, TRADUCTEUR, ...). */
+    @Column(length = 32)
+    private String codeRole;
+
+    @Lob
+    private String instructionSysteme;
+
+    private LocalDateTime dateCreation;
+
+    private LocalDateTime dateModification;
+
+    /** Numéro du tour qui suivra le dernier tour écrit (les tours sont numérotés à partir de 0). */
+    private int nbTours;
+
+    /**
+     * Pour JPA.
+     */
+    protected ConversationSauvegardee() {
+    }
+
+    ConversationSauvegardee(String id, String codeRole, String instructionSysteme) {
+        this.id = id;
+        this.codeRole = codeRole;
+        this.instructionSysteme = instructionSysteme;
+        this.dateCreation = LocalDateTime.now();
+        this.dateModification = dateCreation;
+    }
+
+    /**
+     * Note l'écriture d'un tour.
+     */
+    void ajouterTour(int numero) {
+        this.nbTours = Math.max(nbTours, numero + 1);
+        this.dateModification = LocalDateTime.now();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCodeRole() {
+        return codeRole;
+    }
+
+    public String getInstructionSysteme() {
+        return instructionSysteme;
+    }
+
+    public LocalDateTime getDateCreation() {
+        return dateCreation;
+    }
+
+    public LocalDateTime getDateModification() {
+        return dateModification;
+    }
+
+    public int getNbTours() {
+        return nbTours;
+    }
+}
@@ -0,0 +1,28 @@
+package ma.emsi.tp1lakehal.persistance;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Identifiants des conversations enregistrées créées dans une session HTTP (attribut ATTRIBUT_SESSION) :
+ * seules ces conversations peuvent être reprises par ?conversation=identifiant, pour qu'un identifiant vu
+ * ailleurs (historique du navigateur, lien partagé, journaux) ne donne pas accès à la conversation d'un autre.
+ */
+public class ConversationsDeLaSession implements Serializable {
+
+    public static final String ATTRIBUT_SESSION = ConversationsDeLaSession.class.getName();
+
+    private final Set<String> ids = new HashSet<>();
+
+    public synchronized void ajouter(String idConversation) {
+        ids.add(idConversation);
+    }
+
+    /**
+     * @return vrai si la conversation a été créée (ou reprise) dans cette session.
+     */
+    public synchronized boolean contient(String idConversation) {
+        return ids.contains(idConversation);
+    }
+}
@@ -0,0 +1,92 @@
+package ma.emsi.tp1lakehal.persistance;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Un tour enregistré d'une conversation : question de l'utilisateur ou réponse du modèle.
+ * La clé (conversation, numéro) est donnée par l'application : les insertions peuvent être envoyées par lots
+ * (pas de clé générée à relire), et une page de tours se lit par un intervalle de numéros sur la clé primaire.
+ */
+@Entity
+@Table(name = "TOUR_CONVERSATION")
+@IdClass(TourSauvegarde.Cle.class)
+public class TourSauvegarde {
+
+    /**
+     * Clé primaire d'un tour.
+     */
+    public static class Cle implements Serializable {
+        private String idConversation;
+        private int numero;
+
+        public Cle() {
+        }
+
+        public Cle(String idConversation, int numero) {
+            this.idConversation = idConversation;
+            this.numero = numero;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Cle autre && numero == autre.numero && Objects.equals(idConversation, autre.idConversation);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(idConversation, numero);
+        }
+    }
+
+    @Id
+    @Column(length = 36)
+    private String idConversation;
+
+    /** Position du tour dans la conversation, à partir de 0. */
+    @Id
+    private int numero;
+
+    /** "user" ou "model", comme dans HistoriqueConversation. */
+    @Column(length = 8, nullable = false)
+    private String role;
+
+    @Lob
+    private String texte;
+
+    /**
+     * Pour JPA.
+     */
+    protected TourSauvegarde() {
+    }
+
+    TourSauvegarde(String idConversation, int numero, String role, String texte) {
+        this.idConversation = idConversation;
+        this.numero = numero;
+        this.role = role;
+        this.texte = texte;
+    }
+
+    public String getIdConversation() {
+        return idConversation;
+    }
+
+    public int getNumero() {
+        return numero;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getTexte() {
+        return texte;
+    }
+}
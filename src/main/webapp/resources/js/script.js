@@ -17,4 +17,16 @@ async function copyToClipboard(idTextArea) {
 function toutEffacer() {
     document.getElementById("form:question").value = "";
     document.getElementById("form:reponse").value = "";
-}
\ No newline at end of file
+}
+
+/* Copier le texte de la conversation affichée (tours chargés dans la page) */
+async function copierConversation() {
+    var conversation = document.getElementById("conversation");
+    if (conversation) {
+        try {
+            await navigator.clipboard.writeText(conversation.innerText);
+        } catch (err) {
+            console.error("Erreur lors de la copie : ", err)
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import ma.emsi.tp1lakehal.Exception.RequeteException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppelsResilientsTest {
+
+    private static final Map<String, String> CONFIGURATION = Map.of(
+            "gemini.modeles", "gemini-autre",
+            "gemini.disjoncteur.seuil", "2",
+            "gemini.reprise.max", "0",
+            "gemini.reprise.delai-base", "1",
+            "gemini.reprise.delai-max", "1");
+
+    private static final OrdonnanceurAppels.Demandeur DEMANDEUR = new OrdonnanceurAppels.Demandeur("test", false);
+
+    private ClientGeminiSimule client;
+    private AppelsResilients appelsResilients;
+    private TamponRequeteJson.Corps corps;
+
+    @BeforeEach
+    void creer() {
+        CONFIGURATION.forEach(System::setProperty);
+        creerAppels();
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.ajouterContenu(HistoriqueConversation.ROLE_UTILISATEUR, List.of("Bonjour"));
+        corps = tampon.corps();
+    }
+
+    private void creerAppels() {
+        client = new ClientGeminiSimule();
+        appelsResilients = client.appelsResilients();
+    }
+
+    @AfterEach
+    void effacerConfiguration() {
+        CONFIGURATION.keySet().forEach(System::clearProperty);
+    }
+
+    private CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(String modele, boolean bascule) {
+        return appelsResilients.envoyer(corps, modele, bascule, DEMANDEUR);
+    }
+
+    private static MutualisationRequetes.ReponseApi resultat(CompletableFuture<MutualisationRequetes.ReponseApi> appel)
+            throws Exception {
+        return appel.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void limiteDeDebitNOuvrePasLeDisjoncteur() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", false);
+            client.attendreAppel("generateContent", i).repondre(429, "{}");
+            assertEquals(429, resultat(appel).status());
+        }
+
+        assertEquals(Disjoncteur.Etat.FERME, client.routage.getEtatDisjoncteur("gemini-test"));
+        envoyer("gemini-test", false);
+        assertEquals(4, client.appels("generateContent").size());
+    }
+
+    @Test
+    void erreursServeurOuvrentLeDisjoncteurDuModeleSeulement() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", false);
+            client.attendreAppel("generateContent", i).repondre(503, "{}");
+            resultat(appel);
+        }
+        assertEquals(Disjoncteur.Etat.OUVERT, client.routage.getEtatDisjoncteur("gemini-test"));
+
+        ExecutionException refus = assertThrows(ExecutionException.class, () -> resultat(envoyer("gemini-test", false)));
+        assertInstanceOf(RequeteException.class, refus.getCause());
+        assertEquals(2, client.appels("generateContent").size());
+        assertEquals(1, appelsResilients.getNbRejets());
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> autre = envoyer("gemini-autre", false);
+        client.attendreAppel("generateContent", 3).repondre(200, "{}");
+        assertEquals("gemini-autre", resultat(autre).modele());
+    }
+
+    @Test
+    void repriseSurLeMemeModele() throws Exception {
+        System.setProperty("gemini.reprise.max", "2");
+        creerAppels();
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", false);
+        client.attendreAppel("generateContent", 1).repondre(503, "{}");
+        ClientGeminiSimule.Appel reprise = client.attendreAppel("generateContent", 2);
+        reprise.repondre(200, "{}");
+
+        assertEquals("gemini-test", reprise.modele());
+        assertEquals(200, resultat(appel).status());
+        assertEquals(1, appelsResilients.getNbReprises());
+    }
+
+    @Test
+    void basculeSurUnAutreModele() throws Exception {
+        System.setProperty("gemini.reprise.max", "2");
+        creerAppels();
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", true);
+        client.attendreAppel("generateContent", 1).repondre(429, "{}");
+        ClientGeminiSimule.Appel reprise = client.attendreAppel("generateContent", 2);
+        reprise.repondre(200, "{}");
+
+        assertEquals("gemini-autre", reprise.modele());
+        assertEquals("gemini-autre", resultat(appel).modele());
+    }
+
+    @Test
+    void erreurDeLaRequeteNestPasReprise() throws Exception {
+        System.setProperty("gemini.reprise.max", "2");
+        creerAppels();
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", true);
+        client.attendreAppel("generateContent", 1).repondre(400, "{\"error\":\"requête invalide\"}");
+
+        MutualisationRequetes.ReponseApi reponse = resultat(appel);
+        assertEquals(400, reponse.status());
+        assertTrue(reponse.debut(100).contains("requête invalide"));
+        assertEquals(1, client.appels("generateContent").size());
+    }
+
+    @Test
+    void annulerArreteLAppelEnCours() {
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test", false);
+        ClientGeminiSimule.Appel http = client.attendreAppel("generateContent", 1);
+
+        appel.cancel(true);
+        assertTrue(http.reponse().isCancelled());
+        assertEquals(0, client.ordonnanceur.getNbEnCours());
+    }
+
+    @Test
+    void autresPointsDAccesPassentParLOrdonnanceur() throws Exception {
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel =
+                appelsResilients.appeler("gemini-test", () -> client.decrireModele("gemini-test"), DEMANDEUR);
+        assertEquals(1, client.ordonnanceur.getNbEnCours());
+        client.attendreAppel("models", 1).repondre(200, "{\"name\":\"models/gemini-test\"}");
+
+        try (MutualisationRequetes.ReponseApi reponse = resultat(appel)) {
+            assertEquals(200, reponse.status());
+        }
+        assertEquals(0, client.ordonnanceur.getNbEnCours());
+        assertEquals(1, appelsResilients.getNbTentatives());
+    }
+}
@@ -0,0 +1,116 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheReponsesTest {
+
+    private static final String MODELE = "gemini-test";
+    private static final List<String> PROPRIETES = List.of("gemini.cache.max-entrees", "gemini.cache.max-octets",
+            "gemini.cache.ttl", "gemini.cache.hors-tas");
+
+    @AfterEach
+    void effacerConfiguration() {
+        PROPRIETES.forEach(System::clearProperty);
+    }
+
+    private static CacheReponses cache(Map<String, String> configuration) {
+        configuration.forEach(System::setProperty);
+        return new CacheReponses();
+    }
+
+    private static HistoriqueConversation question(String texte) {
+        HistoriqueConversation historique = new HistoriqueConversation();
+        historique.setInstructionSysteme("Tu es un assistant.");
+        historique.ajouterQuestion(texte);
+        return historique;
+    }
+
+    private static CacheReponses.Cle cle(CacheReponses cache, String texte) {
+        return cache.cle(MODELE, question(texte));
+    }
+
+    @Test
+    void reponseRetrouveePourLaMemeRequete() {
+        CacheReponses cache = cache(Map.of());
+        cache.memoriser(cle(cache, "Bonjour"), List.of("Salut", " !"));
+
+        assertEquals(List.of("Salut", " !"), cache.chercher(cle(cache, "Bonjour")));
+        assertNull(cache.chercher(cle(cache, "Bonsoir")));
+        assertEquals(1, cache.getNbSucces());
+        assertEquals(1, cache.getNbEchecs());
+    }
+
+    @Test
+    void espacesEtHeureDuContexteIgnores() {
+        CacheReponses cache = cache(Map.of());
+        assertEquals(cle(cache, "Quel temps  fait-il ?\n[Information contextuelle: C'est le Matin (Heure locale : 09:41).]"),
+                cle(cache, " Quel temps fait-il ? [Information contextuelle: C'est le Matin (Heure locale : 10:05).]"));
+        assertNotEquals(cle(cache, "Quel temps fait-il ? [Information contextuelle: C'est le Matin (Heure locale : 09:41).]"),
+                cle(cache, "Quel temps fait-il ? [Information contextuelle: C'est le Soir (Heure locale : 19:41).]"));
+    }
+
+    @Test
+    void casseEtModeleFontPartieDeLaCle() {
+        CacheReponses cache = cache(Map.of());
+        assertNotEquals(cle(cache, "Que fait SELECT * FROM t ?"), cle(cache, "que fait select * from t ?"));
+        assertNotEquals(cache.cle("gemini-a", question("Bonjour")), cache.cle("gemini-b", question("Bonjour")));
+    }
+
+    @Test
+    void lesMoinsRecemmentUtiliseesSontEvincees() {
+        CacheReponses cache = cache(Map.of("gemini.cache.max-entrees", "2"));
+        cache.memoriser(cle(cache, "a"), List.of("A"));
+        cache.memoriser(cle(cache, "b"), List.of("B"));
+        cache.chercher(cle(cache, "a"));
+        cache.memoriser(cle(cache, "c"), List.of("C"));
+
+        assertEquals(2, cache.getNbEntrees());
+        assertEquals(1, cache.getNbEvictions());
+        assertNull(cache.chercher(cle(cache, "b")));
+        assertNotNull(cache.chercher(cle(cache, "a")));
+    }
+
+    @Test
+    void volumeTotalBorne() {
+        // 4 + 4 + 100 octets par réponse : deux réponses tiennent, pas trois
+        CacheReponses cache = cache(Map.of("gemini.cache.max-octets", "250"));
+        String texte = "x".repeat(100);
+        cache.memoriser(cle(cache, "a"), List.of(texte));
+        cache.memoriser(cle(cache, "b"), List.of(texte));
+        assertEquals(216, cache.getOctetsUtilises());
+
+        cache.memoriser(cle(cache, "c"), List.of(texte));
+        assertEquals(2, cache.getNbEntrees());
+        assertEquals(216, cache.getOctetsUtilises());
+        assertNull(cache.chercher(cle(cache, "a")));
+
+        // Une réponse plus grande que tout le cache n'est pas gardée
+        cache.memoriser(cle(cache, "d"), List.of("x".repeat(300)));
+        assertNull(cache.chercher(cle(cache, "d")));
+        assertEquals(2, cache.getNbEntrees());
+    }
+
+    @Test
+    void entreeExpireeRetiree() {
+        CacheReponses cache = cache(Map.of("gemini.cache.ttl", "0"));
+        cache.memoriser(cle(cache, "a"), List.of("A"));
+
+        assertNull(cache.chercher(cle(cache, "a")));
+        assertEquals(0, cache.getNbEntrees());
+        assertEquals(0, cache.getOctetsUtilises());
+    }
+
+    @Test
+    void reponsesHorsDuTas() {
+        CacheReponses cache = cache(Map.of("gemini.cache.hors-tas", "true"));
+        cache.memoriser(cle(cache, "a"), List.of("Réponse accentuée : é", "deuxième partie"));
+
+        assertEquals(List.of("Réponse accentuée : é", "deuxième partie"), cache.chercher(cle(cache, "a")));
+    }
+}
@@ -0,0 +1,125 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.Response;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Client Gemini pour les tests, sans réseau : chaque appel reste en attente jusqu'à ce que le test y réponde
+ * (ou l'annule), ce qui permet de contrôler l'ordre d'arrivée des réponses.
+ */
+class ClientGeminiSimule extends LlmClient {
+
+    /**
+     * Un appel reçu par le client simulé.
+     * @param point point d'accès appelé (generateContent, cachedContents, models).
+     */
+    record Appel(String point, String modele, Entity<?> entite, CompletableFuture<Response> reponse) {
+
+        void repondre(int status, String corps) {
+            reponse.complete(new ReponseHttpSimulee(status, corps));
+        }
+    }
+
+    private static final ExecutorService EXECUTEUR = Executors.newVirtualThreadPerTaskExecutor();
+
+    final List<Appel> appels = new CopyOnWriteArrayList<>();
+    /** Routage et ordonnanceur des derniers AppelsResilients créés par appelsResilients(). */
+    RoutageModeles routage;
+    OrdonnanceurAppels ordonnanceur;
+
+    /**
+     * Ce client ne passe pas par l'initialisation CDI (clé d'API, client REST).
+     */
+    ClientGeminiSimule() {
+    }
+
+    /**
+     * @return des AppelsResilients (avec routage, ordonnanceur et couverture) qui passent par ce client ;
+     * la configuration est lue à leur création.
+     */
+    AppelsResilients appelsResilients() {
+        routage = Injection.injecter(new RoutageModeles(), "geminiClient", this);
+        ordonnanceur = Injection.injecter(new OrdonnanceurAppels(), "geminiClient", this);
+        AppelsResilients appelsResilients = new AppelsResilients();
+        Injection.injecter(appelsResilients, "geminiClient", this);
+        Injection.injecter(appelsResilients, "routage", routage);
+        Injection.injecter(appelsResilients, "ordonnanceur", ordonnanceur);
+        Injection.injecter(appelsResilients, "couverture", Injection.injecter(new CouvertureRequetes(), "geminiClient", this));
+        return appelsResilients;
+    }
+
+    /**
+     * @return les appels reçus par ce point d'accès, dans l'ordre.
+     */
+    List<Appel> appels(String point) {
+        return appels.stream().filter(a -> a.point().equals(point)).toList();
+    }
+
+    /**
+     * Attend (au plus 5 s) que ce point d'accès ait reçu n appels : les reprises partent sur un autre thread.
+     * @return le n-ième appel.
+     */
+    Appel attendreAppel(String point, int n) {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (appels(point).size() < n) {
+            if (System.nanoTime() > limite) throw new AssertionError("Appel " + n + " à " + point + " jamais reçu");
+            Thread.onSpinWait();
+        }
+        return appels(point).get(n - 1);
+    }
+
+    private CompletionStage<Response> appel(String point, String modele, Entity<?> entite) {
+        CompletableFuture<Response> reponse = new CompletableFuture<>();
+        appels.add(new Appel(point, modele, entite, reponse));
+        return reponse;
+    }
+
+    @Override
+    public CompletionStage<Response> envoyerRequeteAsync(String nomModele, Entity requestEntity) {
+        return appel("generateContent", nomModele, requestEntity);
+    }
+
+    /**
+     * L'appel en flux est synchrone : le thread appelant attend que le test réponde (ou est interrompu).
+     */
+    @Override
+    public Response envoyerRequeteFlux(String nomModele, Entity requestEntity) {
+        try {
+            return appel("streamGenerateContent", nomModele, requestEntity).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        } catch (ExecutionException e) {
+            throw new ProcessingException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletionStage<Response> creerContenuEnCache(Entity requestEntity) {
+        return appel("cachedContents", getModele(), requestEntity);
+    }
+
+    @Override
+    public CompletionStage<Response> decrireModele(String nomModele) {
+        return appel("models", nomModele, null);
+    }
+
+    @Override
+    public String getModele() {
+        return "gemini-test";
+    }
+
+    @Override
+    public ExecutorService getExecuteur() {
+        return EXECUTEUR;
+    }
+}
@@ -0,0 +1,141 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CouvertureRequetesTest {
+
+    private static final List<String> PROPRIETES = List.of("gemini.couverture.actif", "gemini.couverture.budget",
+            "gemini.couverture.min-mesures");
+
+    @AfterEach
+    void effacerConfiguration() {
+        PROPRIETES.forEach(System::clearProperty);
+    }
+
+    /**
+     * Couverture active dès la première latence mesurée ; la requête rapide envoyée ici fixe le seuil
+     * au minimum (50 ms).
+     */
+    private static CouvertureRequetes couverture(String budget) {
+        Map.of("gemini.couverture.actif", "true", "gemini.couverture.budget", budget,
+                "gemini.couverture.min-mesures", "1").forEach(System::setProperty);
+        CouvertureRequetes couverture = Injection.injecter(new CouvertureRequetes(), "geminiClient", new ClientGeminiSimule());
+        couverture.envoyer(() -> CompletableFuture.completedFuture(reponse(200)), () -> null);
+        return couverture;
+    }
+
+    private static MutualisationRequetes.ReponseApi reponse(int status) {
+        return new MutualisationRequetes.ReponseApi(status, "", null, new byte[0], "gemini-test");
+    }
+
+    private static void attendre(AtomicInteger compteur, int valeur) {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (compteur.get() < valeur) {
+            if (System.nanoTime() > limite) throw new AssertionError("Doublon jamais demandé");
+            Thread.onSpinWait();
+        }
+    }
+
+    @Test
+    void pasDeCouvertureSansMesures() {
+        System.setProperty("gemini.couverture.actif", "true");
+        CouvertureRequetes couverture = Injection.injecter(new CouvertureRequetes(), "geminiClient", new ClientGeminiSimule());
+        assertEquals(-1, couverture.getSeuilMs());
+
+        System.clearProperty("gemini.couverture.actif");
+        CouvertureRequetes inactive = Injection.injecter(new CouvertureRequetes(), "geminiClient", new ClientGeminiSimule());
+        inactive.envoyer(() -> CompletableFuture.completedFuture(reponse(200)), () -> null);
+        assertEquals(-1, inactive.getSeuilMs());
+    }
+
+    @Test
+    void doublonGagnantAnnuleLAppelDOrigine() throws Exception {
+        CouvertureRequetes couverture = couverture("100");
+        assertEquals(50, couverture.getSeuilMs());
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> origine = new CompletableFuture<>();
+        CompletableFuture<MutualisationRequetes.ReponseApi> doublon = new CompletableFuture<>();
+        AtomicInteger doublons = new AtomicInteger();
+        CompletableFuture<MutualisationRequetes.ReponseApi> resultat = couverture.envoyer(() -> origine, () -> {
+            doublons.incrementAndGet();
+            return doublon;
+        });
+        attendre(doublons, 1);
+        MutualisationRequetes.ReponseApi gagnante = reponse(200);
+        doublon.complete(gagnante);
+
+        assertSame(gagnante, resultat.get(5, TimeUnit.SECONDS));
+        assertTrue(origine.isCancelled());
+        assertEquals(1, couverture.getNbCouvertures());
+        assertEquals(1, couverture.getNbCouverturesGagnantes());
+    }
+
+    @Test
+    void reponseTransitoireAttendLAutreAppel() throws Exception {
+        CouvertureRequetes couverture = couverture("100");
+        CompletableFuture<MutualisationRequetes.ReponseApi> origine = new CompletableFuture<>();
+        CompletableFuture<MutualisationRequetes.ReponseApi> doublon = new CompletableFuture<>();
+        AtomicInteger doublons = new AtomicInteger();
+        CompletableFuture<MutualisationRequetes.ReponseApi> resultat = couverture.envoyer(() -> origine, () -> {
+            doublons.incrementAndGet();
+            return doublon;
+        });
+        attendre(doublons, 1);
+
+        origine.complete(reponse(503));
+        assertFalse(resultat.isDone());
+        doublon.complete(reponse(200));
+        assertEquals(200, resultat.get(5, TimeUnit.SECONDS).status());
+    }
+
+    @Test
+    void sansBudgetPasDeDoublon() throws Exception {
+        CouvertureRequetes couverture = couverture("0");
+        AtomicInteger doublons = new AtomicInteger();
+        CompletableFuture<MutualisationRequetes.ReponseApi> origine = new CompletableFuture<>();
+        couverture.envoyer(() -> origine, () -> {
+            doublons.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+
+        Thread.sleep(150);
+        assertEquals(0, doublons.get());
+        assertEquals(0, couverture.getNbCouvertures());
+        origine.cancel(true);
+    }
+
+    @Test
+    void budgetRenduQuandLeDoublonNaPasDePlace() throws Exception {
+        // 50 % : une couverture toutes les deux requêtes
+        CouvertureRequetes couverture = couverture("50");
+        AtomicInteger doublons = new AtomicInteger();
+
+        // Deuxième requête : le budget permet un doublon, mais l'ordonnanceur n'a pas de place
+        CompletableFuture<MutualisationRequetes.ReponseApi> sansPlace = new CompletableFuture<>();
+        couverture.envoyer(() -> sansPlace, () -> {
+            doublons.incrementAndGet();
+            return null;
+        });
+        attendre(doublons, 1);
+        sansPlace.complete(reponse(200));
+
+        // Troisième requête : le budget rendu (et le nouveau crédit) permettent le doublon
+        CompletableFuture<MutualisationRequetes.ReponseApi> origine = new CompletableFuture<>();
+        CompletableFuture<MutualisationRequetes.ReponseApi> resultat = couverture.envoyer(() -> origine, () -> {
+            doublons.incrementAndGet();
+            return CompletableFuture.completedFuture(reponse(200));
+        });
+        assertEquals(200, resultat.get(5, TimeUnit.SECONDS).status());
+        assertEquals(2, doublons.get());
+        assertEquals(1, couverture.getNbCouvertures());
+    }
+}
@@ -0,0 +1,86 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DisjoncteurTest {
+
+    private static final long DUREE_MS = 50;
+
+    @Test
+    void resteFermeSousLeSeuil() {
+        Disjoncteur disjoncteur = new Disjoncteur(3, DUREE_MS);
+        disjoncteur.echec();
+        disjoncteur.echec();
+        disjoncteur.succes();
+        disjoncteur.echec();
+        disjoncteur.echec();
+
+        assertEquals(Disjoncteur.Etat.FERME, disjoncteur.getEtat());
+        assertTrue(disjoncteur.autoriser());
+        assertEquals(2, disjoncteur.getEchecsConsecutifs());
+    }
+
+    @Test
+    void souvreAuSeuilEtRefuseLesAppels() {
+        Disjoncteur disjoncteur = new Disjoncteur(3, 60_000);
+        for (int i = 0; i < 3; i++) {
+            disjoncteur.echec();
+        }
+
+        assertEquals(Disjoncteur.Etat.OUVERT, disjoncteur.getEtat());
+        assertFalse(disjoncteur.autoriser());
+        assertTrue(disjoncteur.getAttenteMs() > 0);
+        assertEquals(1, disjoncteur.getNbOuvertures());
+    }
+
+    @Test
+    void demiOuvertLaissePasserUnSeulEssai() throws InterruptedException {
+        Disjoncteur disjoncteur = new Disjoncteur(1, DUREE_MS);
+        disjoncteur.echec();
+        Thread.sleep(DUREE_MS + 10);
+
+        assertTrue(disjoncteur.autoriser());
+        assertEquals(Disjoncteur.Etat.DEMI_OUVERT, disjoncteur.getEtat());
+        assertFalse(disjoncteur.autoriser());
+    }
+
+    @Test
+    void essaiReussiFerme() throws InterruptedException {
+        Disjoncteur disjoncteur = new Disjoncteur(1, DUREE_MS);
+        disjoncteur.echec();
+        Thread.sleep(DUREE_MS + 10);
+        disjoncteur.autoriser();
+        disjoncteur.succes();
+
+        assertEquals(Disjoncteur.Etat.FERME, disjoncteur.getEtat());
+        assertTrue(disjoncteur.autoriser());
+    }
+
+    @Test
+    void essaiEchoueRouvre() throws InterruptedException {
+        Disjoncteur disjoncteur = new Disjoncteur(5, DUREE_MS);
+        for (int i = 0; i < 5; i++) {
+            disjoncteur.echec();
+        }
+        Thread.sleep(DUREE_MS + 10);
+        disjoncteur.autoriser();
+        disjoncteur.echec();
+
+        assertEquals(Disjoncteur.Etat.OUVERT, disjoncteur.getEtat());
+        assertEquals(2, disjoncteur.getNbOuvertures());
+    }
+
+    @Test
+    void essaiAbandonneRemplaceApresLaDuree() throws InterruptedException {
+        Disjoncteur disjoncteur = new Disjoncteur(1, DUREE_MS);
+        disjoncteur.echec();
+        Thread.sleep(DUREE_MS + 10);
+        assertTrue(disjoncteur.autoriser());
+        // L'essai n'a jamais rendu de résultat (appel annulé)
+        Thread.sleep(DUREE_MS + 10);
+
+        assertTrue(disjoncteur.autoriser());
+    }
+}
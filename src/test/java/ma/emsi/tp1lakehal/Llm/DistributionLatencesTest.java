@@ -0,0 +1,52 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DistributionLatencesTest {
+
+    @Test
+    void sansMesure() {
+        assertEquals(-1, new DistributionLatences().percentile(95));
+    }
+
+    @Test
+    void percentileAVingtCinqPourCentPres() {
+        DistributionLatences latences = new DistributionLatences();
+        for (int latence = 1; latence <= 100; latence++) {
+            latences.enregistrer(latence);
+        }
+
+        long p95 = latences.percentile(95);
+        assertTrue(p95 >= 95 && p95 <= 95 * 1.25, "p95 = " + p95);
+        long p50 = latences.percentile(50);
+        assertTrue(p50 >= 50 && p50 <= 50 * 1.25, "p50 = " + p50);
+        assertEquals(100, latences.getNbMesures());
+    }
+
+    @Test
+    void latencesTresLonguesDansLeDernierIntervalle() {
+        DistributionLatences latences = new DistributionLatences();
+        latences.enregistrer(3_600_000);
+
+        long max = latences.percentile(100);
+        assertTrue(max > 100_000 && max < 200_000, "max = " + max);
+    }
+
+    @Test
+    void mesuresAnciennesPesentMoins() {
+        DistributionLatences latences = new DistributionLatences();
+        // La millième mesure divise tous les compteurs par deux : il reste 500 mesures à 10 ms
+        for (int i = 0; i < 1000; i++) {
+            latences.enregistrer(10);
+        }
+        for (int i = 0; i < 600; i++) {
+            latences.enregistrer(1000);
+        }
+
+        // Sans atténuation, la médiane serait encore de 10 ms (1000 mesures contre 600)
+        assertTrue(latences.percentile(50) >= 1000);
+        assertEquals(1600, latences.getNbMesures());
+    }
+}
@@ -0,0 +1,136 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.JsonException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtracteurReponseGeminiTest {
+
+    private static ReponseGemini extraire(String json) {
+        return ExtracteurReponseGemini.extraire(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void textesDeToutesLesPartsMisBoutABout() {
+        ReponseGemini reponse = extraire("""
+                {"candidates": [{"content": {"role": "model", "parts": [
+                    {"text": "Bonjour, "}, {"thought": true}, {"text": "ça va ?"}]},
+                  "finishReason": "STOP"}],
+                 "modelVersion": "gemini-test"}""");
+
+        assertEquals(List.of("Bonjour, ", "ça va ?"), reponse.textes());
+        assertEquals("Bonjour, ça va ?", reponse.texte());
+        assertEquals("STOP", reponse.finishReason());
+        assertNull(reponse.blockReason());
+        assertFalse(reponse.estVide());
+    }
+
+    @Test
+    void autresCandidatsEtObjetsImbriquesSautes() {
+        ReponseGemini reponse = extraire("""
+                {"candidates": [
+                   {"safetyRatings": [{"category": "HARM_CATEGORY_HARASSMENT", "probability": "NEGLIGIBLE",
+                                       "details": {"parts": [{"text": "pas un texte"}]}}],
+                    "content": {"parts": [{"text": "premier"}], "role": "model"},
+                    "groundingMetadata": {"groundingChunks": [{"web": {"uri": "https://exemple.fr", "title": "text"}}],
+                                          "content": {"parts": [{"text": "pas un texte"}]}},
+                    "citationMetadata": {"citationSources": []},
+                    "finishReason": "MAX_TOKENS", "avgLogprobs": -0.25},
+                   {"content": {"parts": [{"text": "second"}]}, "finishReason": "STOP"},
+                   "inattendu", [1, 2]],
+                 "promptFeedback": {"safetyRatings": [{"category": "x", "blocked": false}]}}""");
+
+        assertEquals(List.of("premier"), reponse.textes());
+        assertEquals("MAX_TOKENS", reponse.finishReason());
+        assertNull(reponse.blockReason());
+    }
+
+    @Test
+    void compteDeTokensLusDansUsageMetadata() {
+        ReponseGemini reponse = extraire("""
+                {"usageMetadata": {"promptTokenCount": 12, "promptTokensDetails": [{"modality": "TEXT", "tokenCount": 12}],
+                                   "candidatesTokenCount": 30, "thoughtsTokenCount": 5, "totalTokenCount": 47},
+                 "candidates": [{"content": {"parts": [{"text": "ok"}]}}]}""");
+
+        assertEquals(12, reponse.promptTokenCount());
+        assertEquals(30, reponse.candidatesTokenCount());
+        assertEquals(47, reponse.totalTokenCount());
+        assertNull(reponse.finishReason());
+    }
+
+    @Test
+    void questionBloqueeSansCandidat() {
+        ReponseGemini reponse = extraire("""
+                {"promptFeedback": {"blockReason": "SAFETY",
+                                    "safetyRatings": [{"category": "HARM_CATEGORY_DANGEROUS_CONTENT", "probability": "HIGH"}]},
+                 "usageMetadata": {"promptTokenCount": 8, "totalTokenCount": 8}}""");
+
+        assertTrue(reponse.estVide());
+        assertEquals("", reponse.texte());
+        assertEquals("SAFETY", reponse.blockReason());
+        assertNull(reponse.finishReason());
+        assertEquals(8, reponse.promptTokenCount());
+        assertEquals(0, reponse.candidatesTokenCount());
+    }
+
+    @Test
+    void evenementDeFluxLuDepuisUnReader() {
+        ReponseGemini reponse = ExtracteurReponseGemini.extraire(new StringReader(
+                "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"\"}]},\"finishReason\":\"STOP\"}]}"));
+
+        assertEquals("", reponse.texte());
+        assertEquals("STOP", reponse.finishReason());
+    }
+
+    @Test
+    void jsonTronqueOuInvalideRefuse() {
+        assertThrows(JsonException.class, () -> extraire("{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"Bonj"));
+        assertThrows(JsonException.class, () -> extraire("{\"candidates\": [{\"content\": {\"parts\": [{\"text\": \"ok\"}]}}"));
+        assertThrows(JsonException.class, () -> extraire(""));
+        assertThrows(JsonException.class, () -> extraire("[{\"candidates\": []}]"));
+        assertThrows(JsonException.class, () -> extraire("{\"candidates\": {\"content\": {}}}"));
+        assertThrows(JsonException.class, () -> extraire("{\"candidates\": [{\"content\": {\"parts\": [\"texte\"]}}]}"));
+        assertThrows(JsonException.class, () -> extraire("{\"usageMetadata\": {\"totalTokenCount\": \"47\"}}"));
+        assertThrows(JsonException.class, () -> extraire("{\"promptFeedback\": {\"blockReason\": null}}"));
+    }
+
+    @Test
+    void lireDebutBorneLaLecture() {
+        assertEquals("erreur", ExtracteurReponseGemini.lireDebut(flux("erreur"), 6));
+        assertEquals("err\n[... réponse tronquée à 3 octets]", ExtracteurReponseGemini.lireDebut(flux("erreur"), 3));
+        assertEquals("", ExtracteurReponseGemini.lireDebut(null, 10));
+    }
+
+    @Test
+    void lireDebutFermeLeFluxEtSignaleLesErreurs() {
+        boolean[] ferme = new boolean[1];
+        InputStream flux = new ByteArrayInputStream("corps".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() {
+                ferme[0] = true;
+            }
+        };
+        ExtracteurReponseGemini.lireDebut(flux, 100);
+        assertTrue(ferme[0]);
+
+        InputStream illisible = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connexion fermée");
+            }
+        };
+        assertEquals("[corps de la réponse illisible : connexion fermée]", ExtracteurReponseGemini.lireDebut(illisible, 10));
+    }
+
+    private static InputStream flux(String texte) {
+        return new ByteArrayInputStream(texte.getBytes(StandardCharsets.UTF_8));
+    }
+}
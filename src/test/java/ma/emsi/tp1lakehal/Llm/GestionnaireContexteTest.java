@@ -0,0 +1,67 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GestionnaireContexteTest {
+
+    private static final OrdonnanceurAppels.Demandeur DEMANDEUR = new OrdonnanceurAppels.Demandeur("test", false);
+    private static final List<String> PROPRIETES = List.of("gemini.contexte.budget", "gemini.contexte.tours-recents",
+            "gemini.reprise.max");
+
+    @AfterEach
+    void effacerConfiguration() {
+        PROPRIETES.forEach(System::clearProperty);
+    }
+
+    private static GestionnaireContexte gestionnaire(ClientGeminiSimule client) {
+        GestionnaireContexte gestionnaire = Injection.injecter(new GestionnaireContexte(), "appelsResilients",
+                client.appelsResilients());
+        return Injection.injecter(gestionnaire, "routage", client.routage);
+    }
+
+    private static HistoriqueConversation conversation(int nbEchanges) {
+        HistoriqueConversation historique = new HistoriqueConversation();
+        for (int i = 0; i < nbEchanges; i++) {
+            historique.ajouterQuestion("Question " + i);
+            historique.ajouterReponse(List.of("Réponse " + i));
+        }
+        return historique;
+    }
+
+    @Test
+    void fenetreTronqueeEntreDeuxEchanges() {
+        System.setProperty("gemini.contexte.budget", "20");
+        HistoriqueConversation historique = conversation(5);
+
+        gestionnaire(new ClientGeminiSimule()).tronquerSiNecessaire(historique, null, 5);
+        assertTrue(historique.getTokensEnvoyes() + 5 <= 20);
+        assertTrue(historique.getDebutFenetre() > 0);
+        assertTrue(historique.getToursFenetre().get(0).estUtilisateur());
+    }
+
+    @Test
+    void toursRecentsAuMoinsUn() throws Exception {
+        Map.of("gemini.contexte.budget", "1", "gemini.contexte.tours-recents", "0",
+                "gemini.reprise.max", "0").forEach(System::setProperty);
+        ClientGeminiSimule client = new ClientGeminiSimule();
+        HistoriqueConversation historique = conversation(2);
+
+        // tours-recents=0 se comporte comme 1 : la dernière réponse et sa question restent hors du résumé
+        CompletableFuture<GestionnaireContexte.Resume> resume =
+                gestionnaire(client).planifierResume(historique, null, DEMANDEUR);
+        assertNotNull(resume);
+        client.attendreAppel("generateContent", 1).repondre(200,
+                "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"Deux questions posées.\"}]},\"finishReason\":\"STOP\"}]}");
+
+        assertEquals(2, resume.get(5, TimeUnit.SECONDS).fin());
+        assertEquals("Deux questions posées.", resume.get().texte());
+    }
+}
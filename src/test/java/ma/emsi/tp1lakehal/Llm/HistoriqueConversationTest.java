@@ -0,0 +1,72 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoriqueConversationTest {
+
+    private static HistoriqueConversation conversation() {
+        HistoriqueConversation historique = new HistoriqueConversation();
+        historique.setInstructionSysteme("Tu es un guide.");
+        historique.ajouterQuestion("Bonjour");
+        historique.ajouterReponse(List.of("Bonjour, que puis-je faire ?"));
+        return historique;
+    }
+
+    @Test
+    void questionRefuseeRetireeDeLHistorique() {
+        HistoriqueConversation historique = conversation();
+        byte[] avant = historique.corps().versOctets();
+        long memoireAvant = historique.tailleMemoire();
+        int tokensAvant = historique.getTokensEnvoyes();
+
+        historique.ajouterQuestion("Et demain ?");
+        assertTrue(historique.retirerQuestion("Et demain ?"));
+
+        assertEquals(2, historique.nbTours());
+        assertArrayEquals(avant, historique.corps().versOctets());
+        assertEquals(tokensAvant, historique.getTokensEnvoyes());
+        assertTrue(historique.tailleMemoire() <= memoireAvant);
+    }
+
+    @Test
+    void reponseOuAutreQuestionJamaisRetiree() {
+        HistoriqueConversation historique = conversation();
+        assertFalse(historique.retirerQuestion("Bonjour"));
+
+        historique.ajouterQuestion("Et demain ?");
+        assertFalse(historique.retirerQuestion("Autre question"));
+        assertEquals(3, historique.nbTours());
+    }
+
+    @Test
+    void questionEnDebutDeFenetreRetiree() {
+        HistoriqueConversation historique = conversation();
+        historique.ajouterQuestion("Et demain ?");
+        historique.deplacerFenetre(2, "L'utilisateur a dit bonjour.");
+
+        assertTrue(historique.retirerQuestion("Et demain ?"));
+        assertEquals(2, historique.getDebutFenetre());
+        assertTrue(historique.getToursFenetre().isEmpty());
+        assertTrue(historique.corps().versJson().toString().contains("L'utilisateur a dit bonjour."));
+    }
+
+    @Test
+    void resumeSuiviDUneReponseDuModele() {
+        HistoriqueConversation historique = conversation();
+        historique.ajouterQuestion("Et demain ?");
+        int tokensSansResume = historique.getTokensEnvoyes();
+        historique.deplacerFenetre(2, "L'utilisateur a dit bonjour.");
+
+        // Résumé (user), accusé de réception (model), puis la question : les rôles alternent
+        List<String> roles = historique.corps().versJson().getJsonArray("contents").getValuesAs(JsonObject.class).stream()
+                .map(contenu -> contenu.getString("role")).toList();
+        assertEquals(List.of("user", "model", "user"), roles);
+        assertEquals(historique.versJson(), historique.corps().versJson());
+        assertTrue(historique.getTokensEnvoyes() < tokensSansResume + 40);
+    }
+}
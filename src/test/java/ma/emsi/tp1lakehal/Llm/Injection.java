@@ -0,0 +1,28 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import java.lang.reflect.Field;
+
+/**
+ * Remplace l'injection CDI dans les tests : affecte un champ privé (@Inject) du bean testé.
+ */
+public final class Injection {
+
+    private Injection() {
+    }
+
+    public static <T> T injecter(T bean, String champ, Object valeur) {
+        for (Class<?> classe = bean.getClass(); classe != null; classe = classe.getSuperclass()) {
+            try {
+                Field field = classe.getDeclaredField(champ);
+                field.setAccessible(true);
+                field.set(bean, valeur);
+                return bean;
+            } catch (NoSuchFieldException e) {
+                // champ déclaré dans une classe parente
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("Champ introuvable : " + champ);
+    }
+}
@@ -0,0 +1,156 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import ma.emsi.tp1lakehal.Exception.RequeteException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonUtilPourGeminiTest {
+
+    /** Résumé demandé après chaque réponse, en gardant seulement le dernier échange ; une seule conversation gardée. */
+    private static final Map<String, String> CONFIGURATION = Map.of("gemini.reprise.max", "0", "gemini.cache.actif", "false",
+            "gemini.contexte.seuil-resume", "0", "gemini.contexte.tours-recents", "1", "gemini.conversations.max", "1");
+
+    private static final ExecutorService EXECUTEUR = Executors.newVirtualThreadPerTaskExecutor();
+
+    /** Taille des réponses enregistrée par les métriques, par appel. */
+    private final List<Long> octetsReponses = new CopyOnWriteArrayList<>();
+
+    private ClientGeminiSimule client;
+    private MagasinConversations magasin;
+    private JsonUtilPourGemini jsonUtil;
+
+    @BeforeEach
+    void creer() {
+        CONFIGURATION.forEach(System::setProperty);
+        client = new ClientGeminiSimule();
+        AppelsResilients appelsResilients = client.appelsResilients();
+        magasin = new MagasinConversations();
+        GestionnaireContexte gestionnaireContexte = Injection.injecter(new GestionnaireContexte(), "appelsResilients", appelsResilients);
+        Injection.injecter(gestionnaireContexte, "routage", client.routage);
+
+        jsonUtil = new JsonUtilPourGemini();
+        Injection.injecter(jsonUtil, "geminiClient", client);
+        Injection.injecter(jsonUtil, "gestionnaireContexte", gestionnaireContexte);
+        Injection.injecter(jsonUtil, "cacheReponses", new CacheReponses());
+        Injection.injecter(jsonUtil, "registreRoles", new RegistreRoles());
+        Injection.injecter(jsonUtil, "mutualisation",
+                Injection.injecter(new MutualisationRequetes(), "appelsResilients", appelsResilients));
+        Injection.injecter(jsonUtil, "appelsResilients", appelsResilients);
+        Injection.injecter(jsonUtil, "routage", client.routage);
+        Injection.injecter(jsonUtil, "ordonnanceur", client.ordonnanceur);
+        Injection.injecter(jsonUtil, "metriques", new MetriquesLlm() {
+            @Override
+            public void enregistrerAppel(String codeRole, long dureeNanos, int octetsRequete, int status, long octetsReponse,
+                                         int nbTours) {
+                octetsReponses.add(octetsReponse);
+            }
+        });
+        Injection.injecter(jsonUtil, "magasin", magasin);
+    }
+
+    @AfterEach
+    void effacerConfiguration() {
+        CONFIGURATION.keySet().forEach(System::clearProperty);
+    }
+
+    private static String reponse(String texte) {
+        return Json.createObjectBuilder().add("candidates", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                .add("content", Json.createObjectBuilder().add("role", "model")
+                        .add("parts", Json.createArrayBuilder().add(Json.createObjectBuilder().add("text", texte))))
+                .add("finishReason", "STOP"))).build().toString();
+    }
+
+    /**
+     * Pose une question ; l'appel numéro n reçoit la réponse donnée.
+     */
+    private void echanger(String question, int n, String texte) throws Exception {
+        var interaction = jsonUtil.envoyerRequeteAsync(question).toCompletableFuture();
+        client.attendreAppel("generateContent", n).repondre(200, reponse(texte));
+        assertEquals(texte, interaction.get(5, TimeUnit.SECONDS).reponseExtraite());
+    }
+
+    private String corps(int n) {
+        return String.valueOf(client.attendreAppel("generateContent", n).entite().getEntity());
+    }
+
+    @Test
+    void resumeDUneConversationEvinceeIgnore() throws Exception {
+        echanger("Question 1", 1, "Réponse 1");
+        // Après la deuxième réponse, le résumé des deux premiers tours est demandé (appel 3) et reste en attente
+        echanger("Question 2", 2, "Réponse 2");
+        ClientGeminiSimule.Appel appelResume = client.attendreAppel("generateContent", 3);
+
+        // Une autre conversation évince celle-ci : la question suivante repart d'un historique vide
+        magasin.ajouterSiAbsent("autre", new HistoriqueConversation());
+        assertEquals(1, magasin.getNbEvictions());
+        echanger("Question 3", 4, "Réponse 3");
+        appelResume.repondre(200, reponse("Résumé de l'ancienne conversation"));
+
+        // Le résumé de l'ancienne conversation ne remplace pas les tours de la nouvelle
+        var interaction = jsonUtil.envoyerRequeteAsync("Question 4").toCompletableFuture();
+        String corps = corps(5);
+        assertFalse(corps.contains("Résumé de l'ancienne conversation"));
+        assertTrue(corps.contains("Question 3"));
+        assertFalse(corps.contains("Question 1"));
+        client.attendreAppel("generateContent", 5).repondre(200, reponse("Réponse 4"));
+        interaction.get(5, TimeUnit.SECONDS);
+
+        List<HistoriqueConversation.Tour> tours = jsonUtil.getHistorique().getTours();
+        assertEquals(4, tours.size());
+        assertTrue(tours.get(0).estUtilisateur());
+    }
+
+    @Test
+    void reponseApresEvictionPendantLEchangeIgnoree() throws Exception {
+        var interaction = jsonUtil.envoyerRequeteAsync("Question 1").toCompletableFuture();
+        ClientGeminiSimule.Appel appel = client.attendreAppel("generateContent", 1);
+        magasin.ajouterSiAbsent("autre", new HistoriqueConversation());
+
+        appel.repondre(200, reponse("Réponse 1"));
+        assertEquals("Réponse 1", interaction.get(5, TimeUnit.SECONDS).reponseExtraite());
+        // La question a disparu avec la conversation : l'historique ne commence pas par la réponse du modèle
+        assertTrue(jsonUtil.getHistorique().estVide());
+    }
+
+    @Test
+    void reponseEnFluxApresUnNouveauChatIgnoree() throws Exception {
+        List<String> fragments = new CopyOnWriteArrayList<>();
+        Future<LlmInteraction> flux = EXECUTEUR.submit(() -> jsonUtil.envoyerRequeteFlux("Question 1", fragments::add));
+        ClientGeminiSimule.Appel appel = client.attendreAppel("streamGenerateContent", 1);
+
+        jsonUtil.nouvelleConversation();
+        appel.repondre(200, "data: " + reponse("Réponse de l'ancien chat") + "\n\n");
+
+        ExecutionException erreur = assertThrows(ExecutionException.class, () -> flux.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RequeteException.class, erreur.getCause());
+        assertEquals(List.of("Réponse de l'ancien chat"), fragments);
+        // La réponse n'est pas ajoutée au nouveau chat, qui n'est pas créé dans le magasin
+        assertEquals(0, magasin.getNbConversations());
+        assertTrue(jsonUtil.getHistorique().estVide());
+    }
+
+    @Test
+    void tailleDUneReponseEnFluxEnOctets() throws Exception {
+        String corps = "data: " + reponse("Réponse accentuée : déjà été") + "\r\n\r\n";
+        Future<LlmInteraction> flux = EXECUTEUR.submit(() -> jsonUtil.envoyerRequeteFlux("Question 1", fragment -> {}));
+        client.attendreAppel("streamGenerateContent", 1).repondre(200, corps);
+
+        assertEquals("Réponse accentuée : déjà été", flux.get(5, TimeUnit.SECONDS).reponseExtraite());
+        // Octets UTF-8 reçus, fins de ligne comprises (et non caractères décodés)
+        assertEquals(List.of((long) corps.getBytes(StandardCharsets.UTF_8).length), octetsReponses);
+    }
+}
@@ -0,0 +1,175 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MutualisationRequetesTest {
+
+    private static final OrdonnanceurAppels.Demandeur DEMANDEUR = new OrdonnanceurAppels.Demandeur("test", false);
+    private static final String REPONSE = "{\"candidates\":[]}";
+
+    private ClientGeminiSimule client;
+    private MutualisationRequetes mutualisation;
+    private TamponRequeteJson.Corps corps;
+
+    @BeforeEach
+    void creer() {
+        System.setProperty("gemini.reprise.max", "0");
+        creerMutualisation();
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.ajouterContenu(HistoriqueConversation.ROLE_UTILISATEUR, List.of("Bonjour"));
+        corps = tampon.corps();
+    }
+
+    private void creerMutualisation() {
+        client = new ClientGeminiSimule();
+        mutualisation = Injection.injecter(new MutualisationRequetes(), "appelsResilients", client.appelsResilients());
+    }
+
+    @AfterEach
+    void effacerConfiguration() {
+        System.clearProperty("gemini.reprise.max");
+        System.clearProperty("gemini.mutualisation.actif");
+    }
+
+    private CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(String modele) {
+        return mutualisation.envoyer(corps, modele, false, DEMANDEUR);
+    }
+
+    private static String lire(CompletableFuture<MutualisationRequetes.ReponseApi> appel) throws Exception {
+        try (MutualisationRequetes.ReponseApi reponse = appel.get(5, TimeUnit.SECONDS);
+             InputStream flux = reponse.flux()) {
+            return new String(flux.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void requetesIdentiquesPartagentUnAppel() throws Exception {
+        CompletableFuture<MutualisationRequetes.ReponseApi> premier = envoyer("gemini-test");
+        CompletableFuture<MutualisationRequetes.ReponseApi> second = envoyer("gemini-test");
+        client.attendreAppel("generateContent", 1).repondre(200, REPONSE);
+
+        // Le corps partagé est chargé : chaque appelant le relit
+        assertEquals(REPONSE, lire(premier));
+        assertEquals(REPONSE, lire(second));
+        assertEquals(1, client.appels("generateContent").size());
+        assertEquals(1, mutualisation.getNbAppels());
+        assertEquals(1, mutualisation.getNbMutualisees());
+    }
+
+    @Test
+    void autreModelePasPartage() {
+        envoyer("gemini-test");
+        envoyer("gemini-autre");
+
+        client.attendreAppel("generateContent", 2);
+        assertEquals(2, mutualisation.getNbAppels());
+    }
+
+    @Test
+    void appelantSeulLitLaReponseEnFlux() throws Exception {
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = envoyer("gemini-test");
+        ReponseHttpSimulee http = new ReponseHttpSimulee(200, REPONSE);
+        client.attendreAppel("generateContent", 1).reponse().complete(http);
+
+        MutualisationRequetes.ReponseApi reponse = appel.get(5, TimeUnit.SECONDS);
+        try (reponse; InputStream flux = reponse.flux()) {
+            assertFalse(http.isFermee());
+            assertEquals(REPONSE, new String(flux.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertTrue(http.isFermee());
+        assertEquals(REPONSE.length(), reponse.taille());
+        assertTrue(reponse.debut(100).startsWith("[réponse lue en flux"));
+    }
+
+    @Test
+    void annulerUnAppelantGardeLAppelPourLesAutres() throws Exception {
+        CompletableFuture<MutualisationRequetes.ReponseApi> premier = envoyer("gemini-test");
+        CompletableFuture<MutualisationRequetes.ReponseApi> second = envoyer("gemini-test");
+        ClientGeminiSimule.Appel http = client.attendreAppel("generateContent", 1);
+
+        premier.cancel(true);
+        assertFalse(http.reponse().isCancelled());
+        http.repondre(200, REPONSE);
+        assertEquals(REPONSE, lire(second));
+    }
+
+    @Test
+    void dernierAppelantQuiRenonceAnnuleLAppel() {
+        CompletableFuture<MutualisationRequetes.ReponseApi> premier = envoyer("gemini-test");
+        CompletableFuture<MutualisationRequetes.ReponseApi> second = envoyer("gemini-test");
+        ClientGeminiSimule.Appel http = client.attendreAppel("generateContent", 1);
+
+        premier.cancel(true);
+        second.cancel(true);
+        assertTrue(http.reponse().isCancelled());
+
+        // La même requête relance un appel
+        envoyer("gemini-test");
+        client.attendreAppel("generateContent", 2);
+    }
+
+    @Test
+    void reponseArriveeQuandLeDernierAppelantRenonceEstFermee() throws Exception {
+        ReponseHttpSimulee http = new ReponseHttpSimulee(200, REPONSE);
+        AtomicReference<CompletableFuture<MutualisationRequetes.ReponseApi>> appelant = new AtomicReference<>();
+        CompletableFuture<MutualisationRequetes.ReponseApi> appel = new CompletableFuture<>() {
+            @Override
+            public CompletableFuture<MutualisationRequetes.ReponseApi> whenComplete(
+                    BiConsumer<? super MutualisationRequetes.ReponseApi, ? super Throwable> action) {
+                // L'appelant renonce entre l'arrivée de la réponse et son traitement par la mutualisation
+                return super.whenComplete((reponse, erreur) -> {
+                    appelant.get().cancel(true);
+                    action.accept(reponse, erreur);
+                });
+            }
+        };
+        AppelsResilients appelsResilients = new AppelsResilients() {
+            @Override
+            public CompletableFuture<MutualisationRequetes.ReponseApi> envoyer(TamponRequeteJson.Corps corps, String modele,
+                                                                              boolean bascule, OrdonnanceurAppels.Demandeur demandeur) {
+                return appel;
+            }
+        };
+        mutualisation = Injection.injecter(new MutualisationRequetes(), "appelsResilients", appelsResilients);
+
+        appelant.set(envoyer("gemini-test"));
+        appel.complete(MutualisationRequetes.ReponseApi.ouvrir(http, "gemini-test"));
+        assertTrue(appelant.get().isCancelled());
+        assertTrue(http.isFermee());
+    }
+
+    @Test
+    void requeteApresLaReponseRelanceUnAppel() throws Exception {
+        CompletableFuture<MutualisationRequetes.ReponseApi> premier = envoyer("gemini-test");
+        client.attendreAppel("generateContent", 1).repondre(200, REPONSE);
+        lire(premier);
+
+        CompletableFuture<MutualisationRequetes.ReponseApi> second = envoyer("gemini-test");
+        client.attendreAppel("generateContent", 2).repondre(200, REPONSE);
+        assertEquals(REPONSE, lire(second));
+        assertEquals(0, mutualisation.getNbMutualisees());
+    }
+
+    @Test
+    void desactiveChaqueRequetePartSeule() {
+        System.setProperty("gemini.mutualisation.actif", "false");
+        creerMutualisation();
+        envoyer("gemini-test");
+        envoyer("gemini-test");
+
+        client.attendreAppel("generateContent", 2);
+        assertEquals(0, mutualisation.getNbMutualisees());
+    }
+}
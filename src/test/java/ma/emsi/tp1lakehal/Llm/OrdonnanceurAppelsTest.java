@@ -0,0 +1,163 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import ma.emsi.tp1lakehal.Exception.ServiceSatureException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrdonnanceurAppelsTest {
+
+    private static final OrdonnanceurAppels.Demandeur ALICE = new OrdonnanceurAppels.Demandeur("alice", false);
+    private static final OrdonnanceurAppels.Demandeur BOB = new OrdonnanceurAppels.Demandeur("bob", false);
+    private static final OrdonnanceurAppels.Demandeur LOTS = new OrdonnanceurAppels.Demandeur("lots", true);
+
+    private static final List<String> PROPRIETES = List.of("gemini.ordonnanceur.limite-initiale",
+            "gemini.ordonnanceur.file-par-cle", "gemini.ordonnanceur.attente-max");
+
+    @AfterEach
+    void effacerConfiguration() {
+        PROPRIETES.forEach(System::clearProperty);
+    }
+
+    private static OrdonnanceurAppels ordonnanceur(Map<String, String> configuration) {
+        configuration.forEach(System::setProperty);
+        return Injection.injecter(new OrdonnanceurAppels(), "geminiClient", new ClientGeminiSimule());
+    }
+
+    private static OrdonnanceurAppels.Jeton jeton(CompletableFuture<OrdonnanceurAppels.Jeton> place) throws Exception {
+        return place.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void auDelaDeLaLimiteLAppelAttendUnePlace() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "2"));
+        OrdonnanceurAppels.Jeton premier = jeton(ordonnanceur.obtenir(ALICE));
+        jeton(ordonnanceur.obtenir(BOB));
+
+        CompletableFuture<OrdonnanceurAppels.Jeton> troisieme = ordonnanceur.obtenir(ALICE);
+        assertFalse(troisieme.isDone());
+        assertEquals(1, ordonnanceur.getNbEnAttente());
+
+        premier.liberer(200, 100);
+        assertNotNull(jeton(troisieme));
+        assertEquals(2, ordonnanceur.getNbEnCours());
+        assertEquals(0, ordonnanceur.getNbEnAttente());
+    }
+
+    @Test
+    void lesPlacesSontDonneesATourDeRole() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "1"));
+        OrdonnanceurAppels.Jeton enCours = jeton(ordonnanceur.obtenir(ALICE));
+        CompletableFuture<OrdonnanceurAppels.Jeton> alice1 = ordonnanceur.obtenir(ALICE);
+        CompletableFuture<OrdonnanceurAppels.Jeton> alice2 = ordonnanceur.obtenir(ALICE);
+        CompletableFuture<OrdonnanceurAppels.Jeton> bob = ordonnanceur.obtenir(BOB);
+
+        enCours.liberer(-1, -1);
+        jeton(alice1).liberer(-1, -1);
+        // Bob passe avant la deuxième demande d'Alice, arrivée avant lui
+        assertTrue(bob.isDone());
+        assertFalse(alice2.isDone());
+
+        jeton(bob).liberer(-1, -1);
+        assertNotNull(jeton(alice2));
+    }
+
+    @Test
+    void fileDuDemandeurPleineRefuseTouteSuite() {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "1",
+                "gemini.ordonnanceur.file-par-cle", "1"));
+        ordonnanceur.obtenir(ALICE);
+        ordonnanceur.obtenir(ALICE);
+
+        ExecutionException refus = assertThrows(ExecutionException.class, () -> jeton(ordonnanceur.obtenir(ALICE)));
+        assertInstanceOf(ServiceSatureException.class, refus.getCause());
+        assertThrows(ServiceSatureException.class, () -> ordonnanceur.verifierAdmission(ALICE));
+        assertDoesNotThrow(() -> ordonnanceur.verifierAdmission(BOB));
+        assertEquals(2, ordonnanceur.getNbRejetsImmediats());
+
+        // Le traitement par lots limite lui-même ses appels : il attend son tour
+        assertFalse(ordonnanceur.obtenir(LOTS).isDone());
+        assertFalse(ordonnanceur.obtenir(LOTS).isDone());
+    }
+
+    @Test
+    void attenteTropLongueRefusee() {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "1",
+                "gemini.ordonnanceur.attente-max", "20"));
+        ordonnanceur.obtenir(ALICE);
+
+        ExecutionException refus = assertThrows(ExecutionException.class, () -> jeton(ordonnanceur.obtenir(BOB)));
+        assertInstanceOf(ServiceSatureException.class, refus.getCause());
+        assertEquals(1, ordonnanceur.getNbRejetsAttente());
+        assertEquals(0, ordonnanceur.getNbEnAttente());
+    }
+
+    @Test
+    void annulerRetireLAppelDeLaFile() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "1"));
+        OrdonnanceurAppels.Jeton enCours = jeton(ordonnanceur.obtenir(ALICE));
+        ordonnanceur.obtenir(BOB).cancel(true);
+        assertEquals(0, ordonnanceur.getNbEnAttente());
+
+        enCours.liberer(200, 100);
+        assertEquals(0, ordonnanceur.getNbEnCours());
+    }
+
+    @Test
+    void surchargeBaisseLaLimiteUneFoisParLatence() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "10"));
+        OrdonnanceurAppels.Jeton premier = jeton(ordonnanceur.obtenir(ALICE));
+        OrdonnanceurAppels.Jeton second = jeton(ordonnanceur.obtenir(ALICE));
+
+        premier.liberer(429, 100);
+        assertEquals(7, ordonnanceur.getLimite());
+        // Appel parti avant la baisse : pas de deuxième baisse
+        second.liberer(503, 100);
+        assertEquals(7, ordonnanceur.getLimite());
+        assertEquals(1, ordonnanceur.getNbBaisses());
+    }
+
+    @Test
+    void succesAugmenteLaLimiteQuandElleSert() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "2"));
+        for (int tour = 0; tour < 5; tour++) {
+            OrdonnanceurAppels.Jeton premier = jeton(ordonnanceur.obtenir(ALICE));
+            OrdonnanceurAppels.Jeton second = jeton(ordonnanceur.obtenir(BOB));
+            premier.liberer(200, 100);
+            second.liberer(200, 100);
+        }
+        assertTrue(ordonnanceur.getLimite() >= 3);
+
+        // Une limite qui ne sert pas n'augmente pas
+        OrdonnanceurAppels seul = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "10"));
+        for (int tour = 0; tour < 5; tour++) {
+            jeton(seul.obtenir(ALICE)).liberer(200, 100);
+        }
+        assertEquals(10, seul.getLimite());
+    }
+
+    @Test
+    void placeSansAttendreSeulementSiLibre() throws Exception {
+        OrdonnanceurAppels ordonnanceur = ordonnanceur(Map.of("gemini.ordonnanceur.limite-initiale", "2"));
+        OrdonnanceurAppels.Jeton premier = jeton(ordonnanceur.obtenir(ALICE));
+        OrdonnanceurAppels.Jeton doublon = ordonnanceur.obtenirSansAttendre();
+        assertNotNull(doublon);
+        assertNull(ordonnanceur.obtenirSansAttendre());
+
+        // Une place libérée revient d'abord aux appels en attente
+        CompletableFuture<OrdonnanceurAppels.Jeton> bob = ordonnanceur.obtenir(BOB);
+        doublon.liberer(200, 100);
+        assertTrue(bob.isDone());
+        assertNull(ordonnanceur.obtenirSansAttendre());
+
+        premier.liberer(200, 100);
+        assertNotNull(ordonnanceur.obtenirSansAttendre());
+    }
+}
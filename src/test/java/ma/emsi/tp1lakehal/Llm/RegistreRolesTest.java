@@ -0,0 +1,103 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistreRolesTest {
+
+    private static final String GUIDE = RolesSysteme.texte("GUIDE");
+
+    private ClientGeminiSimule client;
+    private RegistreRoles registre;
+
+    @BeforeEach
+    void creerRegistre() {
+        // Les rôles prédéfinis sont courts : le seuil de l'API est abaissé pour qu'ils soient mis en cache
+        System.setProperty("gemini.cache-contexte.min-tokens", "1");
+        System.setProperty("gemini.roles.max-personnalises", "2");
+        System.setProperty("gemini.reprise.max", "0");
+        client = new ClientGeminiSimule();
+        registre = new RegistreRoles();
+        Injection.injecter(registre, "geminiClient", client);
+        Injection.injecter(registre, "appelsResilients", client.appelsResilients());
+    }
+
+    @AfterEach
+    void effacerConfiguration() {
+        System.clearProperty("gemini.cache-contexte.min-tokens");
+        System.clearProperty("gemini.roles.max-personnalises");
+        System.clearProperty("gemini.reprise.max");
+    }
+
+    private List<ClientGeminiSimule.Appel> creations() {
+        return client.appels("cachedContents");
+    }
+
+    @Test
+    void roleEnLigneJusquALaCreationDuCache() {
+        byte[] enLigne = registre.entete(GUIDE);
+        assertArrayEquals(TamponRequeteJson.encoderInstructionSysteme(GUIDE), enLigne);
+        assertFalse(registre.estReferenceCache(GUIDE, enLigne));
+        assertEquals(1, creations().size());
+
+        // Une seule création à la fois
+        registre.entete(GUIDE);
+        assertEquals(1, creations().size());
+
+        ReponseHttpSimulee reponse = new ReponseHttpSimulee(200, "{\"name\":\"cachedContents/abc\",\"expireTime\":\""
+                + Instant.now().plusSeconds(3600) + "\"}");
+        creations().get(0).reponse().complete(reponse);
+
+        byte[] reference = registre.entete(GUIDE);
+        assertArrayEquals(TamponRequeteJson.encoderCachedContent("cachedContents/abc"), reference);
+        assertTrue(registre.estReferenceCache(GUIDE, reference));
+        assertTrue(reponse.isFermee());
+        assertEquals(1, creations().size());
+    }
+
+    @Test
+    void echecDeCreationRetardeLaTentativeSuivante() {
+        registre.entete(GUIDE);
+        creations().get(0).reponse().complete(new ReponseHttpSimulee(500, "{\"error\":{}}"));
+
+        assertArrayEquals(registre.enteteEnLigne(GUIDE), registre.entete(GUIDE));
+        assertEquals(1, creations().size());
+    }
+
+    @Test
+    void cacheInvalideEstRecree() {
+        registre.entete(GUIDE);
+        creations().get(0).reponse().complete(new ReponseHttpSimulee(200, "{\"name\":\"cachedContents/abc\",\"expireTime\":\""
+                + Instant.now().plusSeconds(3600) + "\"}"));
+        assertTrue(registre.estReferenceCache(GUIDE, registre.entete(GUIDE)));
+
+        registre.invalider(GUIDE);
+        assertFalse(registre.estReferenceCache(GUIDE, registre.entete(GUIDE)));
+        assertEquals(2, creations().size());
+    }
+
+    @Test
+    void instructionPersonnaliseeJamaisMiseEnCache() {
+        String instruction = "Tu es un assistant spécialisé. ".repeat(500);
+        byte[] entete = registre.entete(instruction);
+
+        assertArrayEquals(TamponRequeteJson.encoderInstructionSysteme(instruction), entete);
+        assertFalse(registre.estReferenceCache(instruction, entete));
+        assertTrue(creations().isEmpty());
+    }
+
+    @Test
+    void instructionsPersonnaliseesBornees() {
+        for (int i = 0; i < 5; i++) {
+            registre.entete("Instruction " + i);
+        }
+        assertEquals(2, registre.getNbPersonnalises());
+        assertArrayEquals(TamponRequeteJson.encoderInstructionSysteme("Instruction 0"), registre.entete("Instruction 0"));
+    }
+}
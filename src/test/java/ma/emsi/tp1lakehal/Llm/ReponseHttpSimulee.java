@@ -0,0 +1,202 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.GenericType;
+import jakarta.ws.rs.core.Link;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.NewCookie;
+import jakarta.ws.rs.core.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Réponse HTTP simulée pour les tests, sans implémentation de JAX-RS : un status, des en-têtes et un corps
+ * qui ne peut être lu qu'une fois, comme celui d'une vraie connexion.
+ */
+final class ReponseHttpSimulee extends Response {
+
+    private final int status;
+    private final MultivaluedMap<String, String> entetes = new MultivaluedHashMap<>();
+    private final byte[] corps;
+    private boolean lu;
+    private boolean fermee;
+
+    ReponseHttpSimulee(int status, String corps) {
+        this.status = status;
+        this.corps = corps.getBytes(StandardCharsets.UTF_8);
+    }
+
+    ReponseHttpSimulee entete(String nom, String valeur) {
+        entetes.add(nom, valeur);
+        return this;
+    }
+
+    boolean isFermee() {
+        return fermee;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public StatusType getStatusInfo() {
+        return new StatusType() {
+            @Override
+            public int getStatusCode() {
+                return status;
+            }
+
+            @Override
+            public Status.Family getFamily() {
+                return Status.Family.familyOf(status);
+            }
+
+            @Override
+            public String getReasonPhrase() {
+                Status connu = Status.fromStatusCode(status);
+                return connu != null ? connu.getReasonPhrase() : "";
+            }
+        };
+    }
+
+    @Override
+    public Object getEntity() {
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readEntity(Class<T> type) {
+        if (fermee) throw new IllegalStateException("Réponse fermée");
+        if (lu) throw new IllegalStateException("Corps déjà lu");
+        lu = true;
+        if (type == byte[].class) return (T) corps;
+        if (type == String.class) return (T) new String(corps, StandardCharsets.UTF_8);
+        if (type == InputStream.class) return (T) new ByteArrayInputStream(corps);
+        throw new IllegalArgumentException(type.getName());
+    }
+
+    @Override
+    public <T> T readEntity(GenericType<T> type) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T readEntity(Class<T> type, Annotation[] annotations) {
+        return readEntity(type);
+    }
+
+    @Override
+    public <T> T readEntity(GenericType<T> type, Annotation[] annotations) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasEntity() {
+        return corps.length > 0;
+    }
+
+    @Override
+    public boolean bufferEntity() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        fermee = true;
+    }
+
+    @Override
+    public MediaType getMediaType() {
+        return null;
+    }
+
+    @Override
+    public Locale getLanguage() {
+        return null;
+    }
+
+    @Override
+    public int getLength() {
+        return corps.length;
+    }
+
+    @Override
+    public Set<String> getAllowedMethods() {
+        return Set.of();
+    }
+
+    @Override
+    public Map<String, NewCookie> getCookies() {
+        return Map.of();
+    }
+
+    @Override
+    public EntityTag getEntityTag() {
+        return null;
+    }
+
+    @Override
+    public Date getDate() {
+        return null;
+    }
+
+    @Override
+    public Date getLastModified() {
+        return null;
+    }
+
+    @Override
+    public URI getLocation() {
+        return null;
+    }
+
+    @Override
+    public Set<Link> getLinks() {
+        return Set.of();
+    }
+
+    @Override
+    public boolean hasLink(String relation) {
+        return false;
+    }
+
+    @Override
+    public Link getLink(String relation) {
+        return null;
+    }
+
+    @Override
+    public Link.Builder getLinkBuilder(String relation) {
+        return null;
+    }
+
+    @Override
+    public MultivaluedMap<String, Object> getMetadata() {
+        MultivaluedMap<String, Object> metadonnees = new MultivaluedHashMap<>();
+        entetes.forEach((nom, valeurs) -> valeurs.forEach(valeur -> metadonnees.add(nom, valeur)));
+        return metadonnees;
+    }
+
+    @Override
+    public MultivaluedMap<String, String> getStringHeaders() {
+        return entetes;
+    }
+
+    @Override
+    public String getHeaderString(String nom) {
+        return entetes.getFirst(nom);
+    }
+}
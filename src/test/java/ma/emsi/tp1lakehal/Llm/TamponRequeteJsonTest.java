@@ -0,0 +1,88 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TamponRequeteJsonTest {
+
+    private static JsonObject contenu(String role, String... textes) {
+        var parts = Json.createArrayBuilder();
+        for (String texte : textes) {
+            parts.add(Json.createObjectBuilder().add("text", texte));
+        }
+        return Json.createObjectBuilder().add("role", role).add("parts", parts).build();
+    }
+
+    @Test
+    void corpsIdentiqueAuJsonConstruitParJsonP() {
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.setEntete(TamponRequeteJson.encoderInstructionSysteme("Tu es un \"guide\".\nRéponds en français."));
+        tampon.ajouterContenu(HistoriqueConversation.ROLE_UTILISATEUR, List.of("Où dormir à Fès ?"));
+        tampon.ajouterContenu(HistoriqueConversation.ROLE_MODELE, List.of("Dans un riad,", " près de la médina."));
+
+        JsonObject attendu = Json.createObjectBuilder()
+                .add("systemInstruction", Json.createObjectBuilder().add("parts", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("text", "Tu es un \"guide\".\nRéponds en français."))))
+                .add("contents", Json.createArrayBuilder()
+                        .add(contenu("user", "Où dormir à Fès ?"))
+                        .add(contenu("model", "Dans un riad,", " près de la médina.")))
+                .build();
+        assertEquals(attendu, tampon.corps().versJson());
+    }
+
+    @Test
+    void sansInstructionNiContenu() {
+        assertEquals("{\"contents\":[]}", new TamponRequeteJson().corps().toString());
+    }
+
+    @Test
+    void referenceAuContenuEnCache() {
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.setEntete(TamponRequeteJson.encoderCachedContent("cachedContents/abc"));
+        tampon.ajouterContenu("user", List.of("Bonjour"));
+
+        assertEquals("{\"cachedContent\":\"cachedContents/abc\",\"contents\":[{\"role\":\"user\",\"parts\":[{\"text\":\"Bonjour\"}]}]}",
+                tampon.corps().toString());
+    }
+
+    @Test
+    void corpsFigeMalgreLesAjoutsSuivants() {
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.ajouterContenu("user", List.of("Première question"));
+        TamponRequeteJson.Corps corps = tampon.corps();
+        String avant = corps.toString();
+
+        // Assez d'ajouts pour agrandir le tableau des contenus
+        for (int i = 0; i < 100; i++) {
+            tampon.ajouterContenu("model", List.of("Réponse assez longue numéro " + i));
+        }
+        assertTrue(tampon.capacite() > 1024);
+        assertEquals(avant, corps.toString());
+        assertEquals(101, tampon.corps().versJson().getJsonArray("contents").size());
+    }
+
+    @Test
+    void tailleEcritureEtHashCoherents() throws Exception {
+        TamponRequeteJson tampon = new TamponRequeteJson();
+        tampon.setEntete(TamponRequeteJson.encoderInstructionSysteme("Rôle"));
+        tampon.ajouterContenu("user", List.of("Question avec des accents : é, è, ç"));
+        TamponRequeteJson.Corps corps = tampon.corps();
+
+        ByteArrayOutputStream flux = new ByteArrayOutputStream();
+        corps.write(flux);
+        byte[] octets = flux.toByteArray();
+        assertArrayEquals(corps.versOctets(), octets);
+        assertEquals(octets.length, corps.taille());
+
+        MessageDigest hash = MessageDigest.getInstance("SHA-256");
+        corps.hacher(hash);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(octets), hash.digest());
+    }
+}
@@ -0,0 +1,217 @@
+package ma.emsi.tp1lakehal.Llm;
+
+import jakarta.enterprise.inject.Instance;
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraitementParLotsTest {
+
+    @TempDir
+    Path dossier;
+
+    /** Requêtes envoyées, par prompt. */
+    private final Map<String, CompletableFuture<LlmInteraction>> appels = new ConcurrentHashMap<>();
+    /** Prompts dont la réponse n'arrive que quand le test la donne. */
+    private final Set<String> retenus = ConcurrentHashMap.newKeySet();
+    /** Prompts dont l'appel échoue. */
+    private final Set<String> enErreur = ConcurrentHashMap.newKeySet();
+
+    private TraitementParLots traitement;
+    private Path entree;
+    private Path sortie;
+
+    @BeforeEach
+    void creer() {
+        traitement = Injection.injecter(new TraitementParLots(), "jsonUtils", jsonUtils());
+        entree = dossier.resolve("questions.jsonl");
+        sortie = dossier.resolve("reponses.jsonl");
+    }
+
+    /**
+     * Remplace Instance<JsonUtilPourGemini> : chaque get() rend un client dont la réponse est immédiate
+     * (ou en erreur), sauf pour les prompts retenus.
+     */
+    @SuppressWarnings("unchecked")
+    private Instance<JsonUtilPourGemini> jsonUtils() {
+        return (Instance<JsonUtilPourGemini>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Instance.class}, (proxy, methode, arguments) -> switch (methode.getName()) {
+                    case "get" -> new JsonUtilPourGemini() {
+                        @Override
+                        public CompletionStage<LlmInteraction> envoyerRequeteAsync(String question) {
+                            CompletableFuture<LlmInteraction> appel = new CompletableFuture<>();
+                            appels.put(question, appel);
+                            if (enErreur.contains(question)) appel.completeExceptionally(new IllegalStateException("Quota dépassé"));
+                            else if (!retenus.contains(question)) repondre(question);
+                            return appel;
+                        }
+                    };
+                    case "destroy" -> null;
+                    default -> throw new UnsupportedOperationException(methode.getName());
+                });
+    }
+
+    private void repondre(String prompt) {
+        ReponseGemini reponse = new ReponseGemini(List.of("R:" + prompt), "STOP", null, 1, 2, 3);
+        appels.get(prompt).complete(new LlmInteraction(() -> "{}", null, "R:" + prompt, reponse));
+    }
+
+    private static String question(int n) {
+        return Json.createObjectBuilder().add("id", "q" + n).add("prompt", "p" + n).build().toString();
+    }
+
+    private void ecrireEntree(int nbLignes) throws Exception {
+        List<String> lignes = new ArrayList<>();
+        for (int n = 0; n < nbLignes; n++) {
+            lignes.add(question(n));
+        }
+        Files.write(entree, lignes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return les résultats écrits, par numéro de ligne (les lignes illisibles sont ignorées).
+     */
+    private Map<Long, JsonObject> resultats() throws Exception {
+        Map<Long, JsonObject> resultats = new HashMap<>();
+        for (String ligne : Files.readAllLines(sortie, StandardCharsets.UTF_8)) {
+            try (JsonReader reader = Json.createReader(new StringReader(ligne))) {
+                JsonObject resultat = reader.readObject();
+                assertNull(resultats.put(resultat.getJsonNumber("ligne").longValue(), resultat), "Ligne écrite deux fois");
+            } catch (jakarta.json.JsonException e) {
+                // ligne tronquée par un arrêt brutal
+            }
+        }
+        return resultats;
+    }
+
+    private String checkpoint() throws Exception {
+        Path fichier = sortie.resolveSibling("reponses.jsonl.checkpoint");
+        return Files.exists(fichier) ? Files.readString(fichier, StandardCharsets.UTF_8) : null;
+    }
+
+    private static void attendre(BooleanSupplier condition) {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > limite) throw new AssertionError("Condition jamais remplie");
+            Thread.onSpinWait();
+        }
+    }
+
+    @Test
+    void chaqueLigneDonneUnResultat() throws Exception {
+        enErreur.add("p5");
+        Files.write(entree, List.of(question(0), "", "pas du json", "{\"id\":\"sans-prompt\"}", question(4), question(5)),
+                StandardCharsets.UTF_8);
+
+        TraitementParLots.Lot lot = traitement.lancer(entree, sortie, 2, 0);
+        lot.fin().get(5, TimeUnit.SECONDS);
+
+        Map<Long, JsonObject> resultats = resultats();
+        // La ligne vide ne produit pas de résultat
+        assertEquals(Set.of(0L, 2L, 3L, 4L, 5L), resultats.keySet());
+        assertEquals("q0", resultats.get(0L).getString("id"));
+        assertEquals("R:p0", resultats.get(0L).getString("reponse"));
+        assertEquals("STOP", resultats.get(0L).getString("finishReason"));
+        assertEquals(3, resultats.get(0L).getInt("tokens"));
+        assertTrue(resultats.get(2L).getString("erreur").startsWith("Ligne invalide"));
+        assertEquals("sans-prompt", resultats.get(3L).getString("id"));
+        assertEquals("Quota dépassé", resultats.get(5L).getString("erreur"));
+
+        assertEquals(2, lot.reussies());
+        assertEquals(3, lot.echecs());
+        assertNull(lot.erreur());
+        assertEquals("6", checkpoint());
+    }
+
+    @Test
+    void checkpointNAvanceQueSurLesLignesContigues() throws Exception {
+        retenus.add("p55");
+        ecrireEntree(120);
+
+        // Fenêtre de 80 lignes : tout le fichier est lu malgré la ligne 55 en attente
+        TraitementParLots.Lot lot = traitement.lancer(entree, sortie, 20, 0);
+        attendre(() -> lot.reussies() == 119);
+        assertEquals("50", checkpoint());
+        assertFalse(lot.estTermine());
+
+        repondre("p55");
+        lot.fin().get(5, TimeUnit.SECONDS);
+        assertEquals("120", checkpoint());
+        assertEquals(120, resultats().size());
+    }
+
+    @Test
+    void lectureBorneeParLaLigneLaPlusLente() throws Exception {
+        retenus.add("p0");
+        ecrireEntree(20);
+
+        // Parallélisme 2 : la lecture ne prend pas plus de 8 lignes d'avance sur la ligne 0
+        TraitementParLots.Lot lot = traitement.lancer(entree, sortie, 2, 0);
+        attendre(() -> lot.reussies() == 7);
+        Thread.sleep(100);
+        assertEquals(8, appels.size());
+        assertFalse(appels.containsKey("p8"));
+
+        repondre("p0");
+        lot.fin().get(5, TimeUnit.SECONDS);
+        assertEquals(20, appels.size());
+        assertEquals(20, resultats().size());
+        assertEquals("20", checkpoint());
+    }
+
+    @Test
+    void repriseSauteLesLignesDejaTraitees() throws Exception {
+        ecrireEntree(5);
+        Files.writeString(sortie.resolveSibling("reponses.jsonl.checkpoint"), "2", StandardCharsets.UTF_8);
+        // Lignes 0 et 1 avant le checkpoint, ligne 3 écrite au-delà, ligne 4 tronquée par l'arrêt
+        Files.writeString(sortie, "{\"ligne\":0,\"id\":\"q0\",\"reponse\":\"avant\"}\n"
+                + "{\"ligne\":1,\"id\":\"q1\",\"reponse\":\"avant\"}\n"
+                + "{\"ligne\":3,\"id\":\"q3\",\"reponse\":\"avant\"}\n"
+                + "{\"ligne\":4,\"id", StandardCharsets.UTF_8);
+
+        TraitementParLots.Lot lot = traitement.lancer(entree, sortie, 2, 0);
+        lot.fin().get(5, TimeUnit.SECONDS);
+
+        assertEquals(Set.of("p2", "p4"), appels.keySet());
+        assertEquals(3, lot.reprises());
+        assertEquals(2, lot.reussies());
+        Map<Long, JsonObject> resultats = resultats();
+        assertEquals(Set.of(0L, 1L, 2L, 3L, 4L), resultats.keySet());
+        assertEquals("avant", resultats.get(3L).getString("reponse"));
+        assertEquals("R:p4", resultats.get(4L).getString("reponse"));
+        assertEquals("5", checkpoint());
+    }
+
+    @Test
+    void unSeulLotParFichierDeSortie() throws Exception {
+        retenus.add("p0");
+        ecrireEntree(1);
+        TraitementParLots.Lot lot = traitement.lancer(entree, sortie, 1, 0);
+        attendre(() -> appels.containsKey("p0"));
+
+        assertThrows(IllegalStateException.class, () -> traitement.lancer(entree, sortie, 1, 0));
+        repondre("p0");
+        lot.fin().get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,61 @@
+package ma.emsi.tp1lakehal.commun;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionGzipTest {
+
+    private static byte[] decompresser(byte[] gzip) throws IOException {
+        try (GZIPInputStream flux = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return flux.readAllBytes();
+        }
+    }
+
+    @Test
+    void lisibleParGzipInputStream() throws Exception {
+        byte[] texte = "Réponse assez longue pour être compressée. ".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] gzip = CompressionGzip.compresser(texte, 0, texte.length);
+
+        assertTrue(gzip.length < texte.length);
+        assertArrayEquals(texte, decompresser(gzip));
+    }
+
+    @Test
+    void fluxTermineSansFermerLaCible() throws Exception {
+        ByteArrayOutputStream cible = new ByteArrayOutputStream();
+        CompressionGzip.Sortie sortie = new CompressionGzip.Sortie(cible);
+        sortie.write("Bonjour".getBytes(StandardCharsets.UTF_8));
+        sortie.flush();
+        sortie.write(" Fès".getBytes(StandardCharsets.UTF_8));
+        sortie.finish();
+        sortie.finish();
+
+        assertEquals("Bonjour Fès", new String(decompresser(cible.toByteArray()), StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> sortie.write(1));
+    }
+
+    @Test
+    void fluxAbandonneNeProduitRienDePlus() throws Exception {
+        ByteArrayOutputStream cible = new ByteArrayOutputStream();
+        CompressionGzip.Sortie sortie = new CompressionGzip.Sortie(cible);
+        sortie.write("interrompu".getBytes(StandardCharsets.UTF_8));
+        sortie.abandonner();
+        int taille = cible.size();
+
+        // Le flux abandonné est terminé : ni fin de format ni nouvelle écriture
+        sortie.finish();
+        assertEquals(taille, cible.size());
+        assertThrows(IOException.class, () -> sortie.write(1));
+
+        // Le Deflater rendu au pool repart de zéro pour le flux suivant
+        byte[] texte = "suivant".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(texte, decompresser(CompressionGzip.compresser(texte, 0, texte.length)));
+    }
+}
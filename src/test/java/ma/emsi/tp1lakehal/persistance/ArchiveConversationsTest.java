@@ -0,0 +1,141 @@
+package ma.emsi.tp1lakehal.persistance;
+
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import ma.emsi.tp1lakehal.Llm.HistoriqueConversation;
+import ma.emsi.tp1lakehal.Llm.Injection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveConversationsTest {
+
+    /** Remplace la fabrique de threads du serveur. */
+    private static final ManagedThreadFactory FABRIQUE = new ManagedThreadFactory() {
+        @Override
+        public Thread newThread(Runnable tache) {
+            return Thread.ofVirtual().unstarted(tache);
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final AtomicInteger NUMERO_BASE = new AtomicInteger();
+
+    private EntityManagerFactory emf;
+    private ArchiveConversations archive;
+
+    @BeforeEach
+    void ouvrirBase() {
+        emf = Persistence.createEntityManagerFactory("archive-test", Map.of("jakarta.persistence.jdbc.url",
+                "jdbc:h2:mem:archive" + NUMERO_BASE.incrementAndGet() + ";DB_CLOSE_DELAY=-1"));
+    }
+
+    @AfterEach
+    void fermerBase() {
+        if (archive != null) archive.arreter();
+        System.clearProperty("gemini.persistance.delai-ms");
+        emf.close();
+    }
+
+    private ArchiveConversations demarrer(int delaiMs) {
+        System.setProperty("gemini.persistance.delai-ms", String.valueOf(delaiMs));
+        archive = new ArchiveConversations();
+        Injection.injecter(archive, "emf", emf);
+        Injection.injecter(archive, "fabriqueThreads", FABRIQUE);
+        archive.demarrer();
+        return archive;
+    }
+
+    /**
+     * @return nbEchanges questions et réponses.
+     */
+    private static List<HistoriqueConversation.Tour> echanges(int nbEchanges) {
+        HistoriqueConversation historique = new HistoriqueConversation();
+        for (int i = 0; i < nbEchanges; i++) {
+            historique.ajouterQuestion("Question " + i);
+            historique.ajouterReponse(List.of("Réponse " + i));
+        }
+        return historique.getTours();
+    }
+
+    @Test
+    void ajoutsRapprochesEcritsEnUnSeulLot() {
+        demarrer(500);
+        List<HistoriqueConversation.Tour> tours = echanges(2);
+        assertTrue(archive.archiver("a", "GUIDE", "Tu es un guide.", 0, tours.subList(0, 2)));
+        assertTrue(archive.archiver("b", "POETE", null, 0, tours.subList(0, 2)));
+        assertTrue(archive.archiver("a", "GUIDE", "Tu es un guide.", 2, tours.subList(2, 4)));
+        archive.attendreEcritures(5000);
+
+        assertEquals(1, archive.getNbLotsEcrits());
+        assertEquals(6, archive.getNbToursEcrits());
+        ConversationSauvegardee conversation = archive.trouver("a");
+        assertEquals("GUIDE", conversation.getCodeRole());
+        assertEquals("Tu es un guide.", conversation.getInstructionSysteme());
+        assertEquals(4, conversation.getNbTours());
+        assertEquals(2, archive.trouver("b").getNbTours());
+    }
+
+    @Test
+    void ajoutEnErreurNeFaitPasPerdreLesAutres() {
+        demarrer(500);
+        List<HistoriqueConversation.Tour> tours = echanges(1);
+        archive.archiver("a", "GUIDE", null, 0, tours);
+        archive.attendreEcritures(5000);
+
+        // Même lot : un ajout de tours déjà écrits (deux onglets), et une autre conversation
+        archive.archiver("b", "GUIDE", null, 0, tours);
+        archive.archiver("a", "GUIDE", null, 0, tours);
+        archive.attendreEcritures(5000);
+
+        assertEquals(1, archive.getNbAjoutsEnEchec());
+        assertEquals(2, archive.trouver("b").getNbTours());
+        assertEquals(2, archive.trouver("a").getNbTours());
+        assertEquals(4, archive.getNbToursEcrits());
+    }
+
+    @Test
+    void repriseLitUnePageDeTours() {
+        demarrer(10);
+        archive.archiver("a", "GUIDE", null, 0, echanges(3));
+        archive.attendreEcritures(5000);
+
+        List<TourSauvegarde> page = archive.tours("a", 2, 6);
+        assertEquals(List.of(2, 3, 4, 5), page.stream().map(TourSauvegarde::getNumero).toList());
+        assertEquals("Question 1", page.get(0).getTexte());
+        assertEquals(HistoriqueConversation.ROLE_MODELE, page.get(1).getRole());
+        assertNull(archive.trouver("inconnue"));
+    }
+
+    @Test
+    void arretEcritCeQuiResteDansLaFile() {
+        demarrer(60_000);
+        archive.archiver("a", "GUIDE", null, 0, echanges(1));
+        archive.arreter();
+
+        assertEquals(2, archive.getNbToursEcrits());
+        assertEquals(2, archive.trouver("a").getNbTours());
+    }
+
+    @Test
+    void repriseReserveeAuxConversationsDeLaSession() {
+        ConversationsDeLaSession session = new ConversationsDeLaSession();
+        session.ajouter("a");
+
+        assertTrue(session.contient("a"));
+        assertFalse(session.contient("b"));
+    }
+}